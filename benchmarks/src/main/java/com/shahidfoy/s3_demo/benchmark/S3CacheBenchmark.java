@@ -0,0 +1,93 @@
+package com.shahidfoy.s3_demo.benchmark;
+
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repeated reads of one large object with and without the disk cache tier. With -prof gc, gc.alloc.rate.norm,
+ * gc.count and gc.time compare the heap churn and collector time of each read path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class S3CacheBenchmark {
+
+    private static final String KEY = "cache/large.bin";
+
+    @Param({"16MB", "256MB"})
+    public String payloadSize;
+
+    @Param({"false", "true"})
+    public boolean diskTier;
+
+    private Path directory;
+    private StorageFixture fixture;
+    private S3StorageService service;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("s3-benchmark-cache");
+        DataSize size = DataSize.parse(payloadSize);
+        fixture = StorageFixture.start(
+                "storage.s3.cache.disk.enabled=" + diskTier,
+                "storage.s3.cache.disk.directory=" + directory,
+                "storage.s3.cache.disk.max-object-size=1GB",
+                "storage.s3.cache.revalidate-after=1h");
+        service = fixture.bean(S3StorageService.class);
+        byte[] payload = new byte[Math.toIntExact(size.toBytes())];
+        new SplittableRandom(42).nextBytes(payload);
+        service.saveFileToBucket(StorageFixture.BUCKET, KEY, "application/octet-stream",
+                new ByteArrayInputStream(payload), payload.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    /**
+     * the download-file path, from the disk tier after the first read when it is enabled
+     */
+    @Benchmark
+    public long stream() throws IOException {
+        try (ResponseInputStream<GetObjectResponse> in = service.getFileStreamFromBucket(StorageFixture.BUCKET, KEY, null)) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * the get-file path, which always materializes the object as one array
+     */
+    @Benchmark
+    public int bytes() {
+        return service.getFileFromBucket(StorageFixture.BUCKET, KEY).length;
+    }
+}
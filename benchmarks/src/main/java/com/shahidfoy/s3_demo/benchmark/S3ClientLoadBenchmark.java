@@ -0,0 +1,81 @@
+package com.shahidfoy.s3_demo.benchmark;
+
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency percentiles of the sync (apache) and async (netty) s3 clients under 500 concurrent requests, read p99
+ * off the sample time histogram. Both clients keep the default storage.s3.http pool, so the sync client's
+ * threads queue for a connection lease while the async client queues requests on its event loop. The bulkheads
+ * are raised above the thread count so calls are measured rather than shed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Threads(500)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class S3ClientLoadBenchmark {
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final int PAYLOAD_SIZE = 16 * 1024;
+
+    @Param({"sync", "async"})
+    public String client;
+
+    private StorageFixture fixture;
+    private S3StorageService service;
+    private byte[] payload;
+    private String getKey;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = StorageFixture.start("storage.s3.client=" + client,
+                "storage.s3.resilience.read-concurrency=1000",
+                "storage.s3.resilience.write-concurrency=1000");
+        service = fixture.bean(S3StorageService.class);
+        payload = new byte[PAYLOAD_SIZE];
+        new SplittableRandom(42).nextBytes(payload);
+
+        getKey = "load/get.bin";
+        service.saveFileToBucket(StorageFixture.BUCKET, getKey, CONTENT_TYPE, new ByteArrayInputStream(payload), payload.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return service.getFileFromBucket(StorageFixture.BUCKET, getKey);
+    }
+
+    /**
+     * the streaming overload, which has stored the object once it returns on both clients
+     */
+    @Benchmark
+    public void save() {
+        service.saveFileToBucket(StorageFixture.BUCKET, "load/save.bin", CONTENT_TYPE,
+                new ByteArrayInputStream(payload), payload.length);
+    }
+}
@@ -0,0 +1,126 @@
+package com.shahidfoy.s3_demo.benchmark;
+
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import com.shahidfoy.s3_demo.support.FakeS3Server;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cpu spent against bytes saved by storage.s3.compression, on json payloads that compress about as well as
+ * typical api documents. save and get time each level, storedBytes is the size the object has in s3, and the
+ * capped uplink shows where fewer bytes on the wire pay for the cpu. level off stores the json as is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class S3CompressionBenchmark {
+
+    private static final String CONTENT_TYPE = "application/json";
+    private static final String[] WORDS = {"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+            "india", "juliet", "kilo", "lima", "mike", "november", "oscar", "papa"};
+
+    @Param({"64KB", "4MB"})
+    public String payloadSize;
+
+    @Param({"off", "1", "6", "9"})
+    public String level;
+
+    /**
+     * request body bandwidth of the fake s3 endpoint per second
+     */
+    @Param({"unlimited", "8MB"})
+    public String uplink;
+
+    private StorageFixture fixture;
+    private FakeS3Server server;
+    private S3StorageService service;
+    private byte[] payload;
+    private String saveKey;
+    private String getKey;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = FakeS3Server.start(uplink.equals("unlimited") ? 0 : DataSize.parse(uplink).toBytes());
+        fixture = level.equals("off")
+                ? StorageFixture.start(server, "storage.s3.compression.enabled=false")
+                : StorageFixture.start(server, "storage.s3.compression.enabled=true", "storage.s3.compression.level=" + level);
+        service = fixture.bean(S3StorageService.class);
+        payload = json(Math.toIntExact(DataSize.parse(payloadSize).toBytes()));
+
+        saveKey = "compression/" + payloadSize + "-save.json";
+        getKey = "compression/" + payloadSize + "-get.json";
+        service.saveFileToBucket(StorageFixture.BUCKET, getKey, CONTENT_TYPE, new ByteArrayInputStream(payload), payload.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    /**
+     * the streaming upload path of save-file, gzip included
+     */
+    @Benchmark
+    public void save(Stored stored) {
+        service.saveFileToBucket(StorageFixture.BUCKET, saveKey, CONTENT_TYPE, new ByteArrayInputStream(payload), payload.length);
+        stored.storedBytes = server.object(StorageFixture.BUCKET, saveKey).length;
+    }
+
+    /**
+     * the read plus the gunzip a client that doesn't accept gzip costs
+     */
+    @Benchmark
+    public byte[] get() {
+        return service.getFileFromBucket(StorageFixture.BUCKET, getKey);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Stored {
+
+        public long storedBytes;
+    }
+
+    /**
+     * an array of records with repeated field names, a small vocabulary and random ids and numbers, which gzip
+     * shrinks to roughly a fifth at the default level. Ends with the record that reaches the size
+     */
+    private static byte[] json(int size) {
+        SplittableRandom random = new SplittableRandom(42);
+        StringBuilder json = new StringBuilder(size + 256).append('[');
+        while (json.length() < size) {
+            if (json.length() > 1)
+                json.append(',');
+            json.append("{\"id\":\"").append(Long.toHexString(random.nextLong()))
+                    .append("\",\"name\":\"").append(WORDS[random.nextInt(WORDS.length)])
+                    .append(' ').append(WORDS[random.nextInt(WORDS.length)])
+                    .append("\",\"active\":").append(random.nextBoolean())
+                    .append(",\"score\":").append(random.nextInt(100_000))
+                    .append(",\"tags\":[\"").append(WORDS[random.nextInt(WORDS.length)])
+                    .append("\",\"").append(WORDS[random.nextInt(WORDS.length)]).append("\"]}");
+        }
+        return json.append(']').toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
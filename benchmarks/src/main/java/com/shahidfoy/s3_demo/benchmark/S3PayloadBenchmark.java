@@ -0,0 +1,118 @@
+package com.shahidfoy.s3_demo.benchmark;
+
+import com.shahidfoy.s3_demo.controller.S3Controller;
+import com.shahidfoy.s3_demo.model.response.S3Response;
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Save, get, rename and base64 encoding per payload size. Throughput and sample time give ops/s and latency
+ * percentiles, -prof gc adds the allocation rate per op. Payloads are random bytes, so they don't compress.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class S3PayloadBenchmark {
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+
+    @Param({"1KB", "64KB", "1MB", "16MB", "256MB"})
+    public String payloadSize;
+
+    private StorageFixture fixture;
+    private S3StorageService service;
+    private S3Controller controller;
+    private byte[] payload;
+    private String getKey;
+    private String renameFrom;
+    private String renameTo;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = StorageFixture.start();
+        service = fixture.bean(S3StorageService.class);
+        controller = fixture.bean(S3Controller.class);
+        payload = new byte[Math.toIntExact(DataSize.parse(payloadSize).toBytes())];
+        new SplittableRandom(42).nextBytes(payload);
+
+        getKey = "get/" + payloadSize + ".bin";
+        renameFrom = "rename/" + payloadSize + "-a.bin";
+        renameTo = "rename/" + payloadSize + "-b.bin";
+        // the byte[] overload is @Async, the stream overload has stored the object once it returns
+        seed(getKey);
+        seed(renameFrom);
+    }
+
+    private void seed(String key) {
+        service.saveFileToBucket(StorageFixture.BUCKET, key, CONTENT_TYPE, new ByteArrayInputStream(payload), payload.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    /**
+     * the upload path of save-file, multipart from storage.s3.multipart.threshold up
+     */
+    @Benchmark
+    public void save() {
+        service.saveFileToBucket(StorageFixture.BUCKET, "save/" + payloadSize + ".bin", CONTENT_TYPE,
+                new ByteArrayInputStream(payload), payload.length);
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return service.getFileFromBucket(StorageFixture.BUCKET, getKey);
+    }
+
+    /**
+     * get-file end to end: the read plus the base64 response body
+     */
+    @Benchmark
+    public ResponseEntity<S3Response> getBase64() {
+        return controller.getFile(getKey);
+    }
+
+    /**
+     * the encoding get-file adds on top of the read, without any s3 call
+     */
+    @Benchmark
+    public String base64() {
+        return Base64.getEncoder().encodeToString(payload);
+    }
+
+    /**
+     * head, acl read, copy and delete, moving the same object back and forth
+     */
+    @Benchmark
+    public void rename() {
+        service.renameFile(StorageFixture.BUCKET, renameFrom, renameTo, CONTENT_TYPE);
+        String renamed = renameTo;
+        renameTo = renameFrom;
+        renameFrom = renamed;
+    }
+}
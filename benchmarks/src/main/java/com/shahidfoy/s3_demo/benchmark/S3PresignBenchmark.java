@@ -0,0 +1,61 @@
+package com.shahidfoy.s3_demo.benchmark;
+
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Presigned url generation, which makes no s3 call. Repeated keys are served from the presign cache,
+ * fresh keys pay for the signature.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class S3PresignBenchmark {
+
+    private StorageFixture fixture;
+    private S3StorageService service;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = StorageFixture.start();
+        service = fixture.bean(S3StorageService.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public String presignPutCached() {
+        return service.generatePresignedUrl(StorageFixture.BUCKET, "presign/cached.png", "image/png");
+    }
+
+    @Benchmark
+    public String presignPut() {
+        return service.generatePresignedUrl(StorageFixture.BUCKET, "presign/" + sequence++ + ".png", "image/png");
+    }
+
+    @Benchmark
+    public String presignGet() {
+        return service.generatePresignedGetUrl(StorageFixture.BUCKET, "presign/" + sequence++ + ".png");
+    }
+}
@@ -0,0 +1,130 @@
+package com.shahidfoy.s3_demo.benchmark;
+
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import com.shahidfoy.s3_demo.support.FakeS3Server;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The streaming upload the upload executor runs for each save-file request, from a file on disk as the staged
+ * multipart temp file is. The fork's heap is smaller than the largest payload, and liveHeapMb reports the largest
+ * live set during an upload, which stays flat as the payload grows because nothing holds more than the multipart
+ * part buffers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx768m")
+public class S3UploadBenchmark {
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+
+    @Param({"16MB", "256MB", "1GB"})
+    public String payloadSize;
+
+    private Path file;
+    private long size;
+    private StorageFixture fixture;
+    private S3StorageService service;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        size = DataSize.parse(payloadSize).toBytes();
+        file = Files.createTempFile("s3-benchmark-upload", ".bin");
+        byte[] chunk = new byte[1024 * 1024];
+        SplittableRandom random = new SplittableRandom(42);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+        // the fake keeps only etags, otherwise it would hold every payload in this heap
+        fixture = StorageFixture.start(FakeS3Server.start(0, false));
+        service = fixture.bean(S3StorageService.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void save(LiveHeap liveHeap) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            service.saveFileToBucket(StorageFixture.BUCKET, "upload/" + payloadSize + ".bin", CONTENT_TYPE,
+                    inputStream, size);
+        }
+        liveHeap.update();
+    }
+
+    /**
+     * live set sampled with a full collection every 250ms while the upload runs. The forced collections are in
+     * the timings too, this benchmark is about the heap
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class LiveHeap {
+
+        public long liveHeapMb;
+
+        private final AtomicLong maxLive = new AtomicLong();
+        private Thread sampler;
+
+        @Setup(Level.Iteration)
+        public void start() {
+            maxLive.set(0);
+            sampler = new Thread(() -> {
+                MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(250);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    System.gc();
+                    maxLive.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                }
+            }, "live-heap-sampler");
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() throws InterruptedException {
+            sampler.interrupt();
+            sampler.join();
+        }
+
+        void update() {
+            liveHeapMb = maxLive.get() / (1024 * 1024);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.shahidfoy.s3_demo.benchmark;
+
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import com.shahidfoy.s3_demo.support.FakeS3Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.convert.DurationStyle;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests per second through tomcat on platform threads and with the virtual-threads profile, 1000 clients
+ * calling get-file against a fake s3 that answers after a remote-like round trip. On platform threads the
+ * tomcat pool caps how many requests wait on s3 at once, on virtual threads the connection pool does.
+ * The bulkheads are raised in both modes so neither sheds requests. virtual needs a java 21 runtime.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Threads(1000)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class S3VirtualThreadsBenchmark {
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final String FILE_NAME = "requests.bin";
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    /**
+     * time the fake s3 holds every request
+     */
+    @Param({"50ms"})
+    public String s3Latency;
+
+    private StorageFixture fixture;
+    private HttpClient httpClient;
+    private HttpRequest getFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (threads.equals("virtual") && Runtime.version().feature() < 21)
+            throw new IllegalStateException("virtual threads need a java 21 runtime, this is " + Runtime.version());
+
+        List<String> overrides = new ArrayList<>(List.of(
+                "spring.main.web-application-type=servlet",
+                "server.port=0",
+                "storage.s3.resilience.read-concurrency=2000",
+                "storage.s3.resilience.write-concurrency=2000"));
+        if (threads.equals("virtual"))
+            overrides.add("spring.profiles.active=virtual-threads");
+        FakeS3Server server = FakeS3Server.start();
+        fixture = StorageFixture.start(server, overrides.toArray(String[]::new));
+        byte[] payload = new byte[1024];
+        new SplittableRandom(42).nextBytes(payload);
+        fixture.bean(S3StorageService.class).saveFileToBucket(StorageFixture.BUCKET, FILE_NAME, CONTENT_TYPE,
+                new ByteArrayInputStream(payload), payload.length);
+        server.setLatency(DurationStyle.detectAndParse(s3Latency));
+
+        httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        getFile = HttpRequest.newBuilder(URI.create("http://localhost:" + fixture.port() + "/api/s3bucket/get-file/" + FILE_NAME))
+                .GET()
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    /**
+     * one get-file request end to end, a shed or failed request fails the run rather than inflating it
+     */
+    @Benchmark
+    public int getFile() throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = httpClient.send(getFile, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200)
+            throw new IllegalStateException("get-file returned " + response.statusCode());
+        return response.body().length;
+    }
+}
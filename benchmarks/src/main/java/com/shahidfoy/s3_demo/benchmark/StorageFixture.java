@@ -0,0 +1,88 @@
+package com.shahidfoy.s3_demo.benchmark;
+
+import com.shahidfoy.s3_demo.S3DemoApplication;
+import com.shahidfoy.s3_demo.support.FakeS3Server;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The application context without its web server, wired to a {@link FakeS3Server}. Caches, the metadata index
+ * and the opt-in features stay off so every call reaches the sdk and the benchmarks track the hot path itself.
+ */
+final class StorageFixture implements AutoCloseable {
+
+    static final String BUCKET = "benchmark";
+
+    private final FakeS3Server server;
+    private final ConfigurableApplicationContext context;
+
+    private StorageFixture(FakeS3Server server, ConfigurableApplicationContext context) {
+        this.server = server;
+        this.context = context;
+    }
+
+    /**
+     * @param overrides property=value pairs replacing the benchmark defaults
+     */
+    static StorageFixture start(String... overrides) throws IOException {
+        return start(FakeS3Server.start(), overrides);
+    }
+
+    /**
+     * @param server fake endpoint the context is wired to, closed with the fixture
+     * @param overrides property=value pairs replacing the benchmark defaults
+     */
+    static StorageFixture start(FakeS3Server server, String... overrides) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("spring.main.web-application-type", "none");
+        properties.put("spring.main.banner-mode", "off");
+        properties.put("logging.level.com.shahidfoy.s3_demo", "warn");
+        properties.put("storage.s3.endpoint", server.endpoint());
+        properties.put("storage.s3.cdn-endpoint", server.endpoint());
+        properties.put("storage.s3.bucket-name", BUCKET);
+        properties.put("storage.s3.region", "us-east-1");
+        properties.put("storage.s3.access-key", "benchmark");
+        properties.put("storage.s3.secret-key", "benchmark");
+        properties.put("storage.s3.cache.enabled", "false");
+        properties.put("storage.s3.cache.disk.enabled", "false");
+        properties.put("storage.s3.index.enabled", "false");
+        properties.put("storage.s3.multipart.sweep-interval", "24h");
+        properties.put("n1netails.kuda.config.token", "benchmark");
+        for (String override : overrides) {
+            String[] property = override.split("=", 2);
+            properties.put(property[0], property[1]);
+        }
+        // a repeated command line property would be joined into a list, so each one is passed once
+        List<String> args = new ArrayList<>();
+        properties.forEach((name, value) -> args.add("--" + name + "=" + value));
+        try {
+            return new StorageFixture(server, SpringApplication.run(S3DemoApplication.class, args.toArray(String[]::new)));
+        } catch (RuntimeException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    <T> T bean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    /**
+     * @return the port the web server listens on, for fixtures started as a servlet application
+     */
+    int port() {
+        return Integer.parseInt(context.getEnvironment().getRequiredProperty("local.server.port"));
+    }
+
+    @Override
+    public void close() {
+        context.close();
+        server.close();
+    }
+}
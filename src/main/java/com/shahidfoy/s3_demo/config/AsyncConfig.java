@@ -1,36 +1,90 @@
 package com.shahidfoy.s3_demo.config;
 
-import com.n1netails.n1netails.kuda.service.ExceptionReporter;
+import com.shahidfoy.s3_demo.service.impl.AsyncExceptionReporter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.annotation.AsyncConfigurer;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+@Slf4j
 @EnableAsync
+@RequiredArgsConstructor
 @Configuration
 public class AsyncConfig implements AsyncConfigurer {
 
-//    private final ExceptionReporter reporter;
-//
-//    public AsyncConfig(ExceptionReporter reporter) {
-//        this.reporter = reporter;
-//    }
+    @Value("${storage.upload-executor.mode}")
+    private String STORAGE_UPLOAD_EXECUTOR_MODE;
+
+    @Value("${storage.upload-executor.core-size}")
+    private int STORAGE_UPLOAD_EXECUTOR_CORE_SIZE;
+
+    @Value("${storage.upload-executor.max-size}")
+    private int STORAGE_UPLOAD_EXECUTOR_MAX_SIZE;
+
+    @Value("${storage.upload-executor.queue-capacity}")
+    private int STORAGE_UPLOAD_EXECUTOR_QUEUE_CAPACITY;
+
+    @Value("${storage.upload-executor.virtual-concurrency-limit}")
+    private int STORAGE_UPLOAD_EXECUTOR_VIRTUAL_CONCURRENCY_LIMIT;
+
+    private final MeterRegistry meterRegistry;
+    private final AsyncExceptionReporter asyncExceptionReporter;
+
+    /**
+     * executor behind {@code @Async} uploads. In platform mode a full pool and queue rejects new work,
+     * which the controller turns into a 503. In virtual mode every upload gets a virtual thread
+     * and callers block once the concurrency limit is reached.
+     * Active threads and queue length are published by actuator as executor.* metrics.
+     */
+    @Bean
+    public AsyncTaskExecutor uploadTaskExecutor() {
+        if ("virtual".equalsIgnoreCase(STORAGE_UPLOAD_EXECUTOR_MODE)) {
+            log.info("=== upload executor: virtual threads, concurrency limit {}", STORAGE_UPLOAD_EXECUTOR_VIRTUAL_CONCURRENCY_LIMIT);
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("upload-");
+            executor.setVirtualThreads(true);
+            executor.setConcurrencyLimit(STORAGE_UPLOAD_EXECUTOR_VIRTUAL_CONCURRENCY_LIMIT);
+            return executor;
+        }
+
+        log.info("=== upload executor: platform threads {}-{}, queue {}", STORAGE_UPLOAD_EXECUTOR_CORE_SIZE,
+                STORAGE_UPLOAD_EXECUTOR_MAX_SIZE, STORAGE_UPLOAD_EXECUTOR_QUEUE_CAPACITY);
+        Counter rejected = Counter.builder("executor.rejected")
+                .description("Tasks rejected because the upload executor was saturated")
+                .tag("name", "uploadTaskExecutor")
+                .register(meterRegistry);
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("upload-");
+        executor.setCorePoolSize(STORAGE_UPLOAD_EXECUTOR_CORE_SIZE);
+        executor.setMaxPoolSize(STORAGE_UPLOAD_EXECUTOR_MAX_SIZE);
+        executor.setQueueCapacity(STORAGE_UPLOAD_EXECUTOR_QUEUE_CAPACITY);
+        executor.setRejectedExecutionHandler((runnable, pool) -> {
+            rejected.increment();
+            throw new RejectedExecutionException("Upload executor saturated: " + pool.getActiveCount()
+                    + " active, " + pool.getQueue().size() + " queued");
+        });
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        return executor;
+    }
 
     @Override
     public Executor getAsyncExecutor() {
-        return Executors.newCachedThreadPool();
+        return uploadTaskExecutor();
     }
 
     @Override
     public AsyncUncaughtExceptionHandler getAsyncUncaughtExceptionHandler() {
-        return (throwable, method, objects) -> {
-            // Forward to your reporter
-            ExceptionReporter reporter = new ExceptionReporter();
-            reporter.reportException(throwable, method.getName());
-            throwable.printStackTrace();
-        };
+        return asyncExceptionReporter;
     }
 }
@@ -0,0 +1,47 @@
+package com.shahidfoy.s3_demo.config;
+
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.BackOffInterruptedException;
+import org.springframework.retry.backoff.BackOffPolicy;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the n-th retry sleeps a random time between zero and
+ * min(max, initial * 2^n). Clients that failed together then retry at different times.
+ */
+public class FullJitterBackOffPolicy implements BackOffPolicy {
+
+    private final long initialMillis;
+    private final long maxMillis;
+
+    public FullJitterBackOffPolicy(Duration initial, Duration max) {
+        this.initialMillis = initial.toMillis();
+        this.maxMillis = max.toMillis();
+    }
+
+    @Override
+    public BackOffContext start(RetryContext context) {
+        return new AttemptContext();
+    }
+
+    @Override
+    public void backOff(BackOffContext backOffContext) throws BackOffInterruptedException {
+        AttemptContext attemptContext = (AttemptContext) backOffContext;
+        int exponent = Math.min(attemptContext.attempt++, 30);
+        long ceiling = Math.min(maxMillis, initialMillis << exponent);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackOffInterruptedException("Interrupted during retry backoff", e);
+        }
+    }
+
+    private static class AttemptContext implements BackOffContext {
+
+        private int attempt;
+    }
+}
@@ -0,0 +1,245 @@
+package com.shahidfoy.s3_demo.config;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.utils.SdkAutoCloseable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps an {@link S3Client} or {@link S3AsyncClient} so every s3 call goes through a circuit breaker and a bulkhead.
+ * Calls are split into reads (get, head, list) and writes (everything else), each with its own breaker and
+ * bulkhead, so slow uploads can't use up the permits downloads need. An open breaker or a full bulkhead
+ * fails the call at once with CallNotPermittedException or BulkheadFullException, which the controller
+ * returns as 503.
+ * <p>
+ * Calls from the service's own pools (see {@link #internalThreadFactory}) share the breakers but take their
+ * permits from a separate internal bulkhead that waits instead of failing, so background fan-out such as
+ * multipart parts or batch renames neither sheds request calls nor gets shed by them.
+ * <p>
+ * Operations that retry themselves (see {@link S3RetryPolicy}) run with {@link #singleAttempts}, their calls
+ * go to a client that makes one attempt per request, so the sdk's retries don't multiply the operation's.
+ * <p>
+ * Payload transfers take as long as their size needs, so their duration isn't held against the breaker's
+ * slow call rate: copies, part copies, whole-object gets into a transformer, and PutObject or UploadPart
+ * bodies larger than the slow call payload limit. They still count toward the failure rate.
+ * <p>
+ * Async calls take their permits when they are made and give them back when their future completes, so the
+ * bulkheads bound calls in flight rather than threads. A rejected async call returns a failed future.
+ */
+public class GuardedS3Client implements InvocationHandler {
+
+    public static final String READ = "s3-read";
+    public static final String WRITE = "s3-write";
+    public static final String INTERNAL = "s3-internal";
+
+    // client methods that don't call s3
+    private static final Set<String> UNGUARDED = Set.of(
+            "close", "serviceName", "serviceClientConfiguration", "utilities", "waiter",
+            "equals", "hashCode", "toString");
+
+    // calls whose duration is always proportional to the object size
+    private static final Set<String> TRANSFERS = Set.of("copyObject", "uploadPartCopy");
+
+    private static final ThreadLocal<Boolean> INTERNAL_THREAD = ThreadLocal.withInitial(() -> false);
+    private static final ThreadLocal<Boolean> SINGLE_ATTEMPT = ThreadLocal.withInitial(() -> false);
+
+    private final SdkAutoCloseable delegate;
+    private final SdkAutoCloseable singleAttemptDelegate;
+    private final CircuitBreaker readBreaker;
+    private final CircuitBreaker writeBreaker;
+    private final Bulkhead readBulkhead;
+    private final Bulkhead writeBulkhead;
+    private final Bulkhead internalBulkhead;
+    private final long slowCallMaxPayload;
+
+    private GuardedS3Client(SdkAutoCloseable delegate, SdkAutoCloseable singleAttemptDelegate, CircuitBreakerRegistry circuitBreakers,
+                            BulkheadRegistry bulkheads, long slowCallMaxPayload) {
+        this.delegate = delegate;
+        this.singleAttemptDelegate = singleAttemptDelegate;
+        this.readBreaker = circuitBreakers.circuitBreaker(READ);
+        this.writeBreaker = circuitBreakers.circuitBreaker(WRITE);
+        this.readBulkhead = bulkheads.bulkhead(READ);
+        this.writeBulkhead = bulkheads.bulkhead(WRITE);
+        this.internalBulkhead = bulkheads.bulkhead(INTERNAL);
+        this.slowCallMaxPayload = slowCallMaxPayload;
+    }
+
+    /**
+     * @param singleAttemptDelegate client without sdk retries, for calls made under {@link #singleAttempts}
+     * @param slowCallMaxPayload PutObject and UploadPart bodies over this many bytes are never slow calls
+     */
+    public static S3Client wrap(S3Client delegate, S3Client singleAttemptDelegate, CircuitBreakerRegistry circuitBreakers,
+                                BulkheadRegistry bulkheads, long slowCallMaxPayload) {
+        return (S3Client) Proxy.newProxyInstance(S3Client.class.getClassLoader(), new Class<?>[]{S3Client.class},
+                new GuardedS3Client(delegate, singleAttemptDelegate, circuitBreakers, bulkheads, slowCallMaxPayload));
+    }
+
+    /**
+     * the async counterpart of {@link #wrap}, sharing the same breakers and bulkheads
+     */
+    public static S3AsyncClient wrapAsync(S3AsyncClient delegate, S3AsyncClient singleAttemptDelegate,
+                                          CircuitBreakerRegistry circuitBreakers, BulkheadRegistry bulkheads,
+                                          long slowCallMaxPayload) {
+        return (S3AsyncClient) Proxy.newProxyInstance(S3AsyncClient.class.getClassLoader(), new Class<?>[]{S3AsyncClient.class},
+                new GuardedS3Client(delegate, singleAttemptDelegate, circuitBreakers, bulkheads, slowCallMaxPayload));
+    }
+
+    /**
+     * thread factory for the service's own executors, s3 calls made on their threads use the internal bulkhead
+     */
+    public static ThreadFactory internalThreadFactory(String threadNamePrefix) {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(threadNamePrefix);
+        return runnable -> threadFactory.newThread(() -> {
+            INTERNAL_THREAD.set(true);
+            runnable.run();
+        });
+    }
+
+    /**
+     * s3 calls on this thread make a single attempt until {@link #restoreAttempts}
+     * @return the previous setting, to pass to restoreAttempts
+     */
+    public static boolean singleAttempts() {
+        boolean previous = SINGLE_ATTEMPT.get();
+        SINGLE_ATTEMPT.set(true);
+        return previous;
+    }
+
+    public static void restoreAttempts(boolean previous) {
+        SINGLE_ATTEMPT.set(previous);
+    }
+
+    /**
+     * @return true while s3 calls on this thread make a single attempt
+     */
+    public static boolean isSingleAttempt() {
+        return SINGLE_ATTEMPT.get();
+    }
+
+    /**
+     * @return the task, running with the calling thread's attempt setting on whichever thread runs it
+     */
+    public static Runnable inheritAttempts(Runnable task) {
+        boolean singleAttempt = SINGLE_ATTEMPT.get();
+        return () -> {
+            boolean previous = SINGLE_ATTEMPT.get();
+            SINGLE_ATTEMPT.set(singleAttempt);
+            try {
+                task.run();
+            } finally {
+                SINGLE_ATTEMPT.set(previous);
+            }
+        };
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        // the clients' default paginator methods build the iterable on the client they are called on,
+        // so running them against the proxy makes every page request go through the guard
+        if (name.endsWith("Paginator") && method.isDefault())
+            return InvocationHandler.invokeDefault(proxy, method, args);
+        if (name.equals("close"))
+            singleAttemptDelegate.close();
+        if (UNGUARDED.contains(name))
+            return call(delegate, method, args);
+
+        boolean read = name.startsWith("get") || name.startsWith("head") || name.startsWith("list");
+        CircuitBreaker breaker = read ? readBreaker : writeBreaker;
+        Bulkhead bulkhead = INTERNAL_THREAD.get() ? internalBulkhead : read ? readBulkhead : writeBulkhead;
+        boolean timed = !isTransfer(name, args);
+
+        // the breaker sits outside the bulkhead so an open circuit is rejected without taking a permit,
+        // and the call is timed from when it got its permit so waiting for one is never a slow call
+        try {
+            breaker.acquirePermission();
+        } catch (RuntimeException e) {
+            return rejected(method, e);
+        }
+        try {
+            bulkhead.acquirePermission();
+        } catch (RuntimeException e) {
+            breaker.releasePermission();
+            return rejected(method, e);
+        }
+        long start = System.nanoTime();
+        boolean async = false;
+        try {
+            Object result = call(SINGLE_ATTEMPT.get() ? singleAttemptDelegate : delegate, method, args);
+            if (result instanceof CompletableFuture<?> future) {
+                async = true;
+                return future.whenComplete((response, throwable) -> {
+                    try {
+                        if (throwable == null)
+                            breaker.onResult(timed ? System.nanoTime() - start : 0, TimeUnit.NANOSECONDS, response);
+                        else
+                            breaker.onError(timed ? System.nanoTime() - start : 0, TimeUnit.NANOSECONDS, unwrap(throwable));
+                    } finally {
+                        bulkhead.onComplete();
+                    }
+                });
+            }
+            breaker.onResult(timed ? System.nanoTime() - start : 0, TimeUnit.NANOSECONDS, result);
+            return result;
+        } catch (Throwable e) {
+            breaker.onError(timed ? System.nanoTime() - start : 0, TimeUnit.NANOSECONDS, e);
+            throw e;
+        } finally {
+            if (!async)
+                bulkhead.onComplete();
+        }
+    }
+
+    /**
+     * async calls report a rejection through their future like any other failure
+     */
+    private static Object rejected(Method method, RuntimeException e) {
+        if (CompletableFuture.class.isAssignableFrom(method.getReturnType()))
+            return CompletableFuture.failedFuture(e);
+        throw e;
+    }
+
+    private boolean isTransfer(String name, Object[] args) {
+        if (TRANSFERS.contains(name))
+            return true;
+        if (args == null || args.length < 2)
+            return false;
+        if (name.equals("getObject"))
+            return true;
+        if (!name.equals("putObject") && !name.equals("uploadPart"))
+            return false;
+        if (args[1] instanceof RequestBody body)
+            return body.optionalContentLength().orElse(Long.MAX_VALUE) > slowCallMaxPayload;
+        if (args[1] instanceof AsyncRequestBody body)
+            return body.contentLength().orElse(Long.MAX_VALUE) > slowCallMaxPayload;
+        return false;
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+
+    private static Object call(SdkAutoCloseable target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.shahidfoy.s3_demo.config;
+
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+/**
+ * Circuit breakers and bulkheads guarding the s3 client, one of each for reads and for writes, plus a bulkhead
+ * for the service's own background pools. See {@link GuardedS3Client} for how calls are classified.
+ */
+@RequiredArgsConstructor
+@Configuration
+public class ResilienceConfig {
+
+    @Value("${storage.s3.resilience.failure-rate-threshold}")
+    private float STORAGE_S3_RESILIENCE_FAILURE_RATE_THRESHOLD;
+
+    @Value("${storage.s3.resilience.slow-call-rate-threshold}")
+    private float STORAGE_S3_RESILIENCE_SLOW_CALL_RATE_THRESHOLD;
+
+    @Value("${storage.s3.resilience.slow-call-duration}")
+    private Duration STORAGE_S3_RESILIENCE_SLOW_CALL_DURATION;
+
+    @Value("${storage.s3.resilience.sliding-window-size}")
+    private int STORAGE_S3_RESILIENCE_SLIDING_WINDOW_SIZE;
+
+    @Value("${storage.s3.resilience.minimum-calls}")
+    private int STORAGE_S3_RESILIENCE_MINIMUM_CALLS;
+
+    @Value("${storage.s3.resilience.wait-in-open}")
+    private Duration STORAGE_S3_RESILIENCE_WAIT_IN_OPEN;
+
+    @Value("${storage.s3.resilience.half-open-calls}")
+    private int STORAGE_S3_RESILIENCE_HALF_OPEN_CALLS;
+
+    @Value("${storage.s3.resilience.read-concurrency}")
+    private int STORAGE_S3_RESILIENCE_READ_CONCURRENCY;
+
+    @Value("${storage.s3.resilience.write-concurrency}")
+    private int STORAGE_S3_RESILIENCE_WRITE_CONCURRENCY;
+
+    @Value("${storage.s3.resilience.bulkhead-max-wait}")
+    private Duration STORAGE_S3_RESILIENCE_BULKHEAD_MAX_WAIT;
+
+    @Value("${storage.s3.resilience.internal-concurrency}")
+    private int STORAGE_S3_RESILIENCE_INTERNAL_CONCURRENCY;
+
+    @Value("${storage.s3.resilience.internal-bulkhead-max-wait}")
+    private Duration STORAGE_S3_RESILIENCE_INTERNAL_BULKHEAD_MAX_WAIT;
+
+    private final MeterRegistry meterRegistry;
+
+    @Bean
+    public CircuitBreakerRegistry s3CircuitBreakerRegistry() {
+        CircuitBreakerConfig config = CircuitBreakerConfig.custom()
+                .failureRateThreshold(STORAGE_S3_RESILIENCE_FAILURE_RATE_THRESHOLD)
+                .slowCallRateThreshold(STORAGE_S3_RESILIENCE_SLOW_CALL_RATE_THRESHOLD)
+                .slowCallDurationThreshold(STORAGE_S3_RESILIENCE_SLOW_CALL_DURATION)
+                .slidingWindowType(CircuitBreakerConfig.SlidingWindowType.COUNT_BASED)
+                .slidingWindowSize(STORAGE_S3_RESILIENCE_SLIDING_WINDOW_SIZE)
+                .minimumNumberOfCalls(STORAGE_S3_RESILIENCE_MINIMUM_CALLS)
+                .waitDurationInOpenState(STORAGE_S3_RESILIENCE_WAIT_IN_OPEN)
+                // half-open lets this many probe calls through, their outcome closes or reopens the breaker
+                .permittedNumberOfCallsInHalfOpenState(STORAGE_S3_RESILIENCE_HALF_OPEN_CALLS)
+                .automaticTransitionFromOpenToHalfOpenEnabled(true)
+                // missing keys, denied access and shed calls say nothing about s3's health
+                .recordException(S3RetryPolicy::isRetryable)
+                .build();
+        CircuitBreakerRegistry registry = CircuitBreakerRegistry.of(config);
+        registry.circuitBreaker(GuardedS3Client.READ);
+        registry.circuitBreaker(GuardedS3Client.WRITE);
+        TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(registry).bindTo(meterRegistry);
+        return registry;
+    }
+
+    @Bean
+    public BulkheadRegistry s3BulkheadRegistry() {
+        BulkheadRegistry registry = BulkheadRegistry.ofDefaults();
+        registry.bulkhead(GuardedS3Client.READ,
+                bulkheadConfig(STORAGE_S3_RESILIENCE_READ_CONCURRENCY, STORAGE_S3_RESILIENCE_BULKHEAD_MAX_WAIT));
+        registry.bulkhead(GuardedS3Client.WRITE,
+                bulkheadConfig(STORAGE_S3_RESILIENCE_WRITE_CONCURRENCY, STORAGE_S3_RESILIENCE_BULKHEAD_MAX_WAIT));
+        registry.bulkhead(GuardedS3Client.INTERNAL,
+                bulkheadConfig(STORAGE_S3_RESILIENCE_INTERNAL_CONCURRENCY, STORAGE_S3_RESILIENCE_INTERNAL_BULKHEAD_MAX_WAIT));
+        TaggedBulkheadMetrics.ofBulkheadRegistry(registry).bindTo(meterRegistry);
+        return registry;
+    }
+
+    private static BulkheadConfig bulkheadConfig(int maxConcurrentCalls, Duration maxWait) {
+        return BulkheadConfig.custom()
+                .maxConcurrentCalls(maxConcurrentCalls)
+                .maxWaitDuration(maxWait)
+                .build();
+    }
+}
@@ -1,9 +1,47 @@
 package com.shahidfoy.s3_demo.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.retry.annotation.EnableRetry;
+import org.springframework.retry.interceptor.RetryInterceptorBuilder;
+
+import java.time.Duration;
 
 @EnableRetry
+@RequiredArgsConstructor
 @Configuration
 public class RetryConfig {
+
+    @Value("${storage.s3.retry.max-attempts}")
+    private int STORAGE_S3_RETRY_MAX_ATTEMPTS;
+
+    @Value("${storage.s3.retry.initial-backoff}")
+    private Duration STORAGE_S3_RETRY_INITIAL_BACKOFF;
+
+    @Value("${storage.s3.retry.max-backoff}")
+    private Duration STORAGE_S3_RETRY_MAX_BACKOFF;
+
+    @Value("${storage.s3.retry.budget-ratio}")
+    private double STORAGE_S3_RETRY_BUDGET_RATIO;
+
+    @Value("${storage.s3.retry.budget-capacity}")
+    private double STORAGE_S3_RETRY_BUDGET_CAPACITY;
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * interceptor behind {@code @Retryable(interceptor = "s3RetryInterceptor")}
+     */
+    @Bean
+    public MethodInterceptor s3RetryInterceptor() {
+        return RetryInterceptorBuilder.stateless()
+                .retryPolicy(new S3RetryPolicy(STORAGE_S3_RETRY_MAX_ATTEMPTS, STORAGE_S3_RETRY_BUDGET_RATIO,
+                        STORAGE_S3_RETRY_BUDGET_CAPACITY, meterRegistry))
+                .backOffPolicy(new FullJitterBackOffPolicy(STORAGE_S3_RETRY_INITIAL_BACKOFF, STORAGE_S3_RETRY_MAX_BACKOFF))
+                .build();
+    }
 }
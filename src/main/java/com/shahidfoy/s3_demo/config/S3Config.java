@@ -1,19 +1,33 @@
 package com.shahidfoy.s3_demo.config;
 
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.awscore.retry.AwsRetryStrategy;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3Configuration;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 import java.net.URI;
+import java.time.Duration;
 
 @Getter
+@RequiredArgsConstructor
 @Configuration
 public class S3Config {
 
@@ -26,11 +40,100 @@ public class S3Config {
     @Value("${storage.s3.secret-key}")
     private String STORAGE_S3_SECRET_KEY;
 
-    @Value("${storage.s3.region")
+    @Value("${storage.s3.region}")
     private String STORAGE_S3_REGION;
 
+    @Value("${storage.s3.http.max-connections}")
+    private int STORAGE_S3_HTTP_MAX_CONNECTIONS;
+
+    @Value("${storage.s3.http.connection-acquisition-timeout}")
+    private Duration STORAGE_S3_HTTP_CONNECTION_ACQUISITION_TIMEOUT;
+
+    @Value("${storage.s3.http.connection-timeout}")
+    private Duration STORAGE_S3_HTTP_CONNECTION_TIMEOUT;
+
+    @Value("${storage.s3.http.read-timeout}")
+    private Duration STORAGE_S3_HTTP_READ_TIMEOUT;
+
+    @Value("${storage.s3.http.write-timeout}")
+    private Duration STORAGE_S3_HTTP_WRITE_TIMEOUT;
+
+    @Value("${storage.s3.http.connection-max-idle-time}")
+    private Duration STORAGE_S3_HTTP_CONNECTION_MAX_IDLE_TIME;
+
+    @Value("${storage.s3.http.tcp-keep-alive}")
+    private boolean STORAGE_S3_HTTP_TCP_KEEP_ALIVE;
+
+    @Value("${storage.s3.retry.sdk-max-attempts}")
+    private int STORAGE_S3_RETRY_SDK_MAX_ATTEMPTS;
+
+    @Value("${storage.s3.resilience.slow-call-max-payload}")
+    private DataSize STORAGE_S3_RESILIENCE_SLOW_CALL_MAX_PAYLOAD;
+
+    private final MeterRegistry meterRegistry;
+    private final CircuitBreakerRegistry s3CircuitBreakerRegistry;
+    private final BulkheadRegistry s3BulkheadRegistry;
+
+    /**
+     * connection pool of the s3 clients, closed by the context rather than the clients sharing it
+     */
+    @Bean
+    public SdkHttpClient s3HttpClient() {
+        // the apache client has no separate write timeout, the socket timeout covers both directions
+        return ApacheHttpClient.builder()
+                .maxConnections(STORAGE_S3_HTTP_MAX_CONNECTIONS)
+                .connectionAcquisitionTimeout(STORAGE_S3_HTTP_CONNECTION_ACQUISITION_TIMEOUT)
+                .connectionTimeout(STORAGE_S3_HTTP_CONNECTION_TIMEOUT)
+                .socketTimeout(STORAGE_S3_HTTP_READ_TIMEOUT)
+                .connectionMaxIdleTime(STORAGE_S3_HTTP_CONNECTION_MAX_IDLE_TIME)
+                .tcpKeepAlive(STORAGE_S3_HTTP_TCP_KEEP_ALIVE)
+                .build();
+    }
+
+    @Bean
+    public S3Client s3Client(SdkHttpClient s3HttpClient) {
+        // @Retryable operations retry whole operations, their calls go to the second client, which makes one attempt
+        return GuardedS3Client.wrap(buildS3Client(s3HttpClient, STORAGE_S3_RETRY_SDK_MAX_ATTEMPTS),
+                buildS3Client(s3HttpClient, 1), s3CircuitBreakerRegistry, s3BulkheadRegistry,
+                STORAGE_S3_RESILIENCE_SLOW_CALL_MAX_PAYLOAD.toBytes());
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "storage.s3.client", havingValue = "async")
+    public SdkAsyncHttpClient s3AsyncHttpClient() {
+        return NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(STORAGE_S3_HTTP_MAX_CONNECTIONS)
+                .connectionAcquisitionTimeout(STORAGE_S3_HTTP_CONNECTION_ACQUISITION_TIMEOUT)
+                .connectionTimeout(STORAGE_S3_HTTP_CONNECTION_TIMEOUT)
+                .readTimeout(STORAGE_S3_HTTP_READ_TIMEOUT)
+                .writeTimeout(STORAGE_S3_HTTP_WRITE_TIMEOUT)
+                .connectionMaxIdleTime(STORAGE_S3_HTTP_CONNECTION_MAX_IDLE_TIME)
+                .tcpKeepAlive(STORAGE_S3_HTTP_TCP_KEEP_ALIVE)
+                .build();
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "storage.s3.client", havingValue = "async")
+    public S3AsyncClient s3AsyncClient(SdkAsyncHttpClient s3AsyncHttpClient) {
+        // guarded by the same breakers and bulkheads as the sync client, with the same single attempt client
+        return GuardedS3Client.wrapAsync(buildS3AsyncClient(s3AsyncHttpClient, STORAGE_S3_RETRY_SDK_MAX_ATTEMPTS),
+                buildS3AsyncClient(s3AsyncHttpClient, 1), s3CircuitBreakerRegistry, s3BulkheadRegistry,
+                STORAGE_S3_RESILIENCE_SLOW_CALL_MAX_PAYLOAD.toBytes());
+    }
+
     @Bean
-    public S3Client s3Client() {
+    public S3Presigner s3Presigner() {
+        AwsBasicCredentials awsBasicCredentials = AwsBasicCredentials.create(STORAGE_S3_ACCESS_KEY, STORAGE_S3_SECRET_KEY);
+
+        return S3Presigner.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(awsBasicCredentials))
+                .endpointOverride(URI.create(STORAGE_S3_ENDPOINT))
+                .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
+                .region(Region.of(STORAGE_S3_REGION))
+                .build();
+    }
+
+    private S3Client buildS3Client(SdkHttpClient httpClient, int maxAttempts) {
         AwsBasicCredentials awsBasicCredentials = AwsBasicCredentials.create(STORAGE_S3_ACCESS_KEY, STORAGE_S3_SECRET_KEY);
 
         return S3Client.builder()
@@ -38,18 +141,29 @@ public class S3Config {
                 .endpointOverride(URI.create(STORAGE_S3_ENDPOINT))
                 .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
                 .region(Region.of(STORAGE_S3_REGION))
+                .httpClient(httpClient)
+                .overrideConfiguration(override -> override
+                        .addExecutionInterceptor(new S3MetricsInterceptor(meterRegistry))
+                        .retryStrategy(AwsRetryStrategy.standardRetryStrategy().toBuilder()
+                                .maxAttempts(maxAttempts)
+                                .build()))
                 .build();
     }
 
-    @Bean
-    public S3Presigner s3Presigner() {
+    private S3AsyncClient buildS3AsyncClient(SdkAsyncHttpClient httpClient, int maxAttempts) {
         AwsBasicCredentials awsBasicCredentials = AwsBasicCredentials.create(STORAGE_S3_ACCESS_KEY, STORAGE_S3_SECRET_KEY);
 
-        return S3Presigner.builder()
+        return S3AsyncClient.builder()
                 .credentialsProvider(StaticCredentialsProvider.create(awsBasicCredentials))
                 .endpointOverride(URI.create(STORAGE_S3_ENDPOINT))
                 .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
                 .region(Region.of(STORAGE_S3_REGION))
+                .httpClient(httpClient)
+                .overrideConfiguration(override -> override
+                        .addExecutionInterceptor(new S3MetricsInterceptor(meterRegistry))
+                        .retryStrategy(AwsRetryStrategy.standardRetryStrategy().toBuilder()
+                                .maxAttempts(maxAttempts)
+                                .build()))
                 .build();
     }
 }
@@ -0,0 +1,104 @@
+package com.shahidfoy.s3_demo.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every http attempt the sdk makes, so retries done inside the client show up as extra
+ * s3.request.attempt samples and in s3.request.retries instead of hiding in the operation latency.
+ * <p>
+ * An attempt is timed from when it is sent until its response arrives, tagged with the http status. Attempts
+ * that get no response at all, like connection resets and timeouts, are tagged io_error and stopped when the
+ * operation fails, or when the sdk sends the next attempt, in which case the time includes the retry backoff.
+ */
+@RequiredArgsConstructor
+public class S3MetricsInterceptor implements ExecutionInterceptor {
+
+    static final String IO_ERROR = "io_error";
+
+    private static final ExecutionAttribute<Long> ATTEMPT_START = new ExecutionAttribute<>("S3MetricsAttemptStart");
+    private static final ExecutionAttribute<Integer> ATTEMPTS = new ExecutionAttribute<>("S3MetricsAttempts");
+    private static final ExecutionAttribute<Integer> ATTEMPTS_TIMED = new ExecutionAttribute<>("S3MetricsAttemptsTimed");
+
+    private final MeterRegistry meterRegistry;
+
+    @Override
+    public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+        // the previous attempt is still open when it failed without a response and the sdk is retrying it
+        stopAttempt(executionAttributes, IO_ERROR);
+        executionAttributes.putAttribute(ATTEMPT_START, System.nanoTime());
+        Integer attempts = executionAttributes.getAttribute(ATTEMPTS);
+        executionAttributes.putAttribute(ATTEMPTS, attempts == null ? 1 : attempts + 1);
+    }
+
+    @Override
+    public void afterTransmission(Context.AfterTransmission context, ExecutionAttributes executionAttributes) {
+        stopAttempt(executionAttributes, String.valueOf(context.httpResponse().statusCode()));
+    }
+
+    @Override
+    public void afterExecution(Context.AfterExecution context, ExecutionAttributes executionAttributes) {
+        recordRetries(executionAttributes);
+    }
+
+    @Override
+    public void onExecutionFailure(Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+        stopAttempt(executionAttributes, IO_ERROR);
+        recordRetries(executionAttributes);
+        Throwable exception = context.exception();
+        String errorCode = exception instanceof AwsServiceException serviceException && serviceException.awsErrorDetails() != null
+                ? serviceException.awsErrorDetails().errorCode()
+                : exception.getClass().getSimpleName();
+        Counter.builder("s3.request.errors")
+                .description("S3 requests that failed after all sdk attempts")
+                .tag("operation", operation(executionAttributes))
+                .tag("error_code", errorCode == null ? "unknown" : errorCode)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    /**
+     * records the attempt in flight, if there is one that hasn't been recorded yet
+     */
+    private void stopAttempt(ExecutionAttributes executionAttributes, String status) {
+        Long start = executionAttributes.getAttribute(ATTEMPT_START);
+        Integer attempts = executionAttributes.getAttribute(ATTEMPTS);
+        Integer timed = executionAttributes.getAttribute(ATTEMPTS_TIMED);
+        if (start == null || attempts.equals(timed))
+            return;
+        executionAttributes.putAttribute(ATTEMPTS_TIMED, attempts);
+        Timer.builder("s3.request.attempt")
+                .description("Latency of a single http attempt against s3")
+                .tag("operation", operation(executionAttributes))
+                .tag("status", status)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private void recordRetries(ExecutionAttributes executionAttributes) {
+        Integer attempts = executionAttributes.getAttribute(ATTEMPTS);
+        if (attempts == null || attempts <= 1)
+            return;
+        Counter.builder("s3.request.retries")
+                .description("Attempts the sdk made beyond the first")
+                .tag("operation", operation(executionAttributes))
+                .register(meterRegistry)
+                .increment(attempts - 1);
+    }
+
+    private static String operation(ExecutionAttributes executionAttributes) {
+        String operation = executionAttributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME);
+        return operation == null ? "unknown" : operation;
+    }
+}
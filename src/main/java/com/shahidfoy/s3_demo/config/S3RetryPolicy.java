@@ -0,0 +1,142 @@
+package com.shahidfoy.s3_demo.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.context.RetryContextSupport;
+import org.springframework.retry.support.RetrySynchronizationManager;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Retries only failures that can succeed on a later attempt: throttling, 5xx responses and io errors.
+ * Retries are paid for from a process-wide token bucket. Every retryable call adds a fraction of a token and
+ * every retry takes a whole one, so during an outage retries stay below that fraction of live traffic
+ * instead of multiplying it.
+ * <p>
+ * While an operation runs under this policy its s3 calls make a single attempt each (see
+ * {@link GuardedS3Client#singleAttempts}), so a failing call costs at most max-attempts requests, not max-attempts
+ * times the sdk's own attempts.
+ */
+public class S3RetryPolicy implements RetryPolicy {
+
+    private static final String RETRY_ALLOWED = "s3.retry.allowed";
+    private static final String PREVIOUS_SINGLE_ATTEMPT = "s3.retry.previous-single-attempt";
+
+    private final int maxAttempts;
+    private final RetryBudget budget;
+    private final Counter retried;
+    private final Counter notRetryable;
+    private final Counter attemptsExhausted;
+    private final Counter budgetExhausted;
+
+    public S3RetryPolicy(int maxAttempts, double budgetRatio, double budgetCapacity, MeterRegistry meterRegistry) {
+        this.maxAttempts = maxAttempts;
+        this.budget = new RetryBudget(budgetRatio, budgetCapacity);
+        this.retried = Counter.builder("s3.retry").tag("result", "retried").register(meterRegistry);
+        this.notRetryable = Counter.builder("s3.retry").tag("result", "not_retryable").register(meterRegistry);
+        this.attemptsExhausted = Counter.builder("s3.retry").tag("result", "attempts_exhausted").register(meterRegistry);
+        this.budgetExhausted = Counter.builder("s3.retry").tag("result", "budget_exhausted").register(meterRegistry);
+        Gauge.builder("s3.retry.budget.tokens", budget, RetryBudget::tokens)
+                .description("Retries the application can still spend")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public RetryContext open(RetryContext parent) {
+        budget.deposit();
+        RetryContext context = new RetryContextSupport(parent);
+        context.setAttribute(PREVIOUS_SINGLE_ATTEMPT, GuardedS3Client.singleAttempts());
+        return context;
+    }
+
+    @Override
+    public boolean canRetry(RetryContext context) {
+        // the first attempt has no throwable yet, later ones were decided in registerThrowable
+        return context.getLastThrowable() == null || Boolean.TRUE.equals(context.getAttribute(RETRY_ALLOWED));
+    }
+
+    @Override
+    public void registerThrowable(RetryContext context, Throwable throwable) {
+        ((RetryContextSupport) context).registerThrowable(throwable);
+        context.setAttribute(RETRY_ALLOWED, decide(context.getRetryCount(), throwable));
+    }
+
+    @Override
+    public void close(RetryContext context) {
+        GuardedS3Client.restoreAttempts(Boolean.TRUE.equals(context.getAttribute(PREVIOUS_SINGLE_ATTEMPT)));
+    }
+
+    /**
+     * @return true on the second and later attempts of an operation retried by this policy on the current thread
+     */
+    public static boolean isRetry() {
+        RetryContext context = RetrySynchronizationManager.getContext();
+        return context != null && context.getRetryCount() > 0;
+    }
+
+    private boolean decide(int attempts, Throwable throwable) {
+        if (!isRetryable(throwable)) {
+            notRetryable.increment();
+            return false;
+        }
+        if (attempts >= maxAttempts) {
+            attemptsExhausted.increment();
+            return false;
+        }
+        // checked last so a token is only spent on a retry that will actually happen
+        if (!budget.tryWithdraw()) {
+            budgetExhausted.increment();
+            return false;
+        }
+        retried.increment();
+        return true;
+    }
+
+    /**
+     * @return true for throttling, 5xx and io errors, anything else fails the same way when repeated
+     */
+    public static boolean isRetryable(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SdkServiceException serviceException)
+                return serviceException.isThrottlingException() || serviceException.statusCode() >= 500;
+            if (cause instanceof IOException || cause instanceof UncheckedIOException)
+                return true;
+            if (cause.getCause() == cause)
+                break;
+        }
+        return false;
+    }
+
+    private static class RetryBudget {
+
+        private final double ratio;
+        private final double capacity;
+        private double tokens;
+
+        private RetryBudget(double ratio, double capacity) {
+            this.ratio = ratio;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        private synchronized void deposit() {
+            tokens = Math.min(capacity, tokens + ratio);
+        }
+
+        private synchronized boolean tryWithdraw() {
+            if (tokens < 1)
+                return false;
+            tokens -= 1;
+            return true;
+        }
+
+        private synchronized double tokens() {
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.shahidfoy.s3_demo.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class S3TransferConfig {
+
+    @Value("${storage.s3.multipart.concurrency}")
+    private int STORAGE_S3_MULTIPART_CONCURRENCY;
+
+    @Value("${storage.s3.batch.concurrency}")
+    private int STORAGE_S3_BATCH_CONCURRENCY;
+
+    @Value("${storage.s3.jobs.max-concurrent}")
+    private int STORAGE_S3_JOBS_MAX_CONCURRENT;
+
+    @Value("${storage.s3.images.threads}")
+    private int STORAGE_S3_IMAGES_THREADS;
+
+    @Value("${storage.s3.images.queue-capacity}")
+    private int STORAGE_S3_IMAGES_QUEUE_CAPACITY;
+
+    @Value("${storage.s3.write-behind.concurrency}")
+    private int STORAGE_S3_WRITE_BEHIND_CONCURRENCY;
+
+    /**
+     * bounded pool that uploads multipart parts, the number of buffered parts
+     * waiting in the queue is capped by the uploader
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService s3TransferExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                STORAGE_S3_MULTIPART_CONCURRENCY, STORAGE_S3_MULTIPART_CONCURRENCY,
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                GuardedS3Client.internalThreadFactory("s3-transfer-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * pool for per-object work in bulk operations (prefix renames, batch deletes),
+     * tasks here may wait on the transfer executor but never the other way around
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService s3BatchExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                STORAGE_S3_BATCH_CONCURRENCY, STORAGE_S3_BATCH_CONCURRENCY,
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                GuardedS3Client.internalThreadFactory("s3-batch-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * one thread per running background job (bulk acl changes), each job drives its work
+     * onto the batch executor and waits for it, so jobs must never run on the batch executor themselves
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService s3JobExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                STORAGE_S3_JOBS_MAX_CONCURRENT, STORAGE_S3_JOBS_MAX_CONCURRENT,
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                GuardedS3Client.internalThreadFactory("s3-job-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * cpu bound pool that decodes, resizes and encodes image variants. the queue is bounded and overflow
+     * runs on the submitting thread, which slows uploads down under a burst instead of growing the heap.
+     * image tasks hand their uploads to the transfer executor and never wait on another pool
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService s3ImageExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                STORAGE_S3_IMAGES_THREADS, STORAGE_S3_IMAGES_THREADS,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(STORAGE_S3_IMAGES_QUEUE_CAPACITY),
+                GuardedS3Client.internalThreadFactory("s3-image-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * drains the write-behind spool, one upload per thread. the uploads wait on the batch and transfer
+     * executors like a background job does, so drains must never run on those executors themselves
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService s3SpoolExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                STORAGE_S3_WRITE_BEHIND_CONCURRENCY, STORAGE_S3_WRITE_BEHIND_CONCURRENCY,
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                GuardedS3Client.internalThreadFactory("s3-spool-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
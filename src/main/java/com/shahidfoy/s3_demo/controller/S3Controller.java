@@ -1,21 +1,58 @@
 package com.shahidfoy.s3_demo.controller;
 
+import com.shahidfoy.s3_demo.model.request.S3AclJobRequest;
+import com.shahidfoy.s3_demo.model.request.S3BatchDeleteRequest;
+import com.shahidfoy.s3_demo.model.request.S3MultipartCompleteRequest;
+import com.shahidfoy.s3_demo.model.request.S3MultipartPartsRequest;
+import com.shahidfoy.s3_demo.model.request.S3MultipartUploadRequest;
+import com.shahidfoy.s3_demo.model.request.S3RenamePrefixRequest;
 import com.shahidfoy.s3_demo.model.request.S3RenameRequest;
 import com.shahidfoy.s3_demo.model.request.S3Request;
+import com.shahidfoy.s3_demo.model.response.S3AclJobResponse;
+import com.shahidfoy.s3_demo.model.response.S3BatchResponse;
+import com.shahidfoy.s3_demo.model.response.S3FileMetadataResponse;
+import com.shahidfoy.s3_demo.model.response.S3ListingEntry;
+import com.shahidfoy.s3_demo.model.response.S3MultipartUploadResponse;
+import com.shahidfoy.s3_demo.model.response.S3PresignedPartResponse;
+import com.shahidfoy.s3_demo.model.response.S3PresignedUrlResponse;
 import com.shahidfoy.s3_demo.model.response.S3Response;
 import com.shahidfoy.s3_demo.service.S3StorageService;
+import com.shahidfoy.s3_demo.service.S3WriteBehindService;
+import com.shahidfoy.s3_demo.service.impl.S3UploadStaging;
+import com.shahidfoy.s3_demo.service.impl.S3UrlPresigner;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
+import static org.springframework.http.HttpStatus.ACCEPTED;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.PARTIAL_CONTENT;
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -23,14 +60,21 @@ import static org.springframework.http.HttpStatus.OK;
 @RequestMapping(path = {"/api/s3bucket"})
 public class S3Controller {
 
+    private static final String GZIP = "gzip";
+
     @Value("${storage.s3.cdn-endpoint}")
     private String STORAGE_S3_CDN_ENDPOINT;
     @Value("${storage.s3.endpoint}")
     private String STORAGE_S3_ENDPOINT;
     @Value("${storage.s3.bucket-name}")
     private String STORAGE_S3_BUCKET;
+    @Value("${storage.upload-executor.retry-after-seconds}")
+    private String STORAGE_UPLOAD_EXECUTOR_RETRY_AFTER;
 
     private final S3StorageService service;
+    private final S3WriteBehindService writeBehindService;
+    private final S3UploadStaging uploadStaging;
+    private final ObjectMapper objectMapper;
 
     @PostMapping(value = "/save-file", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public ResponseEntity<S3Response> saveFile(MultipartFile file) throws IOException {
@@ -40,7 +84,24 @@ public class S3Controller {
 
         if (file.isEmpty())
             throw new IOException("The provided file is empty or null.");
-        this.service.saveFileToBucket(STORAGE_S3_BUCKET, fileName, contentType, file.getBytes());
+        // stream from the multipart temp file instead of file.getBytes() so large uploads never sit on the heap
+        if (this.writeBehindService.isEnabled()) {
+            // in write-behind mode the file is durable in the local spool when this returns, s3 gets it shortly after
+            try (InputStream inputStream = file.getInputStream()) {
+                this.writeBehindService.enqueue(STORAGE_S3_BUCKET, fileName, contentType, inputStream, file.getSize());
+            }
+        } else {
+            // the temp file is moved out of the container's reach and uploaded by the upload executor,
+            // a saturated executor rejects the request with a 503
+            Path staged = this.uploadStaging.newFile();
+            try {
+                file.transferTo(staged.toFile());
+                this.service.saveFileToBucket(STORAGE_S3_BUCKET, fileName, contentType, staged, file.getSize());
+            } catch (IOException | RuntimeException e) {
+                this.uploadStaging.delete(staged);
+                throw e;
+            }
+        }
 
         String bucketUrl = STORAGE_S3_CDN_ENDPOINT + "/" + STORAGE_S3_BUCKET + "/" + fileName;
         return new ResponseEntity<>(new S3Response(bucketUrl), OK);
@@ -54,10 +115,114 @@ public class S3Controller {
         return new ResponseEntity<>(new S3Response(b64), OK);
     }
 
+    @GetMapping("/download-file/{fileName}")
+    public ResponseEntity<StreamingResponseBody> downloadFile(
+            @PathVariable String fileName,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) throws IOException {
+
+        ResponseInputStream<GetObjectResponse> objectStream;
+        try {
+            objectStream = this.service.getFileStreamFromBucket(STORAGE_S3_BUCKET, fileName, range);
+        } catch (S3Exception e) {
+            if (e.statusCode() == REQUESTED_RANGE_NOT_SATISFIABLE.value())
+                return ResponseEntity.status(REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.ACCEPT_RANGES, "bytes").build();
+            throw e;
+        }
+
+        GetObjectResponse object = objectStream.response();
+        boolean decode = GZIP.equalsIgnoreCase(object.contentEncoding()) && !acceptsGzip(acceptEncoding);
+        if (decode && range != null) {
+            // a range addresses the gzip bytes, so a client that can't decode them gets the whole file
+            objectStream.close();
+            objectStream = this.service.getFileStreamFromBucket(STORAGE_S3_BUCKET, fileName, null);
+            object = objectStream.response();
+        }
+
+        ResponseEntity.BodyBuilder response;
+        if (decode) {
+            // decoded length isn't known up front, the body is sent chunked
+            response = ResponseEntity.status(OK);
+            if (object.eTag() != null)
+                response.eTag("W/" + object.eTag());
+        } else {
+            response = ResponseEntity
+                    .status(object.contentRange() != null ? PARTIAL_CONTENT : OK)
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                    .contentLength(object.contentLength());
+            if (object.contentEncoding() != null)
+                response.header(HttpHeaders.CONTENT_ENCODING, object.contentEncoding());
+            if (object.contentRange() != null)
+                response.header(HttpHeaders.CONTENT_RANGE, object.contentRange());
+            if (object.eTag() != null)
+                response.eTag(object.eTag());
+        }
+        if (object.contentEncoding() != null)
+            response.varyBy(HttpHeaders.ACCEPT_ENCODING);
+        if (object.contentType() != null)
+            response.header(HttpHeaders.CONTENT_TYPE, object.contentType());
+
+        // copies through a small buffer straight from the s3 connection to the servlet output
+        ResponseInputStream<GetObjectResponse> body = objectStream;
+        return response.body(outputStream -> {
+            try (body; InputStream in = decode ? new GZIPInputStream(body) : body) {
+                in.transferTo(outputStream);
+            }
+        });
+    }
+
+    @GetMapping(value = "/list-files", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> listFiles(
+            @RequestParam(required = false) String prefix,
+            @RequestParam(required = false) String delimiter,
+            @RequestParam(required = false) String continuationToken,
+            @RequestParam(defaultValue = "1000") int maxKeys,
+            @RequestParam(required = false) Integer maxPages) {
+
+        Stream<S3ListingEntry> entries = this.service.listFiles(STORAGE_S3_BUCKET, prefix, delimiter, continuationToken,
+                maxKeys, maxPages == null ? Integer.MAX_VALUE : maxPages);
+
+        // one json document per line, flushed after every page so clients can process and resume page by page
+        StreamingResponseBody body = outputStream -> {
+            try (entries) {
+                for (Iterator<S3ListingEntry> iterator = entries.iterator(); iterator.hasNext(); ) {
+                    S3ListingEntry entry = iterator.next();
+                    outputStream.write(objectMapper.writeValueAsBytes(entry));
+                    outputStream.write('\n');
+                    if ("page".equals(entry.getType()))
+                        outputStream.flush();
+                }
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    @GetMapping("/file-metadata/{fileName}")
+    public ResponseEntity<S3FileMetadataResponse> getFileMetadata(@PathVariable String fileName) {
+
+        S3FileMetadataResponse metadata = this.service.getFileMetadata(STORAGE_S3_BUCKET, fileName);
+        if (metadata == null)
+            return ResponseEntity.notFound().build();
+        return new ResponseEntity<>(metadata, OK);
+    }
+
+    @GetMapping("/file-metadata")
+    public ResponseEntity<List<S3FileMetadataResponse>> listFileMetadata(
+            @RequestParam(required = false) String prefix,
+            @RequestParam(defaultValue = "1000") int limit) {
+
+        List<S3FileMetadataResponse> metadata = this.service.listFileMetadata(STORAGE_S3_BUCKET, prefix, limit);
+        return new ResponseEntity<>(metadata, OK);
+    }
+
     @GetMapping("/get-file-url/{fileName}")
-    public ResponseEntity<S3Response> getFileUrl(@PathVariable String fileName) {
+    public ResponseEntity<S3Response> getFileUrl(
+            @PathVariable String fileName,
+            @RequestParam(required = false) String variant) {
 
-        String bucketUrl = STORAGE_S3_CDN_ENDPOINT + "/" + STORAGE_S3_BUCKET + "/" + fileName;
+        String key = variant == null ? fileName : this.service.getVariantFileName(fileName, variant);
+        String bucketUrl = STORAGE_S3_CDN_ENDPOINT + "/" + STORAGE_S3_BUCKET + "/" + key;
         return new ResponseEntity<>(new S3Response(bucketUrl), OK);
     }
 
@@ -70,6 +235,15 @@ public class S3Controller {
         return new ResponseEntity<>(new S3Response("File renamed successfully"), OK);
     }
 
+    @PutMapping("/rename-prefix")
+    public ResponseEntity<S3BatchResponse> renamePrefix(
+            @RequestBody S3RenamePrefixRequest s3RenamePrefixRequest) {
+
+        S3BatchResponse response = this.service.renameFilesByPrefix(STORAGE_S3_BUCKET,
+                s3RenamePrefixRequest.getOldPrefix(), s3RenamePrefixRequest.getNewPrefix());
+        return new ResponseEntity<>(response, OK);
+    }
+
     @DeleteMapping("/delete-file/{fileName}")
     public ResponseEntity<S3Response> deleteFile(@PathVariable String fileName) {
 
@@ -77,6 +251,16 @@ public class S3Controller {
         return new ResponseEntity<>(new S3Response("File deleted"), OK);
     }
 
+    @PostMapping("/delete-files")
+    public ResponseEntity<S3BatchResponse> deleteFiles(
+            @RequestBody S3BatchDeleteRequest s3BatchDeleteRequest) {
+
+        S3BatchResponse response = s3BatchDeleteRequest.getPrefix() != null
+                ? this.service.deleteFilesByPrefix(STORAGE_S3_BUCKET, s3BatchDeleteRequest.getPrefix())
+                : this.service.deleteFiles(STORAGE_S3_BUCKET, s3BatchDeleteRequest.getFileNames());
+        return new ResponseEntity<>(response, OK);
+    }
+
     @PatchMapping("/make-file-public/{fileName}")
     public ResponseEntity<S3Response> makeFilePublic(@PathVariable String fileName) {
 
@@ -91,6 +275,24 @@ public class S3Controller {
         return new ResponseEntity<>(new S3Response("File made private"), OK);
     }
 
+    @PostMapping("/acl-jobs")
+    public ResponseEntity<S3AclJobResponse> startAclJob(@RequestBody S3AclJobRequest aclJobRequest) {
+
+        S3AclJobResponse job = this.service.startAclJob(STORAGE_S3_BUCKET,
+                aclJobRequest.getPrefix(), aclJobRequest.getFileNames(), aclJobRequest.isMakePublic());
+        log.debug("== acl job started: {}", job.getJobId());
+        return new ResponseEntity<>(job, ACCEPTED);
+    }
+
+    @GetMapping("/acl-jobs/{jobId}")
+    public ResponseEntity<S3AclJobResponse> getAclJob(@PathVariable String jobId) {
+
+        S3AclJobResponse job = this.service.getAclJob(jobId);
+        if (job == null)
+            return ResponseEntity.notFound().build();
+        return new ResponseEntity<>(job, OK);
+    }
+
     @PostMapping("/get-temp-s3-url")
     public ResponseEntity<S3Response> getTempS3Url(
             @RequestBody S3Request s3Request) {
@@ -100,4 +302,99 @@ public class S3Controller {
         log.debug("== temp url: {}", tempUrl);
         return new ResponseEntity<>(new S3Response(tempUrl), OK);
     }
+
+    @GetMapping("/get-temp-s3-download-url/{fileName}")
+    public ResponseEntity<S3Response> getTempS3DownloadUrl(@PathVariable String fileName) {
+
+        String tempUrl = this.service.generatePresignedGetUrl(STORAGE_S3_BUCKET, fileName);
+        log.debug("== temp download url: {}", tempUrl);
+        return new ResponseEntity<>(new S3Response(tempUrl), OK);
+    }
+
+    @PostMapping("/get-temp-s3-urls")
+    public ResponseEntity<List<S3PresignedUrlResponse>> getTempS3Urls(
+            @RequestBody List<S3Request> s3Requests) {
+
+        for (S3Request s3Request : s3Requests) {
+            if (!S3UrlPresigner.isSupportedMethod(s3Request.getMethod()))
+                throw new ResponseStatusException(BAD_REQUEST,
+                        "Unsupported method " + s3Request.getMethod() + " for " + s3Request.getFileName() + ", expected GET or PUT");
+        }
+        List<S3PresignedUrlResponse> tempUrls = this.service.generatePresignedUrls(STORAGE_S3_BUCKET, s3Requests);
+        log.debug("== temp urls: {}", tempUrls.size());
+        return new ResponseEntity<>(tempUrls, OK);
+    }
+
+    @PostMapping("/initiate-multipart-upload")
+    public ResponseEntity<S3MultipartUploadResponse> initiateMultipartUpload(
+            @RequestBody S3Request s3Request) {
+
+        S3MultipartUploadResponse upload = this.service.initiateMultipartUpload(
+                STORAGE_S3_BUCKET, s3Request.getFileName(), s3Request.getContentType());
+        log.debug("== multipart upload id: {}", upload.getUploadId());
+        return new ResponseEntity<>(upload, OK);
+    }
+
+    @PostMapping("/get-temp-s3-part-urls")
+    public ResponseEntity<List<S3PresignedPartResponse>> getTempS3PartUrls(
+            @RequestBody S3MultipartPartsRequest partsRequest) {
+
+        List<S3PresignedPartResponse> partUrls = this.service.generatePresignedPartUrls(STORAGE_S3_BUCKET,
+                partsRequest.getFileName(), partsRequest.getUploadId(), partsRequest.getPartCount());
+        return new ResponseEntity<>(partUrls, OK);
+    }
+
+    @PostMapping("/complete-multipart-upload")
+    public ResponseEntity<S3Response> completeMultipartUpload(
+            @RequestBody S3MultipartCompleteRequest completeRequest) {
+
+        this.service.completeMultipartUpload(STORAGE_S3_BUCKET,
+                completeRequest.getFileName(), completeRequest.getUploadId(), completeRequest.getParts());
+        return new ResponseEntity<>(new S3Response("Multipart upload completed"), OK);
+    }
+
+    @PostMapping("/abort-multipart-upload")
+    public ResponseEntity<S3Response> abortMultipartUpload(
+            @RequestBody S3MultipartUploadRequest uploadRequest) {
+
+        this.service.abortMultipartUpload(STORAGE_S3_BUCKET, uploadRequest.getFileName(), uploadRequest.getUploadId());
+        return new ResponseEntity<>(new S3Response("Multipart upload aborted"), OK);
+    }
+
+    /**
+     * @return true when the accept-encoding header lists gzip, or a wildcard, without q=0
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        boolean wildcard = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            boolean rejected = parts.length > 1 && parts[1].trim().matches("(?i)q=0(\\.0*)?");
+            if (name.equalsIgnoreCase(GZIP) || name.equalsIgnoreCase("x-gzip"))
+                return !rejected;
+            if (name.equals("*"))
+                wildcard = !rejected;
+        }
+        return wildcard;
+    }
+
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<S3Response> handleRejectedExecution(RejectedExecutionException e) {
+
+        log.warn("== rejecting request, storage executor saturated: {}", e.getMessage());
+        return ResponseEntity.status(SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, STORAGE_UPLOAD_EXECUTOR_RETRY_AFTER)
+                .body(new S3Response("Storage is busy, retry later"));
+    }
+
+    @ExceptionHandler({CallNotPermittedException.class, BulkheadFullException.class})
+    public ResponseEntity<S3Response> handleStorageUnavailable(RuntimeException e) {
+
+        log.warn("== rejecting request, storage circuit open or saturated: {}", e.getMessage());
+        return ResponseEntity.status(SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, STORAGE_UPLOAD_EXECUTOR_RETRY_AFTER)
+                .body(new S3Response("Storage is unavailable, retry later"));
+    }
 }
@@ -0,0 +1,17 @@
+package com.shahidfoy.s3_demo.model.request;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class S3AclJobRequest {
+
+    // either a prefix or a list of file names
+    private String prefix;
+    private List<String> fileNames;
+    // true sets public-read, false sets private
+    private boolean makePublic;
+}
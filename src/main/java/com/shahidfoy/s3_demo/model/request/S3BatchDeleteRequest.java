@@ -0,0 +1,15 @@
+package com.shahidfoy.s3_demo.model.request;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class S3BatchDeleteRequest {
+
+    // either explicit file names or a prefix to delete everything under
+    private List<String> fileNames;
+    private String prefix;
+}
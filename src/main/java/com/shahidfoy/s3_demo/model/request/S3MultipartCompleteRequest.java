@@ -0,0 +1,15 @@
+package com.shahidfoy.s3_demo.model.request;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class S3MultipartCompleteRequest {
+
+    private String fileName;
+    private String uploadId;
+    private List<S3UploadedPart> parts;
+}
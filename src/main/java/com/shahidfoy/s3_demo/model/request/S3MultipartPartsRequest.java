@@ -0,0 +1,14 @@
+package com.shahidfoy.s3_demo.model.request;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class S3MultipartPartsRequest {
+
+    private String fileName;
+    private String uploadId;
+    // urls are returned for part numbers 1..partCount
+    private int partCount;
+}
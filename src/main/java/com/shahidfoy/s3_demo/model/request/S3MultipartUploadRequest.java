@@ -0,0 +1,12 @@
+package com.shahidfoy.s3_demo.model.request;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class S3MultipartUploadRequest {
+
+    private String fileName;
+    private String uploadId;
+}
@@ -9,4 +9,6 @@ public class S3Request {
 
     private String fileName;
     private String contentType;
+    // GET or PUT, defaults to PUT
+    private String method;
 }
@@ -0,0 +1,13 @@
+package com.shahidfoy.s3_demo.model.request;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class S3UploadedPart {
+
+    private int partNumber;
+    // ETag header returned by s3 for the part upload
+    private String etag;
+}
@@ -0,0 +1,26 @@
+package com.shahidfoy.s3_demo.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Map;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class S3AclJobResponse {
+
+    private String jobId;
+    // RUNNING, COMPLETED or FAILED
+    private String status;
+    private String acl;
+    private long succeeded;
+    private long failed;
+    // average since the job (re)started on this instance
+    private double objectsPerSecond;
+    private String startedAt;
+    private String updatedAt;
+    // file name -> error message, first failures only
+    private Map<String, String> failures;
+}
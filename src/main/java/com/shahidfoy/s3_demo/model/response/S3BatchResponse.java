@@ -0,0 +1,17 @@
+package com.shahidfoy.s3_demo.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Map;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class S3BatchResponse {
+
+    private int succeeded;
+    // file name -> error message
+    private Map<String, String> failures;
+}
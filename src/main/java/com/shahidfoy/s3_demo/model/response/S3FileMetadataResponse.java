@@ -0,0 +1,20 @@
+package com.shahidfoy.s3_demo.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class S3FileMetadataResponse {
+
+    private String fileName;
+    private long size;
+    private String etag;
+    // null until the index has seen a head request for the file
+    private String contentType;
+    private String lastModified;
+    // public-read or private, null until known
+    private String acl;
+}
@@ -0,0 +1,25 @@
+package com.shahidfoy.s3_demo.model.response;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * one line of the ndjson listing: an object, a common prefix (folder) or the end of a page
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class S3ListingEntry {
+
+    // object, prefix or page
+    private String type;
+    private String key;
+    private Long size;
+    private String lastModified;
+    private String etag;
+    // on page lines, pass back as continuationToken to resume after this page, absent on the last page
+    private String continuationToken;
+}
@@ -0,0 +1,14 @@
+package com.shahidfoy.s3_demo.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class S3PresignedPartResponse {
+
+    private int partNumber;
+    private String url;
+}
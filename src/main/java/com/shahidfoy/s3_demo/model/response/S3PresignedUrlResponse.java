@@ -0,0 +1,15 @@
+package com.shahidfoy.s3_demo.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class S3PresignedUrlResponse {
+
+    private String fileName;
+    private String method;
+    private String url;
+}
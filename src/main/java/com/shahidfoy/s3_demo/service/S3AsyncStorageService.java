@@ -0,0 +1,86 @@
+package com.shahidfoy.s3_demo.service;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * non-blocking counterpart of {@link S3StorageService}, futures complete on the sdk's async threads
+ */
+public interface S3AsyncStorageService {
+
+    /**
+     * save file byte contents to s3 bucket
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param contentType content type
+     * @param bytes file bytes
+     * @return completes once the file is stored
+     */
+    CompletableFuture<Void> saveFileToBucketAsync(String bucket, String fileName, String contentType, byte[] bytes);
+
+    /**
+     * streams file contents to s3 bucket
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param contentType content type
+     * @param inputStream file contents, read exactly once and not closed
+     * @param contentLength number of bytes to read from the stream
+     * @return completes once the file is stored
+     */
+    CompletableFuture<Void> saveFileToBucketAsync(String bucket, String fileName, String contentType,
+                                                  InputStream inputStream, long contentLength);
+
+    /**
+     * retrieves file from target bucket
+     * @param bucket bucket path
+     * @param fileName file name
+     * @return file in bytes
+     */
+    CompletableFuture<byte[]> getFileFromBucketAsync(String bucket, String fileName);
+
+    /**
+     * opens a stream over the file in the target bucket, the caller must close it
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param range optional http range header passed through to s3, null for the whole file
+     * @return file contents with the object metadata
+     */
+    CompletableFuture<ResponseInputStream<GetObjectResponse>> getFileStreamFromBucketAsync(String bucket, String fileName, String range);
+
+    /**
+     * server-side copies old file into new file then deletes old file
+     * @param bucket bucket path
+     * @param oldFileName old file name on s3
+     * @param newFileName new file name
+     * @param contentType content type
+     * @return completes once the old file is deleted
+     */
+    CompletableFuture<Void> renameFileAsync(String bucket, String oldFileName, String newFileName, String contentType);
+
+    /**
+     * deletes target file
+     * @param bucket bucket path
+     * @param fileName name of file to be deleted
+     * @return completes once the file is deleted
+     */
+    CompletableFuture<Void> deleteFileAsync(String bucket, String fileName);
+
+    /**
+     * gives the file public view permission
+     * @param bucket bucket path
+     * @param fileName file name
+     * @return completes once the acl is applied
+     */
+    CompletableFuture<Void> makeFilePublicAsync(String bucket, String fileName);
+
+    /**
+     * makes the file private
+     * @param bucket bucket path
+     * @param fileName file name
+     * @return completes once the acl is applied
+     */
+    CompletableFuture<Void> makeFilePrivateAsync(String bucket, String fileName);
+}
@@ -1,8 +1,22 @@
 package com.shahidfoy.s3_demo.service;
 
-import org.springframework.retry.annotation.Backoff;
+import com.shahidfoy.s3_demo.model.request.S3Request;
+import com.shahidfoy.s3_demo.model.request.S3UploadedPart;
+import com.shahidfoy.s3_demo.model.response.S3AclJobResponse;
+import com.shahidfoy.s3_demo.model.response.S3BatchResponse;
+import com.shahidfoy.s3_demo.model.response.S3FileMetadataResponse;
+import com.shahidfoy.s3_demo.model.response.S3ListingEntry;
+import com.shahidfoy.s3_demo.model.response.S3MultipartUploadResponse;
+import com.shahidfoy.s3_demo.model.response.S3PresignedPartResponse;
+import com.shahidfoy.s3_demo.model.response.S3PresignedUrlResponse;
 import org.springframework.retry.annotation.Retryable;
-import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
 
 public interface S3StorageService {
 
@@ -15,6 +29,29 @@ public interface S3StorageService {
      */
     void saveFileToBucket(String bucket, String fileName, String contentType, byte[] bytes);
 
+    /**
+     * streams file contents to s3 bucket without buffering the whole file in memory
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param contentType content type
+     * @param inputStream file contents, read exactly once and not closed
+     * @param contentLength number of bytes to read from the stream
+     */
+    void saveFileToBucket(String bucket, String fileName, String contentType, InputStream inputStream, long contentLength);
+
+    /**
+     * streams a staged file to s3 bucket in the background on the upload executor, failures go to the async
+     * exception handler
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param contentType content type
+     * @param file staged file handed over to the upload, deleted once it is uploaded or has failed
+     * @param contentLength file size in bytes
+     * @throws java.util.concurrent.RejectedExecutionException when the upload executor is saturated, the file is
+     * then left to the caller
+     */
+    void saveFileToBucket(String bucket, String fileName, String contentType, Path file, long contentLength);
+
     /**
      * retrieves file from target bucket
      * @param bucket bucket path
@@ -23,6 +60,52 @@ public interface S3StorageService {
      */
     byte[] getFileFromBucket(String bucket, String fileName);
 
+    /**
+     * opens a stream over the file in the target bucket, the caller must close it
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param range optional http range header passed through to s3 (e.g. bytes=0-1023), null for the whole file
+     * @return file contents with the object metadata (content type, length, content range)
+     */
+    ResponseInputStream<GetObjectResponse> getFileStreamFromBucket(String bucket, String fileName, String range);
+
+    /**
+     * lists files lazily, pages are fetched one ahead of the consumer
+     * @param bucket bucket path
+     * @param prefix only files starting with the prefix, null for all files
+     * @param delimiter folder delimiter (e.g. /), null to list flat
+     * @param continuationToken token from a previous page entry to resume after, null to start at the beginning
+     * @param maxKeys files per page, 1 to 1000
+     * @param maxPages pages to list before stopping
+     * @return file, folder and page entries, the caller must close the stream
+     */
+    Stream<S3ListingEntry> listFiles(String bucket, String prefix, String delimiter, String continuationToken,
+                                     int maxKeys, int maxPages);
+
+    /**
+     * looks the file up in the local metadata index, falling back to a head request when the index can't answer
+     * @param bucket bucket path
+     * @param fileName file name
+     * @return size, etag, content type, last modified and acl, null when the file does not exist
+     */
+    S3FileMetadataResponse getFileMetadata(String bucket, String fileName);
+
+    /**
+     * lists file metadata under the prefix from the local metadata index
+     * @param bucket bucket path
+     * @param prefix file name prefix, null for all files
+     * @param limit maximum number of files
+     * @return file metadata in file name order
+     */
+    List<S3FileMetadataResponse> listFileMetadata(String bucket, String prefix, int limit);
+
+    /**
+     * @param fileName original image file name
+     * @param variant configured image variant name
+     * @return file name of the resized variant generated on upload
+     */
+    String getVariantFileName(String fileName, String variant);
+
     /**
      * generates presigned temp url to upload to s3 bucket
      * @param bucket bucket path
@@ -33,19 +116,78 @@ public interface S3StorageService {
     String generatePresignedUrl(String bucket, String fileName, String contentType);
 
     /**
-     * copies old file contents into new file then deletes old file
+     * generates presigned temp url to download from s3 bucket
+     * @param bucket bucket path
+     * @param fileName file name
+     * @return presigned url sent to frontend
+     */
+    String generatePresignedGetUrl(String bucket, String fileName);
+
+    /**
+     * generates presigned temp urls for many files in one call, signed in parallel
+     * @param bucket bucket path
+     * @param requests file name, content type and method (GET or PUT) of each url
+     * @return presigned urls in request order
+     */
+    List<S3PresignedUrlResponse> generatePresignedUrls(String bucket, List<S3Request> requests);
+
+    /**
+     * starts a multipart upload whose parts the client uploads directly through presigned urls
+     * @param bucket bucket path
+     * @param fileName target file name
+     * @param contentType content type
+     * @return upload id for the part urls and completion
+     */
+    S3MultipartUploadResponse initiateMultipartUpload(String bucket, String fileName, String contentType);
+
+    /**
+     * generates presigned UploadPart urls for part numbers 1..partCount
+     * @param bucket bucket path
+     * @param fileName file name the upload was initiated for
+     * @param uploadId multipart upload id
+     * @param partCount number of parts, 1 to 10000
+     * @return presigned url per part number
+     */
+    List<S3PresignedPartResponse> generatePresignedPartUrls(String bucket, String fileName, String uploadId, int partCount);
+
+    /**
+     * assembles the uploaded parts into the target file
+     * @param bucket bucket path
+     * @param fileName file name the upload was initiated for
+     * @param uploadId multipart upload id
+     * @param parts part numbers with the etag s3 returned for each part
+     */
+    void completeMultipartUpload(String bucket, String fileName, String uploadId, List<S3UploadedPart> parts);
+
+    /**
+     * aborts the upload and discards its uploaded parts
+     * @param bucket bucket path
+     * @param fileName file name the upload was initiated for
+     * @param uploadId multipart upload id
+     */
+    void abortMultipartUpload(String bucket, String fileName, String uploadId);
+
+    /**
+     * server-side copies old file into new file keeping its metadata and acl then deletes old file.
+     * a retry finding old file gone and new file present treats the rename as done by the failed attempt
      * @param bucket bucket path
      * @param oldFileName old file name on s3
      * @param newFileName new file name
      * @param contentType content type
      */
-    @Retryable(
-            retryFor = { S3Exception.class, Exception.class },
-            maxAttempts = 10,
-            backoff = @Backoff(delay = 2000)
-    )
+    @Retryable(interceptor = "s3RetryInterceptor")
     void renameFile(String bucket, String oldFileName, String newFileName, String contentType);
 
+    /**
+     * renames every file under the old prefix by replacing it with the new prefix, copies run concurrently.
+     * the image variants under the prefix are moved along
+     * @param bucket bucket path
+     * @param oldPrefix prefix of the files to rename
+     * @param newPrefix prefix that replaces the old one, must not be nested under the old prefix
+     * @return renamed count and per file failures
+     */
+    S3BatchResponse renameFilesByPrefix(String bucket, String oldPrefix, String newPrefix);
+
     /**
      * deletes target file
      * @param bucket bucket path
@@ -53,16 +195,29 @@ public interface S3StorageService {
      */
     void deleteFile(String bucket, String fileName);
 
+    /**
+     * deletes files in DeleteObjects calls of up to 1000 keys, chunks run concurrently
+     * @param bucket bucket path
+     * @param fileNames names of files to be deleted
+     * @return deleted count and per file failures
+     */
+    S3BatchResponse deleteFiles(String bucket, List<String> fileNames);
+
+    /**
+     * deletes every file under the prefix and its image variants, listing pages are streamed instead of
+     * collecting all keys first
+     * @param bucket bucket path
+     * @param prefix prefix of the files to be deleted, must not be empty
+     * @return deleted count and per file failures
+     */
+    S3BatchResponse deleteFilesByPrefix(String bucket, String prefix);
+
     /**
      * gives the file public view permission
      * @param bucket bucket path
      * @param fileName file name
      */
-    @Retryable(
-            retryFor = { S3Exception.class, Exception.class },
-            maxAttempts = 10,
-            backoff = @Backoff(delay = 2000)
-    )
+    @Retryable(interceptor = "s3RetryInterceptor")
     void makeFilePublic(String bucket, String fileName);
 
     /**
@@ -70,10 +225,22 @@ public interface S3StorageService {
      * @param bucket bucket path
      * @param fileName file name
      */
-    @Retryable(
-            retryFor = { S3Exception.class, Exception.class },
-            maxAttempts = 10,
-            backoff = @Backoff(delay = 2000)
-    )
+    @Retryable(interceptor = "s3RetryInterceptor")
     public void makeFilePrivate(String bucket, String fileName);
+
+    /**
+     * starts a background job that makes every file under the prefix, or every listed file, public or private
+     * @param bucket bucket path
+     * @param prefix prefix of the files, null when file names are given
+     * @param fileNames file names, null when a prefix is given
+     * @param makePublic true for public view permission, false for private
+     * @return job id and initial status
+     */
+    S3AclJobResponse startAclJob(String bucket, String prefix, List<String> fileNames, boolean makePublic);
+
+    /**
+     * @param jobId id returned by {@link #startAclJob}
+     * @return progress and throughput of the job, null when the job is unknown
+     */
+    S3AclJobResponse getAclJob(String jobId);
 }
@@ -0,0 +1,25 @@
+package com.shahidfoy.s3_demo.service;
+
+import java.io.InputStream;
+
+/**
+ * write-behind uploads: files are made durable on local disk and pushed to s3 in the background
+ */
+public interface S3WriteBehindService {
+
+    /**
+     * @return true when uploads should be queued here instead of saved directly
+     */
+    boolean isEnabled();
+
+    /**
+     * writes the file to the local spool and returns once it is durable there, the upload to s3 happens later
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param contentType content type
+     * @param inputStream file contents, read exactly once and not closed
+     * @param contentLength number of bytes to read from the stream
+     * @throws java.util.concurrent.RejectedExecutionException when the spool is full
+     */
+    void enqueue(String bucket, String fileName, String contentType, InputStream inputStream, long contentLength);
+}
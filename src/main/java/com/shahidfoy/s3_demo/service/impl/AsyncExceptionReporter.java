@@ -0,0 +1,134 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.n1netails.n1netails.kuda.service.ExceptionReporter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uncaught {@code @Async} exception handler that reports each distinct failure at most once per interval.
+ * Failures are fingerprinted by exception type, async method and the frame the root cause was thrown from.
+ * The first occurrence of a fingerprint is reported right away. Repeats within the interval are only counted,
+ * and the next flush sends one summary with the count. During an s3 outage that means one report per
+ * failure mode per interval rather than one per upload.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class AsyncExceptionReporter implements AsyncUncaughtExceptionHandler {
+
+    @Value("${n1netails.kuda.exceptions.report-interval}")
+    private Duration N1NETAILS_KUDA_EXCEPTIONS_REPORT_INTERVAL;
+
+    @Value("${n1netails.kuda.exceptions.max-fingerprints}")
+    private int N1NETAILS_KUDA_EXCEPTIONS_MAX_FINGERPRINTS;
+
+    private final MeterRegistry meterRegistry;
+
+    private final ExceptionReporter reporter = new ExceptionReporter();
+    private final Map<Fingerprint, Window> windows = new ConcurrentHashMap<>();
+
+    private Counter reported;
+    private Counter suppressed;
+
+    @PostConstruct
+    void init() {
+        this.reported = Counter.builder("async.exceptions").tag("result", "reported").register(meterRegistry);
+        this.suppressed = Counter.builder("async.exceptions").tag("result", "suppressed").register(meterRegistry);
+    }
+
+    @Override
+    public void handleUncaughtException(Throwable throwable, Method method, Object... params) {
+        Fingerprint fingerprint = Fingerprint.of(throwable, method);
+        // past the fingerprint limit unrelated failures of the same type share one window
+        if (windows.size() >= N1NETAILS_KUDA_EXCEPTIONS_MAX_FINGERPRINTS && !windows.containsKey(fingerprint))
+            fingerprint = new Fingerprint(fingerprint.type(), "*", "*");
+
+        Window window = windows.computeIfAbsent(fingerprint, key -> new Window(N1NETAILS_KUDA_EXCEPTIONS_REPORT_INTERVAL));
+        if (window.tryReport(N1NETAILS_KUDA_EXCEPTIONS_REPORT_INTERVAL)) {
+            log.error("Uncaught exception in async method {}", fingerprint.method(), throwable);
+            send(throwable, fingerprint.method());
+        } else {
+            window.sample = throwable;
+            window.suppressed.incrementAndGet();
+            suppressed.increment();
+        }
+    }
+
+    /**
+     * sends one summary per fingerprint that was suppressed since its last report and forgets idle fingerprints
+     */
+    @Scheduled(fixedDelayString = "${n1netails.kuda.exceptions.report-interval}")
+    public void flush() {
+        windows.forEach((fingerprint, window) -> {
+            int count = window.suppressed.getAndSet(0);
+            if (count > 0) {
+                window.lastReported.set(System.nanoTime());
+                log.error("Uncaught exception in async method {} repeated {} times in the last {}",
+                        fingerprint.method(), count, N1NETAILS_KUDA_EXCEPTIONS_REPORT_INTERVAL);
+                send(window.sample, fingerprint.method() + " (repeated " + count + " times in the last "
+                        + N1NETAILS_KUDA_EXCEPTIONS_REPORT_INTERVAL + ")");
+            } else if (window.isIdle(N1NETAILS_KUDA_EXCEPTIONS_REPORT_INTERVAL)) {
+                windows.remove(fingerprint, window);
+            }
+        });
+    }
+
+    private void send(Throwable throwable, String context) {
+        try {
+            reporter.reportException(throwable, context);
+            reported.increment();
+        } catch (Exception e) {
+            log.warn("Failed to report async exception: {}", e.getMessage());
+        }
+    }
+
+    private record Fingerprint(String type, String method, String rootCauseFrame) {
+
+        private static Fingerprint of(Throwable throwable, Method method) {
+            Throwable root = throwable;
+            while (root.getCause() != null && root.getCause() != root)
+                root = root.getCause();
+            StackTraceElement[] trace = root.getStackTrace();
+            return new Fingerprint(
+                    throwable.getClass().getName(),
+                    method.getDeclaringClass().getSimpleName() + "." + method.getName(),
+                    trace.length > 0 ? root.getClass().getName() + "@" + trace[0] : root.getClass().getName());
+        }
+    }
+
+    private static class Window {
+
+        private final AtomicLong lastReported;
+        private final AtomicInteger suppressed = new AtomicInteger();
+        private volatile Throwable sample;
+
+        private Window(Duration interval) {
+            // starts one interval in the past so the first occurrence is reported immediately
+            this.lastReported = new AtomicLong(System.nanoTime() - interval.toNanos());
+        }
+
+        private boolean tryReport(Duration interval) {
+            long last = lastReported.get();
+            long now = System.nanoTime();
+            return now - last >= interval.toNanos() && lastReported.compareAndSet(last, now);
+        }
+
+        private boolean isIdle(Duration interval) {
+            return System.nanoTime() - lastReported.get() >= 2 * interval.toNanos();
+        }
+    }
+}
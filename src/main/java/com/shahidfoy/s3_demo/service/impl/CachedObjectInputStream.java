@@ -0,0 +1,107 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A region of a local file, such as a disk cache entry or a spooled upload. Reads are positional, so the file may be
+ * renamed or unlinked while the stream is open, and the stream can be rewound with {@link #mark}/{@link #reset}
+ * without buffering anything.
+ */
+public class CachedObjectInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private long position;
+    private long remaining;
+    private long markedPosition;
+    private long markedRemaining;
+
+    private CachedObjectInputStream(FileChannel channel, long start, long length) {
+        this.channel = channel;
+        this.position = start;
+        this.remaining = length;
+        this.markedPosition = start;
+        this.markedRemaining = length;
+    }
+
+    /**
+     * @param path file holding the region
+     * @param start first byte of the region
+     * @param length number of bytes in the region
+     */
+    static CachedObjectInputStream open(Path path, long start, long length) throws IOException {
+        return new CachedObjectInputStream(FileChannel.open(path, StandardOpenOption.READ), start, length);
+    }
+
+    /**
+     * the region as an sdk response stream, so a cache hit is served like an s3 response
+     * @param response object metadata describing the region (content length, content range, etag)
+     */
+    static ResponseInputStream<GetObjectResponse> open(GetObjectResponse response, Path path, long start, long length) throws IOException {
+        return new ResponseInputStream<>(response, AbortableInputStream.create(open(path, start, length)));
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (remaining <= 0)
+            return -1;
+        int read = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, remaining)), position);
+        if (read < 0)
+            throw new IOException("File ended " + remaining + " bytes before the end of the region");
+        position += read;
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, remaining));
+        position += skipped;
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    /**
+     * @param readLimit ignored, the file is read again after a reset so any number of bytes can be read
+     */
+    @Override
+    public void mark(int readLimit) {
+        markedPosition = position;
+        markedRemaining = remaining;
+    }
+
+    @Override
+    public void reset() {
+        position = markedPosition;
+        remaining = markedRemaining;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,373 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.model.response.S3AclJobResponse;
+import io.github.resilience4j.ratelimiter.RateLimiter;
+import io.github.resilience4j.ratelimiter.RateLimiterConfig;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs bulk acl changes as background jobs. A job walks a prefix page by page with ListObjectsV2, or a key
+ * list in pages of the same size, and applies PutObjectAcl on the batch executor, bounded by a shared
+ * concurrency limit and rate limiter. Each finished page is checkpointed to the job's properties file,
+ * so a job that was running at shutdown resumes from the next page on startup. ACLs are idempotent,
+ * so redoing a partly applied page is harmless. The image variants of each file get the same acl.
+ * <p>
+ * The first failures are checkpointed with the job, and finished jobs are forgotten and their files deleted
+ * once storage.s3.acl-jobs.retention has passed.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3AclJobManager {
+
+    static final String RUNNING = "RUNNING";
+    static final String COMPLETED = "COMPLETED";
+    static final String FAILED = "FAILED";
+
+    private static final int PAGE_SIZE = 1000;
+    private static final int MAX_REPORTED_FAILURES = 100;
+    private static final String JOB_SUFFIX = ".properties";
+    private static final String KEYS_SUFFIX = ".keys";
+    private static final String FAILURE_PREFIX = "failure.";
+
+    @Value("${storage.s3.acl-jobs.directory}")
+    private Path STORAGE_S3_ACL_JOBS_DIRECTORY;
+
+    @Value("${storage.s3.acl-jobs.concurrency}")
+    private int STORAGE_S3_ACL_JOBS_CONCURRENCY;
+
+    @Value("${storage.s3.acl-jobs.rate-limit}")
+    private int STORAGE_S3_ACL_JOBS_RATE_LIMIT;
+
+    @Value("${storage.s3.acl-jobs.retention}")
+    private Duration STORAGE_S3_ACL_JOBS_RETENTION;
+
+    private final S3Client s3Client;
+    private final ExecutorService s3BatchExecutor;
+    private final ExecutorService s3JobExecutor;
+    private final S3MetadataIndex metadataIndex;
+    private final S3ImageVariants imageVariants;
+
+    private final Map<String, AclJob> jobs = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+    private Semaphore inFlight;
+    private RateLimiter rateLimiter;
+
+    @PostConstruct
+    void init() throws IOException {
+        Files.createDirectories(STORAGE_S3_ACL_JOBS_DIRECTORY);
+        this.inFlight = new Semaphore(STORAGE_S3_ACL_JOBS_CONCURRENCY);
+        this.rateLimiter = RateLimiter.of("s3-acl-jobs", RateLimiterConfig.custom()
+                .limitForPeriod(STORAGE_S3_ACL_JOBS_RATE_LIMIT)
+                .limitRefreshPeriod(Duration.ofSeconds(1))
+                .timeoutDuration(Duration.ofSeconds(1))
+                .build());
+    }
+
+    /**
+     * loads every job from its checkpoint and restarts the ones that were still running
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resume() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(STORAGE_S3_ACL_JOBS_DIRECTORY, "*" + JOB_SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    AclJob job = AclJob.load(file);
+                    jobs.put(job.id, job);
+                    if (RUNNING.equals(job.status)) {
+                        log.info("Resuming acl job {} after {} objects", job.id, job.succeeded.get() + job.failed.get());
+                        s3JobExecutor.execute(() -> run(job));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Skipping unreadable acl job checkpoint {}: {}", file, e.getMessage());
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        // drivers stop at the next page boundary, their last checkpoint stays RUNNING so they resume on startup
+        running = false;
+    }
+
+    /**
+     * @param bucket bucket path
+     * @param prefix prefix of the files to change, or null when file names are given
+     * @param fileNames file names to change, or null when a prefix is given
+     * @param acl acl to apply
+     * @return the new job's status
+     */
+    public S3AclJobResponse start(String bucket, String prefix, List<String> fileNames, ObjectCannedACL acl) {
+        boolean byPrefix = prefix != null && !prefix.isEmpty();
+        boolean byKeys = fileNames != null && !fileNames.isEmpty();
+        if (byPrefix == byKeys)
+            throw new IllegalArgumentException("Either a prefix or a list of file names is required");
+
+        AclJob job = new AclJob(STORAGE_S3_ACL_JOBS_DIRECTORY, UUID.randomUUID().toString(), bucket,
+                byPrefix ? prefix : null, acl);
+        try {
+            if (byKeys)
+                Files.write(job.keysPath(), fileNames);
+            job.checkpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create acl job checkpoint", e);
+        }
+        jobs.put(job.id, job);
+        log.debug("== acl job {} started: {} -> {}", job.id, byPrefix ? prefix : fileNames.size() + " files", acl);
+        s3JobExecutor.execute(() -> run(job));
+        return job.toResponse();
+    }
+
+    /**
+     * forgets finished jobs older than the retention and deletes their checkpoint and key files
+     */
+    @Scheduled(initialDelayString = "${storage.s3.acl-jobs.sweep-interval}",
+            fixedDelayString = "${storage.s3.acl-jobs.sweep-interval}")
+    public void expireFinishedJobs() {
+        Instant cutoff = Instant.now().minus(STORAGE_S3_ACL_JOBS_RETENTION);
+        for (AclJob job : jobs.values()) {
+            if (RUNNING.equals(job.status) || job.updatedAt.isAfter(cutoff))
+                continue;
+            jobs.remove(job.id);
+            try {
+                Files.deleteIfExists(job.keysPath());
+                Files.deleteIfExists(job.checkpointPath());
+                log.debug("== acl job {} expired", job.id);
+            } catch (IOException e) {
+                // the checkpoint is loaded again on the next start and expired by the first sweep after it
+                log.warn("Failed to delete the files of expired acl job {}: {}", job.id, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the job's status, or null for an unknown job id
+     */
+    public S3AclJobResponse get(String jobId) {
+        AclJob job = jobs.get(jobId);
+        return job == null ? null : job.toResponse();
+    }
+
+    private void run(AclJob job) {
+        job.runStarted();
+        try {
+            if (job.prefix != null)
+                runPrefix(job);
+            else
+                runKeys(job);
+            if (running)
+                job.finish(COMPLETED);
+        } catch (Exception e) {
+            log.error("Acl job {} failed: {}", job.id, e.getMessage());
+            job.failures.putIfAbsent("job", String.valueOf(e.getMessage()));
+            job.finish(FAILED);
+        }
+    }
+
+    private void runPrefix(AclJob job) throws IOException {
+        String token = job.continuationToken;
+        do {
+            if (!running)
+                return;
+            ListObjectsV2Response page = s3Client.listObjectsV2(ListObjectsV2Request.builder()
+                    .bucket(job.bucket)
+                    .prefix(job.prefix)
+                    .maxKeys(PAGE_SIZE)
+                    .continuationToken(token)
+                    .build());
+            applyPage(job, page.contents().stream().map(S3Object::key).toList());
+            token = page.nextContinuationToken();
+            job.continuationToken = token;
+            job.checkpoint();
+        } while (token != null);
+    }
+
+    private void runKeys(AclJob job) throws IOException {
+        List<String> keys = Files.readAllLines(job.keysPath());
+        for (int from = job.keyOffset; from < keys.size(); from += PAGE_SIZE) {
+            if (!running)
+                return;
+            int to = Math.min(from + PAGE_SIZE, keys.size());
+            applyPage(job, keys.subList(from, to));
+            job.keyOffset = to;
+            job.checkpoint();
+        }
+    }
+
+    private void applyPage(AclJob job, List<String> keys) {
+        List<CompletableFuture<Void>> puts = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            while (!rateLimiter.acquirePermission()) {
+                // keep waiting, the timeout only bounds each wait so a long throttle doesn't look like a hang
+            }
+            inFlight.acquireUninterruptibly();
+            puts.add(CompletableFuture.runAsync(() -> {
+                s3Client.putObjectAcl(PutObjectAclRequest.builder()
+                        .bucket(job.bucket)
+                        .key(key)
+                        .acl(job.acl)
+                        .build());
+                imageVariants.aclChanged(job.bucket, key, job.acl);
+            }, s3BatchExecutor).whenComplete((ignored, throwable) -> {
+                inFlight.release();
+                if (throwable == null) {
+                    job.succeeded.incrementAndGet();
+                    metadataIndex.aclChanged(job.bucket, key, job.acl);
+                } else {
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    job.failed.incrementAndGet();
+                    if (job.failures.size() < MAX_REPORTED_FAILURES)
+                        job.failures.put(key, String.valueOf(cause.getMessage()));
+                }
+            }));
+        }
+        CompletableFuture.allOf(puts.toArray(CompletableFuture[]::new))
+                .handle((ignored, throwable) -> null)
+                .join();
+    }
+
+    private static class AclJob {
+
+        private final Path directory;
+        private final String id;
+        private final String bucket;
+        private final String prefix;
+        private final ObjectCannedACL acl;
+        private final Instant startedAt;
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final Map<String, String> failures = new ConcurrentHashMap<>();
+        private volatile String status = RUNNING;
+        private volatile String continuationToken;
+        private volatile int keyOffset;
+        private volatile Instant updatedAt;
+        private volatile long runStartNanos;
+        private volatile long runEndNanos;
+        private volatile long processedAtRunStart;
+
+        private AclJob(Path directory, String id, String bucket, String prefix, ObjectCannedACL acl) {
+            this(directory, id, bucket, prefix, acl, Instant.now());
+        }
+
+        private AclJob(Path directory, String id, String bucket, String prefix, ObjectCannedACL acl, Instant startedAt) {
+            this.directory = directory;
+            this.id = id;
+            this.bucket = bucket;
+            this.prefix = prefix;
+            this.acl = acl;
+            this.startedAt = startedAt;
+            this.updatedAt = startedAt;
+        }
+
+        private Path keysPath() {
+            return directory.resolve(id + KEYS_SUFFIX);
+        }
+
+        private Path checkpointPath() {
+            return directory.resolve(id + JOB_SUFFIX);
+        }
+
+        private void runStarted() {
+            runStartNanos = System.nanoTime();
+            processedAtRunStart = succeeded.get() + failed.get();
+        }
+
+        private void finish(String finalStatus) {
+            runEndNanos = System.nanoTime();
+            status = finalStatus;
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                log.warn("Failed to checkpoint acl job {}: {}", id, e.getMessage());
+            }
+        }
+
+        private synchronized void checkpoint() throws IOException {
+            updatedAt = Instant.now();
+            Properties properties = new Properties();
+            properties.setProperty("id", id);
+            properties.setProperty("bucket", bucket);
+            if (prefix != null)
+                properties.setProperty("prefix", prefix);
+            properties.setProperty("acl", acl.toString());
+            properties.setProperty("status", status);
+            if (continuationToken != null)
+                properties.setProperty("continuationToken", continuationToken);
+            properties.setProperty("keyOffset", String.valueOf(keyOffset));
+            properties.setProperty("succeeded", String.valueOf(succeeded.get()));
+            properties.setProperty("failed", String.valueOf(failed.get()));
+            properties.setProperty("startedAt", startedAt.toString());
+            properties.setProperty("updatedAt", updatedAt.toString());
+            failures.forEach((key, error) -> properties.setProperty(FAILURE_PREFIX + key, error));
+
+            Path temp = directory.resolve(id + JOB_SUFFIX + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, null);
+            }
+            Files.move(temp, checkpointPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private static AclJob load(Path file) throws IOException {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            }
+            AclJob job = new AclJob(file.getParent(), properties.getProperty("id"), properties.getProperty("bucket"),
+                    properties.getProperty("prefix"), ObjectCannedACL.fromValue(properties.getProperty("acl")),
+                    Instant.parse(properties.getProperty("startedAt")));
+            job.status = properties.getProperty("status");
+            job.continuationToken = properties.getProperty("continuationToken");
+            job.keyOffset = Integer.parseInt(properties.getProperty("keyOffset", "0"));
+            job.succeeded.set(Long.parseLong(properties.getProperty("succeeded", "0")));
+            job.failed.set(Long.parseLong(properties.getProperty("failed", "0")));
+            job.updatedAt = Instant.parse(properties.getProperty("updatedAt"));
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith(FAILURE_PREFIX))
+                    job.failures.put(name.substring(FAILURE_PREFIX.length()), properties.getProperty(name));
+            }
+            return job;
+        }
+
+        private S3AclJobResponse toResponse() {
+            long processed = succeeded.get() + failed.get() - processedAtRunStart;
+            long runEnd = runEndNanos == 0 ? System.nanoTime() : runEndNanos;
+            double seconds = runStartNanos == 0 ? 0 : (runEnd - runStartNanos) / 1e9;
+            double objectsPerSecond = seconds > 0 ? processed / seconds : 0;
+            return new S3AclJobResponse(id, status, acl.toString(), succeeded.get(), failed.get(), objectsPerSecond,
+                    startedAt.toString(), updatedAt.toString(), Map.copyOf(failures));
+        }
+    }
+}
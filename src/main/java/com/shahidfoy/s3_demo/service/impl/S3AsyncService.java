@@ -0,0 +1,523 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.config.GuardedS3Client;
+import com.shahidfoy.s3_demo.config.S3RetryPolicy;
+import com.shahidfoy.s3_demo.model.request.S3Request;
+import com.shahidfoy.s3_demo.model.request.S3UploadedPart;
+import com.shahidfoy.s3_demo.model.response.S3AclJobResponse;
+import com.shahidfoy.s3_demo.model.response.S3BatchResponse;
+import com.shahidfoy.s3_demo.model.response.S3FileMetadataResponse;
+import com.shahidfoy.s3_demo.model.response.S3ListingEntry;
+import com.shahidfoy.s3_demo.model.response.S3MultipartUploadResponse;
+import com.shahidfoy.s3_demo.model.response.S3PresignedPartResponse;
+import com.shahidfoy.s3_demo.model.response.S3PresignedUrlResponse;
+import com.shahidfoy.s3_demo.service.S3AsyncStorageService;
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+
+/**
+ * S3AsyncClient backed storage, selected with storage.s3.client=async.
+ * The blocking {@link S3StorageService} methods wait on the async versions so existing callers keep working.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+@Primary
+@ConditionalOnProperty(name = "storage.s3.client", havingValue = "async")
+public class S3AsyncService implements S3StorageService, S3AsyncStorageService {
+
+    private final S3AsyncClient s3AsyncClient;
+    private final S3UrlPresigner urlPresigner;
+    private final S3PresignedMultipartUploads presignedMultipartUploads;
+    private final S3AclJobManager aclJobManager;
+    private final S3ObjectLister objectLister;
+    private final S3MultipartUploader multipartUploader;
+    private final S3ObjectCopier objectCopier;
+    private final S3BatchDeleter batchDeleter;
+    private final S3ObjectCache objectCache;
+    private final S3MetadataIndex metadataIndex;
+    private final S3ImageVariants imageVariants;
+    private final S3ContentDeduplicator deduplicator;
+    private final S3ContentCompressor compressor;
+    private final TailNotifier tailNotifier;
+    private final S3UploadStaging uploadStaging;
+    private final ExecutorService s3TransferExecutor;
+    private final ExecutorService s3BatchExecutor;
+
+    @Override
+    public CompletableFuture<Void> saveFileToBucketAsync(String bucket, String fileName, String contentType, byte[] bytes) {
+        log.debug("== S3 saveFileToBucketAsync: {}", fileName);
+        if (multipartUploader.shouldUseMultipart(bytes.length))
+            return saveFileToBucketAsync(bucket, fileName, contentType, new ByteArrayInputStream(bytes), bytes.length);
+
+        saveFileNotification(bucket, fileName, contentType);
+        S3ContentCompressor.EncodedContent encoded = compressor.encode(contentType, bytes);
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(fileName)
+                .contentType(contentType)
+                .contentEncoding(encoded.contentEncoding())
+                .acl(ObjectCannedACL.PUBLIC_READ)
+                .build();
+
+        S3ContentDeduplicator.HashedContent content = deduplicator.hash(encoded.bytes());
+        return copyExisting(bucket, fileName, contentType, encoded.contentEncoding(), content)
+                .thenCompose(copied -> copied ? CompletableFuture.<Void>completedFuture(null)
+                        : s3AsyncClient.putObject(putObjectRequest, AsyncRequestBody.fromBytesUnsafe(encoded.bytes()))
+                                .thenAccept(response -> deduplicator.stored(bucket, fileName, content, response.eTag())))
+                .thenRun(() -> {
+                    saved(bucket, fileName);
+                    imageVariants.generate(bucket, fileName, contentType, bytes, ObjectCannedACL.PUBLIC_READ);
+                });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveFileToBucketAsync(String bucket, String fileName, String contentType,
+                                                         InputStream inputStream, long contentLength) {
+        log.debug("== S3 saveFileToBucketAsync (stream): {} ({} bytes)", fileName, contentLength);
+        saveFileNotification(bucket, fileName, contentType);
+        // compressing reads the stream on the calling thread, and so does hashing unless it's hashed during the upload
+        S3ContentCompressor.EncodedContent encoded = compressor.encode(contentType, inputStream, contentLength);
+        S3ContentDeduplicator.HashedContent content;
+        try {
+            content = deduplicator.hash(encoded.stream(), encoded.contentLength());
+        } catch (RuntimeException e) {
+            encoded.close();
+            throw e;
+        }
+        return copyExisting(bucket, fileName, contentType, encoded.contentEncoding(), content)
+                .thenCompose(copied -> {
+                    if (!copied)
+                        return upload(bucket, fileName, contentType, encoded, content);
+                    saved(bucket, fileName);
+                    imageVariants.generate(bucket, fileName, contentType, content.stream(), encoded.contentLength(),
+                            ObjectCannedACL.PUBLIC_READ);
+                    return CompletableFuture.<Void>completedFuture(null);
+                })
+                .whenComplete((ignored, throwable) -> {
+                    content.close();
+                    encoded.close();
+                });
+    }
+
+    private CompletableFuture<Void> upload(String bucket, String fileName, String contentType,
+                                           S3ContentCompressor.EncodedContent encoded,
+                                           S3ContentDeduplicator.HashedContent content) {
+        long contentLength = encoded.contentLength();
+        InputStream source = imageVariants.capture(fileName, contentType, content.stream(), contentLength);
+        CompletableFuture<String> upload;
+        if (multipartUploader.shouldUseMultipart(contentLength)) {
+            // the multipart engine reads the stream on the calling thread and fans parts out to the transfer pool
+            upload = CompletableFuture.supplyAsync(() -> multipartUploader.upload(bucket, fileName, contentType,
+                    encoded.contentEncoding(), ObjectCannedACL.PUBLIC_READ, source, contentLength), s3BatchExecutor);
+        } else {
+            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(fileName)
+                    .contentType(contentType)
+                    .contentEncoding(encoded.contentEncoding())
+                    .contentLength(contentLength)
+                    .acl(ObjectCannedACL.PUBLIC_READ)
+                    .build();
+
+            upload = s3AsyncClient.putObject(putObjectRequest,
+                            AsyncRequestBody.fromInputStream(source, contentLength, s3TransferExecutor))
+                    .thenApply(PutObjectResponse::eTag);
+        }
+        return upload.thenAccept(eTag -> {
+            saved(bucket, fileName);
+            deduplicator.stored(bucket, fileName, content, eTag);
+            imageVariants.generate(bucket, fileName, contentType, source, ObjectCannedACL.PUBLIC_READ);
+        });
+    }
+
+    /**
+     * the copy is a blocking call on the guarded sync client, so it runs on the batch pool
+     */
+    private CompletableFuture<Boolean> copyExisting(String bucket, String fileName, String contentType,
+                                                    String contentEncoding, S3ContentDeduplicator.HashedContent content) {
+        if (!content.isHashed())
+            return CompletableFuture.completedFuture(false);
+        return CompletableFuture.supplyAsync(
+                () -> deduplicator.copyExisting(bucket, fileName, contentType, contentEncoding, content), s3BatchExecutor);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getFileFromBucketAsync(String bucket, String fileName) {
+        log.debug("== S3 getFileFromBucketAsync: {}", fileName);
+        if (metadataIndex.isKnownMissing(bucket, fileName))
+            return CompletableFuture.failedFuture(missing(fileName));
+        return objectCache.getAsync(bucket, fileName,
+                getObjectRequest -> s3AsyncClient.getObject(getObjectRequest, AsyncResponseTransformer.toBytes()));
+    }
+
+    @Override
+    public CompletableFuture<ResponseInputStream<GetObjectResponse>> getFileStreamFromBucketAsync(
+            String bucket, String fileName, String range) {
+        log.debug("== S3 getFileStreamFromBucketAsync: {} range: {}", fileName, range);
+        if (metadataIndex.isKnownMissing(bucket, fileName))
+            return CompletableFuture.failedFuture(missing(fileName));
+        ResponseInputStream<GetObjectResponse> cached = objectCache.openIfCached(bucket, fileName, range);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(fileName)
+                .range(range)
+                .build();
+
+        return s3AsyncClient.getObject(getObjectRequest, AsyncResponseTransformer.toBlockingInputStream());
+    }
+
+    @Override
+    public CompletableFuture<Void> renameFileAsync(String bucket, String oldFileName, String newFileName, String contentType) {
+        log.debug("== renameFileAsync: {} -> {}", oldFileName, newFileName);
+        // the copier keeps metadata and acl and handles the multipart copy of large objects. It blocks on the
+        // guarded sync client, so the whole rename runs on the batch pool with the caller's attempt setting
+        return CompletableFuture.runAsync(GuardedS3Client.inheritAttempts(() -> {
+            ObjectCannedACL acl = objectCopier.copy(bucket, oldFileName, newFileName, contentType);
+            objectCache.invalidate(bucket, newFileName);
+            metadataIndex.copied(bucket, oldFileName, newFileName);
+            deduplicator.removed(bucket, newFileName);
+            imageVariants.copied(bucket, oldFileName, newFileName, acl);
+            join(deleteObject(bucket, oldFileName));
+            imageVariants.removed(bucket, List.of(oldFileName));
+        }), s3BatchExecutor);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteFileAsync(String bucket, String fileName) {
+        log.debug("== deleteFileAsync: {}", fileName);
+        Runnable removeVariants = removeVariants(bucket, fileName);
+        return deleteObject(bucket, fileName)
+                .thenRunAsync(removeVariants, s3BatchExecutor);
+    }
+
+    /**
+     * the variants are deleted with the guarded sync client, so on the batch pool
+     */
+    private Runnable removeVariants(String bucket, String fileName) {
+        return GuardedS3Client.inheritAttempts(() -> imageVariants.removed(bucket, List.of(fileName)));
+    }
+
+    private CompletableFuture<Void> deleteObject(String bucket, String fileName) {
+        DeleteObjectRequest deleteObjectRequest = DeleteObjectRequest.builder()
+                .bucket(bucket)
+                .key(fileName)
+                .build();
+
+        return s3AsyncClient.deleteObject(deleteObjectRequest)
+                .thenRun(() -> {
+                    objectCache.invalidate(bucket, fileName);
+                    metadataIndex.removed(bucket, fileName);
+                    deduplicator.removed(bucket, fileName);
+                });
+    }
+
+    @Override
+    public CompletableFuture<Void> makeFilePublicAsync(String bucket, String fileName) {
+        log.debug("== makeFilePublicAsync: {}", fileName);
+        return putObjectAcl(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
+    }
+
+    @Override
+    public CompletableFuture<Void> makeFilePrivateAsync(String bucket, String fileName) {
+        log.debug("== makeFilePrivateAsync: {}", fileName);
+        return putObjectAcl(bucket, fileName, ObjectCannedACL.PRIVATE);
+    }
+
+    private CompletableFuture<Void> putObjectAcl(String bucket, String fileName, ObjectCannedACL acl) {
+        PutObjectAclRequest putObjectAclRequest = PutObjectAclRequest.builder()
+                .bucket(bucket)
+                .key(fileName)
+                .acl(acl)
+                .build();
+
+        // the variants are updated with the guarded sync client, so on the batch pool
+        Runnable variantsAclChanged = GuardedS3Client.inheritAttempts(
+                () -> imageVariants.aclChanged(bucket, fileName, acl));
+        return s3AsyncClient.putObjectAcl(putObjectAclRequest)
+                .thenRun(() -> metadataIndex.aclChanged(bucket, fileName, acl))
+                .thenRunAsync(variantsAclChanged, s3BatchExecutor);
+    }
+
+    @Override
+    public void saveFileToBucket(String bucket, String fileName, String contentType, byte[] bytes) {
+        join(saveFileToBucketAsync(bucket, fileName, contentType, bytes));
+    }
+
+    @Override
+    public void saveFileToBucket(String bucket, String fileName, String contentType, InputStream inputStream, long contentLength) {
+        if (multipartUploader.shouldUseMultipart(contentLength)) {
+            saveFileNotification(bucket, fileName, contentType);
+            try (S3ContentCompressor.EncodedContent encoded = compressor.encode(contentType, inputStream, contentLength);
+                 S3ContentDeduplicator.HashedContent content = deduplicator.hash(encoded.stream(), encoded.contentLength())) {
+                long storedLength = encoded.contentLength();
+                if (deduplicator.copyExisting(bucket, fileName, contentType, encoded.contentEncoding(), content)) {
+                    saved(bucket, fileName);
+                    imageVariants.generate(bucket, fileName, contentType, content.stream(), storedLength,
+                            ObjectCannedACL.PUBLIC_READ);
+                    return;
+                }
+                if (!multipartUploader.shouldUseMultipart(storedLength)) {
+                    // compressed below the multipart threshold
+                    join(upload(bucket, fileName, contentType, encoded, content));
+                    return;
+                }
+                InputStream source = imageVariants.capture(fileName, contentType, content.stream(), storedLength);
+                String eTag = multipartUploader.upload(bucket, fileName, contentType, encoded.contentEncoding(),
+                        ObjectCannedACL.PUBLIC_READ, source, storedLength);
+                saved(bucket, fileName);
+                deduplicator.stored(bucket, fileName, content, eTag);
+                imageVariants.generate(bucket, fileName, contentType, source, ObjectCannedACL.PUBLIC_READ);
+            }
+            return;
+        }
+        join(saveFileToBucketAsync(bucket, fileName, contentType, inputStream, contentLength));
+    }
+
+    /**
+     * {@code @Async} like the sync service: the upload executor bounds how many staged files are read at once
+     * and saturation is rejected back to the request
+     */
+    @Async
+    @Override
+    public void saveFileToBucket(String bucket, String fileName, String contentType, Path file, long contentLength) {
+        // a file-backed stream, so it can be hashed and sampled in place and rewound for the upload
+        try (InputStream inputStream = CachedObjectInputStream.open(file, 0, contentLength)) {
+            saveFileToBucket(bucket, fileName, contentType, inputStream, contentLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            uploadStaging.delete(file);
+        }
+    }
+
+    @Override
+    public byte[] getFileFromBucket(String bucket, String fileName) {
+        if (metadataIndex.isKnownMissing(bucket, fileName))
+            throw missing(fileName);
+        // goes through the cache's read path so stale entries are revalidated with If-None-Match
+        return objectCache.get(bucket, fileName,
+                getObjectRequest -> join(s3AsyncClient.getObject(getObjectRequest, AsyncResponseTransformer.toBytes())));
+    }
+
+    @Override
+    public ResponseInputStream<GetObjectResponse> getFileStreamFromBucket(String bucket, String fileName, String range) {
+        if (metadataIndex.isKnownMissing(bucket, fileName))
+            throw missing(fileName);
+        return objectCache.open(bucket, fileName, range,
+                getObjectRequest -> join(s3AsyncClient.getObject(getObjectRequest, AsyncResponseTransformer.toBlockingInputStream())));
+    }
+
+    @Override
+    public Stream<S3ListingEntry> listFiles(String bucket, String prefix, String delimiter, String continuationToken,
+                                            int maxKeys, int maxPages) {
+        log.debug("== S3 listFiles prefix: {} delimiter: {}", prefix, delimiter);
+        return objectLister.list(bucket, prefix, delimiter, continuationToken, maxKeys, maxPages);
+    }
+
+    @Override
+    public String getVariantFileName(String fileName, String variant) {
+        log.debug("== S3 getVariantFileName: {} variant: {}", fileName, variant);
+        return imageVariants.variantKey(fileName, variant);
+    }
+
+    @Override
+    public S3FileMetadataResponse getFileMetadata(String bucket, String fileName) {
+        log.debug("== S3 getFileMetadata: {}", fileName);
+        return metadataIndex.get(bucket, fileName);
+    }
+
+    @Override
+    public List<S3FileMetadataResponse> listFileMetadata(String bucket, String prefix, int limit) {
+        log.debug("== S3 listFileMetadata prefix: {} limit: {}", prefix, limit);
+        return metadataIndex.list(bucket, prefix, limit);
+    }
+
+    @Override
+    public String generatePresignedUrl(String bucket, String fileName, String contentType) {
+        log.debug("== Generate Presigned Url for: {}", fileName);
+        return urlPresigner.presign(bucket, fileName, contentType, S3UrlPresigner.PUT);
+    }
+
+    @Override
+    public String generatePresignedGetUrl(String bucket, String fileName) {
+        log.debug("== Generate Presigned Get Url for: {}", fileName);
+        return urlPresigner.presign(bucket, fileName, null, S3UrlPresigner.GET);
+    }
+
+    @Override
+    public List<S3PresignedUrlResponse> generatePresignedUrls(String bucket, List<S3Request> requests) {
+        log.debug("== Generate Presigned Urls: {} files", requests.size());
+        return urlPresigner.presignAll(bucket, requests);
+    }
+
+    @Override
+    public S3MultipartUploadResponse initiateMultipartUpload(String bucket, String fileName, String contentType) {
+        log.debug("== initiateMultipartUpload: {}", fileName);
+        return presignedMultipartUploads.initiate(bucket, fileName, contentType);
+    }
+
+    @Override
+    public List<S3PresignedPartResponse> generatePresignedPartUrls(String bucket, String fileName, String uploadId, int partCount) {
+        log.debug("== Generate Presigned Part Urls for: {} ({} parts)", fileName, partCount);
+        return urlPresigner.presignParts(bucket, fileName, uploadId, partCount);
+    }
+
+    @Override
+    public void completeMultipartUpload(String bucket, String fileName, String uploadId, List<S3UploadedPart> parts) {
+        log.debug("== completeMultipartUpload: {} ({})", fileName, uploadId);
+        presignedMultipartUploads.complete(bucket, fileName, uploadId, parts);
+        saved(bucket, fileName);
+        deduplicator.removed(bucket, fileName);
+    }
+
+    @Override
+    public void abortMultipartUpload(String bucket, String fileName, String uploadId) {
+        log.debug("== abortMultipartUpload: {} ({})", fileName, uploadId);
+        presignedMultipartUploads.abort(bucket, fileName, uploadId);
+    }
+
+    @Override
+    public void renameFile(String bucket, String oldFileName, String newFileName, String contentType) {
+        // a retry whose previous attempt deleted the source but failed before returning finds the rename done
+        if (S3RetryPolicy.isRetry() && objectCopier.isMoved(bucket, oldFileName, newFileName)) {
+            log.debug("== renameFile: {} was moved by the previous attempt", oldFileName);
+            return;
+        }
+        join(renameFileAsync(bucket, oldFileName, newFileName, contentType));
+    }
+
+    @Override
+    public S3BatchResponse renameFilesByPrefix(String bucket, String oldPrefix, String newPrefix) {
+        log.debug("== renameFilesByPrefix: {} -> {}", oldPrefix, newPrefix);
+        S3BatchResponse response = objectCopier.renameByPrefix(bucket, oldPrefix, newPrefix);
+        objectCache.invalidatePrefix(bucket, oldPrefix);
+        objectCache.invalidatePrefix(bucket, newPrefix);
+        metadataIndex.prefixChanged(bucket, oldPrefix);
+        metadataIndex.prefixChanged(bucket, newPrefix);
+        deduplicator.removedPrefix(bucket, oldPrefix);
+        deduplicator.removedPrefix(bucket, newPrefix);
+        imageVariants.renamedPrefix(bucket, oldPrefix, newPrefix);
+        return response;
+    }
+
+    @Override
+    public void deleteFile(String bucket, String fileName) {
+        join(deleteFileAsync(bucket, fileName));
+    }
+
+    @Override
+    public S3BatchResponse deleteFiles(String bucket, List<String> fileNames) {
+        log.debug("== deleteFiles: {} files", fileNames.size());
+        S3BatchResponse response = batchDeleter.deleteKeys(bucket, fileNames);
+        fileNames.forEach(fileName -> {
+            objectCache.invalidate(bucket, fileName);
+            if (!response.getFailures().containsKey(fileName)) {
+                metadataIndex.removed(bucket, fileName);
+                deduplicator.removed(bucket, fileName);
+            }
+        });
+        imageVariants.removed(bucket, fileNames.stream()
+                .filter(fileName -> !response.getFailures().containsKey(fileName))
+                .toList());
+        return response;
+    }
+
+    @Override
+    public S3BatchResponse deleteFilesByPrefix(String bucket, String prefix) {
+        log.debug("== deleteFilesByPrefix: {}", prefix);
+        S3BatchResponse response = batchDeleter.deleteByPrefix(bucket, prefix);
+        objectCache.invalidatePrefix(bucket, prefix);
+        metadataIndex.prefixChanged(bucket, prefix);
+        deduplicator.removedPrefix(bucket, prefix);
+        imageVariants.removedPrefix(bucket, prefix);
+        return response;
+    }
+
+    @Override
+    public void makeFilePublic(String bucket, String fileName) {
+        join(makeFilePublicAsync(bucket, fileName));
+    }
+
+    @Override
+    public void makeFilePrivate(String bucket, String fileName) {
+        join(makeFilePrivateAsync(bucket, fileName));
+    }
+
+    @Override
+    public S3AclJobResponse startAclJob(String bucket, String prefix, List<String> fileNames, boolean makePublic) {
+        log.debug("== startAclJob public: {} prefix: {}", makePublic, prefix);
+        return aclJobManager.start(bucket, prefix, fileNames, makePublic ? ObjectCannedACL.PUBLIC_READ : ObjectCannedACL.PRIVATE);
+    }
+
+    @Override
+    public S3AclJobResponse getAclJob(String jobId) {
+        log.debug("== getAclJob: {}", jobId);
+        return aclJobManager.get(jobId);
+    }
+
+    /**
+     * every save and completed multipart upload in this service is public-read
+     */
+    private void saved(String bucket, String fileName) {
+        objectCache.invalidate(bucket, fileName);
+        metadataIndex.changed(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
+    }
+
+    private static NoSuchKeyException missing(String fileName) {
+        return (NoSuchKeyException) NoSuchKeyException.builder()
+                .statusCode(404)
+                .message("The specified key does not exist: " + fileName)
+                .build();
+    }
+
+    private void saveFileNotification(String bucket, String fileName, String contentType) {
+        Map<String, String> saveFileTags = new HashMap<>();
+        saveFileTags.put("filename", fileName);
+        saveFileTags.put("bucket", bucket);
+        tailNotifier.info("New save file request",
+                "A new save file request has been received",
+                bucket + " " + fileName + " " + contentType,
+                "USER_ACTION_COMPLETED",
+                saveFileTags);
+    }
+
+    /**
+     * waits for the future and rethrows the sdk exception itself so @Retryable sees the same types as the sync client
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.model.response.S3BatchResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes keys with DeleteObjects, up to 1000 keys per call, running chunks concurrently on the batch executor.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3BatchDeleter {
+
+    // s3 limit for a single DeleteObjects request
+    private static final int MAX_KEYS_PER_REQUEST = 1000;
+
+    @Value("${storage.s3.batch.concurrency}")
+    private int STORAGE_S3_BATCH_CONCURRENCY;
+
+    private final S3Client s3Client;
+    private final ExecutorService s3BatchExecutor;
+
+    /**
+     * @param bucket bucket path
+     * @param fileNames file names to delete
+     * @return deleted count and per file failures
+     */
+    public S3BatchResponse deleteKeys(String bucket, List<String> fileNames) {
+        log.debug("== batch delete {} files", fileNames.size());
+        Batch batch = new Batch(bucket);
+        for (int from = 0; from < fileNames.size(); from += MAX_KEYS_PER_REQUEST) {
+            batch.submit(fileNames.subList(from, Math.min(from + MAX_KEYS_PER_REQUEST, fileNames.size())));
+        }
+        return batch.await();
+    }
+
+    /**
+     * deletes every file under the prefix, listing pages are streamed and each page becomes one DeleteObjects call
+     * @param bucket bucket path
+     * @param prefix prefix of the files to delete, must not be empty
+     * @return deleted count and per file failures
+     */
+    public S3BatchResponse deleteByPrefix(String bucket, String prefix) {
+        if (prefix == null || prefix.isEmpty())
+            throw new IllegalArgumentException("Prefix must not be empty");
+        log.debug("== batch delete by prefix: {}", prefix);
+
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(prefix)
+                .maxKeys(MAX_KEYS_PER_REQUEST)
+                .build();
+        Batch batch = new Batch(bucket);
+        for (ListObjectsV2Response page : s3Client.listObjectsV2Paginator(listRequest)) {
+            List<String> keys = page.contents().stream().map(S3Object::key).toList();
+            if (!keys.isEmpty())
+                batch.submit(keys);
+        }
+        return batch.await();
+    }
+
+    /**
+     * tracks the DeleteObjects calls of one batch, at most batch concurrency chunks are in flight
+     */
+    private class Batch {
+
+        private final String bucket;
+        private final AtomicInteger deleted = new AtomicInteger();
+        private final Map<String, String> failures = new ConcurrentHashMap<>();
+        private final Semaphore inFlight = new Semaphore(STORAGE_S3_BATCH_CONCURRENCY);
+        private final List<CompletableFuture<Void>> chunks = new ArrayList<>();
+
+        private Batch(String bucket) {
+            this.bucket = bucket;
+        }
+
+        private void submit(List<String> keys) {
+            inFlight.acquireUninterruptibly();
+            chunks.add(CompletableFuture.runAsync(() -> deleteChunk(keys), s3BatchExecutor)
+                    .whenComplete((ignored, throwable) -> inFlight.release()));
+            chunks.removeIf(CompletableFuture::isDone);
+        }
+
+        private void deleteChunk(List<String> keys) {
+            DeleteObjectsRequest deleteObjectsRequest = DeleteObjectsRequest.builder()
+                    .bucket(bucket)
+                    .delete(Delete.builder()
+                            .objects(keys.stream().map(key -> ObjectIdentifier.builder().key(key).build()).toList())
+                            .quiet(true)
+                            .build())
+                    .build();
+            try {
+                // quiet mode only reports the keys that failed
+                List<S3Error> errors = s3Client.deleteObjects(deleteObjectsRequest).errors();
+                errors.forEach(error -> failures.put(error.key(), error.code() + ": " + error.message()));
+                deleted.addAndGet(keys.size() - errors.size());
+            } catch (Exception e) {
+                log.error("Failed to delete chunk of {} files: {}", keys.size(), e.getMessage());
+                keys.forEach(key -> failures.put(key, String.valueOf(e.getMessage())));
+            }
+        }
+
+        private S3BatchResponse await() {
+            CompletableFuture.allOf(chunks.toArray(CompletableFuture[]::new)).join();
+            log.debug("== batch delete removed {} files, {} failures", deleted.get(), failures.size());
+            return new S3BatchResponse(deleted.get(), failures);
+        }
+    }
+}
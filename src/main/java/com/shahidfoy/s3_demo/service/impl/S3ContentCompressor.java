@@ -0,0 +1,300 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opt-in gzip compression of uploads whose content type is configured as compressible. The object is stored
+ * with Content-Encoding: gzip, so s3 and the CDN serve it compressed and browsers decode it natively.
+ * Reads through this service decode it again, the download endpoint only when the client doesn't accept gzip.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3ContentCompressor {
+
+    static final String GZIP = "gzip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // streams are compressed only when their first bytes shrink, a spooled stream can't be stored as is afterwards
+    private static final int SAMPLE_SIZE = 256 * 1024;
+    private static final String SUFFIX = ".gz";
+
+    @Value("${storage.s3.compression.enabled}")
+    private boolean STORAGE_S3_COMPRESSION_ENABLED;
+
+    @Value("${storage.s3.compression.content-types}")
+    private List<String> STORAGE_S3_COMPRESSION_CONTENT_TYPES;
+
+    @Value("${storage.s3.compression.level}")
+    private int STORAGE_S3_COMPRESSION_LEVEL;
+
+    @Value("${storage.s3.compression.min-size}")
+    private DataSize STORAGE_S3_COMPRESSION_MIN_SIZE;
+
+    @Value("${storage.s3.compression.directory}")
+    private Path STORAGE_S3_COMPRESSION_DIRECTORY;
+
+    private final MeterRegistry meterRegistry;
+
+    private Counter originalBytes;
+    private Counter storedBytes;
+    private Timer compressTime;
+
+    @PostConstruct
+    void init() throws IOException {
+        if (STORAGE_S3_COMPRESSION_LEVEL < Deflater.BEST_SPEED || STORAGE_S3_COMPRESSION_LEVEL > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("storage.s3.compression.level must be 1 to 9: " + STORAGE_S3_COMPRESSION_LEVEL);
+        if (STORAGE_S3_COMPRESSION_ENABLED) {
+            // spool files of uploads that were in progress when the previous run stopped
+            Files.createDirectories(STORAGE_S3_COMPRESSION_DIRECTORY);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(STORAGE_S3_COMPRESSION_DIRECTORY, "*" + SUFFIX)) {
+                for (Path file : files)
+                    Files.deleteIfExists(file);
+            }
+        }
+        // stored / original is the compression ratio, time / original bytes the cpu cost per byte
+        this.originalBytes = Counter.builder("s3.compression.bytes").tag("stage", "original")
+                .baseUnit("bytes").register(meterRegistry);
+        this.storedBytes = Counter.builder("s3.compression.bytes").tag("stage", "stored")
+                .baseUnit("bytes").register(meterRegistry);
+        this.compressTime = Timer.builder("s3.compression.time")
+                .description("Time spent compressing uploads")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return true when uploads of the content type and size are stored gzip encoded
+     */
+    boolean isCompressible(String contentType, long contentLength) {
+        if (!STORAGE_S3_COMPRESSION_ENABLED || contentType == null
+                || contentLength < STORAGE_S3_COMPRESSION_MIN_SIZE.toBytes())
+            return false;
+        String mediaType = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        for (String pattern : STORAGE_S3_COMPRESSION_CONTENT_TYPES) {
+            String type = pattern.trim().toLowerCase(Locale.ROOT);
+            if (type.endsWith("/*") ? mediaType.startsWith(type.substring(0, type.length() - 1)) : mediaType.equals(type))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * compresses the payload in memory, payloads that don't get smaller are stored as is
+     */
+    EncodedContent encode(String contentType, byte[] bytes) {
+        if (!isCompressible(contentType, bytes.length))
+            return new EncodedContent(null, bytes, null, null, bytes.length);
+        long start = System.nanoTime();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+        try (OutputStream gzip = new LeveledGzipOutputStream(compressed, STORAGE_S3_COMPRESSION_LEVEL)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        compressTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (compressed.size() >= bytes.length) {
+            log.debug("== not compressing {} bytes of {}, gzip doesn't make it smaller", bytes.length, contentType);
+            return new EncodedContent(null, bytes, null, null, bytes.length);
+        }
+        recordSizes(bytes.length, compressed.size());
+        return new EncodedContent(GZIP, compressed.toByteArray(), null, null, compressed.size());
+    }
+
+    /**
+     * compresses the stream into a spool file, so the compressed length is known before the upload starts.
+     * Whether to compress is decided on the first bytes, streams whose sample doesn't get smaller are stored as is
+     * @return the encoded content, or the stream itself when the content type isn't compressible
+     */
+    EncodedContent encode(String contentType, InputStream inputStream, long contentLength) {
+        if (!isCompressible(contentType, contentLength))
+            return new EncodedContent(null, null, inputStream, null, contentLength);
+        try {
+            // a file-backed stream is rewound after sampling, so a payload stored as is can still be hashed in place
+            boolean rewindable = inputStream instanceof CachedObjectInputStream;
+            if (rewindable)
+                inputStream.mark(Integer.MAX_VALUE);
+            byte[] sample = inputStream.readNBytes((int) Math.min(SAMPLE_SIZE, contentLength));
+            if (sample.length == contentLength) {
+                // the whole payload, decided on its exact compressed size
+                EncodedContent encoded = encode(contentType, sample);
+                return new EncodedContent(encoded.contentEncoding, null, new ByteArrayInputStream(encoded.bytes), null,
+                        encoded.contentLength);
+            }
+            if (sample.length < SAMPLE_SIZE)
+                throw new EOFException("Stream had " + sample.length + " of " + contentLength + " bytes");
+            if (!shrinks(sample)) {
+                log.debug("== not compressing {} bytes of {}, gzip doesn't make its first {} bytes smaller",
+                        contentLength, contentType, sample.length);
+                if (rewindable) {
+                    inputStream.reset();
+                    return new EncodedContent(null, null, inputStream, null, contentLength);
+                }
+                return new EncodedContent(null, null, new SequenceInputStream(new ByteArrayInputStream(sample), inputStream),
+                        null, contentLength);
+            }
+            return spool(sample, inputStream, contentLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean shrinks(byte[] sample) throws IOException {
+        long start = System.nanoTime();
+        CountingOutputStream compressed = new CountingOutputStream();
+        try (OutputStream gzip = new LeveledGzipOutputStream(compressed, STORAGE_S3_COMPRESSION_LEVEL)) {
+            gzip.write(sample);
+        }
+        compressTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return compressed.count < sample.length;
+    }
+
+    private EncodedContent spool(byte[] sample, InputStream rest, long contentLength) throws IOException {
+        Path spool = Files.createTempFile(STORAGE_S3_COMPRESSION_DIRECTORY, "s3-upload-", SUFFIX);
+        try {
+            long start = System.nanoTime();
+            long read;
+            try (OutputStream gzip = new LeveledGzipOutputStream(Files.newOutputStream(spool), STORAGE_S3_COMPRESSION_LEVEL)) {
+                gzip.write(sample);
+                read = sample.length + rest.transferTo(gzip);
+            }
+            compressTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (read != contentLength)
+                throw new EOFException("Stream had " + read + " of " + contentLength + " bytes");
+            long compressedLength = Files.size(spool);
+            // only when the rest compresses far worse than the sample, the gzip is still a valid encoding to store
+            if (compressedLength >= contentLength)
+                log.debug("== gzip of {} bytes is {} bytes, stored anyway as the stream has been consumed",
+                        contentLength, compressedLength);
+            recordSizes(contentLength, compressedLength);
+            return new EncodedContent(GZIP, null, CachedObjectInputStream.open(spool, 0, compressedLength), spool, compressedLength);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+    }
+
+    /**
+     * @param contentEncoding content encoding the object was stored with
+     * @return the decoded payload, or the bytes themselves when they aren't gzip encoded
+     */
+    byte[] decode(String contentEncoding, byte[] bytes) {
+        if (!GZIP.equalsIgnoreCase(contentEncoding))
+            return bytes;
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes), BUFFER_SIZE)) {
+            return gzip.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void recordSizes(long original, long stored) {
+        originalBytes.increment(original);
+        storedBytes.increment(stored);
+    }
+
+    /**
+     * the payload to upload with its content encoding. close deletes the spool file, if the payload was spooled
+     */
+    static final class EncodedContent implements Closeable {
+
+        private final String contentEncoding;
+        private final byte[] bytes;
+        private final InputStream stream;
+        private final Path spool;
+        private final long contentLength;
+
+        private EncodedContent(String contentEncoding, byte[] bytes, InputStream stream, Path spool, long contentLength) {
+            this.contentEncoding = contentEncoding;
+            this.bytes = bytes;
+            this.stream = stream;
+            this.spool = spool;
+            this.contentLength = contentLength;
+        }
+
+        /**
+         * @return gzip, or null when the payload is stored as is
+         */
+        String contentEncoding() {
+            return contentEncoding;
+        }
+
+        /**
+         * @return the payload of an encoded byte array
+         */
+        byte[] bytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the payload of an encoded stream, positioned at its start
+         */
+        InputStream stream() {
+            return stream;
+        }
+
+        long contentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public void close() {
+            if (spool == null)
+                return;
+            try {
+                stream.close();
+                Files.deleteIfExists(spool);
+            } catch (IOException e) {
+                log.warn("Failed to delete compression spool {}: {}", spool, e.getMessage());
+            }
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+
+    private static final class LeveledGzipOutputStream extends GZIPOutputStream {
+
+        private LeveledGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+}
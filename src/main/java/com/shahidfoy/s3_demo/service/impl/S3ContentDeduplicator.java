@@ -0,0 +1,457 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Opt-in upload deduplication. Payloads are hashed with SHA-256 before they are uploaded, and when an object
+ * with the same content already exists in the bucket the new file is created with a server-side copy of it,
+ * so the bytes are never sent to s3 again. Payloads are hashed where they already are, in memory or in their
+ * staged file, a stream that can only be read once is hashed while it is uploaded and only indexed.
+ * <p>
+ * The index maps each content hash to the objects holding it, with their etags, and is persisted as an append-only
+ * journal that is compacted on startup. Deletes, renames and overwrites remove an object from its hash, and a hash
+ * is dropped with its last object, so a copy is only ever made from an object that still exists. Copies use
+ * If-Match on the recorded etag, so an object changed behind the index's back is never copied.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3ContentDeduplicator {
+
+    private static final long MAX_COPY_OBJECT_SIZE = DataSize.ofGigabytes(5).toBytes();
+    private static final String JOURNAL = "index.journal";
+    private static final String ADD = "+";
+    private static final String REMOVE = "-";
+
+    @Value("${storage.s3.dedup.enabled}")
+    private boolean STORAGE_S3_DEDUP_ENABLED;
+
+    @Value("${storage.s3.dedup.directory}")
+    private Path STORAGE_S3_DEDUP_DIRECTORY;
+
+    @Value("${storage.s3.dedup.min-size}")
+    private DataSize STORAGE_S3_DEDUP_MIN_SIZE;
+
+    private final S3Client s3Client;
+    private final MeterRegistry meterRegistry;
+
+    // sha-256 -> objects holding that content -> their etag
+    private final Map<String, Map<ObjectRef, String>> holders = new HashMap<>();
+    private final Map<ObjectRef, String> hashes = new HashMap<>();
+    private BufferedWriter journal;
+    private Counter deduplicated;
+    private Counter stored;
+    private Counter staleSources;
+    private Counter uploadBytesSaved;
+
+    @PostConstruct
+    void init() throws IOException {
+        this.deduplicated = Counter.builder("s3.dedup.uploads").tag("result", "deduplicated").register(meterRegistry);
+        this.stored = Counter.builder("s3.dedup.uploads").tag("result", "stored").register(meterRegistry);
+        this.staleSources = Counter.builder("s3.dedup.uploads").tag("result", "stale_source").register(meterRegistry);
+        this.uploadBytesSaved = Counter.builder("s3.dedup.upload.bytes.saved")
+                .description("Payload bytes not uploaded because the content already existed")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        if (!STORAGE_S3_DEDUP_ENABLED)
+            return;
+
+        Files.createDirectories(STORAGE_S3_DEDUP_DIRECTORY);
+        Path journalPath = STORAGE_S3_DEDUP_DIRECTORY.resolve(JOURNAL);
+        if (Files.exists(journalPath))
+            replay(journalPath);
+        compact(journalPath);
+        this.journal = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        Gauge.builder("s3.dedup.contents", this, deduplicator -> deduplicator.contentCount())
+                .description("Distinct contents in the deduplication index")
+                .register(meterRegistry);
+        log.info("Deduplication index loaded with {} contents in {} objects", holders.size(), hashes.size());
+    }
+
+    @PreDestroy
+    synchronized void close() throws IOException {
+        if (journal != null)
+            journal.close();
+    }
+
+    /**
+     * hashes the payload without copying it. Byte array and file-backed streams are read to the end and rewound,
+     * so an existing object with the same content can be copied instead of uploading them. Other streams can only
+     * be read once, they are hashed while the upload reads them and indexed when it has finished
+     * @return the hashed content, or the stream itself when deduplication is off or the payload is too small
+     */
+    HashedContent hash(InputStream inputStream, long contentLength) {
+        if (!accepts(contentLength))
+            return new HashedContent(null, inputStream, contentLength);
+        MessageDigest digest = sha256();
+        if (!(inputStream instanceof ByteArrayInputStream || inputStream instanceof CachedObjectInputStream)) {
+            HashingInputStream hashing = new HashingInputStream(inputStream, digest);
+            return new HashedContent(null, hashing, contentLength);
+        }
+        try {
+            inputStream.mark(Integer.MAX_VALUE);
+            long read = inputStream.transferTo(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+            if (read != contentLength)
+                throw new EOFException("Stream had " + read + " of " + contentLength + " bytes");
+            inputStream.reset();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new HashedContent(HexFormat.of().formatHex(digest.digest()), inputStream, contentLength);
+    }
+
+    /**
+     * @return the hashed content, without a stream since the caller uploads the array itself
+     */
+    HashedContent hash(byte[] bytes) {
+        if (!accepts(bytes.length))
+            return new HashedContent(null, null, bytes.length);
+        return new HashedContent(HexFormat.of().formatHex(sha256().digest(bytes)), null, bytes.length);
+    }
+
+    /**
+     * creates the file as a public-read server-side copy of an object that already holds the same content
+     * @return true when the copy was made and the payload must not be uploaded
+     */
+    boolean copyExisting(String bucket, String fileName, String contentType, String contentEncoding, HashedContent content) {
+        if (content.hash == null || content.contentLength > MAX_COPY_OBJECT_SIZE)
+            return false;
+        Map.Entry<ObjectRef, String> source = findHolder(bucket, content.hash);
+        if (source == null)
+            return false;
+
+        CopyObjectResponse response;
+        try {
+            response = s3Client.copyObject(CopyObjectRequest.builder()
+                    .sourceBucket(bucket)
+                    .sourceKey(source.getKey().key())
+                    .destinationBucket(bucket)
+                    .destinationKey(fileName)
+                    .copySourceIfMatch(source.getValue())
+                    .metadataDirective(MetadataDirective.REPLACE)
+                    .contentType(contentType)
+                    .contentEncoding(contentEncoding)
+                    .acl(ObjectCannedACL.PUBLIC_READ)
+                    .build());
+        } catch (S3Exception e) {
+            if (e.statusCode() != 404 && e.statusCode() != 412)
+                throw e;
+            // deleted or overwritten outside this service, forget it and upload instead
+            log.debug("== dedup source {} is gone or changed ({}), uploading {}", source.getKey().key(), e.statusCode(), fileName);
+            removed(bucket, source.getKey().key());
+            staleSources.increment();
+            return false;
+        }
+        record(bucket, fileName, content.hash, response.copyObjectResult().eTag());
+        deduplicated.increment();
+        uploadBytesSaved.increment(content.contentLength);
+        log.debug("== deduplicated {} as a copy of {}", fileName, source.getKey().key());
+        return true;
+    }
+
+    /**
+     * records the content of a file that was just uploaded
+     * @param eTag etag returned by the upload
+     */
+    void stored(String bucket, String fileName, HashedContent content, String eTag) {
+        if (!STORAGE_S3_DEDUP_ENABLED)
+            return;
+        String hash = content.uploadedHash();
+        if (hash == null || eTag == null) {
+            // overwritten with content that isn't indexed
+            removed(bucket, fileName);
+            return;
+        }
+        record(bucket, fileName, hash, eTag);
+        stored.increment();
+    }
+
+    /**
+     * the file was deleted, overwritten or renamed away
+     */
+    synchronized void removed(String bucket, String fileName) {
+        if (!STORAGE_S3_DEDUP_ENABLED)
+            return;
+        if (unlink(new ObjectRef(bucket, fileName)))
+            append(REMOVE + " " + bucket + " " + encode(fileName));
+    }
+
+    /**
+     * every file under the prefix was deleted or renamed away
+     */
+    synchronized void removedPrefix(String bucket, String prefix) {
+        if (!STORAGE_S3_DEDUP_ENABLED || prefix == null || prefix.isEmpty())
+            return;
+        List<ObjectRef> affected = hashes.keySet().stream()
+                .filter(ref -> ref.bucket().equals(bucket) && ref.key().startsWith(prefix))
+                .toList();
+        affected.forEach(ref -> removed(ref.bucket(), ref.key()));
+    }
+
+    private boolean accepts(long contentLength) {
+        return STORAGE_S3_DEDUP_ENABLED && contentLength >= STORAGE_S3_DEDUP_MIN_SIZE.toBytes();
+    }
+
+    private synchronized Map.Entry<ObjectRef, String> findHolder(String bucket, String hash) {
+        Map<ObjectRef, String> objects = holders.get(hash);
+        if (objects == null)
+            return null;
+        return objects.entrySet().stream()
+                .filter(entry -> entry.getKey().bucket().equals(bucket))
+                .findFirst()
+                .map(entry -> Map.entry(entry.getKey(), entry.getValue()))
+                .orElse(null);
+    }
+
+    private synchronized void record(String bucket, String fileName, String hash, String eTag) {
+        ObjectRef ref = new ObjectRef(bucket, fileName);
+        link(ref, hash, eTag);
+        append(ADD + " " + hash + " " + eTag + " " + bucket + " " + encode(fileName));
+    }
+
+    private void link(ObjectRef ref, String hash, String eTag) {
+        unlink(ref);
+        holders.computeIfAbsent(hash, ignored -> new LinkedHashMap<>()).put(ref, eTag);
+        hashes.put(ref, hash);
+    }
+
+    private boolean unlink(ObjectRef ref) {
+        String hash = hashes.remove(ref);
+        if (hash == null)
+            return false;
+        Map<ObjectRef, String> objects = holders.get(hash);
+        objects.remove(ref);
+        // the last reference is gone, the content no longer exists in the bucket
+        if (objects.isEmpty())
+            holders.remove(hash);
+        return true;
+    }
+
+    private synchronized int contentCount() {
+        return holders.size();
+    }
+
+    private void append(String line) {
+        try {
+            journal.write(line);
+            journal.newLine();
+            journal.flush();
+        } catch (IOException e) {
+            // a lost record only costs a dedup hit or a failed If-Match copy, never a wrong copy
+            log.warn("Failed to write the deduplication journal: {}", e.getMessage());
+        }
+    }
+
+    private void replay(Path journalPath) throws IOException {
+        for (String line : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(" ");
+            if (fields.length == 5 && ADD.equals(fields[0])) {
+                link(new ObjectRef(fields[3], decode(fields[4])), fields[1], fields[2]);
+            } else if (fields.length == 3 && REMOVE.equals(fields[0])) {
+                unlink(new ObjectRef(fields[1], decode(fields[2])));
+            } else {
+                // a record torn by a crash while it was written
+                log.warn("Skipping malformed deduplication journal line: {}", line);
+            }
+        }
+    }
+
+    private void compact(Path journalPath) throws IOException {
+        Path temp = STORAGE_S3_DEDUP_DIRECTORY.resolve(JOURNAL + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Map<ObjectRef, String>> content : holders.entrySet()) {
+                for (Map.Entry<ObjectRef, String> object : content.getValue().entrySet()) {
+                    writer.write(ADD + " " + content.getKey() + " " + object.getValue() + " "
+                            + object.getKey().bucket() + " " + encode(object.getKey().key()));
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(temp, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String encode(String key) {
+        return URLEncoder.encode(key, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String key) {
+        return URLDecoder.decode(key, StandardCharsets.UTF_8);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record ObjectRef(String bucket, String key) {
+    }
+
+    /**
+     * a payload and its hash. The hash of a stream that is hashed while it is uploaded is only known afterwards
+     */
+    static final class HashedContent implements Closeable {
+
+        private final String hash;
+        private final InputStream stream;
+        private final long contentLength;
+
+        private HashedContent(String hash, InputStream stream, long contentLength) {
+            this.hash = hash;
+            this.stream = stream;
+            this.contentLength = contentLength;
+        }
+
+        /**
+         * @return the payload to upload, positioned at its start
+         */
+        InputStream stream() {
+            return stream;
+        }
+
+        /**
+         * @return true when the hash is known before the upload, so the upload can be replaced by a copy
+         */
+        boolean isHashed() {
+            return hash != null;
+        }
+
+        /**
+         * @return the hash, or null when the stream is hashed during the upload and wasn't read to its end
+         */
+        private String uploadedHash() {
+            if (hash != null || !(stream instanceof HashingInputStream hashing))
+                return hash;
+            return hashing.hash(contentLength);
+        }
+
+        /**
+         * the caller owns the stream, nothing is held on its behalf
+         */
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * digests the bytes an upload reads. The sdk marks request bodies and resets them to retry, the digest
+     * state is saved with the mark so a retried body isn't hashed twice
+     */
+    private static final class HashingInputStream extends FilterInputStream {
+
+        private MessageDigest digest;
+        private MessageDigest markedDigest;
+        private long count;
+        private long markedCount;
+
+        private HashingInputStream(InputStream in, MessageDigest digest) {
+            super(in);
+            this.digest = digest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                digest.update((byte) b);
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = in.read(bytes, offset, length);
+            if (read > 0) {
+                digest.update(bytes, offset, read);
+                count += read;
+            }
+            return read;
+        }
+
+        /**
+         * reads the bytes instead of skipping them, so they are still digested
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] discard = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(discard, 0, (int) Math.min(discard.length, n - skipped));
+                if (read < 0)
+                    break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            in.mark(readLimit);
+            markedDigest = copy(digest);
+            markedCount = count;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            in.reset();
+            if (markedDigest == null)
+                throw new IOException("Stream was not marked");
+            digest = copy(markedDigest);
+            count = markedCount;
+        }
+
+        private String hash(long contentLength) {
+            if (count != contentLength)
+                return null;
+            return HexFormat.of().formatHex(digest.digest());
+        }
+
+        private static MessageDigest copy(MessageDigest digest) {
+            try {
+                return (MessageDigest) digest.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,800 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Second cache tier for objects too large for the heap cache. Bodies are stored as files on local disk,
+ * evicted least recently used once the tier exceeds its capacity, and streamed back through
+ * {@link CachedObjectInputStream}. Every entry is a data file plus a properties file, each moved into place atomically
+ * and the properties file last, so it only exists next to a complete body. The tier is rebuilt from the directory
+ * after a restart and half written files are discarded.
+ * <p>
+ * A miss streams the object to the client while writing it to disk. Concurrent misses on the same key don't download
+ * it again, they read the file as it is written and fall back to a ranged get of the rest if that load fails or stalls.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3DiskCache {
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".properties";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Pattern SINGLE_RANGE = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+    // a reader following a load that made no progress for this long reads the rest from s3 itself
+    private static final Duration FOLLOW_STALL_TIMEOUT = Duration.ofSeconds(2);
+
+    @Value("${storage.s3.cache.disk.enabled}")
+    private boolean STORAGE_S3_CACHE_DISK_ENABLED;
+
+    @Value("${storage.s3.cache.disk.directory}")
+    private Path STORAGE_S3_CACHE_DISK_DIRECTORY;
+
+    @Value("${storage.s3.cache.disk.max-size}")
+    private DataSize STORAGE_S3_CACHE_DISK_MAX_SIZE;
+
+    @Value("${storage.s3.cache.disk.min-object-size}")
+    private DataSize STORAGE_S3_CACHE_DISK_MIN_OBJECT_SIZE;
+
+    @Value("${storage.s3.cache.disk.max-object-size}")
+    private DataSize STORAGE_S3_CACHE_DISK_MAX_OBJECT_SIZE;
+
+    @Value("${storage.s3.cache.revalidate-after}")
+    private Duration STORAGE_S3_CACHE_REVALIDATE_AFTER;
+
+    private final S3Client s3Client;
+    private final MeterRegistry meterRegistry;
+
+    // access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, DiskEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // at most one load per key is writing to disk
+    private final Map<String, PendingEntry> loading = new ConcurrentHashMap<>();
+    private long totalBytes;
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!STORAGE_S3_CACHE_DISK_ENABLED)
+            return;
+        Files.createDirectories(STORAGE_S3_CACHE_DISK_DIRECTORY);
+        reload();
+        Gauge.builder("s3.cache.disk.size.bytes", this, S3DiskCache::totalBytes)
+                .description("Bytes held by the s3 disk cache tier")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        log.info("=== disk cache tier: {} entries, {} bytes in {}", entries.size(), totalBytes, STORAGE_S3_CACHE_DISK_DIRECTORY);
+    }
+
+    /**
+     * serves the object from disk when cached, otherwise loads it from s3. Whole-object reads of cacheable size are
+     * written to disk as the caller reads them, and concurrent reads of the same key share that one download
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param range optional single http byte range
+     * @param loader executes the get request against s3
+     * @return object body with its metadata
+     */
+    public ResponseInputStream<GetObjectResponse> open(String bucket, String fileName, String range,
+                                                       Function<GetObjectRequest, ResponseInputStream<GetObjectResponse>> loader) {
+        ResponseInputStream<GetObjectResponse> cached = openIfCached(bucket, fileName, range);
+        if (cached != null)
+            return cached;
+
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(fileName)
+                .range(range)
+                .build();
+        if (!STORAGE_S3_CACHE_DISK_ENABLED || range != null)
+            return loader.apply(getObjectRequest);
+
+        String hash = hash(bucket, fileName);
+        PendingEntry pending = new PendingEntry(bucket, fileName, hash);
+        PendingEntry running = loading.putIfAbsent(hash, pending);
+        if (running != null)
+            return running.follow(getObjectRequest, loader);
+        try {
+            // a load that finished between the lookup above and claiming the key has just been registered
+            cached = openIfCached(bucket, fileName, null);
+            if (cached != null) {
+                pending.fail();
+                return cached;
+            }
+            return pending.load(getObjectRequest, loader);
+        } catch (RuntimeException e) {
+            pending.fail();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the cached object body, or null when the object is not on disk or changed in s3
+     */
+    public ResponseInputStream<GetObjectResponse> openIfCached(String bucket, String fileName, String range) {
+        DiskEntry entry = validEntry(bucket, fileName);
+        if (entry == null)
+            return null;
+        long[] region = parseRange(range, entry.contentLength);
+        if (region == null)
+            return null;
+        try {
+            String contentRange = range == null ? null
+                    : "bytes " + region[0] + "-" + (region[0] + region[1] - 1) + "/" + entry.contentLength;
+            return CachedObjectInputStream.open(entry.toResponse(contentRange, region[1]), entry.dataPath, region[0], region[1]);
+        } catch (NoSuchFileException e) {
+            // evicted between lookup and open
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the whole cached object read into memory with its metadata, or null when it is not cached or changed in s3
+     */
+    public ResponseBytes<GetObjectResponse> readIfCached(String bucket, String fileName) {
+        DiskEntry entry = validEntry(bucket, fileName);
+        if (entry == null)
+            return null;
+        try {
+            return ResponseBytes.fromByteArrayUnsafe(entry.toResponse(null, entry.contentLength), Files.readAllBytes(entry.dataPath));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * removes the cached copy after the file was written, renamed or deleted
+     */
+    public void invalidate(String bucket, String fileName) {
+        if (!STORAGE_S3_CACHE_DISK_ENABLED)
+            return;
+        PendingEntry pending = loading.remove(hash(bucket, fileName));
+        if (pending != null)
+            pending.discard();
+        DiskEntry removed;
+        synchronized (this) {
+            removed = entries.remove(hash(bucket, fileName));
+            if (removed != null)
+                totalBytes -= removed.contentLength;
+        }
+        if (removed != null)
+            deleteFiles(removed);
+    }
+
+    /**
+     * removes every cached file under the prefix
+     */
+    public void invalidatePrefix(String bucket, String prefix) {
+        if (!STORAGE_S3_CACHE_DISK_ENABLED)
+            return;
+        loading.values().removeIf(pending -> {
+            boolean matches = pending.bucket.equals(bucket) && pending.fileName.startsWith(prefix);
+            if (matches)
+                pending.discard();
+            return matches;
+        });
+        List<DiskEntry> removed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<DiskEntry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                DiskEntry entry = iterator.next();
+                if (entry.bucket.equals(bucket) && entry.fileName.startsWith(prefix)) {
+                    iterator.remove();
+                    totalBytes -= entry.contentLength;
+                    removed.add(entry);
+                }
+            }
+        }
+        removed.forEach(S3DiskCache::deleteFiles);
+    }
+
+    private boolean isCacheableSize(Long contentLength) {
+        return contentLength != null
+                && contentLength >= STORAGE_S3_CACHE_DISK_MIN_OBJECT_SIZE.toBytes()
+                && contentLength <= STORAGE_S3_CACHE_DISK_MAX_OBJECT_SIZE.toBytes();
+    }
+
+    /**
+     * @return the entry when cached and still matching the object in s3, revalidating with a HEAD once stale
+     */
+    private DiskEntry validEntry(String bucket, String fileName) {
+        if (!STORAGE_S3_CACHE_DISK_ENABLED)
+            return null;
+        DiskEntry entry;
+        synchronized (this) {
+            entry = entries.get(hash(bucket, fileName));
+        }
+        if (entry == null)
+            return null;
+        if (System.nanoTime() - entry.validatedAt <= STORAGE_S3_CACHE_REVALIDATE_AFTER.toNanos())
+            return entry;
+
+        try {
+            String eTag = s3Client.headObject(HeadObjectRequest.builder().bucket(bucket).key(fileName).build()).eTag();
+            if (entry.eTag != null && entry.eTag.equals(eTag)) {
+                entry.validatedAt = System.nanoTime();
+                return entry;
+            }
+        } catch (NoSuchKeyException e) {
+            log.debug("== disk cache entry gone from s3: {}", fileName);
+        } catch (S3Exception e) {
+            if (e.statusCode() != 404)
+                throw e;
+        }
+        invalidate(bucket, fileName);
+        return null;
+    }
+
+    private void register(String hash, DiskEntry entry) {
+        List<DiskEntry> evicted = new ArrayList<>();
+        synchronized (this) {
+            DiskEntry previous = entries.put(hash, entry);
+            if (previous != null)
+                totalBytes -= previous.contentLength;
+            totalBytes += entry.contentLength;
+            Iterator<Map.Entry<String, DiskEntry>> iterator = entries.entrySet().iterator();
+            while (totalBytes > STORAGE_S3_CACHE_DISK_MAX_SIZE.toBytes() && iterator.hasNext()) {
+                DiskEntry eldest = iterator.next().getValue();
+                if (eldest == entry)
+                    continue;
+                iterator.remove();
+                totalBytes -= eldest.contentLength;
+                evicted.add(eldest);
+            }
+        }
+        // readers holding an evicted file open keep reading it, the filesystem frees it on close
+        evicted.forEach(S3DiskCache::deleteFiles);
+    }
+
+    /**
+     * rebuilds the index from the cache directory, least recently written first
+     */
+    private void reload() throws IOException {
+        List<DiskEntry> loaded = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(STORAGE_S3_CACHE_DISK_DIRECTORY)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    deleteQuietly(file);
+                } else if (name.endsWith(META_SUFFIX)) {
+                    Path dataPath = file.resolveSibling(name.substring(0, name.length() - META_SUFFIX.length()) + DATA_SUFFIX);
+                    DiskEntry entry = DiskEntry.load(file, dataPath);
+                    if (entry != null)
+                        loaded.add(entry);
+                    else
+                        deleteQuietly(file);
+                }
+            }
+        }
+        Set<Path> dataPaths = new HashSet<>();
+        loaded.forEach(entry -> dataPaths.add(entry.dataPath));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(STORAGE_S3_CACHE_DISK_DIRECTORY, "*" + DATA_SUFFIX)) {
+            for (Path file : files) {
+                if (!dataPaths.contains(file))
+                    deleteQuietly(file);
+            }
+        }
+        loaded.sort(Comparator.comparingLong(DiskEntry::lastModified));
+        loaded.forEach(entry -> register(hash(entry.bucket, entry.fileName), entry));
+    }
+
+    private synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return {start, length} of the requested single range, the whole object for no range, null if unsupported
+     */
+    private static long[] parseRange(String range, long contentLength) {
+        if (range == null)
+            return new long[]{0, contentLength};
+        Matcher matcher = SINGLE_RANGE.matcher(range.trim());
+        if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty()))
+            return null;
+        long start;
+        long end;
+        if (matcher.group(1).isEmpty()) {
+            start = Math.max(0, contentLength - Long.parseLong(matcher.group(2)));
+            end = contentLength - 1;
+        } else {
+            start = Long.parseLong(matcher.group(1));
+            end = matcher.group(2).isEmpty() ? contentLength - 1 : Math.min(Long.parseLong(matcher.group(2)), contentLength - 1);
+        }
+        // let s3 answer unsatisfiable ranges
+        if (start >= contentLength || end < start)
+            return null;
+        return new long[]{start, end - start + 1};
+    }
+
+    private static String hash(String bucket, String fileName) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest((bucket + "/" + fileName).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteFiles(DiskEntry entry) {
+        deleteQuietly(entry.dataPath);
+        String dataName = entry.dataPath.getFileName().toString();
+        deleteQuietly(entry.dataPath.resolveSibling(dataName.substring(0, dataName.length() - DATA_SUFFIX.length()) + META_SUFFIX));
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete disk cache file {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * a load of one key being written to disk. The first reader drives the download, later readers follow the file
+     */
+    private class PendingEntry {
+
+        private final String bucket;
+        private final String fileName;
+        private final String hash;
+        // guarded by this
+        private GetObjectResponse response;
+        private Path path;
+        private long written;
+        private boolean complete;
+        private boolean failed;
+        private boolean discarded;
+
+        private PendingEntry(String bucket, String fileName, String hash) {
+            this.bucket = bucket;
+            this.fileName = fileName;
+            this.hash = hash;
+        }
+
+        private ResponseInputStream<GetObjectResponse> load(GetObjectRequest request,
+                                                            Function<GetObjectRequest, ResponseInputStream<GetObjectResponse>> loader) {
+            ResponseInputStream<GetObjectResponse> objectStream = loader.apply(request);
+            GetObjectResponse object = objectStream.response();
+            if (!isCacheableSize(object.contentLength())) {
+                fail();
+                return objectStream;
+            }
+            Path dataTemp = STORAGE_S3_CACHE_DISK_DIRECTORY.resolve(hash + DATA_SUFFIX + "." + UUID.randomUUID() + TEMP_SUFFIX);
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(dataTemp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                log.error("Failed to write {} to the disk cache: {}", fileName, e.getMessage());
+                fail();
+                return objectStream;
+            }
+            synchronized (this) {
+                this.response = object;
+                this.path = dataTemp;
+                notifyAll();
+            }
+            FillingInputStream filling = new FillingInputStream(this, objectStream, channel, object.contentLength());
+            return new ResponseInputStream<>(object, AbortableInputStream.create(filling, filling::abort));
+        }
+
+        private ResponseInputStream<GetObjectResponse> follow(GetObjectRequest request,
+                                                              Function<GetObjectRequest, ResponseInputStream<GetObjectResponse>> loader) {
+            GetObjectResponse object;
+            FileChannel channel = null;
+            synchronized (this) {
+                try {
+                    while (response == null && !failed)
+                        wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                object = response;
+                if (object != null && path != null) {
+                    try {
+                        channel = FileChannel.open(path, StandardOpenOption.READ);
+                    } catch (IOException e) {
+                        // the load failed or was evicted right after finishing, the reader falls back to s3
+                    }
+                }
+            }
+            if (object == null)
+                return loader.apply(request);
+            log.debug("== disk cache following the load of {}", fileName);
+            return new ResponseInputStream<>(object, AbortableInputStream.create(
+                    new FollowingInputStream(this, channel, request, loader, object.eTag(), object.contentLength())));
+        }
+
+        private synchronized void advance(long written) {
+            this.written = written;
+            notifyAll();
+        }
+
+        /**
+         * @return bytes of the file readable past position, waiting for the load to write more, 0 when it failed or stalled
+         */
+        private synchronized long awaitBeyond(long position) throws InterruptedException {
+            long deadline = System.nanoTime() + FOLLOW_STALL_TIMEOUT.toNanos();
+            while (written <= position && !failed && !complete) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                wait(Math.max(1, remaining / 1_000_000));
+            }
+            return Math.max(0, written - position);
+        }
+
+        private synchronized void discard() {
+            discarded = true;
+        }
+
+        private void fail() {
+            Path temp;
+            synchronized (this) {
+                if (complete || failed)
+                    return;
+                failed = true;
+                temp = path;
+                notifyAll();
+            }
+            loading.remove(hash, this);
+            // readers that have the file open keep reading what was written
+            if (temp != null)
+                deleteQuietly(temp);
+        }
+
+        /**
+         * moves the fully written body into place, then its metadata, and registers the entry
+         */
+        private void complete(FileChannel channel) {
+            GetObjectResponse object = response;
+            DiskEntry entry = new DiskEntry(bucket, fileName, object.eTag(), object.contentType(), object.contentEncoding(),
+                    object.contentLength(), STORAGE_S3_CACHE_DISK_DIRECTORY.resolve(hash + DATA_SUFFIX), System.nanoTime());
+            Path metaPath = STORAGE_S3_CACHE_DISK_DIRECTORY.resolve(hash + META_SUFFIX);
+            Path metaTemp = STORAGE_S3_CACHE_DISK_DIRECTORY.resolve(hash + META_SUFFIX + "." + UUID.randomUUID() + TEMP_SUFFIX);
+            synchronized (this) {
+                try {
+                    channel.force(true);
+                    channel.close();
+                    if (discarded) {
+                        // invalidated while loading, the readers get this version but the cache doesn't keep it
+                        deleteQuietly(path);
+                    } else {
+                        // without metadata a data file is discarded on restart, so a crash can't pair old metadata with new data
+                        Files.deleteIfExists(metaPath);
+                        Files.move(path, entry.dataPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        path = entry.dataPath;
+                        try (OutputStream out = Files.newOutputStream(metaTemp)) {
+                            entry.toProperties().store(out, null);
+                        }
+                        Files.move(metaTemp, metaPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        register(hash, entry);
+                        log.debug("== disk cache stored: {} ({} bytes)", fileName, entry.contentLength);
+                    }
+                    complete = true;
+                    notifyAll();
+                } catch (IOException e) {
+                    log.error("Failed to write {} to the disk cache: {}", fileName, e.getMessage());
+                    deleteQuietly(metaTemp);
+                    deleteQuietly(entry.dataPath);
+                }
+            }
+            if (complete)
+                loading.remove(hash, this);
+            else
+                fail();
+        }
+    }
+
+    /**
+     * the first reader's stream, copies every chunk read from s3 into the cache file
+     */
+    private static class FillingInputStream extends InputStream {
+
+        private final PendingEntry pending;
+        private final ResponseInputStream<GetObjectResponse> source;
+        private final long contentLength;
+        private FileChannel channel;
+        private long written;
+        private boolean finished;
+
+        private FillingInputStream(PendingEntry pending, ResponseInputStream<GetObjectResponse> source,
+                                   FileChannel channel, long contentLength) {
+            this.pending = pending;
+            this.source = source;
+            this.channel = channel;
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = source.read(bytes, offset, length);
+            if (read > 0)
+                write(bytes, offset, read);
+            else if (read < 0)
+                finish();
+            return read;
+        }
+
+        private void write(byte[] bytes, int offset, int length) {
+            if (channel == null)
+                return;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                written += length;
+                pending.advance(written);
+            } catch (IOException e) {
+                // the caller keeps reading from s3, only the cached copy is lost
+                log.error("Failed to write {} to the disk cache: {}", pending.fileName, e.getMessage());
+                stopWriting();
+            }
+        }
+
+        private void finish() {
+            if (finished)
+                return;
+            finished = true;
+            if (channel == null)
+                return;
+            if (written == contentLength) {
+                pending.complete(channel);
+                channel = null;
+            } else {
+                log.error("Failed to write {} to the disk cache: expected {} bytes but read {}", pending.fileName, contentLength, written);
+                stopWriting();
+            }
+        }
+
+        private void stopWriting() {
+            closeQuietly(channel);
+            channel = null;
+            pending.fail();
+        }
+
+        private void abort() {
+            source.abort();
+            finished = true;
+            stopWriting();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!finished && written == contentLength) {
+                    finish();
+                } else if (!finished) {
+                    // closed part way through, followers read the rest from s3
+                    abort();
+                }
+            } finally {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * a concurrent reader of a key being loaded, reads the cache file as it grows
+     */
+    private static class FollowingInputStream extends InputStream {
+
+        private final PendingEntry pending;
+        private final GetObjectRequest request;
+        private final Function<GetObjectRequest, ResponseInputStream<GetObjectResponse>> loader;
+        private final String eTag;
+        private final long contentLength;
+        private FileChannel channel;
+        private ResponseInputStream<GetObjectResponse> fallback;
+        private long position;
+
+        private FollowingInputStream(PendingEntry pending, FileChannel channel, GetObjectRequest request,
+                                     Function<GetObjectRequest, ResponseInputStream<GetObjectResponse>> loader,
+                                     String eTag, long contentLength) {
+            this.pending = pending;
+            this.channel = channel;
+            this.request = request;
+            this.loader = loader;
+            this.eTag = eTag;
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (fallback != null)
+                return fallback.read(bytes, offset, length);
+            if (position >= contentLength)
+                return -1;
+            if (length == 0)
+                return 0;
+            if (channel != null) {
+                long available;
+                try {
+                    available = pending.awaitBeyond(position);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the disk cache", e);
+                }
+                if (available > 0) {
+                    int read = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, available)), position);
+                    if (read > 0) {
+                        position += read;
+                        return read;
+                    }
+                }
+            }
+            openFallback();
+            return fallback.read(bytes, offset, length);
+        }
+
+        /**
+         * the load failed or stalled, the rest of this version of the object comes from s3
+         */
+        private void openFallback() throws IOException {
+            closeQuietly(channel);
+            channel = null;
+            log.debug("== disk cache reading {} from s3 after {} bytes", pending.fileName, position);
+            GetObjectRequest.Builder rest = request.toBuilder().ifMatch(eTag);
+            if (position > 0)
+                rest.range("bytes=" + position + "-");
+            try {
+                fallback = loader.apply(rest.build());
+            } catch (S3Exception e) {
+                throw new IOException("Failed to read the rest of " + pending.fileName + " from s3", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeQuietly(channel);
+            if (fallback != null)
+                fallback.close();
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("== failed to close disk cache file: {}", e.getMessage());
+        }
+    }
+
+    private static class DiskEntry {
+
+        private final String bucket;
+        private final String fileName;
+        private final String eTag;
+        private final String contentType;
+        private final String contentEncoding;
+        private final long contentLength;
+        private final Path dataPath;
+        private volatile long validatedAt;
+
+        private DiskEntry(String bucket, String fileName, String eTag, String contentType, String contentEncoding,
+                          long contentLength, Path dataPath, long validatedAt) {
+            this.bucket = bucket;
+            this.fileName = fileName;
+            this.eTag = eTag;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.contentLength = contentLength;
+            this.dataPath = dataPath;
+            this.validatedAt = validatedAt;
+        }
+
+        private GetObjectResponse toResponse(String contentRange, long length) {
+            return GetObjectResponse.builder()
+                    .eTag(eTag)
+                    .contentType(contentType)
+                    .contentEncoding(contentEncoding)
+                    .contentLength(length)
+                    .contentRange(contentRange)
+                    .build();
+        }
+
+        private Properties toProperties() {
+            Properties properties = new Properties();
+            properties.setProperty("bucket", bucket);
+            properties.setProperty("fileName", fileName);
+            properties.setProperty("contentLength", Long.toString(contentLength));
+            if (eTag != null)
+                properties.setProperty("eTag", eTag);
+            if (contentType != null)
+                properties.setProperty("contentType", contentType);
+            if (contentEncoding != null)
+                properties.setProperty("contentEncoding", contentEncoding);
+            return properties;
+        }
+
+        private long lastModified() {
+            try {
+                return Files.getLastModifiedTime(dataPath).toMillis();
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * @return the entry, or null when the metadata is unreadable or the data file is missing or truncated
+         */
+        private static DiskEntry load(Path metaPath, Path dataPath) {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(metaPath)) {
+                properties.load(in);
+                long contentLength = Long.parseLong(properties.getProperty("contentLength"));
+                if (!Files.exists(dataPath) || Files.size(dataPath) != contentLength)
+                    return null;
+                // validatedAt far in the past forces a revalidation before the first hit after a restart
+                return new DiskEntry(properties.getProperty("bucket"), properties.getProperty("fileName"),
+                        properties.getProperty("eTag"), properties.getProperty("contentType"),
+                        properties.getProperty("contentEncoding"), contentLength, dataPath, System.nanoTime() - Duration.ofDays(365).toNanos());
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+}
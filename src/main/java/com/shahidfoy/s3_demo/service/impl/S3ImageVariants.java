@@ -0,0 +1,526 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.model.response.S3BatchResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.MetadataDirective;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectAclRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Error;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.stream.Collectors;
+
+/**
+ * Generates resized copies of uploaded images and stores them under variants/&lt;name&gt;/&lt;file name&gt;.
+ * Each image is decoded once on the image executor, subsampled while decoding when it is much larger than the
+ * biggest variant, and every variant is resized and re-encoded in the source format as its own task.
+ * The executor has a bounded queue and runs overflow on the submitting thread, so a burst of uploads slows
+ * the uploads down instead of piling decoded images up on the heap. Each variant is uploaded by the task that
+ * encoded it, so encoded variants are bounded by the same queue.
+ * <p>
+ * Variants follow their original: they are stored with its acl, an acl change is applied to them too, renaming
+ * a file copies its variants to the new name and deleting it deletes them, by name or by prefix.
+ * <p>
+ * Stream uploads are captured while the upload reads them, into reused fixed size buffers when they fit,
+ * so the image is never read twice.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3ImageVariants {
+
+    static final String VARIANT_PREFIX = "variants/";
+    private static final String JPEG = "image/jpeg";
+    // s3 limit for a single DeleteObjects request
+    private static final int MAX_KEYS_PER_REQUEST = 1000;
+
+    @Value("${storage.s3.images.enabled}")
+    private boolean STORAGE_S3_IMAGES_ENABLED;
+
+    @Value("${storage.s3.images.variants}")
+    private List<String> STORAGE_S3_IMAGES_VARIANTS;
+
+    @Value("${storage.s3.images.jpeg-quality}")
+    private float STORAGE_S3_IMAGES_JPEG_QUALITY;
+
+    @Value("${storage.s3.images.max-source-size}")
+    private DataSize STORAGE_S3_IMAGES_MAX_SOURCE_SIZE;
+
+    @Value("${storage.s3.images.max-pixels}")
+    private long STORAGE_S3_IMAGES_MAX_PIXELS;
+
+    @Value("${storage.s3.images.buffer-size}")
+    private DataSize STORAGE_S3_IMAGES_BUFFER_SIZE;
+
+    private final S3Client s3Client;
+    private final ExecutorService s3ImageExecutor;
+    private final S3ObjectCache objectCache;
+    private final S3MetadataIndex metadataIndex;
+    private final S3ObjectCopier objectCopier;
+    private final S3BatchDeleter batchDeleter;
+    private final MeterRegistry meterRegistry;
+
+    // variant name -> longest edge in pixels
+    private final Map<String, Integer> variants = new LinkedHashMap<>();
+    private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    // the encode buffer of each image thread grows to the largest variant and is reused from then on
+    private final ThreadLocal<ByteArrayOutputStream> encodeBuffers = ThreadLocal.withInitial(ByteArrayOutputStream::new);
+    private int largestEdge;
+    private int maxPooledBuffers;
+    private Counter generated;
+    private Counter failed;
+
+    @PostConstruct
+    void init() {
+        for (String variant : STORAGE_S3_IMAGES_VARIANTS) {
+            String[] nameAndEdge = variant.trim().split(":");
+            if (nameAndEdge.length != 2 || nameAndEdge[0].isBlank())
+                throw new IllegalStateException("storage.s3.images.variants entries must look like name:edge, got " + variant);
+            int edge = Integer.parseInt(nameAndEdge[1].trim());
+            variants.put(nameAndEdge[0].trim(), edge);
+            largestEdge = Math.max(largestEdge, edge);
+        }
+        // image streams are read from memory, the default file cache would only add temp file io
+        ImageIO.setUseCache(false);
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) s3ImageExecutor;
+        this.maxPooledBuffers = pool.getMaximumPoolSize() + pool.getQueue().remainingCapacity();
+        this.generated = Counter.builder("s3.image.variants").tag("result", "generated").register(meterRegistry);
+        this.failed = Counter.builder("s3.image.variants").tag("result", "failed").register(meterRegistry);
+    }
+
+    /**
+     * @param fileName original file name
+     * @param variant configured variant name
+     * @return file name the variant is stored under
+     */
+    public String variantKey(String fileName, String variant) {
+        if (!STORAGE_S3_IMAGES_ENABLED)
+            throw new IllegalArgumentException("Image variants are disabled");
+        if (!variants.containsKey(variant))
+            throw new IllegalArgumentException("Unknown image variant: " + variant);
+        return VARIANT_PREFIX + variant + "/" + fileName;
+    }
+
+    /**
+     * wraps the upload stream so the bytes the upload reads are kept for {@link #generate}
+     * @return a capturing stream for images variants are generated for, otherwise the stream itself
+     */
+    public InputStream capture(String fileName, String contentType, InputStream inputStream, long contentLength) {
+        if (!accepts(fileName, contentType, contentLength))
+            return inputStream;
+        return new CapturingInputStream(inputStream, takeBuffer((int) contentLength), (int) contentLength);
+    }
+
+    /**
+     * generates the variants of an uploaded image in the background
+     * @param uploaded stream returned by {@link #capture} after the upload has read it
+     * @param acl acl the original was stored with
+     */
+    public void generate(String bucket, String fileName, String contentType, InputStream uploaded,
+                         ObjectCannedACL acl) {
+        if (!(uploaded instanceof CapturingInputStream captured))
+            return;
+        if (captured.position != captured.length) {
+            // the upload didn't read the stream to the end, there is no complete image to decode
+            releaseBuffer(captured.buffer);
+            return;
+        }
+        submit(bucket, fileName, contentType, captured.buffer, captured.length, true, acl);
+    }
+
+    /**
+     * generates the variants of an image that was stored without reading the stream, e.g. by a server-side copy
+     * @param source image bytes, read to the end on the calling thread
+     */
+    public void generate(String bucket, String fileName, String contentType, InputStream source, long contentLength,
+                         ObjectCannedACL acl) {
+        InputStream captured = capture(fileName, contentType, source, contentLength);
+        if (captured == source)
+            return;
+        try {
+            captured.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        generate(bucket, fileName, contentType, captured, acl);
+    }
+
+    /**
+     * generates the variants of an uploaded image in the background
+     */
+    public void generate(String bucket, String fileName, String contentType, byte[] bytes, ObjectCannedACL acl) {
+        if (accepts(fileName, contentType, bytes.length))
+            submit(bucket, fileName, contentType, bytes, bytes.length, false, acl);
+    }
+
+    /**
+     * copies the variants of a file that is being renamed, call it before the original is deleted.
+     * Variants that were never generated, e.g. of files that aren't images, are skipped
+     * @param acl acl the renamed original was copied with, null when its grants need a full policy, the variant
+     *            copies are private then rather than guessing at the grants
+     */
+    public void copied(String bucket, String oldFileName, String newFileName, ObjectCannedACL acl) {
+        if (!STORAGE_S3_IMAGES_ENABLED || oldFileName.startsWith(VARIANT_PREFIX))
+            return;
+        for (String variant : variants.keySet()) {
+            String sourceKey = variantKey(oldFileName, variant);
+            String destinationKey = variantKey(newFileName, variant);
+            if (metadataIndex.isKnownMissing(bucket, sourceKey))
+                continue;
+            try {
+                s3Client.copyObject(CopyObjectRequest.builder()
+                        .sourceBucket(bucket)
+                        .sourceKey(sourceKey)
+                        .destinationBucket(bucket)
+                        .destinationKey(destinationKey)
+                        .metadataDirective(MetadataDirective.COPY)
+                        .acl(acl != null ? acl : ObjectCannedACL.PRIVATE)
+                        .build());
+            } catch (S3Exception e) {
+                if (e.statusCode() != 404)
+                    throw e;
+                continue;
+            }
+            objectCache.invalidate(bucket, destinationKey);
+            metadataIndex.copied(bucket, sourceKey, destinationKey);
+            log.debug("== image variant {} -> {}", sourceKey, destinationKey);
+        }
+    }
+
+    /**
+     * moves the variants of every file under the old prefix to the new prefix, call it after the originals were
+     * renamed. A variant that fails to move is logged, the originals' rename already succeeded
+     */
+    public void renamedPrefix(String bucket, String oldPrefix, String newPrefix) {
+        if (!STORAGE_S3_IMAGES_ENABLED || oldPrefix.startsWith(VARIANT_PREFIX))
+            return;
+        for (String variant : variants.keySet()) {
+            String oldVariantPrefix = variantKey(oldPrefix, variant);
+            String newVariantPrefix = variantKey(newPrefix, variant);
+            S3BatchResponse response = objectCopier.renameByPrefix(bucket, oldVariantPrefix, newVariantPrefix);
+            response.getFailures().forEach((key, error) ->
+                    log.warn("Failed to rename image variant {}: {}", key, error));
+            objectCache.invalidatePrefix(bucket, oldVariantPrefix);
+            objectCache.invalidatePrefix(bucket, newVariantPrefix);
+            metadataIndex.prefixChanged(bucket, oldVariantPrefix);
+            metadataIndex.prefixChanged(bucket, newVariantPrefix);
+            log.debug("== image variants {} -> {}: {} renamed", oldVariantPrefix, newVariantPrefix,
+                    response.getSucceeded());
+        }
+    }
+
+    /**
+     * deletes the variants of every file under the prefix
+     */
+    public void removedPrefix(String bucket, String prefix) {
+        if (!STORAGE_S3_IMAGES_ENABLED || prefix.startsWith(VARIANT_PREFIX))
+            return;
+        for (String variant : variants.keySet()) {
+            String variantPrefix = variantKey(prefix, variant);
+            S3BatchResponse response = batchDeleter.deleteByPrefix(bucket, variantPrefix);
+            response.getFailures().forEach((key, error) ->
+                    log.warn("Failed to delete image variant {}: {}", key, error));
+            objectCache.invalidatePrefix(bucket, variantPrefix);
+            metadataIndex.prefixChanged(bucket, variantPrefix);
+            log.debug("== image variants under {}: {} deleted", variantPrefix, response.getSucceeded());
+        }
+    }
+
+    /**
+     * applies the acl of a file to its variants, variants that were never generated are skipped
+     */
+    public void aclChanged(String bucket, String fileName, ObjectCannedACL acl) {
+        if (!STORAGE_S3_IMAGES_ENABLED || fileName.startsWith(VARIANT_PREFIX))
+            return;
+        for (String variant : variants.keySet()) {
+            String key = variantKey(fileName, variant);
+            if (metadataIndex.isKnownMissing(bucket, key))
+                continue;
+            try {
+                s3Client.putObjectAcl(PutObjectAclRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .acl(acl)
+                        .build());
+            } catch (S3Exception e) {
+                if (e.statusCode() != 404)
+                    throw e;
+                continue;
+            }
+            metadataIndex.aclChanged(bucket, key, acl);
+            log.debug("== image variant {} acl: {}", key, acl);
+        }
+    }
+
+    /**
+     * deletes the variants of deleted files, deleting variants that were never generated is a no-op in s3
+     */
+    public void removed(String bucket, List<String> fileNames) {
+        if (!STORAGE_S3_IMAGES_ENABLED)
+            return;
+        List<String> keys = fileNames.stream()
+                .filter(fileName -> !fileName.startsWith(VARIANT_PREFIX))
+                .flatMap(fileName -> variants.keySet().stream().map(variant -> variantKey(fileName, variant)))
+                .filter(key -> !metadataIndex.isKnownMissing(bucket, key))
+                .toList();
+        for (int from = 0; from < keys.size(); from += MAX_KEYS_PER_REQUEST) {
+            List<String> chunk = keys.subList(from, Math.min(from + MAX_KEYS_PER_REQUEST, keys.size()));
+            List<S3Error> errors = s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(bucket)
+                    .delete(Delete.builder()
+                            .objects(chunk.stream().map(key -> ObjectIdentifier.builder().key(key).build()).toList())
+                            .quiet(true)
+                            .build())
+                    .build()).errors();
+            errors.forEach(error -> log.warn("Failed to delete image variant {}: {} {}", error.key(), error.code(), error.message()));
+            Set<String> failedKeys = errors.stream().map(S3Error::key).collect(Collectors.toSet());
+            chunk.forEach(key -> {
+                objectCache.invalidate(bucket, key);
+                if (!failedKeys.contains(key))
+                    metadataIndex.removed(bucket, key);
+            });
+        }
+    }
+
+    private boolean accepts(String fileName, String contentType, long contentLength) {
+        return STORAGE_S3_IMAGES_ENABLED
+                && contentType != null
+                && !fileName.startsWith(VARIANT_PREFIX)
+                && contentLength > 0
+                && contentLength <= STORAGE_S3_IMAGES_MAX_SOURCE_SIZE.toBytes()
+                && ImageIO.getImageWritersByMIMEType(contentType).hasNext();
+    }
+
+    private void submit(String bucket, String fileName, String contentType, byte[] source, int length, boolean pooled,
+                        ObjectCannedACL acl) {
+        s3ImageExecutor.execute(() -> {
+            BufferedImage image;
+            try {
+                image = decode(source, length);
+            } catch (Exception e) {
+                failed.increment(variants.size());
+                log.error("Failed to decode image {} for variants: {}", fileName, e.getMessage());
+                return;
+            } finally {
+                if (pooled)
+                    releaseBuffer(source);
+            }
+            log.debug("== image variants for {}: decoded {}x{}", fileName, image.getWidth(), image.getHeight());
+            variants.forEach((variant, edge) -> s3ImageExecutor.execute(() -> {
+                byte[] encoded;
+                try {
+                    encoded = encode(resize(image, edge, contentType), contentType);
+                } catch (Exception e) {
+                    failed.increment();
+                    log.error("Failed to generate {} variant of {}: {}", variant, fileName, e.getMessage());
+                    return;
+                }
+                upload(bucket, variantKey(fileName, variant), contentType, encoded, acl);
+            }));
+        });
+    }
+
+    private BufferedImage decode(byte[] source, int length) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(source, 0, length))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext())
+                throw new IOException("No image reader for the uploaded bytes");
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > STORAGE_S3_IMAGES_MAX_PIXELS)
+                    throw new IOException("Image of " + width + "x" + height + " exceeds storage.s3.images.max-pixels");
+                // reading every n-th pixel keeps at least twice the largest variant, enough for a smooth downscale
+                int subsampling = Math.max(1, Math.max(width, height) / (2 * largestEdge));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * scales the longest edge down to the given size in halving steps, images already smaller are only re-encoded
+     */
+    private static BufferedImage resize(BufferedImage source, int edge, String contentType) {
+        int type = JPEG.equals(contentType) || !source.getColorModel().hasAlpha()
+                ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+        double scale = Math.min(1.0, (double) edge / Math.max(source.getWidth(), source.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * scale));
+
+        BufferedImage current = source;
+        do {
+            // a single bilinear step skips pixels when shrinking by more than half, so shrink at most by half per step
+            int width = Math.max(targetWidth, current.getWidth() / 2);
+            int height = Math.max(targetHeight, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(width, height, type);
+            Graphics2D graphics = next.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (current.getWidth() != targetWidth || current.getHeight() != targetHeight);
+        return current;
+    }
+
+    private byte[] encode(BufferedImage image, String contentType) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByMIMEType(contentType).next();
+        ByteArrayOutputStream output = encodeBuffers.get();
+        output.reset();
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(imageOutput);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (JPEG.equals(contentType)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(STORAGE_S3_IMAGES_JPEG_QUALITY);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+
+    private void upload(String bucket, String key, String contentType, byte[] encoded, ObjectCannedACL acl) {
+        // on the image thread, an executor without a bound would let encoded variants pile up behind slow uploads
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .contentType(contentType)
+                    .contentLength((long) encoded.length)
+                    .acl(acl)
+                    .build(), RequestBody.fromBytes(encoded));
+        } catch (RuntimeException e) {
+            failed.increment();
+            log.error("Failed to upload image variant {}: {}", key, e.getMessage());
+            return;
+        }
+        objectCache.invalidate(bucket, key);
+        metadataIndex.changed(bucket, key, acl);
+        generated.increment();
+    }
+
+    private byte[] takeBuffer(int size) {
+        int bufferSize = (int) STORAGE_S3_IMAGES_BUFFER_SIZE.toBytes();
+        if (size > bufferSize)
+            return new byte[size];
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        // only the fixed size buffers are pooled, one per image that can be decoding or queued
+        if (buffer.length == STORAGE_S3_IMAGES_BUFFER_SIZE.toBytes() && buffers.size() < maxPooledBuffers)
+            buffers.offer(buffer);
+    }
+
+    /**
+     * passes reads through and copies every byte read into the buffer. extends InputStream rather than
+     * FilterInputStream so skip, readNBytes and transferTo all go through read and are captured too.
+     * mark and reset move the copy position back, so an sdk retry that rewinds the stream doesn't corrupt the image
+     */
+    private static final class CapturingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final byte[] buffer;
+        private final int length;
+        private int position;
+        private int markPosition;
+
+        private CapturingInputStream(InputStream in, byte[] buffer, int length) {
+            this.in = in;
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0 && position < length)
+                buffer[position++] = (byte) b;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                int copied = Math.min(read, length - position);
+                System.arraycopy(b, off, buffer, position, copied);
+                position += copied;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return in.markSupported();
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            in.mark(readlimit);
+            markPosition = position;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            in.reset();
+            position = markPosition;
+        }
+    }
+}
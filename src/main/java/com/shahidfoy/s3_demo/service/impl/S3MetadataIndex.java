@@ -0,0 +1,451 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.model.response.S3FileMetadataResponse;
+import io.github.resilience4j.ratelimiter.RateLimiter;
+import io.github.resilience4j.ratelimiter.RateLimiterConfig;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory index of the configured bucket's object metadata: key, size, etag, content type, last modified and acl.
+ * A background listing crawl rebuilds it, and this service's own writes keep it current in between: each write
+ * marks the key pending and refreshes it with a HeadObject. Listings carry no content type or acl, so after a
+ * crawl those are filled in at a bounded rate and carried over by later crawls while the etag is unchanged.
+ * <p>
+ * With storage.s3.index.negative-lookups, negative lookups are answered without s3 once the first crawl is done.
+ * A key that is not in the Bloom filter or the map, is not pending and is not under a prefix being relisted is
+ * reported missing. Objects written by other tools are then missing until the next crawl, except presigned
+ * uploads, which are registered as pending while their url is valid. It is off by default, so a key the index
+ * doesn't have is looked up in s3.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3MetadataIndex {
+
+    private static final String PUBLIC_READ = ObjectCannedACL.PUBLIC_READ.toString();
+    private static final String PRIVATE = ObjectCannedACL.PRIVATE.toString();
+    // writes refresh within this window, after that the key falls back to the index like any other
+    private static final Duration REFRESH_PENDING = Duration.ofMinutes(1);
+    private static final int MIN_BLOOM_CAPACITY = 100_000;
+
+    @Value("${storage.s3.bucket-name}")
+    private String STORAGE_S3_BUCKET;
+
+    @Value("${storage.s3.index.enabled}")
+    private boolean STORAGE_S3_INDEX_ENABLED;
+
+    @Value("${storage.s3.index.negative-lookups}")
+    private boolean STORAGE_S3_INDEX_NEGATIVE_LOOKUPS;
+
+    @Value("${storage.s3.index.bloom-false-positive-rate}")
+    private double STORAGE_S3_INDEX_BLOOM_FALSE_POSITIVE_RATE;
+
+    @Value("${storage.s3.index.enrich-rate}")
+    private int STORAGE_S3_INDEX_ENRICH_RATE;
+
+    private final S3Client s3Client;
+    private final ExecutorService s3BatchExecutor;
+    private final MeterRegistry meterRegistry;
+
+    private volatile ConcurrentSkipListMap<String, IndexedObject> index = new ConcurrentSkipListMap<>();
+    private volatile BloomFilter bloom;
+    private volatile boolean complete;
+    private volatile boolean running = true;
+    // key -> nanoTime until which a missing key may still appear (write in progress or presigned upload),
+    // entries are dropped by a successful refresh or by the first crawl started after they expire
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+    private final Set<String> relistingPrefixes = ConcurrentHashMap.newKeySet();
+    // keys changed while a crawl is running, replayed onto the crawl's result before it replaces the index
+    private volatile Set<String> changedDuringCrawl;
+    private RateLimiter enrichLimiter;
+
+    @PostConstruct
+    void init() {
+        this.bloom = new BloomFilter(MIN_BLOOM_CAPACITY, STORAGE_S3_INDEX_BLOOM_FALSE_POSITIVE_RATE);
+        this.enrichLimiter = RateLimiter.of("s3-index-enrich", RateLimiterConfig.custom()
+                .limitForPeriod(STORAGE_S3_INDEX_ENRICH_RATE)
+                .limitRefreshPeriod(Duration.ofSeconds(1))
+                .timeoutDuration(Duration.ofSeconds(1))
+                .build());
+        Gauge.builder("s3.index.objects", this, indexer -> indexer.index.size())
+                .description("Objects in the local metadata index")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    void stop() {
+        running = false;
+    }
+
+    /**
+     * @return true when the index can tell without s3 that the file does not exist
+     */
+    public boolean isKnownMissing(String bucket, String fileName) {
+        if (!covers(bucket) || !STORAGE_S3_INDEX_NEGATIVE_LOOKUPS)
+            return false;
+        if (bloom.mightContain(fileName) && index.containsKey(fileName))
+            return false;
+        if (pending.containsKey(fileName))
+            return false;
+        return relistingPrefixes.stream().noneMatch(fileName::startsWith);
+    }
+
+    /**
+     * @return the indexed metadata, looked up with a head request when the index can't answer, null when missing
+     */
+    public S3FileMetadataResponse get(String bucket, String fileName) {
+        if (covers(bucket)) {
+            IndexedObject object = index.get(fileName);
+            if (object != null)
+                return (object.contentType() == null ? enrich(object) : object).toResponse();
+            if (isKnownMissing(bucket, fileName))
+                return null;
+        }
+        try {
+            HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder().bucket(bucket).key(fileName).build());
+            IndexedObject object = IndexedObject.of(fileName, head, null);
+            if (covers(bucket))
+                put(object);
+            return object.toResponse();
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return up to limit files under the prefix in key order, from the index or a single listing page before the first crawl
+     */
+    public List<S3FileMetadataResponse> list(String bucket, String prefix, int limit) {
+        String from = prefix == null ? "" : prefix;
+        if (covers(bucket)) {
+            NavigableMap<String, IndexedObject> tail = index.tailMap(from, true);
+            return tail.values().stream()
+                    .takeWhile(object -> object.key().startsWith(from))
+                    .limit(limit)
+                    .map(IndexedObject::toResponse)
+                    .toList();
+        }
+        ListObjectsV2Response page = s3Client.listObjectsV2(ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(prefix)
+                .maxKeys(Math.min(limit, S3ObjectLister.MAX_KEYS_PER_PAGE))
+                .build());
+        return page.contents().stream().map(object -> IndexedObject.of(object, null, null).toResponse()).toList();
+    }
+
+    /**
+     * the file was written, its metadata is refreshed in the background
+     * @param acl acl the write applied, null to keep the indexed acl
+     */
+    public void changed(String bucket, String fileName, ObjectCannedACL acl) {
+        if (!STORAGE_S3_INDEX_ENABLED || !STORAGE_S3_BUCKET.equals(bucket))
+            return;
+        markChanged(fileName, REFRESH_PENDING);
+        String knownAcl = acl != null ? acl.toString() : aclOf(fileName);
+        CompletableFuture.runAsync(() -> refresh(fileName, knownAcl), s3BatchExecutor);
+    }
+
+    /**
+     * the file was server-side copied, the copy keeps the source acl
+     */
+    public void copied(String bucket, String sourceFileName, String destinationFileName) {
+        if (!STORAGE_S3_INDEX_ENABLED || !STORAGE_S3_BUCKET.equals(bucket))
+            return;
+        String acl = aclOf(sourceFileName);
+        markChanged(destinationFileName, REFRESH_PENDING);
+        CompletableFuture.runAsync(() -> refresh(destinationFileName, acl), s3BatchExecutor);
+    }
+
+    /**
+     * the file may be uploaded directly through a presigned url until the url expires
+     */
+    public void expectExternalWrite(String bucket, String fileName, Duration validFor) {
+        if (!STORAGE_S3_INDEX_ENABLED || !STORAGE_S3_BUCKET.equals(bucket))
+            return;
+        // an upload finishing just before expiry must still be picked up by a crawl, so keep the key until one has run
+        markChanged(fileName, validFor);
+    }
+
+    public void removed(String bucket, String fileName) {
+        if (!STORAGE_S3_INDEX_ENABLED || !STORAGE_S3_BUCKET.equals(bucket))
+            return;
+        noteChange(fileName);
+        index.remove(fileName);
+    }
+
+    public void aclChanged(String bucket, String fileName, ObjectCannedACL acl) {
+        if (!STORAGE_S3_INDEX_ENABLED || !STORAGE_S3_BUCKET.equals(bucket))
+            return;
+        noteChange(fileName);
+        index.computeIfPresent(fileName, (key, object) -> object.withAcl(acl.toString()));
+    }
+
+    /**
+     * files under the prefix changed in bulk, the prefix is relisted in the background and
+     * negative lookups under it go to s3 until that is done
+     */
+    public void prefixChanged(String bucket, String prefix) {
+        if (!STORAGE_S3_INDEX_ENABLED || !STORAGE_S3_BUCKET.equals(bucket) || prefix == null || prefix.isEmpty())
+            return;
+        relistingPrefixes.add(prefix);
+        CompletableFuture.runAsync(() -> relist(prefix), s3BatchExecutor)
+                .whenComplete((ignored, throwable) -> {
+                    relistingPrefixes.remove(prefix);
+                    if (throwable != null)
+                        log.warn("Failed to relist prefix {}: {}", prefix, throwable.getMessage());
+                });
+    }
+
+    /**
+     * rebuilds the index from a full listing, then fills in content types and acls the listing doesn't carry
+     */
+    @Scheduled(fixedDelayString = "${storage.s3.index.reconcile-interval}")
+    public void reconcile() {
+        if (!STORAGE_S3_INDEX_ENABLED)
+            return;
+        long crawlStart = System.nanoTime();
+        log.debug("== crawling bucket {} for the metadata index", STORAGE_S3_BUCKET);
+        changedDuringCrawl = ConcurrentHashMap.newKeySet();
+        ConcurrentSkipListMap<String, IndexedObject> current = index;
+        ConcurrentSkipListMap<String, IndexedObject> crawled = new ConcurrentSkipListMap<>();
+        try {
+            ListObjectsV2Request listRequest = ListObjectsV2Request.builder().bucket(STORAGE_S3_BUCKET).build();
+            for (S3Object object : s3Client.listObjectsV2Paginator(listRequest).contents()) {
+                if (!running) {
+                    changedDuringCrawl = null;
+                    return;
+                }
+                // content type and acl survive the crawl while the object is unchanged
+                IndexedObject previous = current.get(object.key());
+                boolean unchanged = previous != null && object.eTag() != null && object.eTag().equals(previous.eTag());
+                crawled.put(object.key(), IndexedObject.of(object,
+                        unchanged ? previous.contentType() : null, unchanged ? previous.acl() : null));
+            }
+        } catch (RuntimeException e) {
+            changedDuringCrawl = null;
+            log.warn("Metadata index crawl failed, keeping the previous index: {}", e.getMessage());
+            return;
+        }
+
+        BloomFilter crawledBloom = new BloomFilter(Math.max(MIN_BLOOM_CAPACITY, crawled.size() * 2),
+                STORAGE_S3_INDEX_BLOOM_FALSE_POSITIVE_RATE);
+        crawled.keySet().forEach(crawledBloom::put);
+        synchronized (this) {
+            // writes that raced with the listing win over what the listing saw
+            for (String key : changedDuringCrawl) {
+                IndexedObject latest = index.get(key);
+                if (latest != null) {
+                    crawled.put(key, latest);
+                    crawledBloom.put(key);
+                } else {
+                    crawled.remove(key);
+                }
+            }
+            changedDuringCrawl = null;
+            index = crawled;
+            bloom = crawledBloom;
+            complete = true;
+        }
+        pending.values().removeIf(until -> until - crawlStart < 0);
+        log.info("Metadata index rebuilt with {} objects in {} ms", crawled.size(),
+                Duration.ofNanos(System.nanoTime() - crawlStart).toMillis());
+        enrichMissing();
+    }
+
+    private void enrichMissing() {
+        for (IndexedObject object : index.values()) {
+            if (!running)
+                return;
+            if (object.contentType() != null && object.acl() != null)
+                continue;
+            while (!enrichLimiter.acquirePermission()) {
+                if (!running)
+                    return;
+            }
+            try {
+                enrich(object);
+            } catch (RuntimeException e) {
+                log.debug("Failed to enrich index entry {}: {}", object.key(), e.getMessage());
+            }
+        }
+    }
+
+    private IndexedObject enrich(IndexedObject object) {
+        String contentType = object.contentType();
+        if (contentType == null)
+            contentType = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(STORAGE_S3_BUCKET).key(object.key()).build()).contentType();
+        String acl = object.acl();
+        if (acl == null)
+            acl = isPublic(s3Client.getObjectAcl(GetObjectAclRequest.builder()
+                    .bucket(STORAGE_S3_BUCKET).key(object.key()).build())) ? PUBLIC_READ : PRIVATE;
+        IndexedObject enriched = new IndexedObject(object.key(), object.size(), object.eTag(), contentType,
+                object.lastModified(), acl);
+        // only replace the entry the lookups started from, a concurrent write has newer data
+        index.replace(object.key(), object, enriched);
+        return enriched;
+    }
+
+    private void refresh(String fileName, String acl) {
+        try {
+            HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(STORAGE_S3_BUCKET).key(fileName).build());
+            put(IndexedObject.of(fileName, head, acl));
+        } catch (NoSuchKeyException e) {
+            index.remove(fileName);
+        } catch (RuntimeException e) {
+            log.debug("Failed to refresh index entry {}: {}", fileName, e.getMessage());
+            return;
+        }
+        pending.computeIfPresent(fileName, (key, until) -> until - System.nanoTime() > REFRESH_PENDING.toNanos() ? until : null);
+    }
+
+    private void relist(String prefix) {
+        ConcurrentSkipListMap<String, IndexedObject> current = index;
+        Set<String> listed = ConcurrentHashMap.newKeySet();
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder().bucket(STORAGE_S3_BUCKET).prefix(prefix).build();
+        for (S3Object object : s3Client.listObjectsV2Paginator(listRequest).contents()) {
+            listed.add(object.key());
+            IndexedObject previous = current.get(object.key());
+            boolean unchanged = previous != null && object.eTag() != null && object.eTag().equals(previous.eTag());
+            put(IndexedObject.of(object, unchanged ? previous.contentType() : null, unchanged ? previous.acl() : null));
+        }
+        current.subMap(prefix, true, prefix + Character.MAX_VALUE, true).keySet()
+                .removeIf(key -> !listed.contains(key) && !pending.containsKey(key));
+    }
+
+    private void put(IndexedObject object) {
+        synchronized (this) {
+            noteChange(object.key());
+            index.put(object.key(), object);
+            bloom.put(object.key());
+        }
+    }
+
+    private void markChanged(String fileName, Duration pendingFor) {
+        noteChange(fileName);
+        pending.merge(fileName, System.nanoTime() + pendingFor.toNanos(), (a, b) -> b - a > 0 ? b : a);
+        bloom.put(fileName);
+    }
+
+    private void noteChange(String fileName) {
+        Set<String> changes = changedDuringCrawl;
+        if (changes != null)
+            changes.add(fileName);
+    }
+
+    private String aclOf(String fileName) {
+        IndexedObject object = index.get(fileName);
+        return object == null ? null : object.acl();
+    }
+
+    private boolean covers(String bucket) {
+        return STORAGE_S3_INDEX_ENABLED && complete && STORAGE_S3_BUCKET.equals(bucket);
+    }
+
+    private static boolean isPublic(GetObjectAclResponse acl) {
+        return acl.grants().stream().anyMatch(grant -> grant.grantee().type() == Type.GROUP
+                && S3ObjectCopier.ALL_USERS_URI.equals(grant.grantee().uri())
+                && (grant.permission() == Permission.READ || grant.permission() == Permission.FULL_CONTROL));
+    }
+
+    private record IndexedObject(String key, long size, String eTag, String contentType, Instant lastModified, String acl) {
+
+        private static IndexedObject of(S3Object object, String contentType, String acl) {
+            return new IndexedObject(object.key(), object.size() == null ? 0 : object.size(), object.eTag(),
+                    contentType, object.lastModified(), acl);
+        }
+
+        private static IndexedObject of(String key, HeadObjectResponse head, String acl) {
+            return new IndexedObject(key, head.contentLength() == null ? 0 : head.contentLength(), head.eTag(),
+                    head.contentType(), head.lastModified(), acl);
+        }
+
+        private IndexedObject withAcl(String newAcl) {
+            return new IndexedObject(key, size, eTag, contentType, lastModified, newAcl);
+        }
+
+        private S3FileMetadataResponse toResponse() {
+            return new S3FileMetadataResponse(key, size, eTag, contentType,
+                    lastModified == null ? null : lastModified.toString(), acl);
+        }
+    }
+
+    /**
+     * Bloom filter over keys, sized for the expected key count and false positive rate.
+     * Keys can only be added, removals are dropped when the next crawl builds a fresh filter.
+     */
+    private static class BloomFilter {
+
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashCount;
+
+        private BloomFilter(int expectedKeys, double falsePositiveRate) {
+            long optimalBits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE, (optimalBits + 63) / 64));
+            this.bitCount = (long) bits.length() * 64;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedKeys * Math.log(2)));
+        }
+
+        private void put(String key) {
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long value;
+                do {
+                    value = bits.get(word);
+                } while ((value & mask) == 0 && !bits.compareAndSet(word, value, value | mask));
+            }
+        }
+
+        private boolean mightContain(String key) {
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        // 64 bit FNV-1a over the utf-8 bytes, split into two 32 bit hashes for double hashing
+        private static long hash(String key) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+}
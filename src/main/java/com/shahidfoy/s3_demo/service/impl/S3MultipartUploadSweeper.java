@@ -0,0 +1,60 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.MultipartUpload;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Aborts incomplete multipart uploads that were started longer ago than storage.s3.multipart.stale-after.
+ * Parts of an upload that is never completed or aborted stay billed in the bucket, this covers clients that
+ * give up halfway through a presigned upload as well as pods that die during a server-side multipart upload.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3MultipartUploadSweeper {
+
+    @Value("${storage.s3.bucket-name}")
+    private String STORAGE_S3_BUCKET;
+
+    @Value("${storage.s3.multipart.stale-after}")
+    private Duration STORAGE_S3_MULTIPART_STALE_AFTER;
+
+    private final S3Client s3Client;
+    private final S3PresignedMultipartUploads presignedMultipartUploads;
+
+    @Scheduled(initialDelayString = "${storage.s3.multipart.sweep-interval}",
+            fixedDelayString = "${storage.s3.multipart.sweep-interval}")
+    public void abortStaleUploads() {
+        Instant cutoff = Instant.now().minus(STORAGE_S3_MULTIPART_STALE_AFTER);
+        log.debug("== sweeping multipart uploads initiated before {}", cutoff);
+
+        ListMultipartUploadsRequest listRequest = ListMultipartUploadsRequest.builder()
+                .bucket(STORAGE_S3_BUCKET)
+                .build();
+        int aborted = 0;
+        for (MultipartUpload upload : s3Client.listMultipartUploadsPaginator(listRequest).uploads()) {
+            if (!upload.initiated().isBefore(cutoff))
+                continue;
+            try {
+                presignedMultipartUploads.abort(STORAGE_S3_BUCKET, upload.key(), upload.uploadId());
+                aborted++;
+            } catch (S3Exception e) {
+                // completed or aborted by its owner since the listing, the next sweep retries anything else
+                log.warn("Failed to abort stale multipart upload {} ({}): {}",
+                        upload.key(), upload.uploadId(), e.awsErrorDetails().errorMessage());
+            }
+        }
+        if (aborted > 0)
+            log.info("Aborted {} stale multipart uploads", aborted);
+    }
+}
@@ -0,0 +1,194 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Splits large payloads into parts and uploads them concurrently on the s3 transfer executor.
+ * A failed upload is aborted so no orphaned parts are left behind in the bucket.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3MultipartUploader {
+
+    // s3 limits: parts must be at least 5 MB (except the last one) and an upload has at most 10,000 parts
+    private static final long MIN_PART_SIZE = DataSize.ofMegabytes(5).toBytes();
+    private static final int MAX_PARTS = 10_000;
+
+    @Value("${storage.s3.multipart.threshold}")
+    private DataSize STORAGE_S3_MULTIPART_THRESHOLD;
+
+    @Value("${storage.s3.multipart.part-size}")
+    private DataSize STORAGE_S3_MULTIPART_PART_SIZE;
+
+    @Value("${storage.s3.multipart.max-buffered-parts}")
+    private int STORAGE_S3_MULTIPART_MAX_BUFFERED_PARTS;
+
+    private final S3Client s3Client;
+    private final ExecutorService s3TransferExecutor;
+
+    // caps the part buffers held in memory across all uploads in flight
+    private Semaphore bufferedParts;
+
+    @PostConstruct
+    void init() {
+        this.bufferedParts = new Semaphore(STORAGE_S3_MULTIPART_MAX_BUFFERED_PARTS);
+    }
+
+    /**
+     * @param contentLength payload size in bytes
+     * @return true when the payload is large enough to be uploaded in parts
+     */
+    public boolean shouldUseMultipart(long contentLength) {
+        return contentLength >= STORAGE_S3_MULTIPART_THRESHOLD.toBytes();
+    }
+
+    /**
+     * uploads the stream as a multipart upload, aborting it on any failure
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param contentType content type
+     * @param contentEncoding content encoding of the payload, null when stored as is
+     * @param acl canned acl applied to the completed object
+     * @param inputStream file contents, read sequentially and not closed
+     * @param contentLength number of bytes to read from the stream
+     * @return etag of the completed object
+     */
+    public String upload(String bucket, String fileName, String contentType, String contentEncoding, ObjectCannedACL acl,
+                         InputStream inputStream, long contentLength) {
+        long partSize = partSize(contentLength);
+        log.debug("== multipart upload: {} ({} bytes, {} byte parts)", fileName, contentLength, partSize);
+
+        CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(fileName)
+                .contentType(contentType)
+                .contentEncoding(contentEncoding)
+                .acl(acl)
+                .build();
+        String uploadId = s3Client.createMultipartUpload(createRequest).uploadId();
+
+        List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        AtomicBoolean aborted = new AtomicBoolean();
+        try {
+            int partNumber = 1;
+            for (long offset = 0; offset < contentLength; offset += partSize, partNumber++) {
+                failFast(parts);
+                int size = (int) Math.min(partSize, contentLength - offset);
+                byte[] buffer = readPart(inputStream, size);
+                int number = partNumber;
+                parts.add(CompletableFuture
+                        .supplyAsync(() -> uploadPart(bucket, fileName, uploadId, number, buffer, aborted), s3TransferExecutor)
+                        .whenComplete((part, throwable) -> bufferedParts.release()));
+            }
+
+            List<CompletedPart> completedParts = parts.stream().map(CompletableFuture::join).toList();
+            String eTag = s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(fileName)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build()).eTag();
+            log.debug("== multipart upload completed: {} ({} parts)", fileName, completedParts.size());
+            return eTag;
+        } catch (RuntimeException e) {
+            aborted.set(true);
+            abort(bucket, fileName, uploadId, parts);
+            throw unwrap(e);
+        }
+    }
+
+    private long partSize(long contentLength) {
+        long minimumForLength = (contentLength + MAX_PARTS - 1) / MAX_PARTS;
+        return Math.max(Math.max(STORAGE_S3_MULTIPART_PART_SIZE.toBytes(), MIN_PART_SIZE), minimumForLength);
+    }
+
+    private byte[] readPart(InputStream inputStream, int size) {
+        try {
+            bufferedParts.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a multipart buffer", e);
+        }
+        try {
+            byte[] buffer = inputStream.readNBytes(size);
+            if (buffer.length != size)
+                throw new EOFException("Stream ended after " + buffer.length + " of " + size + " part bytes");
+            return buffer;
+        } catch (IOException e) {
+            bufferedParts.release();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private CompletedPart uploadPart(String bucket, String fileName, String uploadId, int partNumber, byte[] buffer,
+                                     AtomicBoolean aborted) {
+        if (aborted.get())
+            throw new CancellationException("Multipart upload aborted before part " + partNumber);
+
+        UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                .bucket(bucket)
+                .key(fileName)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .contentLength((long) buffer.length)
+                .build();
+
+        // a ByteArrayInputStream is resettable, so the sdk can retry the part without copying the buffer
+        String eTag = s3Client.uploadPart(uploadPartRequest,
+                RequestBody.fromInputStream(new ByteArrayInputStream(buffer), buffer.length)).eTag();
+        return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+    }
+
+    private static void failFast(List<CompletableFuture<CompletedPart>> parts) {
+        for (CompletableFuture<CompletedPart> part : parts) {
+            if (part.isCompletedExceptionally())
+                part.join();
+        }
+    }
+
+    private void abort(String bucket, String fileName, String uploadId, List<CompletableFuture<CompletedPart>> parts) {
+        // queued parts skip themselves once aborted, running ones settle so nothing lands after the abort
+        CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new))
+                .handle((ignored, throwable) -> null)
+                .join();
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(fileName)
+                    .uploadId(uploadId)
+                    .build());
+            log.debug("== multipart upload aborted: {}", fileName);
+        } catch (Exception e) {
+            log.error("Failed to abort multipart upload {} for {}: {}", uploadId, fileName, e.getMessage());
+        }
+    }
+
+    private static RuntimeException unwrap(RuntimeException e) {
+        if (e instanceof CompletionException && e.getCause() instanceof RuntimeException cause)
+            return cause;
+        return e;
+    }
+}
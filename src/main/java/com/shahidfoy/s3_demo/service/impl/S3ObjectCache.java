@@ -0,0 +1,264 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Read-through cache for small hot objects, bounded by total bytes and evicted with Caffeine's W-TinyLFU policy.
+ * Entries older than the revalidation interval are checked with If-None-Match, so an unchanged object costs
+ * a 304 instead of a full download. Cached arrays are shared, callers must not modify them.
+ * Misses fall through to the {@link S3DiskCache} tier before going to s3, and invalidations cover both tiers.
+ * Gzip encoded objects are decoded before they are cached, so callers always get the original file bytes.
+ * <p>
+ * Concurrent misses and revalidations of the same file share one load. An invalidation while a load is in flight
+ * detaches it, so the load can't cache what it read before the write, and later callers start a new load.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3ObjectCache {
+
+    private static final int NOT_MODIFIED = 304;
+
+    @Value("${storage.s3.cache.enabled}")
+    private boolean STORAGE_S3_CACHE_ENABLED;
+
+    @Value("${storage.s3.cache.max-size}")
+    private DataSize STORAGE_S3_CACHE_MAX_SIZE;
+
+    @Value("${storage.s3.cache.max-object-size}")
+    private DataSize STORAGE_S3_CACHE_MAX_OBJECT_SIZE;
+
+    @Value("${storage.s3.cache.revalidate-after}")
+    private Duration STORAGE_S3_CACHE_REVALIDATE_AFTER;
+
+    private final MeterRegistry meterRegistry;
+    private final S3DiskCache diskCache;
+    private final S3ContentCompressor compressor;
+
+    private final ConcurrentHashMap<CacheKey, CompletableFuture<byte[]>> loads = new ConcurrentHashMap<>();
+    private Cache<CacheKey, CachedObject> cache;
+    private Counter notModified;
+    private Counter modified;
+    private Counter coalesced;
+
+    @PostConstruct
+    void init() {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(STORAGE_S3_CACHE_MAX_SIZE.toBytes())
+                .weigher((CacheKey key, CachedObject object) -> object.bytes().length)
+                .recordStats()
+                .build();
+        // hit ratio, evictions and evicted bytes as cache.* metrics tagged cache=s3.objects
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "s3.objects");
+        Gauge.builder("s3.cache.size.bytes", cache, c -> c.policy().eviction().orElseThrow().weightedSize().orElse(0L))
+                .description("Bytes held by the s3 object cache")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.notModified = Counter.builder("s3.cache.revalidations").tag("result", "not_modified").register(meterRegistry);
+        this.modified = Counter.builder("s3.cache.revalidations").tag("result", "modified").register(meterRegistry);
+        this.coalesced = Counter.builder("s3.cache.loads.coalesced")
+                .description("Misses and revalidations that waited for a load of the same file already in flight")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param loader executes the (possibly conditional) get request against s3
+     * @return the cached file bytes, revalidated when stale, or the freshly loaded bytes, decoded when gzip encoded
+     */
+    public byte[] get(String bucket, String fileName, Function<GetObjectRequest, ResponseBytes<GetObjectResponse>> loader) {
+        try {
+            // the loader runs on this thread when it is the first, the future only carries the result to followers
+            return getAsync(bucket, fileName, request -> {
+                try {
+                    return CompletableFuture.completedFuture(loader.apply(request));
+                } catch (RuntimeException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            }).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * {@link #get} for an async loader
+     * @param loader sends the (possibly conditional) get request to s3
+     * @return the cached file bytes, revalidated when stale, or the freshly loaded bytes, decoded when gzip encoded
+     */
+    public CompletableFuture<byte[]> getAsync(String bucket, String fileName,
+                                              Function<GetObjectRequest, CompletableFuture<ResponseBytes<GetObjectResponse>>> loader) {
+        GetObjectRequest.Builder request = GetObjectRequest.builder().bucket(bucket).key(fileName);
+        if (!STORAGE_S3_CACHE_ENABLED)
+            return loader.apply(request.build()).thenApply(this::decode);
+
+        CacheKey key = new CacheKey(bucket, fileName);
+        byte[] fresh = getIfFresh(key);
+        if (fresh != null)
+            return CompletableFuture.completedFuture(fresh);
+
+        CompletableFuture<byte[]> load = new CompletableFuture<>();
+        CompletableFuture<byte[]> inFlight = loads.putIfAbsent(key, load);
+        if (inFlight != null) {
+            coalesced.increment();
+            // a copy, so a caller completing or cancelling its future doesn't touch the shared load
+            return inFlight.copy();
+        }
+        // read again now that this is the only load, one that just finished may have cached the file
+        CachedObject cached = cache.getIfPresent(key);
+        CompletableFuture<byte[]> loaded;
+        try {
+            loaded = load(key, load, cached, request, loader);
+        } catch (RuntimeException e) {
+            // the disk tier or the loader threw before handing back a future, the load still has to settle
+            loaded = CompletableFuture.failedFuture(e);
+        }
+        loaded.whenComplete((bytes, throwable) -> {
+            loads.remove(key, load);
+            if (throwable != null)
+                load.completeExceptionally(throwable instanceof CompletionException && throwable.getCause() != null
+                        ? throwable.getCause() : throwable);
+            else
+                load.complete(bytes);
+        });
+        return load.copy();
+    }
+
+    private CompletableFuture<byte[]> load(CacheKey key, CompletableFuture<byte[]> load, CachedObject cached,
+                                           GetObjectRequest.Builder request,
+                                           Function<GetObjectRequest, CompletableFuture<ResponseBytes<GetObjectResponse>>> loader) {
+        if (cached != null && !cached.isStale(STORAGE_S3_CACHE_REVALIDATE_AFTER))
+            return CompletableFuture.completedFuture(cached.bytes());
+
+        if (cached != null && cached.eTag() != null) {
+            return loader.apply(request.ifNoneMatch(cached.eTag()).build()).handle((response, throwable) -> {
+                if (throwable == null) {
+                    modified.increment();
+                    return store(key, load, response);
+                }
+                Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                        ? throwable.getCause() : throwable;
+                if (!(cause instanceof S3Exception e) || e.statusCode() != NOT_MODIFIED)
+                    throw cause instanceof RuntimeException runtime ? runtime : new CompletionException(cause);
+                notModified.increment();
+                store(key, load, new CachedObject(cached.bytes(), cached.eTag(), System.nanoTime()));
+                return cached.bytes();
+            });
+        }
+
+        ResponseBytes<GetObjectResponse> onDisk = diskCache.readIfCached(key.bucket(), key.fileName());
+        if (onDisk != null)
+            return CompletableFuture.completedFuture(decode(onDisk));
+        return loader.apply(request.build()).thenApply(response -> store(key, load, response));
+    }
+
+    /**
+     * streams the object through the disk tier, large whole-object reads are cached on disk
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param range optional http range header
+     * @param loader executes the get request against s3
+     * @return object body with its metadata, the caller must close it
+     */
+    public ResponseInputStream<GetObjectResponse> open(String bucket, String fileName, String range,
+                                                       Function<GetObjectRequest, ResponseInputStream<GetObjectResponse>> loader) {
+        return diskCache.open(bucket, fileName, range, loader);
+    }
+
+    /**
+     * @return the object body from the disk tier, or null when it is not cached there
+     */
+    public ResponseInputStream<GetObjectResponse> openIfCached(String bucket, String fileName, String range) {
+        return diskCache.openIfCached(bucket, fileName, range);
+    }
+
+    /**
+     * @return cached bytes that are still within the revalidation interval, or null
+     */
+    private byte[] getIfFresh(CacheKey key) {
+        CachedObject cached = cache.getIfPresent(key);
+        return cached != null && !cached.isStale(STORAGE_S3_CACHE_REVALIDATE_AFTER) ? cached.bytes() : null;
+    }
+
+    /**
+     * drops the cached copy after the file was written, renamed or deleted
+     */
+    public void invalidate(String bucket, String fileName) {
+        CacheKey key = new CacheKey(bucket, fileName);
+        // detach the load first, so it can't cache what it read before the write
+        loads.remove(key);
+        cache.invalidate(key);
+        diskCache.invalidate(bucket, fileName);
+    }
+
+    /**
+     * drops every cached file under the prefix after a bulk rename or delete
+     */
+    public void invalidatePrefix(String bucket, String prefix) {
+        loads.keySet().removeIf(key -> key.bucket().equals(bucket) && key.fileName().startsWith(prefix));
+        cache.asMap().keySet().removeIf(key -> key.bucket().equals(bucket) && key.fileName().startsWith(prefix));
+        diskCache.invalidatePrefix(bucket, prefix);
+    }
+
+    /**
+     * caches a loaded response when it is small enough
+     * @return the response bytes, decoded when gzip encoded
+     */
+    private byte[] store(CacheKey key, CompletableFuture<byte[]> load, ResponseBytes<GetObjectResponse> response) {
+        byte[] bytes = decode(response);
+        if (bytes.length <= STORAGE_S3_CACHE_MAX_OBJECT_SIZE.toBytes())
+            store(key, load, new CachedObject(bytes, response.response().eTag(), System.nanoTime()));
+        return bytes;
+    }
+
+    /**
+     * caches the object unless the load was detached by an invalidation. Both run on the key's entry in the
+     * load map, so an invalidation either comes after the object is cached and drops it, or the object is never cached
+     */
+    private void store(CacheKey key, CompletableFuture<byte[]> load, CachedObject object) {
+        loads.computeIfPresent(key, (ignored, current) -> {
+            if (current == load)
+                cache.put(key, object);
+            return current;
+        });
+    }
+
+    private byte[] decode(ResponseBytes<GetObjectResponse> response) {
+        return compressor.decode(response.response().contentEncoding(), response.asByteArrayUnsafe());
+    }
+
+    private record CacheKey(String bucket, String fileName) {
+    }
+
+    private record CachedObject(byte[] bytes, String eTag, long validatedAt) {
+
+        private boolean isStale(Duration revalidateAfter) {
+            return System.nanoTime() - validatedAt > revalidateAfter.toNanos();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.model.response.S3BatchResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server-side copies, object bytes never pass through the application.
+ * Objects over the 5 GB CopyObject limit are copied with concurrent UploadPartCopy requests.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3ObjectCopier {
+
+    private static final long MAX_COPY_OBJECT_SIZE = DataSize.ofGigabytes(5).toBytes();
+    private static final int MAX_PARTS = 10_000;
+    static final String ALL_USERS_URI = "http://acs.amazonaws.com/groups/global/AllUsers";
+
+    @Value("${storage.s3.copy.part-size}")
+    private DataSize STORAGE_S3_COPY_PART_SIZE;
+
+    @Value("${storage.s3.batch.concurrency}")
+    private int STORAGE_S3_BATCH_CONCURRENCY;
+
+    private final S3Client s3Client;
+    private final ExecutorService s3TransferExecutor;
+    private final ExecutorService s3BatchExecutor;
+
+    /**
+     * copies an object within the bucket keeping its metadata and acl
+     * @param bucket bucket path
+     * @param sourceKey existing file name
+     * @param destinationKey new file name
+     * @param contentType content type for the copy, null keeps the source content type
+     * @return the canned acl the copy was given, or null when the grants were copied as a full policy
+     */
+    public ObjectCannedACL copy(String bucket, String sourceKey, String destinationKey, String contentType) {
+        HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                .bucket(bucket)
+                .key(sourceKey)
+                .build());
+        GetObjectAclResponse acl = s3Client.getObjectAcl(GetObjectAclRequest.builder()
+                .bucket(bucket)
+                .key(sourceKey)
+                .build());
+        String targetContentType = contentType != null ? contentType : head.contentType();
+        ObjectCannedACL cannedAcl = toCannedAcl(acl);
+
+        if (head.contentLength() <= MAX_COPY_OBJECT_SIZE) {
+            log.debug("== copyObject: {} -> {}", sourceKey, destinationKey);
+            CopyObjectRequest.Builder copyRequest = CopyObjectRequest.builder()
+                    .sourceBucket(bucket)
+                    .sourceKey(sourceKey)
+                    .destinationBucket(bucket)
+                    .destinationKey(destinationKey)
+                    .acl(cannedAcl);
+            if (targetContentType != null && !targetContentType.equals(head.contentType())) {
+                // REPLACE drops everything not sent, so carry the source metadata over explicitly
+                copyRequest.metadataDirective(MetadataDirective.REPLACE)
+                        .contentType(targetContentType)
+                        .metadata(head.metadata())
+                        .cacheControl(head.cacheControl())
+                        .contentDisposition(head.contentDisposition())
+                        .contentEncoding(head.contentEncoding())
+                        .contentLanguage(head.contentLanguage());
+            } else {
+                copyRequest.metadataDirective(MetadataDirective.COPY);
+            }
+            s3Client.copyObject(copyRequest.build());
+        } else {
+            multipartCopy(bucket, sourceKey, destinationKey, head, targetContentType, cannedAcl);
+        }
+
+        if (cannedAcl == null) {
+            // grants that no canned acl can express are copied over as a full policy
+            s3Client.putObjectAcl(PutObjectAclRequest.builder()
+                    .bucket(bucket)
+                    .key(destinationKey)
+                    .accessControlPolicy(AccessControlPolicy.builder()
+                            .owner(acl.owner())
+                            .grants(acl.grants())
+                            .build())
+                    .build());
+        }
+        return cannedAcl;
+    }
+
+    /**
+     * @return true when the source is gone and the destination exists, as after a completed rename
+     */
+    public boolean isMoved(String bucket, String sourceKey, String destinationKey) {
+        return !exists(bucket, sourceKey) && exists(bucket, destinationKey);
+    }
+
+    private boolean exists(String bucket, String key) {
+        try {
+            s3Client.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+            return true;
+        } catch (NoSuchKeyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * copies every object under the old prefix to the new prefix and deletes the originals,
+     * listing pages are streamed and at most batch concurrency copies are in flight
+     * @param bucket bucket path
+     * @param oldPrefix prefix of the files to move
+     * @param newPrefix prefix that replaces the old one
+     * @return renamed count and per file failures
+     */
+    public S3BatchResponse renameByPrefix(String bucket, String oldPrefix, String newPrefix) {
+        if (oldPrefix == null || oldPrefix.isEmpty())
+            throw new IllegalArgumentException("Old prefix must not be empty");
+        if (newPrefix == null || newPrefix.startsWith(oldPrefix))
+            throw new IllegalArgumentException("New prefix must not be nested under the old prefix: " + newPrefix);
+        log.debug("== renameByPrefix: {} -> {}", oldPrefix, newPrefix);
+
+        AtomicInteger renamed = new AtomicInteger();
+        Map<String, String> failures = new ConcurrentHashMap<>();
+        Semaphore inFlight = new Semaphore(STORAGE_S3_BATCH_CONCURRENCY);
+        List<CompletableFuture<Void>> copies = new ArrayList<>();
+
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(oldPrefix)
+                .build();
+        for (S3Object object : s3Client.listObjectsV2Paginator(listRequest).contents()) {
+            String sourceKey = object.key();
+            String destinationKey = newPrefix + sourceKey.substring(oldPrefix.length());
+            inFlight.acquireUninterruptibly();
+            copies.add(CompletableFuture.runAsync(() -> {
+                copy(bucket, sourceKey, destinationKey, null);
+                s3Client.deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(sourceKey).build());
+            }, s3BatchExecutor).whenComplete((ignored, throwable) -> {
+                inFlight.release();
+                if (throwable == null) {
+                    renamed.incrementAndGet();
+                } else {
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    log.error("Failed to rename {}: {}", sourceKey, cause.getMessage());
+                    failures.put(sourceKey, String.valueOf(cause.getMessage()));
+                }
+            }));
+            copies.removeIf(CompletableFuture::isDone);
+        }
+        CompletableFuture.allOf(copies.toArray(CompletableFuture[]::new))
+                .handle((ignored, throwable) -> null)
+                .join();
+
+        log.debug("== renameByPrefix renamed {} files, {} failures", renamed.get(), failures.size());
+        return new S3BatchResponse(renamed.get(), failures);
+    }
+
+    private void multipartCopy(String bucket, String sourceKey, String destinationKey, HeadObjectResponse head,
+                               String contentType, ObjectCannedACL cannedAcl) {
+        long objectSize = head.contentLength();
+        long partSize = partSize(objectSize);
+        log.debug("== multipart copy: {} -> {} ({} bytes, {} byte parts)", sourceKey, destinationKey, objectSize, partSize);
+
+        String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(destinationKey)
+                .contentType(contentType)
+                .metadata(head.metadata())
+                .cacheControl(head.cacheControl())
+                .contentDisposition(head.contentDisposition())
+                .contentEncoding(head.contentEncoding())
+                .contentLanguage(head.contentLanguage())
+                .acl(cannedAcl)
+                .build()).uploadId();
+
+        List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        AtomicBoolean aborted = new AtomicBoolean();
+        try {
+            int partNumber = 1;
+            for (long offset = 0; offset < objectSize; offset += partSize, partNumber++) {
+                int number = partNumber;
+                String range = "bytes=" + offset + "-" + (Math.min(offset + partSize, objectSize) - 1);
+                parts.add(CompletableFuture.supplyAsync(() -> {
+                    if (aborted.get())
+                        throw new CancellationException("Multipart copy aborted before part " + number);
+                    String eTag = s3Client.uploadPartCopy(UploadPartCopyRequest.builder()
+                            .sourceBucket(bucket)
+                            .sourceKey(sourceKey)
+                            .destinationBucket(bucket)
+                            .destinationKey(destinationKey)
+                            .uploadId(uploadId)
+                            .partNumber(number)
+                            .copySourceRange(range)
+                            .build()).copyPartResult().eTag();
+                    return CompletedPart.builder().partNumber(number).eTag(eTag).build();
+                }, s3TransferExecutor));
+            }
+
+            List<CompletedPart> completedParts = parts.stream().map(CompletableFuture::join).toList();
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(destinationKey)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build());
+        } catch (RuntimeException e) {
+            // queued parts skip themselves once aborted, running ones settle so nothing lands after the abort
+            aborted.set(true);
+            CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new))
+                    .handle((ignored, throwable) -> null)
+                    .join();
+            try {
+                s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(destinationKey)
+                        .uploadId(uploadId)
+                        .build());
+            } catch (Exception abortException) {
+                log.error("Failed to abort multipart copy {} for {}: {}", uploadId, destinationKey, abortException.getMessage());
+            }
+            if (e instanceof CompletionException && e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * @return the configured part size, raised when the object would need more than the 10,000 parts s3 allows
+     */
+    private long partSize(long objectSize) {
+        long minimumForSize = (objectSize + MAX_PARTS - 1) / MAX_PARTS;
+        return Math.max(STORAGE_S3_COPY_PART_SIZE.toBytes(), minimumForSize);
+    }
+
+    /**
+     * @return the canned acl equivalent to the grants, or null when the grants need a full policy
+     */
+    private static ObjectCannedACL toCannedAcl(GetObjectAclResponse acl) {
+        boolean publicRead = false;
+        for (Grant grant : acl.grants()) {
+            Grantee grantee = grant.grantee();
+            boolean owner = grantee.type() == Type.CANONICAL_USER && acl.owner() != null
+                    && acl.owner().id().equals(grantee.id());
+            if (owner && grant.permission() == Permission.FULL_CONTROL)
+                continue;
+            if (grantee.type() == Type.GROUP && ALL_USERS_URI.equals(grantee.uri())
+                    && grant.permission() == Permission.READ) {
+                publicRead = true;
+                continue;
+            }
+            return null;
+        }
+        return publicRead ? ObjectCannedACL.PUBLIC_READ : ObjectCannedACL.PRIVATE;
+    }
+}
@@ -0,0 +1,131 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.model.response.S3ListingEntry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lists a bucket as a lazy stream of entries. Only the current page and the one being prefetched are
+ * held in memory. The next page is requested on the batch executor as soon as the current one arrives,
+ * so the listing call overlaps with writing the current page to the client.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3ObjectLister {
+
+    // s3 limit for keys in one ListObjectsV2 response
+    static final int MAX_KEYS_PER_PAGE = 1000;
+
+    private final S3Client s3Client;
+    private final ExecutorService s3BatchExecutor;
+
+    /**
+     * @param bucket bucket path
+     * @param prefix only keys starting with this prefix, null for the whole bucket
+     * @param delimiter groups keys sharing a prefix up to the delimiter into prefix entries, null to list flat
+     * @param continuationToken token of a previous page line to resume after, null to start at the beginning
+     * @param maxKeys keys per page, 1 to 1000
+     * @param maxPages pages to list before stopping, the last page line carries the token to continue
+     * @return entries in key order, each page followed by a page line; the caller must close the stream
+     */
+    public Stream<S3ListingEntry> list(String bucket, String prefix, String delimiter, String continuationToken,
+                                      int maxKeys, int maxPages) {
+        if (maxKeys < 1 || maxKeys > MAX_KEYS_PER_PAGE)
+            throw new IllegalArgumentException("maxKeys must be between 1 and " + MAX_KEYS_PER_PAGE);
+        if (maxPages < 1)
+            throw new IllegalArgumentException("maxPages must be at least 1");
+        log.debug("== list prefix: {} delimiter: {} from: {}", prefix, delimiter, continuationToken);
+
+        ListObjectsV2Request request = ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(prefix)
+                .delimiter(delimiter)
+                .maxKeys(maxKeys)
+                .build();
+        PageIterator pages = new PageIterator(request, continuationToken, maxPages);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .flatMap(page -> entries(page).stream())
+                .onClose(pages::close);
+    }
+
+    private static List<S3ListingEntry> entries(ListObjectsV2Response page) {
+        List<S3ListingEntry> entries = new ArrayList<>(page.contents().size() + page.commonPrefixes().size() + 1);
+        for (CommonPrefix commonPrefix : page.commonPrefixes())
+            entries.add(new S3ListingEntry("prefix", commonPrefix.prefix(), null, null, null, null));
+        for (S3Object object : page.contents())
+            entries.add(new S3ListingEntry("object", object.key(), object.size(),
+                    object.lastModified() == null ? null : object.lastModified().toString(), object.eTag(), null));
+        // a client that stops reading, or hits maxPages, resumes from the token of the last page line it got
+        entries.add(new S3ListingEntry("page", null, null, null, null,
+                Boolean.TRUE.equals(page.isTruncated()) ? page.nextContinuationToken() : null));
+        return entries;
+    }
+
+    private class PageIterator implements Iterator<ListObjectsV2Response> {
+
+        private final ListObjectsV2Request request;
+        private final int maxPages;
+        private int fetched;
+        private CompletableFuture<ListObjectsV2Response> pending;
+
+        private PageIterator(ListObjectsV2Request request, String continuationToken, int maxPages) {
+            this.request = request;
+            this.maxPages = maxPages;
+            this.pending = fetch(continuationToken);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pending != null;
+        }
+
+        @Override
+        public ListObjectsV2Response next() {
+            if (pending == null)
+                throw new NoSuchElementException();
+            ListObjectsV2Response page;
+            try {
+                page = pending.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause)
+                    throw cause;
+                throw e;
+            }
+            fetched++;
+            pending = Boolean.TRUE.equals(page.isTruncated()) && fetched < maxPages
+                    ? fetch(page.nextContinuationToken())
+                    : null;
+            return page;
+        }
+
+        private CompletableFuture<ListObjectsV2Response> fetch(String continuationToken) {
+            ListObjectsV2Request pageRequest = request.toBuilder().continuationToken(continuationToken).build();
+            return CompletableFuture.supplyAsync(() -> s3Client.listObjectsV2(pageRequest), s3BatchExecutor);
+        }
+
+        private void close() {
+            // the client went away, a prefetched page in flight is simply dropped
+            if (pending != null)
+                pending.cancel(false);
+        }
+    }
+}
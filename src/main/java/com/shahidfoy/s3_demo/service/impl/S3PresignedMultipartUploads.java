@@ -0,0 +1,85 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.model.request.S3UploadedPart;
+import com.shahidfoy.s3_demo.model.response.S3MultipartUploadResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Server side of multipart uploads where the client pushes the parts itself through presigned UploadPart urls.
+ * The pods only initiate, complete or abort the upload, part bytes go straight to the bucket.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3PresignedMultipartUploads {
+
+    // s3 limit for the number of parts in one upload
+    static final int MAX_PARTS = 10_000;
+
+    private final S3Client s3Client;
+
+    /**
+     * @param bucket bucket path
+     * @param fileName target file name
+     * @param contentType content type of the assembled file
+     * @return upload id the part urls and completion refer to
+     */
+    public S3MultipartUploadResponse initiate(String bucket, String fileName, String contentType) {
+        log.debug("== initiate presigned multipart upload: {}", fileName);
+        CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(fileName)
+                .contentType(contentType)
+                .acl(ObjectCannedACL.PUBLIC_READ)
+                .build();
+        String uploadId = s3Client.createMultipartUpload(createRequest).uploadId();
+        return new S3MultipartUploadResponse(fileName, uploadId);
+    }
+
+    /**
+     * @param bucket bucket path
+     * @param fileName file name the upload was initiated for
+     * @param uploadId multipart upload id
+     * @param parts part numbers and etags returned to the client by each part upload
+     */
+    public void complete(String bucket, String fileName, String uploadId, List<S3UploadedPart> parts) {
+        if (parts == null || parts.isEmpty())
+            throw new IllegalArgumentException("At least one uploaded part is required");
+        log.debug("== complete presigned multipart upload: {} ({} parts)", fileName, parts.size());
+
+        // s3 requires the parts in ascending part number order
+        List<CompletedPart> completedParts = parts.stream()
+                .sorted(Comparator.comparingInt(S3UploadedPart::getPartNumber))
+                .map(part -> CompletedPart.builder().partNumber(part.getPartNumber()).eTag(part.getEtag()).build())
+                .toList();
+        CompleteMultipartUploadRequest completeRequest = CompleteMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(fileName)
+                .uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                .build();
+        s3Client.completeMultipartUpload(completeRequest);
+    }
+
+    /**
+     * @param bucket bucket path
+     * @param fileName file name the upload was initiated for
+     * @param uploadId multipart upload id, its uploaded parts are discarded
+     */
+    public void abort(String bucket, String fileName, String uploadId) {
+        log.debug("== abort multipart upload: {} ({})", fileName, uploadId);
+        AbortMultipartUploadRequest abortRequest = AbortMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(fileName)
+                .uploadId(uploadId)
+                .build();
+        s3Client.abortMultipartUpload(abortRequest);
+    }
+}
@@ -1,17 +1,33 @@
 package com.shahidfoy.s3_demo.service.impl;
 
+import com.shahidfoy.s3_demo.config.S3RetryPolicy;
+import com.shahidfoy.s3_demo.model.request.S3Request;
+import com.shahidfoy.s3_demo.model.request.S3UploadedPart;
+import com.shahidfoy.s3_demo.model.response.S3AclJobResponse;
+import com.shahidfoy.s3_demo.model.response.S3BatchResponse;
+import com.shahidfoy.s3_demo.model.response.S3FileMetadataResponse;
+import com.shahidfoy.s3_demo.model.response.S3ListingEntry;
+import com.shahidfoy.s3_demo.model.response.S3MultipartUploadResponse;
+import com.shahidfoy.s3_demo.model.response.S3PresignedPartResponse;
+import com.shahidfoy.s3_demo.model.response.S3PresignedUrlResponse;
 import com.shahidfoy.s3_demo.service.S3StorageService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.core.sync.ResponseTransformer;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
-import software.amazon.awssdk.services.s3.presigner.S3Presigner;
-import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
 
-import java.time.Duration;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -19,21 +35,82 @@ import java.time.Duration;
 public class S3Service implements S3StorageService {
 
     private final S3Client s3Client;
-    private final S3Presigner s3Presigner;
+    private final S3UrlPresigner urlPresigner;
+    private final S3PresignedMultipartUploads presignedMultipartUploads;
+    private final S3AclJobManager aclJobManager;
+    private final S3ObjectLister objectLister;
+    private final S3MultipartUploader multipartUploader;
+    private final S3ObjectCopier objectCopier;
+    private final S3BatchDeleter batchDeleter;
+    private final S3ObjectCache objectCache;
+    private final S3MetadataIndex metadataIndex;
+    private final S3ImageVariants imageVariants;
+    private final S3ContentDeduplicator deduplicator;
+    private final S3ContentCompressor compressor;
+    private final S3UploadStaging uploadStaging;
 
     @Override
     public void saveFileToBucket(String bucket, String fileName, String contentType, byte[] bytes) {
+        // RequestBody.fromBytes copies the array, wrapping it as a stream does not
+        this.saveFileToBucket(bucket, fileName, contentType, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    @Override
+    public void saveFileToBucket(String bucket, String fileName, String contentType, InputStream inputStream, long contentLength) {
         log.debug("== S3 saveFileToBucket");
         log.debug("= file name: {}", fileName);
         log.debug("= bucket: {}", bucket);
-        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                .bucket(bucket)
-                .key(fileName)
-                .acl(ObjectCannedACL.PUBLIC_READ)
-                .contentType(contentType)
-                .build();
+        log.debug("= content length: {}", contentLength);
+        try (S3ContentCompressor.EncodedContent encoded = compressor.encode(contentType, inputStream, contentLength);
+             S3ContentDeduplicator.HashedContent content = deduplicator.hash(encoded.stream(), encoded.contentLength())) {
+            String contentEncoding = encoded.contentEncoding();
+            long storedLength = encoded.contentLength();
+            log.debug("= content encoding: {}", contentEncoding);
+            log.debug("= stored length: {}", storedLength);
+            if (deduplicator.copyExisting(bucket, fileName, contentType, contentEncoding, content)) {
+                log.debug("= deduplicated, copied from an existing object");
+                objectCache.invalidate(bucket, fileName);
+                metadataIndex.changed(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
+                imageVariants.generate(bucket, fileName, contentType, content.stream(), storedLength,
+                        ObjectCannedACL.PUBLIC_READ);
+                return;
+            }
 
-        s3Client.putObject(putObjectRequest, RequestBody.fromBytes(bytes));
+            InputStream source = imageVariants.capture(fileName, contentType, content.stream(), storedLength);
+            String eTag;
+            if (multipartUploader.shouldUseMultipart(storedLength)) {
+                eTag = multipartUploader.upload(bucket, fileName, contentType, contentEncoding, ObjectCannedACL.PUBLIC_READ,
+                        source, storedLength);
+            } else {
+                PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(fileName)
+                        .acl(ObjectCannedACL.PUBLIC_READ)
+                        .contentType(contentType)
+                        .contentEncoding(contentEncoding)
+                        .contentLength(storedLength)
+                        .build();
+
+                eTag = s3Client.putObject(putObjectRequest, RequestBody.fromInputStream(source, storedLength)).eTag();
+            }
+            objectCache.invalidate(bucket, fileName);
+            metadataIndex.changed(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
+            deduplicator.stored(bucket, fileName, content, eTag);
+            imageVariants.generate(bucket, fileName, contentType, source, ObjectCannedACL.PUBLIC_READ);
+        }
+    }
+
+    @Async
+    @Override
+    public void saveFileToBucket(String bucket, String fileName, String contentType, Path file, long contentLength) {
+        // a file-backed stream, so it can be hashed and sampled in place and rewound for the upload
+        try (InputStream inputStream = CachedObjectInputStream.open(file, 0, contentLength)) {
+            this.saveFileToBucket(bucket, fileName, contentType, inputStream, contentLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            uploadStaging.delete(file);
+        }
     }
 
     @Override
@@ -41,32 +118,111 @@ public class S3Service implements S3StorageService {
         log.debug("== S3 getFileFromBucket");
         log.debug("= file name: {}", fileName);
         log.debug("= bucket: {}", bucket);
-        GetObjectRequest getObjectRequest= GetObjectRequest.builder()
-                .bucket(bucket)
-                .key(fileName)
-                .build();
+        if (metadataIndex.isKnownMissing(bucket, fileName))
+            throw missing(fileName);
+        return objectCache.get(bucket, fileName,
+                getObjectRequest -> s3Client.getObject(getObjectRequest, ResponseTransformer.toBytes()));
+    }
 
-        return s3Client.getObject(getObjectRequest, ResponseTransformer.toBytes()).asByteArray();
+    @Override
+    public ResponseInputStream<GetObjectResponse> getFileStreamFromBucket(String bucket, String fileName, String range) {
+        log.debug("== S3 getFileStreamFromBucket");
+        log.debug("= file name: {}", fileName);
+        log.debug("= bucket: {}", bucket);
+        log.debug("= range: {}", range);
+        if (metadataIndex.isKnownMissing(bucket, fileName))
+            throw missing(fileName);
+        return objectCache.open(bucket, fileName, range, getObjectRequest -> s3Client.getObject(getObjectRequest));
+    }
+
+    @Override
+    public Stream<S3ListingEntry> listFiles(String bucket, String prefix, String delimiter, String continuationToken,
+                                            int maxKeys, int maxPages) {
+        log.debug("== S3 listFiles");
+        log.debug("= prefix: {}", prefix);
+        log.debug("= delimiter: {}", delimiter);
+        log.debug("= bucket: {}", bucket);
+        return objectLister.list(bucket, prefix, delimiter, continuationToken, maxKeys, maxPages);
+    }
+
+    @Override
+    public String getVariantFileName(String fileName, String variant) {
+        log.debug("== S3 getVariantFileName");
+        log.debug("= file name: {}", fileName);
+        log.debug("= variant: {}", variant);
+        return imageVariants.variantKey(fileName, variant);
+    }
+
+    @Override
+    public S3FileMetadataResponse getFileMetadata(String bucket, String fileName) {
+        log.debug("== S3 getFileMetadata");
+        log.debug("= file name: {}", fileName);
+        log.debug("= bucket: {}", bucket);
+        return metadataIndex.get(bucket, fileName);
+    }
+
+    @Override
+    public List<S3FileMetadataResponse> listFileMetadata(String bucket, String prefix, int limit) {
+        log.debug("== S3 listFileMetadata");
+        log.debug("= prefix: {}", prefix);
+        log.debug("= bucket: {}", bucket);
+        return metadataIndex.list(bucket, prefix, limit);
     }
 
     @Override
     public String generatePresignedUrl(String bucket, String fileName, String contentType) {
         log.debug("== Generate Presigned Url filename: {}", fileName);
         log.debug("= bucket: {}", bucket);
-        Duration expiration = Duration.ofMinutes(15);
-        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                .bucket(bucket)
-                .key(fileName)
-                .contentType(contentType)
-                .build();
-        log.debug("== presignedGetObjectRequest");
-        PresignedPutObjectRequest presignedPutObjectRequest = this.s3Presigner.presignPutObject(putRequest ->
-                putRequest
-                        .signatureDuration(expiration)
-                        .putObjectRequest(putObjectRequest)
-        );
+        String url = urlPresigner.presign(bucket, fileName, contentType, S3UrlPresigner.PUT);
         log.debug("== Generate Presigned Url returning");
-        return presignedPutObjectRequest.url().toString();
+        return url;
+    }
+
+    @Override
+    public String generatePresignedGetUrl(String bucket, String fileName) {
+        log.debug("== Generate Presigned Get Url filename: {}", fileName);
+        log.debug("= bucket: {}", bucket);
+        return urlPresigner.presign(bucket, fileName, null, S3UrlPresigner.GET);
+    }
+
+    @Override
+    public List<S3PresignedUrlResponse> generatePresignedUrls(String bucket, List<S3Request> requests) {
+        log.debug("== Generate Presigned Urls: {} files", requests.size());
+        log.debug("= bucket: {}", bucket);
+        return urlPresigner.presignAll(bucket, requests);
+    }
+
+    @Override
+    public S3MultipartUploadResponse initiateMultipartUpload(String bucket, String fileName, String contentType) {
+        log.debug("== initiateMultipartUpload: {}", fileName);
+        log.debug("= bucket: {}", bucket);
+        return presignedMultipartUploads.initiate(bucket, fileName, contentType);
+    }
+
+    @Override
+    public List<S3PresignedPartResponse> generatePresignedPartUrls(String bucket, String fileName, String uploadId, int partCount) {
+        log.debug("== Generate Presigned Part Urls filename: {}", fileName);
+        log.debug("= upload id: {}", uploadId);
+        log.debug("= part count: {}", partCount);
+        return urlPresigner.presignParts(bucket, fileName, uploadId, partCount);
+    }
+
+    @Override
+    public void completeMultipartUpload(String bucket, String fileName, String uploadId, List<S3UploadedPart> parts) {
+        log.debug("== completeMultipartUpload: {}", fileName);
+        log.debug("= upload id: {}", uploadId);
+        presignedMultipartUploads.complete(bucket, fileName, uploadId, parts);
+        objectCache.invalidate(bucket, fileName);
+        // presigned multipart uploads are initiated public-read
+        metadataIndex.changed(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
+        deduplicator.removed(bucket, fileName);
+    }
+
+    @Override
+    public void abortMultipartUpload(String bucket, String fileName, String uploadId) {
+        log.debug("== abortMultipartUpload: {}", fileName);
+        log.debug("= upload id: {}", uploadId);
+        presignedMultipartUploads.abort(bucket, fileName, uploadId);
     }
 
     @Override
@@ -75,14 +231,17 @@ public class S3Service implements S3StorageService {
         log.debug("renameFile old file name: {}", oldFileName);
         log.debug("renameFile new file name: {}", newFileName);
         log.debug("= bucket: {}", bucket);
+        // a retry whose previous attempt deleted the source but failed before returning finds the rename done
+        if (S3RetryPolicy.isRetry() && objectCopier.isMoved(bucket, oldFileName, newFileName)) {
+            log.debug("== renameFile: {} was moved by the previous attempt", oldFileName);
+            return;
+        }
         try {
-            GetObjectRequest getRequest = GetObjectRequest.builder()
-                    .bucket(bucket)
-                    .key(oldFileName)
-                    .build();
-
-            byte[] fileBytes = s3Client.getObject(getRequest, ResponseTransformer.toBytes()).asByteArray();
-            this.saveFileToBucket(bucket, newFileName, contentType, fileBytes);
+            ObjectCannedACL acl = objectCopier.copy(bucket, oldFileName, newFileName, contentType);
+            objectCache.invalidate(bucket, newFileName);
+            metadataIndex.copied(bucket, oldFileName, newFileName);
+            deduplicator.removed(bucket, newFileName);
+            imageVariants.copied(bucket, oldFileName, newFileName, acl);
             log.debug("Object copied!");
         } catch (S3Exception e) {
             log.error("Object not found: " + e.awsErrorDetails().errorMessage());
@@ -107,6 +266,23 @@ public class S3Service implements S3StorageService {
         }
     }
 
+    @Override
+    public S3BatchResponse renameFilesByPrefix(String bucket, String oldPrefix, String newPrefix) {
+        log.debug("== renameFilesByPrefix");
+        log.debug("renameFilesByPrefix old prefix: {}", oldPrefix);
+        log.debug("renameFilesByPrefix new prefix: {}", newPrefix);
+        log.debug("= bucket: {}", bucket);
+        S3BatchResponse response = objectCopier.renameByPrefix(bucket, oldPrefix, newPrefix);
+        objectCache.invalidatePrefix(bucket, oldPrefix);
+        objectCache.invalidatePrefix(bucket, newPrefix);
+        metadataIndex.prefixChanged(bucket, oldPrefix);
+        metadataIndex.prefixChanged(bucket, newPrefix);
+        deduplicator.removedPrefix(bucket, oldPrefix);
+        deduplicator.removedPrefix(bucket, newPrefix);
+        imageVariants.renamedPrefix(bucket, oldPrefix, newPrefix);
+        return response;
+    }
+
     @Override
     public void deleteFile(String bucket, String fileName) {
         log.debug("deleteFile: {}", fileName);
@@ -117,6 +293,40 @@ public class S3Service implements S3StorageService {
                 .build();
 
         s3Client.deleteObject(deleteObjectRequest);
+        objectCache.invalidate(bucket, fileName);
+        metadataIndex.removed(bucket, fileName);
+        deduplicator.removed(bucket, fileName);
+        imageVariants.removed(bucket, List.of(fileName));
+    }
+
+    @Override
+    public S3BatchResponse deleteFiles(String bucket, List<String> fileNames) {
+        log.debug("deleteFiles: {} files", fileNames.size());
+        log.debug("= bucket: {}", bucket);
+        S3BatchResponse response = batchDeleter.deleteKeys(bucket, fileNames);
+        fileNames.forEach(fileName -> {
+            objectCache.invalidate(bucket, fileName);
+            if (!response.getFailures().containsKey(fileName)) {
+                metadataIndex.removed(bucket, fileName);
+                deduplicator.removed(bucket, fileName);
+            }
+        });
+        imageVariants.removed(bucket, fileNames.stream()
+                .filter(fileName -> !response.getFailures().containsKey(fileName))
+                .toList());
+        return response;
+    }
+
+    @Override
+    public S3BatchResponse deleteFilesByPrefix(String bucket, String prefix) {
+        log.debug("deleteFilesByPrefix: {}", prefix);
+        log.debug("= bucket: {}", bucket);
+        S3BatchResponse response = batchDeleter.deleteByPrefix(bucket, prefix);
+        objectCache.invalidatePrefix(bucket, prefix);
+        metadataIndex.prefixChanged(bucket, prefix);
+        deduplicator.removedPrefix(bucket, prefix);
+        imageVariants.removedPrefix(bucket, prefix);
+        return response;
     }
 
     @Override
@@ -133,6 +343,8 @@ public class S3Service implements S3StorageService {
 
             // Set the object ACL
             s3Client.putObjectAcl(putObjectAclRequest);
+            metadataIndex.aclChanged(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
+            imageVariants.aclChanged(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
             log.debug("File has been made public.");
         }
         catch (S3Exception e) {
@@ -160,6 +372,8 @@ public class S3Service implements S3StorageService {
 
             // Set the object ACL
             s3Client.putObjectAcl(putObjectAclRequest);
+            metadataIndex.aclChanged(bucket, fileName, ObjectCannedACL.PRIVATE);
+            imageVariants.aclChanged(bucket, fileName, ObjectCannedACL.PRIVATE);
             log.debug("File has been made private.");
         }
         catch (S3Exception e) {
@@ -172,4 +386,25 @@ public class S3Service implements S3StorageService {
             throw ex;
         }
     }
+
+    @Override
+    public S3AclJobResponse startAclJob(String bucket, String prefix, List<String> fileNames, boolean makePublic) {
+        log.debug("startAclJob public: {}", makePublic);
+        log.debug("= prefix: {}", prefix);
+        log.debug("= bucket: {}", bucket);
+        return aclJobManager.start(bucket, prefix, fileNames, makePublic ? ObjectCannedACL.PUBLIC_READ : ObjectCannedACL.PRIVATE);
+    }
+
+    @Override
+    public S3AclJobResponse getAclJob(String jobId) {
+        log.debug("getAclJob: {}", jobId);
+        return aclJobManager.get(jobId);
+    }
+
+    private static NoSuchKeyException missing(String fileName) {
+        return (NoSuchKeyException) NoSuchKeyException.builder()
+                .statusCode(404)
+                .message("The specified key does not exist: " + fileName)
+                .build();
+    }
 }
@@ -1,32 +1,61 @@
 package com.shahidfoy.s3_demo.service.impl;
 
-import com.n1netails.n1netails.kuda.api.Tail;
+import com.shahidfoy.s3_demo.config.S3RetryPolicy;
+import com.shahidfoy.s3_demo.model.request.S3Request;
+import com.shahidfoy.s3_demo.model.request.S3UploadedPart;
+import com.shahidfoy.s3_demo.model.response.S3AclJobResponse;
+import com.shahidfoy.s3_demo.model.response.S3BatchResponse;
+import com.shahidfoy.s3_demo.model.response.S3FileMetadataResponse;
+import com.shahidfoy.s3_demo.model.response.S3ListingEntry;
+import com.shahidfoy.s3_demo.model.response.S3MultipartUploadResponse;
+import com.shahidfoy.s3_demo.model.response.S3PresignedPartResponse;
+import com.shahidfoy.s3_demo.model.response.S3PresignedUrlResponse;
 import com.shahidfoy.s3_demo.service.S3StorageService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Primary;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.core.sync.ResponseTransformer;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
-import software.amazon.awssdk.services.s3.presigner.S3Presigner;
-import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
 
-import java.time.Duration;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 @Slf4j
 @RequiredArgsConstructor
 @Service
 @Primary
+@ConditionalOnProperty(name = "storage.s3.client", havingValue = "sync", matchIfMissing = true)
 public class S3ServiceSubtleErrors implements S3StorageService {
 
     private final S3Client s3Client;
-    private final S3Presigner s3Presigner;
+    private final S3UrlPresigner urlPresigner;
+    private final S3PresignedMultipartUploads presignedMultipartUploads;
+    private final S3AclJobManager aclJobManager;
+    private final S3ObjectLister objectLister;
+    private final S3MultipartUploader multipartUploader;
+    private final S3ObjectCopier objectCopier;
+    private final S3BatchDeleter batchDeleter;
+    private final S3ObjectCache objectCache;
+    private final S3MetadataIndex metadataIndex;
+    private final S3ImageVariants imageVariants;
+    private final S3ContentDeduplicator deduplicator;
+    private final S3ContentCompressor compressor;
+    private final TailNotifier tailNotifier;
+    private final S3UploadStaging uploadStaging;
 
     @Async
     @Override
@@ -35,14 +64,78 @@ public class S3ServiceSubtleErrors implements S3StorageService {
 
         saveFileNotification(bucket, fileName, contentType);
 
-        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                .bucket(bucket)
-                .key(fileName)
-                .contentType(contentType)
-                .acl(ObjectCannedACL.PUBLIC_READ)
-                .build();
+        S3ContentCompressor.EncodedContent encoded = compressor.encode(contentType, bytes);
+        byte[] payload = encoded.bytes();
+        S3ContentDeduplicator.HashedContent content = deduplicator.hash(payload);
+        if (!deduplicator.copyExisting(bucket, fileName, contentType, encoded.contentEncoding(), content)) {
+            String eTag;
+            if (multipartUploader.shouldUseMultipart(payload.length)) {
+                eTag = multipartUploader.upload(bucket, fileName, contentType, encoded.contentEncoding(),
+                        ObjectCannedACL.PUBLIC_READ, new ByteArrayInputStream(payload), payload.length);
+            } else {
+                PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(fileName)
+                        .contentType(contentType)
+                        .contentEncoding(encoded.contentEncoding())
+                        .acl(ObjectCannedACL.PUBLIC_READ)
+                        .build();
+
+                eTag = s3Client.putObject(putObjectRequest, RequestBody.fromBytes(payload)).eTag();
+            }
+            deduplicator.stored(bucket, fileName, content, eTag);
+        }
+        objectCache.invalidate(bucket, fileName);
+        metadataIndex.changed(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
+        imageVariants.generate(bucket, fileName, contentType, bytes, ObjectCannedACL.PUBLIC_READ);
+
+        // Subtle trigger: throw exception if filename starts with "__error__"
+        if (fileName.startsWith("__error__")) {
+            throw new IllegalStateException("Subtle failure saving file: " + fileName);
+        }
+    }
+
+    /**
+     * not {@code @Async}: the stream usually belongs to the current request (e.g. a multipart temp file)
+     * and is gone once the request completes, so it has to be consumed on the calling thread.
+     * Requests hand their file over to the {@link Path} overload instead.
+     */
+    @Override
+    public void saveFileToBucket(String bucket, String fileName, String contentType, InputStream inputStream, long contentLength) {
+        log.debug("== S3 saveFileToBucket (stream): {} ({} bytes)", fileName, contentLength);
+
+        saveFileNotification(bucket, fileName, contentType);
 
-        s3Client.putObject(putObjectRequest, RequestBody.fromBytes(bytes));
+        try (S3ContentCompressor.EncodedContent encoded = compressor.encode(contentType, inputStream, contentLength);
+             S3ContentDeduplicator.HashedContent content = deduplicator.hash(encoded.stream(), encoded.contentLength())) {
+            long storedLength = encoded.contentLength();
+            if (deduplicator.copyExisting(bucket, fileName, contentType, encoded.contentEncoding(), content)) {
+                imageVariants.generate(bucket, fileName, contentType, content.stream(), storedLength,
+                        ObjectCannedACL.PUBLIC_READ);
+            } else {
+                InputStream source = imageVariants.capture(fileName, contentType, content.stream(), storedLength);
+                String eTag;
+                if (multipartUploader.shouldUseMultipart(storedLength)) {
+                    eTag = multipartUploader.upload(bucket, fileName, contentType, encoded.contentEncoding(),
+                            ObjectCannedACL.PUBLIC_READ, source, storedLength);
+                } else {
+                    PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                            .bucket(bucket)
+                            .key(fileName)
+                            .contentType(contentType)
+                            .contentEncoding(encoded.contentEncoding())
+                            .contentLength(storedLength)
+                            .acl(ObjectCannedACL.PUBLIC_READ)
+                            .build();
+
+                    eTag = s3Client.putObject(putObjectRequest, RequestBody.fromInputStream(source, storedLength)).eTag();
+                }
+                deduplicator.stored(bucket, fileName, content, eTag);
+                imageVariants.generate(bucket, fileName, contentType, source, ObjectCannedACL.PUBLIC_READ);
+            }
+        }
+        objectCache.invalidate(bucket, fileName);
+        metadataIndex.changed(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
 
         // Subtle trigger: throw exception if filename starts with "__error__"
         if (fileName.startsWith("__error__")) {
@@ -50,30 +143,41 @@ public class S3ServiceSubtleErrors implements S3StorageService {
         }
     }
 
-    private static void saveFileNotification(String bucket, String fileName, String contentType) {
+    @Async
+    @Override
+    public void saveFileToBucket(String bucket, String fileName, String contentType, Path file, long contentLength) {
+        log.debug("== S3 saveFileToBucket (staged): {} ({} bytes)", fileName, contentLength);
+
+        // a file-backed stream, so it can be hashed and sampled in place and rewound for the upload
+        try (InputStream inputStream = CachedObjectInputStream.open(file, 0, contentLength)) {
+            saveFileToBucket(bucket, fileName, contentType, inputStream, contentLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            uploadStaging.delete(file);
+        }
+    }
+
+    private void saveFileNotification(String bucket, String fileName, String contentType) {
         Map<String, String> saveFileTags = new HashMap<>();
         saveFileTags.put("filename", fileName);
         saveFileTags.put("bucket", bucket);
-        Tail.info("New save file request")
-                .description("A new save file request has been received")
-                .details(
-                        bucket + " " + fileName + " " + contentType
-                )
-                .type("USER_ACTION_COMPLETED")
-                .withTags(saveFileTags)
-                .send();
+        tailNotifier.info("New save file request",
+                "A new save file request has been received",
+                bucket + " " + fileName + " " + contentType,
+                "USER_ACTION_COMPLETED",
+                saveFileTags);
     }
 
     @Override
     public byte[] getFileFromBucket(String bucket, String fileName) {
         log.debug("== S3 getFileFromBucket: {}", fileName);
 
-        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                .bucket(bucket)
-                .key(fileName)
-                .build();
+        if (metadataIndex.isKnownMissing(bucket, fileName))
+            throw missing(fileName);
 
-        byte[] data = s3Client.getObject(getObjectRequest, ResponseTransformer.toBytes()).asByteArray();
+        byte[] data = objectCache.get(bucket, fileName,
+                getObjectRequest -> s3Client.getObject(getObjectRequest, ResponseTransformer.toBytes()));
 
         // Subtle trigger: return stack trace if bytes are empty
         if (data.length == 0) {
@@ -89,21 +193,49 @@ public class S3ServiceSubtleErrors implements S3StorageService {
     }
 
     @Override
-    public String generatePresignedUrl(String bucket, String fileName, String contentType) {
-        log.debug("== Generate Presigned Url for: {}", fileName);
+    public ResponseInputStream<GetObjectResponse> getFileStreamFromBucket(String bucket, String fileName, String range) {
+        log.debug("== S3 getFileStreamFromBucket: {} range: {}", fileName, range);
 
-        Duration expiration = Duration.ofMinutes(15);
-        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                .bucket(bucket)
-                .key(fileName)
-                .contentType(contentType)
-                .build();
+        if (metadataIndex.isKnownMissing(bucket, fileName))
+            throw missing(fileName);
+
+        return objectCache.open(bucket, fileName, range, getObjectRequest -> s3Client.getObject(getObjectRequest));
+    }
+
+    @Override
+    public Stream<S3ListingEntry> listFiles(String bucket, String prefix, String delimiter, String continuationToken,
+                                            int maxKeys, int maxPages) {
+        log.debug("== S3 listFiles prefix: {} delimiter: {}", prefix, delimiter);
+
+        return objectLister.list(bucket, prefix, delimiter, continuationToken, maxKeys, maxPages);
+    }
+
+    @Override
+    public String getVariantFileName(String fileName, String variant) {
+        log.debug("== S3 getVariantFileName: {} variant: {}", fileName, variant);
+
+        return imageVariants.variantKey(fileName, variant);
+    }
+
+    @Override
+    public S3FileMetadataResponse getFileMetadata(String bucket, String fileName) {
+        log.debug("== S3 getFileMetadata: {}", fileName);
+
+        return metadataIndex.get(bucket, fileName);
+    }
+
+    @Override
+    public List<S3FileMetadataResponse> listFileMetadata(String bucket, String prefix, int limit) {
+        log.debug("== S3 listFileMetadata prefix: {} limit: {}", prefix, limit);
+
+        return metadataIndex.list(bucket, prefix, limit);
+    }
 
-        PresignedPutObjectRequest presignedPutObjectRequest = this.s3Presigner.presignPutObject(
-                putRequest -> putRequest.signatureDuration(expiration).putObjectRequest(putObjectRequest)
-        );
+    @Override
+    public String generatePresignedUrl(String bucket, String fileName, String contentType) {
+        log.debug("== Generate Presigned Url for: {}", fileName);
 
-        String url = presignedPutObjectRequest.url().toString();
+        String url = urlPresigner.presign(bucket, fileName, contentType, S3UrlPresigner.PUT);
 
         // Subtle trigger: throw exception if bucket name contains "bad"
         if (bucket.contains("bad")) {
@@ -113,12 +245,66 @@ public class S3ServiceSubtleErrors implements S3StorageService {
         return url;
     }
 
+    @Override
+    public String generatePresignedGetUrl(String bucket, String fileName) {
+        log.debug("== Generate Presigned Get Url for: {}", fileName);
+
+        return urlPresigner.presign(bucket, fileName, null, S3UrlPresigner.GET);
+    }
+
+    @Override
+    public List<S3PresignedUrlResponse> generatePresignedUrls(String bucket, List<S3Request> requests) {
+        log.debug("== Generate Presigned Urls: {} files", requests.size());
+
+        return urlPresigner.presignAll(bucket, requests);
+    }
+
+    @Override
+    public S3MultipartUploadResponse initiateMultipartUpload(String bucket, String fileName, String contentType) {
+        log.debug("== initiateMultipartUpload: {}", fileName);
+
+        return presignedMultipartUploads.initiate(bucket, fileName, contentType);
+    }
+
+    @Override
+    public List<S3PresignedPartResponse> generatePresignedPartUrls(String bucket, String fileName, String uploadId, int partCount) {
+        log.debug("== Generate Presigned Part Urls for: {} ({} parts)", fileName, partCount);
+
+        return urlPresigner.presignParts(bucket, fileName, uploadId, partCount);
+    }
+
+    @Override
+    public void completeMultipartUpload(String bucket, String fileName, String uploadId, List<S3UploadedPart> parts) {
+        log.debug("== completeMultipartUpload: {} ({})", fileName, uploadId);
+
+        presignedMultipartUploads.complete(bucket, fileName, uploadId, parts);
+        objectCache.invalidate(bucket, fileName);
+        // presigned multipart uploads are initiated public-read
+        metadataIndex.changed(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
+        deduplicator.removed(bucket, fileName);
+    }
+
+    @Override
+    public void abortMultipartUpload(String bucket, String fileName, String uploadId) {
+        log.debug("== abortMultipartUpload: {} ({})", fileName, uploadId);
+
+        presignedMultipartUploads.abort(bucket, fileName, uploadId);
+    }
+
     @Override
     public void renameFile(String bucket, String oldFileName, String newFileName, String contentType) {
         log.debug("== renameFile: {} -> {}", oldFileName, newFileName);
+        // a retry whose previous attempt deleted the source but failed before returning finds the rename done
+        if (S3RetryPolicy.isRetry() && objectCopier.isMoved(bucket, oldFileName, newFileName)) {
+            log.debug("== renameFile: {} was moved by the previous attempt", oldFileName);
+            return;
+        }
 
-        byte[] bytes = this.getFileFromBucket(bucket, oldFileName);
-        this.saveFileToBucket(bucket, newFileName, contentType, bytes);
+        ObjectCannedACL acl = objectCopier.copy(bucket, oldFileName, newFileName, contentType);
+        objectCache.invalidate(bucket, newFileName);
+        metadataIndex.copied(bucket, oldFileName, newFileName);
+        deduplicator.removed(bucket, newFileName);
+        imageVariants.copied(bucket, oldFileName, newFileName, acl);
 
         // Subtle trigger: fail after copy, before delete
         if (oldFileName.endsWith("__rename_fail__")) {
@@ -128,6 +314,21 @@ public class S3ServiceSubtleErrors implements S3StorageService {
         this.deleteFile(bucket, oldFileName);
     }
 
+    @Override
+    public S3BatchResponse renameFilesByPrefix(String bucket, String oldPrefix, String newPrefix) {
+        log.debug("== renameFilesByPrefix: {} -> {}", oldPrefix, newPrefix);
+
+        S3BatchResponse response = objectCopier.renameByPrefix(bucket, oldPrefix, newPrefix);
+        objectCache.invalidatePrefix(bucket, oldPrefix);
+        objectCache.invalidatePrefix(bucket, newPrefix);
+        metadataIndex.prefixChanged(bucket, oldPrefix);
+        metadataIndex.prefixChanged(bucket, newPrefix);
+        deduplicator.removedPrefix(bucket, oldPrefix);
+        deduplicator.removedPrefix(bucket, newPrefix);
+        imageVariants.renamedPrefix(bucket, oldPrefix, newPrefix);
+        return response;
+    }
+
     @Override
     public void deleteFile(String bucket, String fileName) {
         log.debug("== deleteFile: {}", fileName);
@@ -138,6 +339,10 @@ public class S3ServiceSubtleErrors implements S3StorageService {
                 .build();
 
         s3Client.deleteObject(deleteObjectRequest);
+        objectCache.invalidate(bucket, fileName);
+        metadataIndex.removed(bucket, fileName);
+        deduplicator.removed(bucket, fileName);
+        imageVariants.removed(bucket, List.of(fileName));
 
         // Subtle trigger: fail only for files containing "undeletable"
         if (fileName.contains("undeletable")) {
@@ -145,6 +350,36 @@ public class S3ServiceSubtleErrors implements S3StorageService {
         }
     }
 
+    @Override
+    public S3BatchResponse deleteFiles(String bucket, List<String> fileNames) {
+        log.debug("== deleteFiles: {} files", fileNames.size());
+
+        S3BatchResponse response = batchDeleter.deleteKeys(bucket, fileNames);
+        fileNames.forEach(fileName -> {
+            objectCache.invalidate(bucket, fileName);
+            if (!response.getFailures().containsKey(fileName)) {
+                metadataIndex.removed(bucket, fileName);
+                deduplicator.removed(bucket, fileName);
+            }
+        });
+        imageVariants.removed(bucket, fileNames.stream()
+                .filter(fileName -> !response.getFailures().containsKey(fileName))
+                .toList());
+        return response;
+    }
+
+    @Override
+    public S3BatchResponse deleteFilesByPrefix(String bucket, String prefix) {
+        log.debug("== deleteFilesByPrefix: {}", prefix);
+
+        S3BatchResponse response = batchDeleter.deleteByPrefix(bucket, prefix);
+        objectCache.invalidatePrefix(bucket, prefix);
+        metadataIndex.prefixChanged(bucket, prefix);
+        deduplicator.removedPrefix(bucket, prefix);
+        imageVariants.removedPrefix(bucket, prefix);
+        return response;
+    }
+
     @Override
     public void makeFilePublic(String bucket, String fileName) {
         log.debug("== makeFilePublic: {}", fileName);
@@ -156,6 +391,8 @@ public class S3ServiceSubtleErrors implements S3StorageService {
                 .build();
 
         s3Client.putObjectAcl(putObjectAclRequest);
+        metadataIndex.aclChanged(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
+        imageVariants.aclChanged(bucket, fileName, ObjectCannedACL.PUBLIC_READ);
 
         // Subtle trigger: fail on files containing "nopublic"
         if (fileName.contains("nopublic")) {
@@ -174,10 +411,33 @@ public class S3ServiceSubtleErrors implements S3StorageService {
                 .build();
 
         s3Client.putObjectAcl(putObjectAclRequest);
+        metadataIndex.aclChanged(bucket, fileName, ObjectCannedACL.PRIVATE);
+        imageVariants.aclChanged(bucket, fileName, ObjectCannedACL.PRIVATE);
 
         // Subtle trigger: fail on files containing "noprivate"
         if (fileName.contains("noprivate")) {
             throw new RuntimeException("Could not set file to private: " + fileName);
         }
     }
+
+    @Override
+    public S3AclJobResponse startAclJob(String bucket, String prefix, List<String> fileNames, boolean makePublic) {
+        log.debug("== startAclJob public: {} prefix: {}", makePublic, prefix);
+
+        return aclJobManager.start(bucket, prefix, fileNames, makePublic ? ObjectCannedACL.PUBLIC_READ : ObjectCannedACL.PRIVATE);
+    }
+
+    @Override
+    public S3AclJobResponse getAclJob(String jobId) {
+        log.debug("== getAclJob: {}", jobId);
+
+        return aclJobManager.get(jobId);
+    }
+
+    private static NoSuchKeyException missing(String fileName) {
+        return (NoSuchKeyException) NoSuchKeyException.builder()
+                .statusCode(404)
+                .message("The specified key does not exist: " + fileName)
+                .build();
+    }
 }
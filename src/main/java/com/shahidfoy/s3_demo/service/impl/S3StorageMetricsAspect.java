@@ -0,0 +1,91 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every {@link com.shahidfoy.s3_demo.service.S3StorageService} call as s3.operation, tagged with the
+ * method, the outcome and the s3 error code of failures, and counts payload bytes as s3.operation.bytes.
+ * The timer covers the whole call, cache hits and spring retries included. The sdk's own attempts are
+ * timed separately by {@link com.shahidfoy.s3_demo.config.S3MetricsInterceptor}.
+ */
+@Aspect
+@RequiredArgsConstructor
+@Component
+public class S3StorageMetricsAspect {
+
+    private final MeterRegistry meterRegistry;
+
+    @Around("execution(* com.shahidfoy.s3_demo.service.S3StorageService.*(..))")
+    public Object measure(ProceedingJoinPoint joinPoint) throws Throwable {
+        String operation = joinPoint.getSignature().getName();
+        long start = System.nanoTime();
+        String outcome = "success";
+        String errorCode = "none";
+        try {
+            Object result = joinPoint.proceed();
+            countBytes(operation, joinPoint.getArgs(), result);
+            return result;
+        } catch (Throwable e) {
+            outcome = "error";
+            errorCode = errorCode(e);
+            throw e;
+        } finally {
+            Timer.builder("s3.operation")
+                    .description("Latency of S3StorageService operations")
+                    .tag("operation", operation)
+                    .tag("outcome", outcome)
+                    .tag("error_code", errorCode)
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void countBytes(String operation, Object[] args, Object result) {
+        long uploaded = 0;
+        long downloaded = 0;
+        if (operation.equals("saveFileToBucket")) {
+            // (bucket, fileName, contentType, byte[]) or (bucket, fileName, contentType, InputStream, contentLength)
+            uploaded = args.length == 4 && args[3] instanceof byte[] bytes ? bytes.length
+                    : args.length == 5 && args[4] instanceof Long contentLength ? contentLength : 0;
+        } else if (result instanceof byte[] bytes) {
+            downloaded = bytes.length;
+        } else if (result instanceof ResponseInputStream<?> stream && stream.response() instanceof GetObjectResponse response
+                && response.contentLength() != null) {
+            downloaded = response.contentLength();
+        }
+        if (uploaded > 0)
+            bytes(operation, "upload").increment(uploaded);
+        if (downloaded > 0)
+            bytes(operation, "download").increment(downloaded);
+    }
+
+    private Counter bytes(String operation, String direction) {
+        return Counter.builder("s3.operation.bytes")
+                .description("Payload bytes moved by S3StorageService operations")
+                .baseUnit("bytes")
+                .tag("operation", operation)
+                .tag("direction", direction)
+                .register(meterRegistry);
+    }
+
+    private static String errorCode(Throwable e) {
+        if (e instanceof S3Exception s3Exception && s3Exception.awsErrorDetails() != null
+                && s3Exception.awsErrorDetails().errorCode() != null)
+            return s3Exception.awsErrorDetails().errorCode();
+        return e.getClass().getSimpleName();
+    }
+}
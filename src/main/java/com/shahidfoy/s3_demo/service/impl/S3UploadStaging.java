@@ -0,0 +1,62 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Directory save-file requests move their multipart temp file into, so the upload executor can stream it to s3
+ * after the request has completed and the servlet container has cleaned up after it. On the same file system as
+ * the container's temp files the move is a rename, not a copy.
+ * <p>
+ * Staged files are not a durable queue, a file left over from a previous run belongs to an upload lost with it
+ * and is deleted on startup. Write-behind mode is the durable alternative.
+ */
+@Slf4j
+@Component
+public class S3UploadStaging {
+
+    private static final String SUFFIX = ".upload";
+
+    @Value("${storage.upload-executor.directory}")
+    private Path STORAGE_UPLOAD_EXECUTOR_DIRECTORY;
+
+    @PostConstruct
+    void init() throws IOException {
+        Files.createDirectories(STORAGE_UPLOAD_EXECUTOR_DIRECTORY);
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(STORAGE_UPLOAD_EXECUTOR_DIRECTORY, "*" + SUFFIX)) {
+            for (Path file : files) {
+                delete(file);
+                deleted++;
+            }
+        }
+        if (deleted > 0)
+            log.warn("=== upload staging: deleted {} uploads left over from the previous run", deleted);
+        log.info("=== upload staging: {}", STORAGE_UPLOAD_EXECUTOR_DIRECTORY);
+    }
+
+    /**
+     * @return new empty file in the staging directory
+     */
+    public Path newFile() throws IOException {
+        return Files.createTempFile(STORAGE_UPLOAD_EXECUTOR_DIRECTORY, "save-file-", SUFFIX);
+    }
+
+    /**
+     * deletes a staged file once its upload has finished or failed
+     */
+    public void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete staged upload {}: {}", file, e.getMessage());
+        }
+    }
+}
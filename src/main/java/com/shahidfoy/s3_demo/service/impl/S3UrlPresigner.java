@@ -0,0 +1,176 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.shahidfoy.s3_demo.model.request.S3Request;
+import com.shahidfoy.s3_demo.model.response.S3PresignedPartResponse;
+import com.shahidfoy.s3_demo.model.response.S3PresignedUrlResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ * Presigns GET and PUT urls and caches them for part of their validity window,
+ * so repeated requests for the same key, content type and method skip the SigV4 computation.
+ * <p>
+ * Signing is a few microseconds of local cpu with no io, so batches are signed on the calling thread. Handing
+ * them to a shared pool would only queue them behind the pool's s3 calls.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3UrlPresigner {
+
+    public static final String GET = "GET";
+    public static final String PUT = "PUT";
+
+    @Value("${storage.s3.presign.expiration}")
+    private Duration STORAGE_S3_PRESIGN_EXPIRATION;
+
+    @Value("${storage.s3.presign.cache-ttl}")
+    private Duration STORAGE_S3_PRESIGN_CACHE_TTL;
+
+    @Value("${storage.s3.presign.cache-max-entries}")
+    private long STORAGE_S3_PRESIGN_CACHE_MAX_ENTRIES;
+
+    private final S3Presigner s3Presigner;
+    private final MeterRegistry meterRegistry;
+    private final S3MetadataIndex metadataIndex;
+
+    private Cache<SignatureKey, String> signatures;
+
+    @PostConstruct
+    void init() {
+        if (STORAGE_S3_PRESIGN_CACHE_TTL.compareTo(STORAGE_S3_PRESIGN_EXPIRATION) >= 0)
+            throw new IllegalStateException("storage.s3.presign.cache-ttl must be shorter than storage.s3.presign.expiration");
+        // a cached url is handed out at most cache-ttl after signing, so clients always get expiration - cache-ttl of validity
+        this.signatures = Caffeine.newBuilder()
+                .expireAfterWrite(STORAGE_S3_PRESIGN_CACHE_TTL)
+                .maximumSize(STORAGE_S3_PRESIGN_CACHE_MAX_ENTRIES)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, signatures, "s3.presigned.urls");
+    }
+
+    /**
+     * @param bucket bucket path
+     * @param fileName file name
+     * @param contentType content type the upload must use, ignored for GET
+     * @param method GET to download or PUT to upload
+     * @return presigned url, possibly cached
+     */
+    public String presign(String bucket, String fileName, String contentType, String method) {
+        String httpMethod = httpMethod(method);
+        SignatureKey key = new SignatureKey(bucket, fileName, GET.equals(httpMethod) ? null : contentType, httpMethod);
+        if (PUT.equals(httpMethod))
+            // a cached url was signed earlier, so the full expiration from now covers it too
+            metadataIndex.expectExternalWrite(bucket, fileName, STORAGE_S3_PRESIGN_EXPIRATION);
+        return signatures.get(key, this::sign);
+    }
+
+    /**
+     * presigns every request, after checking all of them so a bad entry fails the batch before anything is signed
+     * @param bucket bucket path
+     * @param requests file name, content type and method of each url
+     * @return one presigned url per request, in request order
+     */
+    public List<S3PresignedUrlResponse> presignAll(String bucket, List<S3Request> requests) {
+        log.debug("== presign {} urls", requests.size());
+        requests.forEach(request -> httpMethod(request.getMethod()));
+        return requests.stream()
+                .map(request -> new S3PresignedUrlResponse(
+                        request.getFileName(),
+                        httpMethod(request.getMethod()),
+                        presign(bucket, request.getFileName(), request.getContentType(), request.getMethod())))
+                .toList();
+    }
+
+    /**
+     * presigns UploadPart urls for part numbers 1..partCount of a multipart upload.
+     * part urls are unique per upload id so they are not cached
+     * @param bucket bucket path
+     * @param fileName file name the upload was initiated for
+     * @param uploadId multipart upload id
+     * @param partCount number of parts, 1 to 10000
+     * @return one presigned url per part, in part number order
+     */
+    public List<S3PresignedPartResponse> presignParts(String bucket, String fileName, String uploadId, int partCount) {
+        if (partCount < 1 || partCount > S3PresignedMultipartUploads.MAX_PARTS)
+            throw new IllegalArgumentException("Part count must be between 1 and " + S3PresignedMultipartUploads.MAX_PARTS);
+        log.debug("== presign {} part urls for upload: {}", partCount, uploadId);
+        return IntStream.rangeClosed(1, partCount)
+                .mapToObj(partNumber -> {
+                    UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                            .bucket(bucket)
+                            .key(fileName)
+                            .uploadId(uploadId)
+                            .partNumber(partNumber)
+                            .build();
+                    String url = s3Presigner.presignUploadPart(partRequest -> partRequest
+                            .signatureDuration(STORAGE_S3_PRESIGN_EXPIRATION)
+                            .uploadPartRequest(uploadPartRequest)).url().toString();
+                    return new S3PresignedPartResponse(partNumber, url);
+                })
+                .toList();
+    }
+
+    /**
+     * @param method requested method, null means PUT
+     * @return true for the methods urls can be presigned for, GET and PUT
+     */
+    public static boolean isSupportedMethod(String method) {
+        String httpMethod = method == null ? PUT : method.toUpperCase(Locale.ROOT);
+        return GET.equals(httpMethod) || PUT.equals(httpMethod);
+    }
+
+    /**
+     * @return the upper-cased method, PUT when none is given
+     * @throws IllegalArgumentException for methods other than GET and PUT
+     */
+    private static String httpMethod(String method) {
+        if (!isSupportedMethod(method))
+            throw new IllegalArgumentException("Unsupported presign method: " + method + ", expected GET or PUT");
+        return method == null ? PUT : method.toUpperCase(Locale.ROOT);
+    }
+
+    private String sign(SignatureKey key) {
+        switch (key.method()) {
+            case GET -> {
+                GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                        .bucket(key.bucket())
+                        .key(key.fileName())
+                        .build();
+                return s3Presigner.presignGetObject(getRequest -> getRequest
+                        .signatureDuration(STORAGE_S3_PRESIGN_EXPIRATION)
+                        .getObjectRequest(getObjectRequest)).url().toString();
+            }
+            case PUT -> {
+                PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                        .bucket(key.bucket())
+                        .key(key.fileName())
+                        .contentType(key.contentType())
+                        .build();
+                return s3Presigner.presignPutObject(putRequest -> putRequest
+                        .signatureDuration(STORAGE_S3_PRESIGN_EXPIRATION)
+                        .putObjectRequest(putObjectRequest)).url().toString();
+            }
+            default -> throw new IllegalArgumentException("Unsupported presign method: " + key.method());
+        }
+    }
+
+    private record SignatureKey(String bucket, String fileName, String contentType, String method) {
+    }
+}
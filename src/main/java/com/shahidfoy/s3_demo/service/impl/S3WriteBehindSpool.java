@@ -0,0 +1,586 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.config.S3RetryPolicy;
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import com.shahidfoy.s3_demo.service.S3WriteBehindService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-behind upload queue on a durable local spool. Uploads are appended to segment files through a
+ * {@link FileChannel} and acknowledged once forced to disk, then drained to s3 through {@link S3StorageService}
+ * with bounded concurrency. Each drained record's offset is appended to the segment's ack file and a segment is
+ * deleted once every record in it is acked, so on startup every complete, unacked record is replayed.
+ * A record cut short by a crash fails its checksum and is dropped, it was never acknowledged either.
+ * <p>
+ * Uploads of the same file drain in order, and a queued upload that hasn't started yet is superseded by a newer
+ * one of the same file, so a burst of overwrites costs a single s3 upload.
+ * <p>
+ * Throttling, 5xx and io failures are retried with backoff up to max-attempts. Anything else (a denied or invalid
+ * request, or a failure after the object was stored) would fail the same way on every attempt, so the upload is
+ * dropped and acked at once rather than holding spool space forever.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class S3WriteBehindSpool implements S3WriteBehindService {
+
+    private static final int MAGIC = 0x53334257;
+    // magic, appended at, metadata length, payload length
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int CHECKSUM_SIZE = Long.BYTES;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String ACKS_SUFFIX = ".acks";
+
+    @Value("${storage.s3.write-behind.enabled}")
+    private boolean STORAGE_S3_WRITE_BEHIND_ENABLED;
+
+    @Value("${storage.s3.write-behind.directory}")
+    private Path STORAGE_S3_WRITE_BEHIND_DIRECTORY;
+
+    @Value("${storage.s3.write-behind.segment-size}")
+    private DataSize STORAGE_S3_WRITE_BEHIND_SEGMENT_SIZE;
+
+    @Value("${storage.s3.write-behind.max-size}")
+    private DataSize STORAGE_S3_WRITE_BEHIND_MAX_SIZE;
+
+    @Value("${storage.s3.write-behind.concurrency}")
+    private int STORAGE_S3_WRITE_BEHIND_CONCURRENCY;
+
+    @Value("${storage.s3.write-behind.retry-backoff}")
+    private Duration STORAGE_S3_WRITE_BEHIND_RETRY_BACKOFF;
+
+    @Value("${storage.s3.write-behind.max-retry-backoff}")
+    private Duration STORAGE_S3_WRITE_BEHIND_MAX_RETRY_BACKOFF;
+
+    @Value("${storage.s3.write-behind.max-attempts}")
+    private int STORAGE_S3_WRITE_BEHIND_MAX_ATTEMPTS;
+
+    private final S3StorageService storageService;
+    private final ExecutorService s3SpoolExecutor;
+    private final MeterRegistry meterRegistry;
+
+    // waiting to drain, at most one per file, in append order
+    private final LinkedHashMap<ObjectRef, Entry> pending = new LinkedHashMap<>();
+    private final Map<ObjectRef, Entry> inFlight = new HashMap<>();
+    private Segment active;
+    private long nextSegmentId;
+    private long spooledBytes;
+    private volatile boolean running = true;
+    private Counter uploaded;
+    private Counter superseded;
+    private Counter failed;
+    private Counter dropped;
+
+    @PostConstruct
+    void init() throws IOException {
+        this.uploaded = Counter.builder("s3.spool.drains").tag("result", "uploaded").register(meterRegistry);
+        this.superseded = Counter.builder("s3.spool.drains").tag("result", "superseded").register(meterRegistry);
+        this.failed = Counter.builder("s3.spool.drains").tag("result", "failed").register(meterRegistry);
+        this.dropped = Counter.builder("s3.spool.drains").tag("result", "dropped").register(meterRegistry);
+        if (!STORAGE_S3_WRITE_BEHIND_ENABLED)
+            return;
+
+        Files.createDirectories(STORAGE_S3_WRITE_BEHIND_DIRECTORY);
+        replay();
+        Gauge.builder("s3.spool.depth", this, S3WriteBehindSpool::depth)
+                .description("Uploads acknowledged from the local spool and not yet in s3")
+                .register(meterRegistry);
+        Gauge.builder("s3.spool.size.bytes", this, S3WriteBehindSpool::spooledBytes)
+                .description("Bytes held by spool segments")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        TimeGauge.builder("s3.spool.drain.lag", this, TimeUnit.MILLISECONDS, S3WriteBehindSpool::drainLagMillis)
+                .description("Age of the oldest upload still waiting in the spool")
+                .register(meterRegistry);
+        log.info("=== write-behind spool: {} uploads to replay, {} bytes in {}", depth(), spooledBytes,
+                STORAGE_S3_WRITE_BEHIND_DIRECTORY);
+    }
+
+    /**
+     * starts draining what was replayed once the storage service is serving
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resume() {
+        if (STORAGE_S3_WRITE_BEHIND_ENABLED)
+            drain();
+    }
+
+    /**
+     * picks up uploads whose retry backoff has passed
+     */
+    @Scheduled(fixedDelayString = "${storage.s3.write-behind.retry-backoff}")
+    public void retry() {
+        if (STORAGE_S3_WRITE_BEHIND_ENABLED)
+            drain();
+    }
+
+    @PreDestroy
+    void stop() {
+        // uploads already running finish on the executor, everything unacked is replayed on the next start
+        running = false;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return STORAGE_S3_WRITE_BEHIND_ENABLED;
+    }
+
+    @Override
+    public void enqueue(String bucket, String fileName, String contentType, InputStream inputStream, long contentLength) {
+        if (!STORAGE_S3_WRITE_BEHIND_ENABLED)
+            throw new IllegalStateException("Write-behind spool is disabled");
+        byte[] metadata = encodeMetadata(bucket, fileName, contentType);
+        long recordLength = HEADER_SIZE + metadata.length + contentLength + CHECKSUM_SIZE;
+        long appendedAt = System.currentTimeMillis();
+
+        Segment segment;
+        long position;
+        synchronized (this) {
+            if (spooledBytes + recordLength > STORAGE_S3_WRITE_BEHIND_MAX_SIZE.toBytes())
+                throw new RejectedExecutionException("Write-behind spool full: " + spooledBytes + " bytes spooled");
+            try {
+                if (active == null || active.end >= STORAGE_S3_WRITE_BEHIND_SEGMENT_SIZE.toBytes())
+                    roll();
+                // the header is written before the next record is reserved, so forcing any later record forces it too
+                // and replay can always step over a record whose payload never made it to disk
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                        .putInt(MAGIC).putLong(appendedAt).putInt(metadata.length).putLong(contentLength)
+                        .flip();
+                writeFully(active.channel, header, active.end);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to append to the write-behind spool", e);
+            }
+            segment = active;
+            position = segment.end;
+            segment.end += recordLength;
+            segment.live++;
+            spooledBytes += recordLength;
+        }
+
+        long payloadPosition = position + HEADER_SIZE + metadata.length;
+        try {
+            CRC32C checksum = new CRC32C();
+            checksum.update(metadata);
+            writeFully(segment.channel, ByteBuffer.wrap(metadata), position + HEADER_SIZE);
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(contentLength, 1))];
+            long written = 0;
+            while (written < contentLength) {
+                int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, contentLength - written));
+                if (read == -1)
+                    throw new EOFException("Stream had " + written + " of " + contentLength + " bytes");
+                checksum.update(buffer, 0, read);
+                writeFully(segment.channel, ByteBuffer.wrap(buffer, 0, read), payloadPosition + written);
+                written += read;
+            }
+            writeFully(segment.channel, ByteBuffer.allocate(CHECKSUM_SIZE).putLong(0, checksum.getValue()),
+                    payloadPosition + contentLength);
+            // fdatasync, which also persists the file length needed to read the record back
+            segment.channel.force(false);
+        } catch (IOException e) {
+            released(segment);
+            throw new UncheckedIOException("Failed to append " + fileName + " to the write-behind spool", e);
+        } catch (RuntimeException e) {
+            released(segment);
+            throw e;
+        }
+
+        Entry entry = new Entry(new ObjectRef(bucket, fileName), contentType, segment, position, payloadPosition,
+                contentLength, appendedAt);
+        log.debug("== spooled {} ({} bytes) in segment {}", fileName, contentLength, segment.id);
+        queue(entry);
+        drain();
+    }
+
+    /**
+     * queues the entry behind any upload of the same file that is running, replacing one that hasn't started
+     */
+    private void queue(Entry entry) {
+        Entry previous;
+        synchronized (this) {
+            previous = pending.remove(entry.ref);
+            pending.put(entry.ref, entry);
+        }
+        if (previous != null) {
+            superseded.increment();
+            acknowledge(previous);
+        }
+    }
+
+    private void drain() {
+        List<Entry> started = new ArrayList<>();
+        synchronized (this) {
+            if (!running)
+                return;
+            long now = System.currentTimeMillis();
+            Iterator<Entry> iterator = pending.values().iterator();
+            while (inFlight.size() < STORAGE_S3_WRITE_BEHIND_CONCURRENCY && iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (inFlight.containsKey(entry.ref) || entry.retryAt > now)
+                    continue;
+                iterator.remove();
+                inFlight.put(entry.ref, entry);
+                started.add(entry);
+            }
+        }
+        started.forEach(entry -> s3SpoolExecutor.execute(() -> upload(entry)));
+    }
+
+    private void upload(Entry entry) {
+        // the payload is streamed straight out of the segment file
+        try (InputStream payload = CachedObjectInputStream.open(entry.segment.path, entry.payloadPosition, entry.length)) {
+            storageService.saveFileToBucket(entry.ref.bucket(), entry.ref.key(), entry.contentType, payload, entry.length);
+        } catch (IOException | RuntimeException e) {
+            if (S3RetryPolicy.isRetryable(e) && entry.attempts + 1 < STORAGE_S3_WRITE_BEHIND_MAX_ATTEMPTS)
+                retryLater(entry, e);
+            else
+                drop(entry, e);
+            drain();
+            return;
+        }
+        synchronized (this) {
+            inFlight.remove(entry.ref);
+        }
+        uploaded.increment();
+        log.debug("== drained {} from the spool after {} ms", entry.ref.key(), System.currentTimeMillis() - entry.appendedAt);
+        acknowledge(entry);
+        drain();
+    }
+
+    private void retryLater(Entry entry, Exception e) {
+        failed.increment();
+        entry.attempts++;
+        long backoff = Math.min(STORAGE_S3_WRITE_BEHIND_RETRY_BACKOFF.toMillis() << Math.min(entry.attempts - 1, 16),
+                STORAGE_S3_WRITE_BEHIND_MAX_RETRY_BACKOFF.toMillis());
+        entry.retryAt = System.currentTimeMillis() + backoff;
+        log.error("Failed to drain {} from the write-behind spool (attempt {}), retrying in {} ms: {}",
+                entry.ref.key(), entry.attempts, backoff, e.getMessage());
+        boolean replaced;
+        synchronized (this) {
+            inFlight.remove(entry.ref);
+            replaced = pending.containsKey(entry.ref);
+            if (!replaced)
+                pending.put(entry.ref, entry);
+        }
+        if (replaced) {
+            superseded.increment();
+            acknowledge(entry);
+        }
+    }
+
+    /**
+     * gives up on an upload that can't succeed, so it doesn't hold its spool space and drain slot forever
+     */
+    private void drop(Entry entry, Exception e) {
+        synchronized (this) {
+            inFlight.remove(entry.ref);
+        }
+        acknowledge(entry);
+        failed.increment();
+        dropped.increment();
+        log.error("Dropping {} from the write-behind spool after {} attempts, the upload is lost: {}",
+                entry.ref.key(), entry.attempts + 1, e.toString());
+    }
+
+    /**
+     * records the entry as done, an ack that doesn't reach the disk only means the upload is repeated after a restart
+     */
+    private void acknowledge(Entry entry) {
+        Segment segment = entry.segment;
+        try {
+            synchronized (segment) {
+                writeFully(segment.acks, ByteBuffer.allocate(Long.BYTES).putLong(0, entry.recordPosition), -1);
+                segment.acks.force(false);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to ack {} in spool segment {}: {}", entry.ref.key(), segment.id, e.getMessage());
+        }
+        released(segment);
+    }
+
+    /**
+     * a record of the segment was acked or failed to append, the segment is deleted after its last record
+     */
+    private void released(Segment segment) {
+        boolean delete;
+        synchronized (this) {
+            segment.live--;
+            delete = segment.live == 0 && segment != active;
+            if (delete)
+                spooledBytes -= segment.end;
+        }
+        if (delete)
+            segment.delete();
+    }
+
+    private void roll() throws IOException {
+        Segment previous = active;
+        active = Segment.create(STORAGE_S3_WRITE_BEHIND_DIRECTORY, nextSegmentId++);
+        if (previous != null && previous.live == 0) {
+            spooledBytes -= previous.end;
+            previous.delete();
+        }
+    }
+
+    /**
+     * rebuilds the queue from the segments on disk, oldest segment first
+     */
+    private void replay() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> segmentFiles = Files.newDirectoryStream(STORAGE_S3_WRITE_BEHIND_DIRECTORY, "*" + SEGMENT_SUFFIX)) {
+            segmentFiles.forEach(files::add);
+        }
+        files.sort(null);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            Segment segment = Segment.open(file, id);
+            spooledBytes += segment.end;
+            for (Entry entry : scan(segment)) {
+                segment.live++;
+                queue(entry);
+            }
+            if (segment.live == 0) {
+                spooledBytes -= segment.end;
+                segment.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the complete records of the segment that were not acked yet
+     */
+    private static List<Entry> scan(Segment segment) throws IOException {
+        Set<Long> acked = new HashSet<>();
+        if (Files.exists(segment.acksPath)) {
+            ByteBuffer acks = ByteBuffer.wrap(Files.readAllBytes(segment.acksPath));
+            while (acks.remaining() >= Long.BYTES)
+                acked.add(acks.getLong());
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        while (position + HEADER_SIZE <= segment.end) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            if (header.getInt() != MAGIC)
+                break;
+            long appendedAt = header.getLong();
+            int metadataLength = header.getInt();
+            long length = header.getLong();
+            long recordLength = HEADER_SIZE + metadataLength + length + CHECKSUM_SIZE;
+            if (metadataLength < 0 || length < 0 || position + recordLength > segment.end)
+                break;
+
+            ByteBuffer metadata = ByteBuffer.allocate(metadataLength);
+            readFully(segment.channel, metadata, position + HEADER_SIZE);
+            CRC32C checksum = new CRC32C();
+            checksum.update(metadata.array());
+            long payloadPosition = position + HEADER_SIZE + metadataLength;
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            for (long read = 0; read < length; ) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, length - read));
+                readFully(segment.channel, buffer, payloadPosition + read);
+                buffer.flip();
+                read += buffer.remaining();
+                checksum.update(buffer);
+            }
+            ByteBuffer stored = ByteBuffer.allocate(CHECKSUM_SIZE);
+            readFully(segment.channel, stored, payloadPosition + length);
+
+            if (stored.getLong(0) != checksum.getValue()) {
+                log.warn("Dropping incomplete record at {} of spool segment {}", position, segment.id);
+            } else if (!acked.contains(position)) {
+                entries.add(decodeEntry(metadata.array(), segment, position, payloadPosition, length, appendedAt));
+            }
+            position += recordLength;
+        }
+        return entries;
+    }
+
+    private synchronized int depth() {
+        return pending.size() + inFlight.size();
+    }
+
+    private synchronized long spooledBytes() {
+        return spooledBytes;
+    }
+
+    private synchronized long drainLagMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (Entry entry : pending.values())
+            oldest = Math.min(oldest, entry.appendedAt);
+        for (Entry entry : inFlight.values())
+            oldest = Math.min(oldest, entry.appendedAt);
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    private static byte[] encodeMetadata(String bucket, String fileName, String contentType) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(bucket);
+            out.writeUTF(fileName);
+            out.writeBoolean(contentType != null);
+            if (contentType != null)
+                out.writeUTF(contentType);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Entry decodeEntry(byte[] metadata, Segment segment, long position, long payloadPosition,
+                                     long length, long appendedAt) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(metadata))) {
+            String bucket = in.readUTF();
+            String fileName = in.readUTF();
+            String contentType = in.readBoolean() ? in.readUTF() : null;
+            return new Entry(new ObjectRef(bucket, fileName), contentType, segment, position, payloadPosition,
+                    length, appendedAt);
+        }
+    }
+
+    /**
+     * @param position where to write, or -1 to append at the channel's position
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (position < 0)
+                channel.write(buffer);
+            else
+                position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1)
+                throw new EOFException("Spool segment ended at " + position);
+            position += read;
+        }
+    }
+
+    private record ObjectRef(String bucket, String key) {
+    }
+
+    private static final class Entry {
+
+        private final ObjectRef ref;
+        private final String contentType;
+        private final Segment segment;
+        private final long recordPosition;
+        private final long payloadPosition;
+        private final long length;
+        private final long appendedAt;
+        private int attempts;
+        private long retryAt;
+
+        private Entry(ObjectRef ref, String contentType, Segment segment, long recordPosition, long payloadPosition,
+                      long length, long appendedAt) {
+            this.ref = ref;
+            this.contentType = contentType;
+            this.segment = segment;
+            this.recordPosition = recordPosition;
+            this.payloadPosition = payloadPosition;
+            this.length = length;
+            this.appendedAt = appendedAt;
+        }
+    }
+
+    /**
+     * an append-only segment file and the file of acked record offsets next to it
+     */
+    private static final class Segment {
+
+        private final long id;
+        private final Path path;
+        private final Path acksPath;
+        private final FileChannel channel;
+        private final FileChannel acks;
+        // guarded by the spool
+        private long end;
+        private int live;
+
+        private Segment(long id, Path path, FileChannel channel) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.acksPath = path.resolveSibling(String.format("%019d", id) + ACKS_SUFFIX);
+            this.channel = channel;
+            this.acks = FileChannel.open(acksPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.end = channel.size();
+        }
+
+        private static Segment create(Path directory, long id) throws IOException {
+            Path path = directory.resolve(String.format("%019d", id) + SEGMENT_SUFFIX);
+            Segment segment = new Segment(id, path, FileChannel.open(path,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            // the new file names have to survive a crash as well as the records in them
+            try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+                dir.force(true);
+            } catch (IOException e) {
+                log.debug("== directory fsync not supported for {}: {}", directory, e.getMessage());
+            }
+            return segment;
+        }
+
+        private static Segment open(Path path, long id) throws IOException {
+            return new Segment(id, path, FileChannel.open(path, StandardOpenOption.READ));
+        }
+
+        private void delete() {
+            try {
+                channel.close();
+                acks.close();
+                Files.deleteIfExists(path);
+                Files.deleteIfExists(acksPath);
+            } catch (IOException e) {
+                log.warn("Failed to delete spool segment {}: {}", path, e.getMessage());
+            }
+        }
+    }
+}
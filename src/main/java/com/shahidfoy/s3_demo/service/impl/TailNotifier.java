@@ -0,0 +1,154 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.n1netails.n1netails.kuda.api.Tail;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends Tail notifications from a background thread so callers never wait on the n1netails endpoint.
+ * Events go into a bounded lock-free queue that drops the oldest event when full. The drainer takes up to
+ * batch-size events at a time, collapses identical events into one notification carrying a count tag,
+ * and sends the result. A slow or failing alert endpoint only delays or loses notifications.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class TailNotifier {
+
+    @Value("${n1netails.kuda.notifications.queue-capacity}")
+    private int N1NETAILS_KUDA_NOTIFICATIONS_QUEUE_CAPACITY;
+
+    @Value("${n1netails.kuda.notifications.batch-size}")
+    private int N1NETAILS_KUDA_NOTIFICATIONS_BATCH_SIZE;
+
+    @Value("${n1netails.kuda.notifications.flush-interval}")
+    private Duration N1NETAILS_KUDA_NOTIFICATIONS_FLUSH_INTERVAL;
+
+    @Value("${n1netails.kuda.notifications.shutdown-timeout}")
+    private Duration N1NETAILS_KUDA_NOTIFICATIONS_SHUTDOWN_TIMEOUT;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Queue<TailEvent> queue = new ConcurrentLinkedQueue<>();
+    // ConcurrentLinkedQueue.size() walks the whole queue, so the depth is tracked separately
+    private final AtomicInteger depth = new AtomicInteger();
+
+    private volatile boolean running;
+    private Thread drainer;
+    private Counter sent;
+    private Counter failed;
+    private Counter dropped;
+    private Counter coalesced;
+
+    @PostConstruct
+    void start() {
+        this.sent = Counter.builder("tail.notifications").tag("result", "sent").register(meterRegistry);
+        this.failed = Counter.builder("tail.notifications").tag("result", "failed").register(meterRegistry);
+        this.dropped = Counter.builder("tail.notifications").tag("result", "dropped").register(meterRegistry);
+        this.coalesced = Counter.builder("tail.notifications").tag("result", "coalesced").register(meterRegistry);
+        Gauge.builder("tail.notifications.queue.size", depth, AtomicInteger::get)
+                .description("Tail notifications waiting to be sent")
+                .register(meterRegistry);
+
+        this.running = true;
+        this.drainer = new Thread(this::drain, "tail-notifier");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(drainer);
+        drainer.join(N1NETAILS_KUDA_NOTIFICATIONS_SHUTDOWN_TIMEOUT.toMillis());
+        if (depth.get() > 0)
+            log.warn("Discarding {} unsent tail notifications on shutdown", depth.get());
+    }
+
+    /**
+     * queues an info notification, never blocks
+     * @param title tail title
+     * @param description tail description
+     * @param details tail details
+     * @param type tail type
+     * @param tags tail tags
+     */
+    public void info(String title, String description, String details, String type, Map<String, String> tags) {
+        // drop oldest: make room first so the newest event always gets in, concurrent producers may briefly overshoot
+        while (depth.get() >= N1NETAILS_KUDA_NOTIFICATIONS_QUEUE_CAPACITY && queue.poll() != null) {
+            depth.decrementAndGet();
+            dropped.increment();
+        }
+        queue.offer(new TailEvent(title, description, details, type, copyOf(tags)));
+        if (depth.incrementAndGet() >= N1NETAILS_KUDA_NOTIFICATIONS_BATCH_SIZE)
+            LockSupport.unpark(drainer);
+    }
+
+    /**
+     * @return the tags without null keys or values, such as the content type of an upload that didn't send one
+     */
+    private static Map<String, String> copyOf(Map<String, String> tags) {
+        Map<String, String> copy = new HashMap<>();
+        if (tags != null)
+            tags.forEach((name, value) -> {
+                if (name != null && value != null)
+                    copy.put(name, value);
+            });
+        return copy;
+    }
+
+    private void drain() {
+        while (running || depth.get() > 0) {
+            if (depth.get() < N1NETAILS_KUDA_NOTIFICATIONS_BATCH_SIZE && running)
+                LockSupport.parkNanos(N1NETAILS_KUDA_NOTIFICATIONS_FLUSH_INTERVAL.toNanos());
+
+            Map<TailEvent, Integer> batch = new LinkedHashMap<>();
+            TailEvent event;
+            for (int taken = 0; taken < N1NETAILS_KUDA_NOTIFICATIONS_BATCH_SIZE && (event = queue.poll()) != null; taken++) {
+                depth.decrementAndGet();
+                batch.merge(event, 1, Integer::sum);
+            }
+            batch.forEach(this::send);
+        }
+    }
+
+    private void send(TailEvent event, int count) {
+        Map<String, String> tags = event.tags();
+        if (count > 1) {
+            coalesced.increment(count - 1);
+            tags = new HashMap<>(tags);
+            tags.put("count", String.valueOf(count));
+        }
+        try {
+            Tail.info(event.title())
+                    .description(event.description())
+                    .details(event.details())
+                    .type(event.type())
+                    .withTags(tags)
+                    .send();
+            sent.increment();
+        } catch (Exception e) {
+            failed.increment();
+            log.warn("Failed to send tail notification '{}': {}", event.title(), e.getMessage());
+        }
+    }
+
+    private record TailEvent(String title, String description, String details, String type, Map<String, String> tags) {
+    }
+}
@@ -0,0 +1,144 @@
+package com.shahidfoy.s3_demo.config;
+
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class GuardedS3ClientTest {
+
+    private static final PutObjectRequest PUT = PutObjectRequest.builder().bucket("bucket").key("key").build();
+
+    private final S3Client delegate = mock(S3Client.class);
+    private final S3Client singleAttemptDelegate = mock(S3Client.class);
+    private CircuitBreakerRegistry circuitBreakers;
+    private BulkheadRegistry bulkheads;
+    private S3Client s3Client;
+
+    @BeforeEach
+    void setUp() {
+        circuitBreakers = CircuitBreakerRegistry.of(CircuitBreakerConfig.custom()
+                .slowCallDurationThreshold(Duration.ofMillis(20))
+                .build());
+        BulkheadConfig onePermit = BulkheadConfig.custom().maxConcurrentCalls(1).maxWaitDuration(Duration.ZERO).build();
+        bulkheads = BulkheadRegistry.ofDefaults();
+        bulkheads.bulkhead(GuardedS3Client.READ, onePermit);
+        bulkheads.bulkhead(GuardedS3Client.WRITE, onePermit);
+        bulkheads.bulkhead(GuardedS3Client.INTERNAL, onePermit);
+        s3Client = GuardedS3Client.wrap(delegate, singleAttemptDelegate, circuitBreakers, bulkheads, 1024 * 1024);
+    }
+
+    @Test
+    void internalPoolsDontTakeRequestPermits() throws Exception {
+        CountDownLatch requestCallStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            if (Thread.currentThread().getName().startsWith("request")) {
+                requestCallStarted.countDown();
+                release.await();
+            }
+            return PutObjectResponse.builder().build();
+        }).when(delegate).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+
+        ExecutorService request = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "request"));
+        ExecutorService internal = Executors.newSingleThreadExecutor(GuardedS3Client.internalThreadFactory("internal-"));
+        try {
+            CompletableFuture<PutObjectResponse> held = CompletableFuture.supplyAsync(() -> put(1), request);
+            requestCallStarted.await();
+
+            // the only write permit is taken, an internal call still gets through and a request call is shed
+            assertThat(CompletableFuture.supplyAsync(() -> put(1), internal).get()).isNotNull();
+            assertThatThrownBy(() -> put(1)).isInstanceOf(BulkheadFullException.class);
+
+            release.countDown();
+            assertThat(held.get()).isNotNull();
+        } finally {
+            release.countDown();
+            request.shutdown();
+            internal.shutdown();
+        }
+    }
+
+    @Test
+    void largePayloadsAreNeverSlowCalls() {
+        doAnswer(invocation -> {
+            Thread.sleep(50);
+            return PutObjectResponse.builder().build();
+        }).when(delegate).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+
+        put(16 * 1024 * 1024);
+        CircuitBreaker.Metrics metrics = circuitBreakers.circuitBreaker(GuardedS3Client.WRITE).getMetrics();
+        assertThat(metrics.getNumberOfSuccessfulCalls()).isEqualTo(1);
+        assertThat(metrics.getNumberOfSlowCalls()).isZero();
+
+        put(1024);
+        assertThat(metrics.getNumberOfSlowCalls()).isEqualTo(1);
+    }
+
+    @Test
+    void retryingOperationsCallTheSingleAttemptClient() {
+        boolean previous = GuardedS3Client.singleAttempts();
+        try {
+            put(1);
+        } finally {
+            GuardedS3Client.restoreAttempts(previous);
+        }
+        put(1);
+
+        verify(singleAttemptDelegate).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+        verify(delegate).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    }
+
+    @Test
+    void asyncCallsHoldTheirPermitUntilTheFutureCompletes() {
+        S3AsyncClient asyncDelegate = mock(S3AsyncClient.class);
+        CompletableFuture<PutObjectResponse> pending = new CompletableFuture<>();
+        when(asyncDelegate.putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class)))
+                .thenReturn(pending, CompletableFuture.completedFuture(PutObjectResponse.builder().build()));
+        S3AsyncClient s3AsyncClient = GuardedS3Client.wrapAsync(asyncDelegate, mock(S3AsyncClient.class),
+                circuitBreakers, bulkheads, 1024 * 1024);
+
+        CompletableFuture<PutObjectResponse> held = s3AsyncClient.putObject(PUT, AsyncRequestBody.fromBytes(new byte[1]));
+
+        // the call returned but is still in flight, so the only write permit is taken and a rejection is a failed future
+        assertThat(s3AsyncClient.putObject(PUT, AsyncRequestBody.fromBytes(new byte[1])))
+                .failsWithin(Duration.ZERO)
+                .withThrowableOfType(ExecutionException.class)
+                .withCauseInstanceOf(BulkheadFullException.class);
+
+        pending.complete(PutObjectResponse.builder().build());
+        assertThat(held).isCompleted();
+        assertThat(s3AsyncClient.putObject(PUT, AsyncRequestBody.fromBytes(new byte[1]))).isCompleted();
+        assertThat(circuitBreakers.circuitBreaker(GuardedS3Client.WRITE).getMetrics().getNumberOfSuccessfulCalls())
+                .isEqualTo(2);
+    }
+
+    private PutObjectResponse put(int size) {
+        return s3Client.putObject(PUT, RequestBody.fromBytes(new byte[size]));
+    }
+}
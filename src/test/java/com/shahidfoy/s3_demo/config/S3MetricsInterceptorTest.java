@@ -0,0 +1,104 @@
+package com.shahidfoy.s3_demo.config;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.awscore.retry.AwsRetryStrategy;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class S3MetricsInterceptorTest {
+
+    private static final long STALL_MILLIS = 100;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private S3Client s3Client;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // the first request stalls and then drops the connection without a response, the next ones get a 204
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            if (requests.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(STALL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        s3Client.close();
+        server.stop(0);
+    }
+
+    @Test
+    void attemptWithoutAResponseIsTimedWhenTheOperationFails() {
+        s3Client = client(1);
+
+        assertThatThrownBy(() -> s3Client.deleteObject(request -> request.bucket("bucket").key("key")))
+                .isInstanceOf(SdkClientException.class);
+
+        Timer failed = attempts(S3MetricsInterceptor.IO_ERROR);
+        assertThat(failed.count()).isEqualTo(1);
+        assertThat(failed.totalTime(TimeUnit.MILLISECONDS)).isGreaterThanOrEqualTo(STALL_MILLIS);
+        assertThat(meterRegistry.find("s3.request.errors").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void attemptWithoutAResponseIsTimedWhenTheSdkRetriesIt() {
+        s3Client = client(2);
+
+        s3Client.deleteObject(request -> request.bucket("bucket").key("key"));
+
+        assertThat(attempts(S3MetricsInterceptor.IO_ERROR).count()).isEqualTo(1);
+        assertThat(attempts(S3MetricsInterceptor.IO_ERROR).totalTime(TimeUnit.MILLISECONDS)).isGreaterThanOrEqualTo(STALL_MILLIS);
+        assertThat(attempts("204").count()).isEqualTo(1);
+        assertThat(meterRegistry.find("s3.request.retries").counter().count()).isEqualTo(1);
+    }
+
+    private Timer attempts(String status) {
+        return meterRegistry.get("s3.request.attempt").tag("operation", "DeleteObject").tag("status", status).timer();
+    }
+
+    private S3Client client(int maxAttempts) {
+        return S3Client.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")))
+                .endpointOverride(URI.create("http://127.0.0.1:" + server.getAddress().getPort()))
+                .forcePathStyle(true)
+                .region(Region.US_EAST_1)
+                .overrideConfiguration(override -> override
+                        .addExecutionInterceptor(new S3MetricsInterceptor(meterRegistry))
+                        .retryStrategy(AwsRetryStrategy.standardRetryStrategy().toBuilder()
+                                .maxAttempts(maxAttempts)
+                                .backoffStrategy(attempt -> Duration.ZERO)
+                                .build()))
+                .build();
+    }
+}
@@ -0,0 +1,99 @@
+package com.shahidfoy.s3_demo.config;
+
+import com.sun.net.httpserver.HttpServer;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.awscore.retry.AwsRetryStrategy;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectAclRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class S3RetryPolicyTest {
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private S3Client s3Client;
+    private MethodInterceptor retryInterceptor;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // every request fails with a retryable 503
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        server.start();
+        s3Client = GuardedS3Client.wrap(client(2), client(1), CircuitBreakerRegistry.ofDefaults(),
+                BulkheadRegistry.ofDefaults(), Long.MAX_VALUE);
+
+        RetryConfig retryConfig = new RetryConfig(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(retryConfig, "STORAGE_S3_RETRY_MAX_ATTEMPTS", 3);
+        ReflectionTestUtils.setField(retryConfig, "STORAGE_S3_RETRY_INITIAL_BACKOFF", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(retryConfig, "STORAGE_S3_RETRY_MAX_BACKOFF", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(retryConfig, "STORAGE_S3_RETRY_BUDGET_RATIO", 0.1);
+        ReflectionTestUtils.setField(retryConfig, "STORAGE_S3_RETRY_BUDGET_CAPACITY", 20.0);
+        retryInterceptor = retryConfig.s3RetryInterceptor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        s3Client.close();
+        server.stop(0);
+    }
+
+    @Test
+    void retriedOperationSendsMaxAttemptsRequestsNotTimesTheSdkAttempts() {
+        ProxyFactory proxyFactory = new ProxyFactory((Runnable) () -> s3Client.putObjectAcl(PutObjectAclRequest.builder()
+                .bucket("bucket")
+                .key("key")
+                .acl("private")
+                .build()));
+        proxyFactory.addAdvice(retryInterceptor);
+        Runnable retried = (Runnable) proxyFactory.getProxy();
+
+        assertThatThrownBy(retried::run).isInstanceOf(S3Exception.class);
+        assertThat(requests).hasValue(3);
+        assertThat(GuardedS3Client.isSingleAttempt()).isFalse();
+
+        // outside the operation the sdk retries on its own
+        requests.set(0);
+        assertThatThrownBy(() -> s3Client.deleteObject(request -> request.bucket("bucket").key("key")))
+                .isInstanceOf(S3Exception.class);
+        assertThat(requests).hasValue(2);
+    }
+
+    private S3Client client(int maxAttempts) {
+        return S3Client.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")))
+                .endpointOverride(URI.create("http://127.0.0.1:" + server.getAddress().getPort()))
+                .forcePathStyle(true)
+                .region(Region.US_EAST_1)
+                .overrideConfiguration(override -> override
+                        .retryStrategy(AwsRetryStrategy.standardRetryStrategy().toBuilder()
+                                .maxAttempts(maxAttempts)
+                                .backoffStrategy(attempt -> Duration.ZERO)
+                                .build()))
+                .build();
+    }
+}
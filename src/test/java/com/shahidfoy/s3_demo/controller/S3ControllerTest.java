@@ -0,0 +1,126 @@
+package com.shahidfoy.s3_demo.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.shahidfoy.s3_demo.config.AsyncConfig;
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import com.shahidfoy.s3_demo.service.S3WriteBehindService;
+import com.shahidfoy.s3_demo.service.impl.AsyncExceptionReporter;
+import com.shahidfoy.s3_demo.service.impl.S3ServiceSubtleErrors;
+import com.shahidfoy.s3_demo.service.impl.S3UploadStaging;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.scheduling.annotation.AsyncAnnotationAdvisor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class S3ControllerTest {
+
+    @TempDir
+    Path staging;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CountDownLatch uploadsReleased = new CountDownLatch(1);
+    private final S3ServiceSubtleErrors storage = mock(S3ServiceSubtleErrors.class);
+    private ThreadPoolTaskExecutor uploadTaskExecutor;
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        AsyncConfig asyncConfig = new AsyncConfig(meterRegistry, mock(AsyncExceptionReporter.class));
+        ReflectionTestUtils.setField(asyncConfig, "STORAGE_UPLOAD_EXECUTOR_MODE", "platform");
+        ReflectionTestUtils.setField(asyncConfig, "STORAGE_UPLOAD_EXECUTOR_CORE_SIZE", 1);
+        ReflectionTestUtils.setField(asyncConfig, "STORAGE_UPLOAD_EXECUTOR_MAX_SIZE", 1);
+        ReflectionTestUtils.setField(asyncConfig, "STORAGE_UPLOAD_EXECUTOR_QUEUE_CAPACITY", 1);
+        uploadTaskExecutor = (ThreadPoolTaskExecutor) asyncConfig.uploadTaskExecutor();
+        uploadTaskExecutor.initialize();
+
+        // uploads hold their executor thread until released
+        doAnswer(invocation -> {
+            uploadsReleased.await();
+            return null;
+        }).when(storage).saveFileToBucket(anyString(), anyString(), anyString(), any(Path.class), anyLong());
+
+        // the @Async proxy spring puts around the storage service
+        ProxyFactory proxyFactory = new ProxyFactory(storage);
+        proxyFactory.addInterface(S3StorageService.class);
+        proxyFactory.addAdvisor(new AsyncAnnotationAdvisor(() -> uploadTaskExecutor, asyncConfig::getAsyncUncaughtExceptionHandler));
+
+        S3UploadStaging uploadStaging = new S3UploadStaging();
+        ReflectionTestUtils.setField(uploadStaging, "STORAGE_UPLOAD_EXECUTOR_DIRECTORY", staging);
+        ReflectionTestUtils.invokeMethod(uploadStaging, "init");
+
+        S3Controller controller = new S3Controller((S3StorageService) proxyFactory.getProxy(),
+                mock(S3WriteBehindService.class), uploadStaging, new ObjectMapper());
+        ReflectionTestUtils.setField(controller, "STORAGE_S3_CDN_ENDPOINT", "https://cdn.example.com");
+        ReflectionTestUtils.setField(controller, "STORAGE_S3_BUCKET", "bucket");
+        ReflectionTestUtils.setField(controller, "STORAGE_UPLOAD_EXECUTOR_RETRY_AFTER", "5");
+        mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        uploadsReleased.countDown();
+        uploadTaskExecutor.shutdown();
+    }
+
+    @Test
+    void saveFileIsRejectedWith503OnceTheUploadQueueIsFull() throws Exception {
+        // one upload on the only thread, one in the only queue slot
+        saveFile("running.bin").andExpect(status().isOk());
+        saveFile("queued.bin").andExpect(status().isOk());
+
+        saveFile("rejected.bin")
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "5"));
+        assertThat(meterRegistry.counter("executor.rejected", "name", "uploadTaskExecutor").count()).isEqualTo(1);
+
+        // accepted uploads keep their staged file, the rejected one is cleaned up
+        try (Stream<Path> files = Files.list(staging)) {
+            assertThat(files).hasSize(2);
+        }
+    }
+
+    @Test
+    void presignBatchWithAnUnsupportedMethodIsRejectedWith400() throws Exception {
+        mockMvc.perform(post("/api/s3bucket/get-temp-s3-urls")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"fileName\":\"a.txt\",\"method\":\"GET\"},{\"fileName\":\"b.txt\",\"method\":\"DELETE\"}]"))
+                .andExpect(status().isBadRequest());
+
+        verify(storage, never()).generatePresignedUrls(anyString(), anyList());
+    }
+
+    private ResultActions saveFile(String fileName) throws Exception {
+        MockMultipartFile file = new MockMultipartFile("file", fileName, "application/octet-stream", new byte[1024]);
+        return mockMvc.perform(multipart("/api/s3bucket/save-file").file(file));
+    }
+}
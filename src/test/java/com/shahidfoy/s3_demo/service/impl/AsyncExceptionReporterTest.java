@@ -0,0 +1,72 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.n1netails.n1netails.kuda.service.ExceptionReporter;
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.scheduling.annotation.AsyncAnnotationAdvisor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+class AsyncExceptionReporterTest {
+
+    private static final String METHOD = "S3ServiceSubtleErrors.saveFileToBucket";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExceptionReporter exceptionReporter = mock(ExceptionReporter.class);
+    private AsyncExceptionReporter asyncExceptionReporter;
+    private S3StorageService storage;
+
+    @BeforeEach
+    void setUp() {
+        asyncExceptionReporter = new AsyncExceptionReporter(meterRegistry);
+        ReflectionTestUtils.setField(asyncExceptionReporter, "N1NETAILS_KUDA_EXCEPTIONS_REPORT_INTERVAL", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(asyncExceptionReporter, "N1NETAILS_KUDA_EXCEPTIONS_MAX_FINGERPRINTS", 1000);
+        ReflectionTestUtils.setField(asyncExceptionReporter, "reporter", exceptionReporter);
+        asyncExceptionReporter.init();
+
+        // every upload fails the way an __error__ upload does, behind the @Async advisor of the upload path
+        S3ServiceSubtleErrors failing = mock(S3ServiceSubtleErrors.class);
+        doAnswer(invocation -> {
+            throw new IllegalStateException("Subtle failure saving file: " + invocation.getArgument(1));
+        }).when(failing).saveFileToBucket(anyString(), anyString(), anyString(), any(Path.class), anyLong());
+        ProxyFactory proxyFactory = new ProxyFactory(failing);
+        proxyFactory.addInterface(S3StorageService.class);
+        proxyFactory.addAdvisor(new AsyncAnnotationAdvisor(SyncTaskExecutor::new, () -> asyncExceptionReporter));
+        storage = (S3StorageService) proxyFactory.getProxy();
+    }
+
+    @Test
+    void burstOfIdenticalFailuresIsReportedOnceThenSummarizedOnce() {
+        for (int i = 0; i < 100; i++)
+            storage.saveFileToBucket("bucket", "__error__" + i, "text/plain", Path.of("staged-" + i), 1);
+
+        verify(exceptionReporter).reportException(any(IllegalStateException.class), eq(METHOD));
+        verifyNoMoreInteractions(exceptionReporter);
+
+        asyncExceptionReporter.flush();
+        verify(exceptionReporter).reportException(any(IllegalStateException.class),
+                eq(METHOD + " (repeated 99 times in the last PT1M)"));
+
+        // nothing new since the summary
+        asyncExceptionReporter.flush();
+        verifyNoMoreInteractions(exceptionReporter);
+        assertThat(meterRegistry.counter("async.exceptions", "result", "reported").count()).isEqualTo(2);
+        assertThat(meterRegistry.counter("async.exceptions", "result", "suppressed").count()).isEqualTo(99);
+    }
+}
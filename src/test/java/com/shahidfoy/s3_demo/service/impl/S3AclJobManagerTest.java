@@ -0,0 +1,121 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.model.response.S3AclJobResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+import software.amazon.awssdk.services.s3.model.PutObjectAclRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectAclResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class S3AclJobManagerTest {
+
+    private static final String BUCKET = "bucket";
+
+    @TempDir
+    Path directory;
+
+    private final S3Client s3Client = mock(S3Client.class);
+    private final ExecutorService s3BatchExecutor = Executors.newFixedThreadPool(4);
+    private ExecutorService s3JobExecutor = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void tearDown() {
+        s3BatchExecutor.shutdownNow();
+        s3JobExecutor.shutdownNow();
+    }
+
+    @Test
+    void jobStoppedAfterAPageResumesFromItsCheckpointWithItsFailures() throws Exception {
+        // two pages of keys, the first key is refused for good
+        List<String> keys = IntStream.range(0, 1500).mapToObj(i -> "key-" + i).toList();
+        S3AclJobManager before = manager(Duration.ofDays(7));
+        doAnswer(invocation -> {
+            String key = invocation.<PutObjectAclRequest>getArgument(0).key();
+            if (key.equals("key-0"))
+                throw S3Exception.builder().statusCode(403).message("Access Denied").build();
+            if (key.equals("key-999"))
+                // shutdown while the first page is being applied
+                before.stop();
+            return PutObjectAclResponse.builder().build();
+        }).when(s3Client).putObjectAcl(any(PutObjectAclRequest.class));
+
+        String jobId = before.start(BUCKET, null, keys, ObjectCannedACL.PRIVATE).getJobId();
+        s3JobExecutor.shutdown();
+        assertThat(s3JobExecutor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+        verify(s3Client, times(1000)).putObjectAcl(any(PutObjectAclRequest.class));
+
+        s3JobExecutor = Executors.newSingleThreadExecutor();
+        S3AclJobManager after = manager(Duration.ofDays(7));
+        after.resume();
+        await(() -> !S3AclJobManager.RUNNING.equals(after.get(jobId).getStatus()));
+
+        S3AclJobResponse job = after.get(jobId);
+        assertThat(job.getStatus()).isEqualTo(S3AclJobManager.COMPLETED);
+        assertThat(job.getSucceeded()).isEqualTo(1499);
+        assertThat(job.getFailed()).isEqualTo(1);
+        assertThat(job.getFailures()).containsOnlyKeys("key-0");
+        // the second page only, the checkpointed one isn't applied again
+        verify(s3Client, times(1500)).putObjectAcl(any(PutObjectAclRequest.class));
+        verify(s3Client).putObjectAcl(argThat((PutObjectAclRequest request) -> request.key().equals("key-1499")));
+    }
+
+    @Test
+    void finishedJobIsForgottenWithItsFilesAfterTheRetention() throws Exception {
+        S3AclJobManager manager = manager(Duration.ZERO);
+        String jobId = manager.start(BUCKET, null, List.of("key"), ObjectCannedACL.PUBLIC_READ).getJobId();
+        await(() -> S3AclJobManager.COMPLETED.equals(manager.get(jobId).getStatus()));
+
+        manager.expireFinishedJobs();
+
+        assertThat(manager.get(jobId)).isNull();
+        assertThat(jobFiles()).isEmpty();
+    }
+
+    private S3AclJobManager manager(Duration retention) throws IOException {
+        S3AclJobManager manager = new S3AclJobManager(s3Client, s3BatchExecutor, s3JobExecutor,
+                mock(S3MetadataIndex.class), mock(S3ImageVariants.class));
+        ReflectionTestUtils.setField(manager, "STORAGE_S3_ACL_JOBS_DIRECTORY", directory);
+        ReflectionTestUtils.setField(manager, "STORAGE_S3_ACL_JOBS_CONCURRENCY", 4);
+        ReflectionTestUtils.setField(manager, "STORAGE_S3_ACL_JOBS_RATE_LIMIT", 100_000);
+        ReflectionTestUtils.setField(manager, "STORAGE_S3_ACL_JOBS_RETENTION", retention);
+        manager.init();
+        return manager;
+    }
+
+    private List<Path> jobFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.toList();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+}
@@ -0,0 +1,82 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+import static com.shahidfoy.s3_demo.support.TestStreams.oneShot;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class S3ContentCompressorTest {
+
+    private static final String CONTENT_TYPE = "application/json";
+
+    @TempDir
+    Path spoolDirectory;
+
+    private S3ContentCompressor compressor;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        compressor = new S3ContentCompressor(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(compressor, "STORAGE_S3_COMPRESSION_ENABLED", true);
+        ReflectionTestUtils.setField(compressor, "STORAGE_S3_COMPRESSION_CONTENT_TYPES", List.of(CONTENT_TYPE));
+        ReflectionTestUtils.setField(compressor, "STORAGE_S3_COMPRESSION_LEVEL", 6);
+        ReflectionTestUtils.setField(compressor, "STORAGE_S3_COMPRESSION_MIN_SIZE", DataSize.ofKilobytes(1));
+        ReflectionTestUtils.setField(compressor, "STORAGE_S3_COMPRESSION_DIRECTORY", spoolDirectory);
+        compressor.init();
+    }
+
+    @Test
+    void streamThatDoesntShrinkIsStoredAsIs() throws IOException {
+        byte[] payload = new byte[2 * 1024 * 1024];
+        new SplittableRandom(42).nextBytes(payload);
+
+        try (S3ContentCompressor.EncodedContent encoded = compressor.encode(CONTENT_TYPE, oneShot(payload), payload.length)) {
+            assertThat(encoded.contentEncoding()).isNull();
+            assertThat(encoded.contentLength()).isEqualTo(payload.length);
+            assertThat(encoded.stream().readAllBytes()).isEqualTo(payload);
+            assertThat(spoolFiles()).isEmpty();
+        }
+    }
+
+    @Test
+    void compressibleStreamIsSpooledInTheConfiguredDirectory() throws IOException {
+        byte[] payload = "{\"name\":\"alpha\",\"tags\":[\"bravo\",\"charlie\"]},".repeat(50_000).getBytes(StandardCharsets.US_ASCII);
+
+        try (S3ContentCompressor.EncodedContent encoded = compressor.encode(CONTENT_TYPE, oneShot(payload), payload.length)) {
+            assertThat(encoded.contentEncoding()).isEqualTo(S3ContentCompressor.GZIP);
+            assertThat(encoded.contentLength()).isLessThan(payload.length / 10);
+            assertThat(spoolFiles()).hasSize(1);
+            assertThat(compressor.decode(S3ContentCompressor.GZIP, encoded.stream().readAllBytes())).isEqualTo(payload);
+        }
+        assertThat(spoolFiles()).isEmpty();
+    }
+
+    @Test
+    void leftoverSpoolFilesAreDeletedOnStartup() throws IOException {
+        Files.createFile(spoolDirectory.resolve("s3-upload-1.gz"));
+
+        compressor.init();
+
+        assertThat(spoolFiles()).isEmpty();
+    }
+
+    private List<Path> spoolFiles() throws IOException {
+        try (Stream<Path> files = Files.list(spoolDirectory)) {
+            return files.toList();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.CopyObjectResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+import static com.shahidfoy.s3_demo.support.TestStreams.buffered;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class S3ContentDeduplicatorTest {
+
+    private static final String BUCKET = "bucket";
+    private static final String CONTENT_TYPE = "application/octet-stream";
+
+    @TempDir
+    Path directory;
+
+    private final S3Client s3Client = mock(S3Client.class);
+    private final byte[] payload = new byte[64 * 1024];
+    private S3ContentDeduplicator deduplicator;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        new SplittableRandom(42).nextBytes(payload);
+        when(s3Client.copyObject(any(CopyObjectRequest.class))).thenReturn(CopyObjectResponse.builder()
+                .copyObjectResult(CopyObjectResult.builder().eTag("\"copy\"").build())
+                .build());
+        deduplicator = new S3ContentDeduplicator(s3Client, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(deduplicator, "STORAGE_S3_DEDUP_ENABLED", true);
+        ReflectionTestUtils.setField(deduplicator, "STORAGE_S3_DEDUP_DIRECTORY", directory.resolve("dedup"));
+        ReflectionTestUtils.setField(deduplicator, "STORAGE_S3_DEDUP_MIN_SIZE", DataSize.ofKilobytes(1));
+        deduplicator.init();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        deduplicator.close();
+    }
+
+    @Test
+    void stagedFileIsHashedInPlace() throws IOException {
+        Path staged = Files.write(directory.resolve("save-file.upload"), payload);
+        deduplicator.stored(BUCKET, "original.bin", deduplicator.hash(payload), "\"original\"");
+
+        try (InputStream file = CachedObjectInputStream.open(staged, 0, payload.length);
+             S3ContentDeduplicator.HashedContent content = deduplicator.hash(file, payload.length)) {
+            assertThat(content.isHashed()).isTrue();
+            assertThat(content.stream()).isSameAs(file);
+            assertThat(deduplicator.copyExisting(BUCKET, "duplicate.bin", CONTENT_TYPE, null, content)).isTrue();
+            // rewound for the upload, and nothing was copied next to the journal
+            assertThat(content.stream().readAllBytes()).isEqualTo(payload);
+            assertThat(dedupFiles()).containsExactly("index.journal");
+        }
+        verify(s3Client).copyObject(any(CopyObjectRequest.class));
+    }
+
+    @Test
+    void oneShotStreamIsHashedDuringTheUploadAndIndexedAfterIt() throws IOException {
+        try (S3ContentDeduplicator.HashedContent content = deduplicator.hash(buffered(payload), payload.length)) {
+            assertThat(content.isHashed()).isFalse();
+            assertThat(deduplicator.copyExisting(BUCKET, "first.bin", CONTENT_TYPE, null, content)).isFalse();
+            // the upload reads the body, and the sdk rewinds it once to retry
+            InputStream body = content.stream();
+            body.mark(payload.length);
+            body.readNBytes(payload.length / 2);
+            body.reset();
+            assertThat(body.readAllBytes()).isEqualTo(payload);
+            deduplicator.stored(BUCKET, "first.bin", content, "\"first\"");
+        }
+        assertThat(dedupFiles()).containsExactly("index.journal");
+
+        assertThat(deduplicator.copyExisting(BUCKET, "second.bin", CONTENT_TYPE, null, deduplicator.hash(payload))).isTrue();
+        ArgumentCaptor<CopyObjectRequest> copy = ArgumentCaptor.forClass(CopyObjectRequest.class);
+        verify(s3Client).copyObject(copy.capture());
+        assertThat(copy.getValue().sourceKey()).isEqualTo("first.bin");
+        assertThat(copy.getValue().copySourceIfMatch()).isEqualTo("\"first\"");
+    }
+
+    @Test
+    void uploadThatDidntReadTheWholeStreamIsntIndexed() throws IOException {
+        try (S3ContentDeduplicator.HashedContent content = deduplicator.hash(buffered(payload), payload.length)) {
+            content.stream().readNBytes(payload.length / 2);
+            deduplicator.stored(BUCKET, "partial.bin", content, "\"partial\"");
+        }
+
+        assertThat(deduplicator.copyExisting(BUCKET, "second.bin", CONTENT_TYPE, null, deduplicator.hash(payload))).isFalse();
+    }
+
+    private List<String> dedupFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory.resolve("dedup"))) {
+            return files.map(file -> file.getFileName().toString()).toList();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class S3DiskCacheTest {
+
+    private static final String BUCKET = "bucket";
+    private static final String KEY = "large.bin";
+
+    @TempDir
+    Path directory;
+
+    private final byte[] content = new byte[3 * 1024 * 1024];
+    private final List<GetObjectRequest> requests = new CopyOnWriteArrayList<>();
+    private final Function<GetObjectRequest, ResponseInputStream<GetObjectResponse>> loader = this::get;
+
+    private S3DiskCache cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        new Random(7).nextBytes(content);
+        cache = newCache();
+    }
+
+    @Test
+    void concurrentMissesShareOneDownload() throws Exception {
+        ResponseInputStream<GetObjectResponse> first = cache.open(BUCKET, KEY, null, loader);
+        ResponseInputStream<GetObjectResponse> second = cache.open(BUCKET, KEY, null, loader);
+        assertThat(requests).hasSize(1);
+
+        CompletableFuture<byte[]> following = CompletableFuture.supplyAsync(() -> readAll(second));
+        assertThat(readAll(first)).isEqualTo(content);
+        assertThat(following.get()).isEqualTo(content);
+        assertThat(requests).hasSize(1);
+
+        // served from disk from now on
+        assertThat(readAll(cache.open(BUCKET, KEY, null, loader))).isEqualTo(content);
+        assertThat(requests).hasSize(1);
+    }
+
+    @Test
+    void followerReadsTheRestFromS3WhenTheFirstReaderAbandonsTheLoad() throws Exception {
+        ResponseInputStream<GetObjectResponse> first = cache.open(BUCKET, KEY, null, loader);
+        ResponseInputStream<GetObjectResponse> second = cache.open(BUCKET, KEY, null, loader);
+        byte[] head = first.readNBytes(1024 * 1024);
+        first.close();
+
+        assertThat(head).isEqualTo(Arrays.copyOf(content, head.length));
+        assertThat(readAll(second)).isEqualTo(content);
+        assertThat(requests).hasSize(2);
+        assertThat(requests.get(1).range()).isEqualTo("bytes=" + head.length + "-");
+        assertThat(requests.get(1).ifMatch()).isEqualTo("\"v1\"");
+        // nothing was cached, the next read loads again
+        readAll(cache.open(BUCKET, KEY, null, loader));
+        assertThat(requests).hasSize(3);
+    }
+
+    @Test
+    void completedEntryHasBothFilesAndSurvivesARestart() throws Exception {
+        readAll(cache.open(BUCKET, KEY, null, loader));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.map(path -> path.getFileName().toString()))
+                    .hasSize(2)
+                    .allMatch(name -> name.endsWith(".data") || name.endsWith(".properties"));
+        }
+
+        S3DiskCache restarted = newCache();
+        ReflectionTestUtils.setField(restarted, "STORAGE_S3_CACHE_REVALIDATE_AFTER", Duration.ofDays(3650));
+        assertThat(readAll(restarted.openIfCached(BUCKET, KEY, null))).isEqualTo(content);
+    }
+
+    @Test
+    void dataWithoutMetadataIsDiscardedOnRestart() throws Exception {
+        readAll(cache.open(BUCKET, KEY, null, loader));
+        // a crash after the data file was moved into place and before its metadata was
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(path -> path.toString().endsWith(".properties")).toList())
+                Files.delete(file);
+        }
+
+        S3DiskCache restarted = newCache();
+        assertThat(restarted.openIfCached(BUCKET, KEY, null)).isNull();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    private S3DiskCache newCache() throws IOException {
+        S3DiskCache diskCache = new S3DiskCache(mock(S3Client.class), new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(diskCache, "STORAGE_S3_CACHE_DISK_ENABLED", true);
+        ReflectionTestUtils.setField(diskCache, "STORAGE_S3_CACHE_DISK_DIRECTORY", directory);
+        ReflectionTestUtils.setField(diskCache, "STORAGE_S3_CACHE_DISK_MAX_SIZE", DataSize.ofMegabytes(64));
+        ReflectionTestUtils.setField(diskCache, "STORAGE_S3_CACHE_DISK_MIN_OBJECT_SIZE", DataSize.ofMegabytes(2));
+        ReflectionTestUtils.setField(diskCache, "STORAGE_S3_CACHE_DISK_MAX_OBJECT_SIZE", DataSize.ofMegabytes(16));
+        ReflectionTestUtils.setField(diskCache, "STORAGE_S3_CACHE_REVALIDATE_AFTER", Duration.ofMinutes(5));
+        diskCache.init();
+        return diskCache;
+    }
+
+    /**
+     * s3 stand-in serving the content in small reads, so a reader can be stopped part way
+     */
+    private ResponseInputStream<GetObjectResponse> get(GetObjectRequest request) {
+        requests.add(request);
+        int start = request.range() == null ? 0 : Integer.parseInt(request.range().replaceAll("\\D", ""));
+        InputStream body = new ByteArrayInputStream(content, start, content.length - start) {
+            @Override
+            public synchronized int read(byte[] bytes, int offset, int length) {
+                return super.read(bytes, offset, Math.min(length, 64 * 1024));
+            }
+        };
+        GetObjectResponse response = GetObjectResponse.builder()
+                .eTag("\"v1\"")
+                .contentLength((long) content.length - start)
+                .build();
+        return new ResponseInputStream<>(response, AbortableInputStream.create(body));
+    }
+
+    private static byte[] readAll(InputStream in) {
+        try (in) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.config.GuardedS3Client;
+import com.shahidfoy.s3_demo.model.response.S3BatchResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectAclRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectAclResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+class S3ImageVariantsTest {
+
+    private static final String BUCKET = "bucket";
+
+    private final S3Client s3Client = mock(S3Client.class);
+    private final S3MetadataIndex metadataIndex = mock(S3MetadataIndex.class);
+    private final S3ObjectCopier objectCopier = mock(S3ObjectCopier.class);
+    private final S3BatchDeleter batchDeleter = mock(S3BatchDeleter.class);
+    private final ThreadPoolExecutor s3ImageExecutor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(4), GuardedS3Client.internalThreadFactory("s3-image-"),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    private S3ImageVariants imageVariants;
+
+    @BeforeEach
+    void setUp() {
+        imageVariants = new S3ImageVariants(s3Client, s3ImageExecutor, mock(S3ObjectCache.class), metadataIndex,
+                objectCopier, batchDeleter, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(imageVariants, "STORAGE_S3_IMAGES_ENABLED", true);
+        ReflectionTestUtils.setField(imageVariants, "STORAGE_S3_IMAGES_VARIANTS", List.of("thumb:16", "small:48"));
+        ReflectionTestUtils.setField(imageVariants, "STORAGE_S3_IMAGES_JPEG_QUALITY", 0.8f);
+        ReflectionTestUtils.setField(imageVariants, "STORAGE_S3_IMAGES_MAX_SOURCE_SIZE", DataSize.ofMegabytes(1));
+        ReflectionTestUtils.setField(imageVariants, "STORAGE_S3_IMAGES_MAX_PIXELS", 1_000_000L);
+        ReflectionTestUtils.setField(imageVariants, "STORAGE_S3_IMAGES_BUFFER_SIZE", DataSize.ofKilobytes(64));
+        imageVariants.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        s3ImageExecutor.shutdownNow();
+    }
+
+    @Test
+    void variantsAreUploadedByTheImageThreadsThatEncodedThemWithTheOriginalsAcl() throws Exception {
+        List<String> uploadThreads = new CopyOnWriteArrayList<>();
+        List<ObjectCannedACL> uploadAcls = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            uploadThreads.add(Thread.currentThread().getName());
+            uploadAcls.add(invocation.<PutObjectRequest>getArgument(0).acl());
+            return PutObjectResponse.builder().build();
+        }).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+
+        imageVariants.generate(BUCKET, "photo.png", "image/png", png(), ObjectCannedACL.PRIVATE);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (uploadThreads.size() < 2 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertThat(uploadThreads).hasSize(2).allSatisfy(thread -> assertThat(thread).startsWith("s3-image-"));
+        assertThat(uploadAcls).containsOnly(ObjectCannedACL.PRIVATE);
+    }
+
+    @Test
+    void renameCopiesTheVariantsThatExist() {
+        // only the thumb variant was generated
+        doAnswer(invocation -> {
+            if (invocation.<CopyObjectRequest>getArgument(0).sourceKey().startsWith("variants/small/"))
+                throw S3Exception.builder().statusCode(404).message("NoSuchKey").build();
+            return CopyObjectResponse.builder().build();
+        }).when(s3Client).copyObject(any(CopyObjectRequest.class));
+
+        imageVariants.copied(BUCKET, "photo.png", "renamed.png", ObjectCannedACL.PRIVATE);
+
+        ArgumentCaptor<CopyObjectRequest> copies = ArgumentCaptor.forClass(CopyObjectRequest.class);
+        verify(s3Client, times(2)).copyObject(copies.capture());
+        assertThat(copies.getAllValues()).extracting(CopyObjectRequest::acl).containsOnly(ObjectCannedACL.PRIVATE);
+        verify(metadataIndex).copied(BUCKET, "variants/thumb/photo.png", "variants/thumb/renamed.png");
+        verify(metadataIndex, times(1)).copied(any(), any(), any());
+    }
+
+    @Test
+    void aclChangeIsAppliedToTheVariantsThatExist() {
+        // only the thumb variant was generated
+        doAnswer(invocation -> {
+            if (invocation.<PutObjectAclRequest>getArgument(0).key().startsWith("variants/small/"))
+                throw S3Exception.builder().statusCode(404).message("NoSuchKey").build();
+            return PutObjectAclResponse.builder().build();
+        }).when(s3Client).putObjectAcl(any(PutObjectAclRequest.class));
+
+        imageVariants.aclChanged(BUCKET, "photo.png", ObjectCannedACL.PRIVATE);
+        imageVariants.aclChanged(BUCKET, "variants/thumb/other.png", ObjectCannedACL.PRIVATE);
+
+        ArgumentCaptor<PutObjectAclRequest> puts = ArgumentCaptor.forClass(PutObjectAclRequest.class);
+        verify(s3Client, times(2)).putObjectAcl(puts.capture());
+        assertThat(puts.getAllValues()).extracting(PutObjectAclRequest::key)
+                .containsExactly("variants/thumb/photo.png", "variants/small/photo.png");
+        assertThat(puts.getAllValues()).extracting(PutObjectAclRequest::acl).containsOnly(ObjectCannedACL.PRIVATE);
+        verify(metadataIndex).aclChanged(BUCKET, "variants/thumb/photo.png", ObjectCannedACL.PRIVATE);
+        verify(metadataIndex, times(1)).aclChanged(any(), any(), any());
+    }
+
+    @Test
+    void deleteRemovesEveryVariantInOneRequest() {
+        when(s3Client.deleteObjects(any(DeleteObjectsRequest.class))).thenReturn(DeleteObjectsResponse.builder().build());
+
+        imageVariants.removed(BUCKET, List.of("photo.png", "variants/thumb/other.png"));
+
+        ArgumentCaptor<DeleteObjectsRequest> delete = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        verify(s3Client).deleteObjects(delete.capture());
+        assertThat(delete.getValue().delete().objects()).extracting(ObjectIdentifier::key)
+                .containsExactly("variants/thumb/photo.png", "variants/small/photo.png");
+        verify(metadataIndex).removed(BUCKET, "variants/thumb/photo.png");
+        verify(metadataIndex).removed(BUCKET, "variants/small/photo.png");
+    }
+
+    @Test
+    void prefixRenameAndDeleteCoverEveryVariant() {
+        S3BatchResponse none = new S3BatchResponse(0, Map.of());
+        when(objectCopier.renameByPrefix(any(), any(), any())).thenReturn(none);
+        when(batchDeleter.deleteByPrefix(any(), any())).thenReturn(none);
+
+        imageVariants.renamedPrefix(BUCKET, "albums/2023/", "albums/2024/");
+        imageVariants.removedPrefix(BUCKET, "albums/2022/");
+        imageVariants.removedPrefix(BUCKET, "variants/thumb/");
+
+        verify(objectCopier).renameByPrefix(BUCKET, "variants/thumb/albums/2023/", "variants/thumb/albums/2024/");
+        verify(objectCopier).renameByPrefix(BUCKET, "variants/small/albums/2023/", "variants/small/albums/2024/");
+        verify(batchDeleter).deleteByPrefix(BUCKET, "variants/thumb/albums/2022/");
+        verify(batchDeleter).deleteByPrefix(BUCKET, "variants/small/albums/2022/");
+        verifyNoMoreInteractions(objectCopier, batchDeleter);
+    }
+
+    private static byte[] png() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(200, 100, BufferedImage.TYPE_INT_RGB), "png", png);
+        return png.toByteArray();
+    }
+}
@@ -0,0 +1,158 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.model.response.S3FileMetadataResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectAclRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectAclResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Iterable;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class S3MetadataIndexTest {
+
+    private static final String BUCKET = "bucket";
+
+    private final S3Client s3Client = mock(S3Client.class);
+    private final ExecutorService s3BatchExecutor = Executors.newSingleThreadExecutor();
+    // keys in the bucket
+    private final Set<String> stored = new ConcurrentSkipListSet<>();
+    // runs after s3 produced a listing page, before the page reaches the index
+    private volatile Runnable duringListing = () -> { };
+    private S3MetadataIndex metadataIndex;
+
+    @BeforeEach
+    void setUp() {
+        metadataIndex = new S3MetadataIndex(s3Client, s3BatchExecutor, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(metadataIndex, "STORAGE_S3_BUCKET", BUCKET);
+        ReflectionTestUtils.setField(metadataIndex, "STORAGE_S3_INDEX_ENABLED", true);
+        ReflectionTestUtils.setField(metadataIndex, "STORAGE_S3_INDEX_NEGATIVE_LOOKUPS", true);
+        ReflectionTestUtils.setField(metadataIndex, "STORAGE_S3_INDEX_BLOOM_FALSE_POSITIVE_RATE", 0.01);
+        ReflectionTestUtils.setField(metadataIndex, "STORAGE_S3_INDEX_ENRICH_RATE", 1000);
+        metadataIndex.init();
+
+        when(s3Client.listObjectsV2Paginator(any(ListObjectsV2Request.class)))
+                .thenAnswer(invocation -> new ListObjectsV2Iterable(s3Client, invocation.getArgument(0)));
+        doAnswer(invocation -> {
+            String prefix = invocation.<ListObjectsV2Request>getArgument(0).prefix();
+            List<S3Object> page = stored.stream()
+                    .filter(key -> prefix == null || key.startsWith(prefix))
+                    .map(key -> S3Object.builder().key(key).eTag("\"" + key + "\"").size(1L).build())
+                    .toList();
+            duringListing.run();
+            return ListObjectsV2Response.builder().contents(page).isTruncated(false).build();
+        }).when(s3Client).listObjectsV2(any(ListObjectsV2Request.class));
+        when(s3Client.headObject(any(HeadObjectRequest.class))).thenAnswer(invocation -> {
+            String key = invocation.<HeadObjectRequest>getArgument(0).key();
+            if (!stored.contains(key))
+                throw NoSuchKeyException.builder().message("Not Found").build();
+            return HeadObjectResponse.builder().eTag("\"" + key + "\"").contentLength(1L).contentType("text/plain").build();
+        });
+        when(s3Client.getObjectAcl(any(GetObjectAclRequest.class))).thenReturn(GetObjectAclResponse.builder().build());
+    }
+
+    @AfterEach
+    void tearDown() {
+        s3BatchExecutor.shutdownNow();
+    }
+
+    @Test
+    void keyWrittenDuringACrawlSurvivesTheIndexSwap() throws Exception {
+        stored.add("listed.txt");
+        // the write lands after s3 produced the listing page that doesn't have it
+        duringListing = () -> {
+            stored.add("written.txt");
+            metadataIndex.changed(BUCKET, "written.txt", ObjectCannedACL.PUBLIC_READ);
+            awaitBatchExecutor();
+        };
+
+        metadataIndex.reconcile();
+
+        assertThat(metadataIndex.list(BUCKET, "", 10)).extracting(S3FileMetadataResponse::getFileName)
+                .containsExactly("listed.txt", "written.txt");
+        assertThat(metadataIndex.isKnownMissing(BUCKET, "written.txt")).isFalse();
+    }
+
+    @Test
+    void presignedUploadIsNotReportedMissingWhileItsUrlIsValid() {
+        metadataIndex.reconcile();
+
+        metadataIndex.expectExternalWrite(BUCKET, "upload.bin", Duration.ofMinutes(10));
+
+        assertThat(metadataIndex.isKnownMissing(BUCKET, "upload.bin")).isFalse();
+        assertThat(metadataIndex.isKnownMissing(BUCKET, "other.bin")).isTrue();
+        // a crawl that finishes before the url expires doesn't drop the expectation
+        metadataIndex.reconcile();
+        assertThat(metadataIndex.isKnownMissing(BUCKET, "upload.bin")).isFalse();
+    }
+
+    @Test
+    void lookupsUnderAPrefixBeingRelistedGoToS3() throws Exception {
+        stored.add("albums/kept.jpg");
+        metadataIndex.reconcile();
+        CountDownLatch relisted = new CountDownLatch(1);
+        CountDownLatch relisting = new CountDownLatch(1);
+        duringListing = () -> {
+            relisting.countDown();
+            try {
+                relisted.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        metadataIndex.prefixChanged(BUCKET, "albums/");
+        assertThat(relisting.await(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(metadataIndex.isKnownMissing(BUCKET, "albums/renamed.jpg")).isFalse();
+        assertThat(metadataIndex.get(BUCKET, "albums/renamed.jpg")).isNull();
+        verify(s3Client).headObject(argThat((HeadObjectRequest request) -> request.key().equals("albums/renamed.jpg")));
+        assertThat(metadataIndex.isKnownMissing(BUCKET, "docs/other.txt")).isTrue();
+
+        relisted.countDown();
+        await(() -> metadataIndex.isKnownMissing(BUCKET, "albums/renamed.jpg"));
+    }
+
+    private void awaitBatchExecutor() {
+        try {
+            // single thread, so the refresh queued before this has run
+            s3BatchExecutor.submit(() -> { }).get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+}
@@ -0,0 +1,102 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.support.FakeS3Server;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class S3MultipartUploaderTest {
+
+    private static final String BUCKET = "bucket";
+    private static final int PART_SIZE = (int) DataSize.ofMegabytes(5).toBytes();
+
+    private final ExecutorService s3TransferExecutor = Executors.newFixedThreadPool(8);
+    private FakeS3Server server;
+    private S3Client s3Client;
+
+    @AfterEach
+    void tearDown() {
+        s3TransferExecutor.shutdownNow();
+        s3Client.close();
+        server.close();
+    }
+
+    @Test
+    void partsAreUploadedAndAssembledInOrder() throws IOException {
+        start(0);
+        byte[] payload = payload(8 * PART_SIZE + 12345);
+
+        upload("large.bin", payload);
+
+        assertThat(server.object(BUCKET, "large.bin")).isEqualTo(payload);
+        assertThat(server.openUploads()).isZero();
+    }
+
+    @Test
+    void failedPartAbortsTheUpload() throws IOException {
+        start(0);
+        server.failPart(3);
+
+        assertThatThrownBy(() -> upload("large.bin", payload(6 * PART_SIZE)))
+                .isInstanceOf(S3Exception.class);
+
+        assertThat(server.object(BUCKET, "large.bin")).isNull();
+        assertThat(server.openUploads()).isZero();
+    }
+
+    @Test
+    void parallelPartsOutrunASinglePutOnABandwidthCappedEndpoint() throws IOException {
+        // every request body is read at 4MB/s, like one connection to a remote endpoint
+        start(DataSize.ofMegabytes(4).toBytes());
+        byte[] payload = payload(4 * PART_SIZE);
+
+        long started = System.nanoTime();
+        s3Client.putObject(PutObjectRequest.builder().bucket(BUCKET).key("single.bin").build(),
+                RequestBody.fromBytes(payload));
+        Duration single = Duration.ofNanos(System.nanoTime() - started);
+
+        started = System.nanoTime();
+        upload("parts.bin", payload);
+        Duration multipart = Duration.ofNanos(System.nanoTime() - started);
+
+        assertThat(server.object(BUCKET, "parts.bin")).isEqualTo(payload);
+        // 4 parts in parallel, so close to 4 times the throughput less the request overhead
+        assertThat(multipart.multipliedBy(2)).isLessThan(single);
+    }
+
+    private void start(long requestBandwidth) throws IOException {
+        server = FakeS3Server.start(requestBandwidth);
+        s3Client = server.client();
+    }
+
+    private void upload(String key, byte[] payload) {
+        S3MultipartUploader uploader = new S3MultipartUploader(s3Client, s3TransferExecutor);
+        ReflectionTestUtils.setField(uploader, "STORAGE_S3_MULTIPART_THRESHOLD", DataSize.ofMegabytes(5));
+        ReflectionTestUtils.setField(uploader, "STORAGE_S3_MULTIPART_PART_SIZE", DataSize.ofMegabytes(5));
+        ReflectionTestUtils.setField(uploader, "STORAGE_S3_MULTIPART_MAX_BUFFERED_PARTS", 16);
+        uploader.init();
+        uploader.upload(BUCKET, key, "application/octet-stream", null, null,
+                new ByteArrayInputStream(payload), payload.length);
+    }
+
+    private static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,181 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class S3ObjectCacheTest {
+
+    private static final String BUCKET = "bucket";
+    private static final String KEY = "hot.json";
+    private static final int CALLERS = 8;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+    private final List<GetObjectRequest> requests = new CopyOnWriteArrayList<>();
+    // s3 holds this version, loads block until released
+    private volatile String version = "v1";
+    private volatile CountDownLatch released = new CountDownLatch(0);
+    private final Function<GetObjectRequest, ResponseBytes<GetObjectResponse>> loader = this::get;
+    private final S3DiskCache diskCache = mock(S3DiskCache.class);
+    private S3ObjectCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new S3ObjectCache(meterRegistry, diskCache, new S3ContentCompressor(meterRegistry));
+        ReflectionTestUtils.setField(cache, "STORAGE_S3_CACHE_ENABLED", true);
+        ReflectionTestUtils.setField(cache, "STORAGE_S3_CACHE_MAX_SIZE", DataSize.ofMegabytes(1));
+        ReflectionTestUtils.setField(cache, "STORAGE_S3_CACHE_MAX_OBJECT_SIZE", DataSize.ofKilobytes(64));
+        ReflectionTestUtils.setField(cache, "STORAGE_S3_CACHE_REVALIDATE_AFTER", Duration.ofMinutes(1));
+        cache.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        released.countDown();
+        callers.shutdownNow();
+    }
+
+    @Test
+    void concurrentMissesShareOneLoad() throws Exception {
+        released = new CountDownLatch(1);
+
+        List<CompletableFuture<byte[]>> reads = readConcurrently();
+        awaitCoalesced(CALLERS - 1);
+        released.countDown();
+
+        assertThat(reads).allSatisfy(read -> assertThat(text(read.get())).isEqualTo("v1"));
+        assertThat(requests).hasSize(1);
+    }
+
+    @Test
+    void concurrentRevalidationsShareOneConditionalGet() throws Exception {
+        ReflectionTestUtils.setField(cache, "STORAGE_S3_CACHE_REVALIDATE_AFTER", Duration.ZERO);
+        cache.get(BUCKET, KEY, loader);
+        released = new CountDownLatch(1);
+
+        List<CompletableFuture<byte[]>> reads = readConcurrently();
+        awaitCoalesced(CALLERS - 1);
+        released.countDown();
+
+        assertThat(reads).allSatisfy(read -> assertThat(text(read.get())).isEqualTo("v1"));
+        assertThat(requests).hasSize(2);
+        assertThat(requests.get(1).ifNoneMatch()).isEqualTo("\"v1\"");
+        assertThat(meterRegistry.counter("s3.cache.revalidations", "result", "not_modified").count()).isEqualTo(1);
+    }
+
+    @Test
+    void invalidationDuringALoadKeepsItsResultOutOfTheCache() throws Exception {
+        released = new CountDownLatch(1);
+        CompletableFuture<byte[]> stale = CompletableFuture.supplyAsync(() -> cache.get(BUCKET, KEY, loader), callers);
+        awaitRequests(1);
+
+        // the file is overwritten while the load that read v1 is still in flight
+        version = "v2";
+        cache.invalidate(BUCKET, KEY);
+        released.countDown();
+
+        assertThat(text(stale.get())).isEqualTo("v1");
+        assertThat(text(cache.get(BUCKET, KEY, loader))).isEqualTo("v2");
+        assertThat(requests).hasSize(2);
+    }
+
+    @Test
+    void diskTierThatThrowsFailsTheLoadAndTheNextCallerLoadsAgain() throws Exception {
+        when(diskCache.readIfCached(BUCKET, KEY))
+                .thenThrow(new UncheckedIOException(new IOException("disk tier unreadable")))
+                .thenReturn(null);
+
+        assertThatThrownBy(() -> cache.get(BUCKET, KEY, loader)).isInstanceOf(UncheckedIOException.class);
+
+        assertThat(text(loadAgain())).isEqualTo("v1");
+        assertThat(requests).hasSize(1);
+    }
+
+    @Test
+    void loaderThatThrowsInsteadOfFailingItsFutureDoesNotWedgeTheKey() throws Exception {
+        CompletableFuture<byte[]> failed = cache.getAsync(BUCKET, KEY, request -> {
+            throw new IllegalStateException("client closed");
+        });
+
+        assertThat(failed).failsWithin(Duration.ofSeconds(10))
+                .withThrowableOfType(ExecutionException.class)
+                .withCauseInstanceOf(IllegalStateException.class);
+        assertThat(text(loadAgain())).isEqualTo("v1");
+    }
+
+    /**
+     * a caller after a failed load, bounded so a key wedged by that load fails the test instead of hanging it
+     */
+    private byte[] loadAgain() throws Exception {
+        return cache.getAsync(BUCKET, KEY, request -> CompletableFuture.completedFuture(get(request)))
+                .get(10, TimeUnit.SECONDS);
+    }
+
+    private List<CompletableFuture<byte[]>> readConcurrently() {
+        return IntStream.range(0, CALLERS)
+                .mapToObj(i -> CompletableFuture.supplyAsync(() -> cache.get(BUCKET, KEY, loader), callers))
+                .toList();
+    }
+
+    private ResponseBytes<GetObjectResponse> get(GetObjectRequest request) {
+        // the version is read when the request is sent, the response arrives once released
+        String current = version;
+        requests.add(request);
+        try {
+            released.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        String eTag = "\"" + current + "\"";
+        if (eTag.equals(request.ifNoneMatch()))
+            throw S3Exception.builder().statusCode(304).message("Not Modified").build();
+        return ResponseBytes.fromByteArray(GetObjectResponse.builder().eTag(eTag).build(),
+                current.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void awaitCoalesced(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (meterRegistry.counter("s3.cache.loads.coalesced").count() < count && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertThat(meterRegistry.counter("s3.cache.loads.coalesced").count()).isEqualTo(count);
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (requests.size() < count && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertThat(requests).hasSize(count);
+    }
+
+    private static String text(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,110 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class S3ObjectCopierTest {
+
+    private static final String BUCKET = "bucket";
+
+    private final S3Client s3Client = mock(S3Client.class);
+    private final ExecutorService s3TransferExecutor = Executors.newFixedThreadPool(2);
+    private S3ObjectCopier copier;
+
+    @BeforeEach
+    void setUp() {
+        copier = new S3ObjectCopier(s3Client, s3TransferExecutor, s3TransferExecutor);
+        ReflectionTestUtils.setField(copier, "STORAGE_S3_COPY_PART_SIZE", DataSize.ofMegabytes(512));
+        Owner owner = Owner.builder().id("owner").build();
+        when(s3Client.getObjectAcl(any(GetObjectAclRequest.class))).thenReturn(GetObjectAclResponse.builder()
+                .owner(owner)
+                .grants(Grant.builder()
+                        .grantee(Grantee.builder().type(Type.CANONICAL_USER).id("owner").build())
+                        .permission(Permission.FULL_CONTROL)
+                        .build())
+                .build());
+        when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload").build());
+    }
+
+    @AfterEach
+    void tearDown() {
+        s3TransferExecutor.shutdownNow();
+    }
+
+    @Test
+    void failedPartAbortsOnlyOnceTheRunningPartsSettle() {
+        source(DataSize.ofGigabytes(6).toBytes());
+        List<String> events = new CopyOnWriteArrayList<>();
+        CountDownLatch secondPartStarted = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            UploadPartCopyRequest request = invocation.getArgument(0);
+            if (request.partNumber() == 1) {
+                secondPartStarted.await();
+                throw S3Exception.builder().statusCode(500).message("part failed").build();
+            }
+            secondPartStarted.countDown();
+            Thread.sleep(200);
+            events.add("part " + request.partNumber());
+            return part(request.partNumber());
+        }).when(s3Client).uploadPartCopy(any(UploadPartCopyRequest.class));
+        doAnswer(invocation -> {
+            events.add("abort");
+            return AbortMultipartUploadResponse.builder().build();
+        }).when(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+
+        assertThatThrownBy(() -> copier.copy(BUCKET, "large.bin", "copy.bin", null))
+                .isInstanceOf(S3Exception.class);
+
+        // part 2 was running when part 1 failed, the abort waits for it and the queued parts skip themselves
+        assertThat(events).contains("part 2").endsWith("abort").hasSizeLessThan(5);
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    void partSizeIsRaisedToStayWithinTheS3PartLimit() {
+        long objectSize = DataSize.ofTerabytes(5).toBytes();
+        source(objectSize);
+        doAnswer(invocation -> part(invocation.<UploadPartCopyRequest>getArgument(0).partNumber()))
+                .when(s3Client).uploadPartCopy(any(UploadPartCopyRequest.class));
+
+        copier.copy(BUCKET, "large.bin", "copy.bin", null);
+
+        // 512MB parts would take 10,240 of them
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3Client).completeMultipartUpload(complete.capture());
+        assertThat(complete.getValue().multipartUpload().parts()).hasSize(10_000);
+        verify(s3Client).uploadPartCopy(argThat((UploadPartCopyRequest request) -> request.partNumber() == 10_000
+                && request.copySourceRange().endsWith("-" + (objectSize - 1))));
+    }
+
+    private void source(long contentLength) {
+        when(s3Client.headObject(any(HeadObjectRequest.class))).thenReturn(HeadObjectResponse.builder()
+                .contentLength(contentLength)
+                .contentType("application/octet-stream")
+                .build());
+    }
+
+    private static UploadPartCopyResponse part(int partNumber) {
+        return UploadPartCopyResponse.builder()
+                .copyPartResult(CopyPartResult.builder().eTag("etag-" + partNumber).build())
+                .build();
+    }
+}
@@ -0,0 +1,74 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.config.RetryConfig;
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class S3ServiceSubtleErrorsTest {
+
+    private final S3Client s3Client = mock(S3Client.class);
+    private final S3ObjectCopier objectCopier = mock(S3ObjectCopier.class);
+    private S3StorageService storage;
+
+    @BeforeEach
+    void setUp() {
+        S3ServiceSubtleErrors service = new S3ServiceSubtleErrors(s3Client, mock(S3UrlPresigner.class),
+                mock(S3PresignedMultipartUploads.class), mock(S3AclJobManager.class), mock(S3ObjectLister.class),
+                mock(S3MultipartUploader.class), objectCopier, mock(S3BatchDeleter.class), mock(S3ObjectCache.class),
+                mock(S3MetadataIndex.class), mock(S3ImageVariants.class), mock(S3ContentDeduplicator.class),
+                mock(S3ContentCompressor.class), mock(TailNotifier.class), mock(S3UploadStaging.class));
+
+        RetryConfig retryConfig = new RetryConfig(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(retryConfig, "STORAGE_S3_RETRY_MAX_ATTEMPTS", 3);
+        ReflectionTestUtils.setField(retryConfig, "STORAGE_S3_RETRY_INITIAL_BACKOFF", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(retryConfig, "STORAGE_S3_RETRY_MAX_BACKOFF", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(retryConfig, "STORAGE_S3_RETRY_BUDGET_RATIO", 0.1);
+        ReflectionTestUtils.setField(retryConfig, "STORAGE_S3_RETRY_BUDGET_CAPACITY", 20.0);
+
+        // the @Retryable(interceptor = "s3RetryInterceptor") proxy spring puts around the service
+        ProxyFactory proxyFactory = new ProxyFactory(service);
+        proxyFactory.addInterface(S3StorageService.class);
+        proxyFactory.addAdvice(retryConfig.s3RetryInterceptor());
+        storage = (S3StorageService) proxyFactory.getProxy();
+    }
+
+    @Test
+    void retriedRenameWhoseDeleteWentThroughSucceeds() {
+        // the delete reaches s3 but its response is lost, so the first attempt fails after the move is complete
+        doThrow(SdkClientException.create("Connection reset", new IOException("Connection reset")))
+                .when(s3Client).deleteObject(any(DeleteObjectRequest.class));
+        when(objectCopier.isMoved("bucket", "old.txt", "new.txt")).thenReturn(true);
+
+        storage.renameFile("bucket", "old.txt", "new.txt", null);
+
+        verify(objectCopier).copy(anyString(), anyString(), anyString(), isNull());
+        verify(s3Client).deleteObject(any(DeleteObjectRequest.class));
+    }
+
+    @Test
+    void firstAttemptNeverTreatsAMissingSourceAsMoved() {
+        storage.renameFile("bucket", "old.txt", "new.txt", null);
+
+        verify(objectCopier, never()).isMoved(anyString(), anyString(), anyString());
+        verify(objectCopier).copy("bucket", "old.txt", "new.txt", null);
+    }
+}
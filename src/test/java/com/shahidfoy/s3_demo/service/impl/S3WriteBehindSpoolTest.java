@@ -0,0 +1,143 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.shahidfoy.s3_demo.service.S3StorageService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class S3WriteBehindSpoolTest {
+
+    private static final String BUCKET = "bucket";
+    private static final byte[] PAYLOAD = "spooled payload".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path directory;
+
+    private final ExecutorService s3SpoolExecutor = Executors.newSingleThreadExecutor();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @AfterEach
+    void tearDown() {
+        s3SpoolExecutor.shutdownNow();
+    }
+
+    @Test
+    void uploadThatFailedBeforeARestartIsReplayedAndThenDeleted() throws Exception {
+        S3StorageService unavailable = mock(S3StorageService.class);
+        doThrow(S3Exception.builder().statusCode(503).message("slow down").build())
+                .when(unavailable).saveFileToBucket(anyString(), anyString(), any(), any(InputStream.class), anyLong());
+        S3WriteBehindSpool before = spool(unavailable, Integer.MAX_VALUE, new SimpleMeterRegistry());
+        before.enqueue(BUCKET, "report.pdf", "application/pdf", new ByteArrayInputStream(PAYLOAD), PAYLOAD.length);
+        verify(unavailable, timeout(TimeUnit.SECONDS.toMillis(10)).atLeastOnce())
+                .saveFileToBucket(anyString(), anyString(), any(), any(InputStream.class), anyLong());
+        before.stop();
+
+        Map<String, byte[]> stored = new ConcurrentHashMap<>();
+        S3StorageService available = mock(S3StorageService.class);
+        doAnswer(invocation -> {
+            stored.put(invocation.getArgument(1), invocation.<InputStream>getArgument(3).readAllBytes());
+            return null;
+        }).when(available).saveFileToBucket(anyString(), anyString(), any(), any(InputStream.class), anyLong());
+        S3WriteBehindSpool after = spool(available, 10, meterRegistry);
+        after.resume();
+
+        await(() -> spoolFiles().isEmpty());
+        assertThat(stored).containsOnlyKeys("report.pdf");
+        assertThat(stored.get("report.pdf")).isEqualTo(PAYLOAD);
+        assertThat(meterRegistry.counter("s3.spool.drains", "result", "uploaded").count()).isEqualTo(1);
+    }
+
+    @Test
+    void uploadThatCantSucceedIsDroppedAtOnceAndFreesTheSpool() throws Exception {
+        S3StorageService storageService = mock(S3StorageService.class);
+        doThrow(new IllegalStateException("Subtle failure saving file: __error__report.pdf"))
+                .when(storageService).saveFileToBucket(anyString(), anyString(), any(), any(InputStream.class), anyLong());
+        S3WriteBehindSpool spool = spool(storageService, 10, meterRegistry);
+
+        spool.enqueue(BUCKET, "__error__report.pdf", "application/pdf", new ByteArrayInputStream(PAYLOAD), PAYLOAD.length);
+
+        await(() -> meterRegistry.counter("s3.spool.drains", "result", "dropped").count() == 1);
+        verify(storageService, times(1)).saveFileToBucket(anyString(), anyString(), any(), any(InputStream.class), anyLong());
+        assertThat(meterRegistry.get("s3.spool.depth").gauge().value()).isZero();
+    }
+
+    @Test
+    void retryableFailuresAreDroppedAfterMaxAttempts() throws Exception {
+        S3StorageService storageService = mock(S3StorageService.class);
+        doThrow(S3Exception.builder().statusCode(500).message("internal error").build())
+                .when(storageService).saveFileToBucket(anyString(), anyString(), any(), any(InputStream.class), anyLong());
+        S3WriteBehindSpool spool = spool(storageService, 3, meterRegistry);
+
+        spool.enqueue(BUCKET, "report.pdf", "application/pdf", new ByteArrayInputStream(PAYLOAD), PAYLOAD.length);
+        // the scheduler's job in the application, each pass picks up the uploads whose backoff has passed
+        await(() -> {
+            spool.retry();
+            return meterRegistry.counter("s3.spool.drains", "result", "dropped").count() == 1;
+        });
+
+        verify(storageService, times(3)).saveFileToBucket(anyString(), anyString(), any(), any(InputStream.class), anyLong());
+        assertThat(meterRegistry.counter("s3.spool.drains", "result", "failed").count()).isEqualTo(3);
+        assertThat(meterRegistry.get("s3.spool.depth").gauge().value()).isZero();
+    }
+
+    private S3WriteBehindSpool spool(S3StorageService storageService, int maxAttempts, SimpleMeterRegistry registry)
+            throws IOException {
+        S3WriteBehindSpool spool = new S3WriteBehindSpool(storageService, s3SpoolExecutor, registry);
+        ReflectionTestUtils.setField(spool, "STORAGE_S3_WRITE_BEHIND_ENABLED", true);
+        ReflectionTestUtils.setField(spool, "STORAGE_S3_WRITE_BEHIND_DIRECTORY", directory);
+        ReflectionTestUtils.setField(spool, "STORAGE_S3_WRITE_BEHIND_SEGMENT_SIZE", DataSize.ofMegabytes(1));
+        ReflectionTestUtils.setField(spool, "STORAGE_S3_WRITE_BEHIND_MAX_SIZE", DataSize.ofMegabytes(16));
+        ReflectionTestUtils.setField(spool, "STORAGE_S3_WRITE_BEHIND_CONCURRENCY", 1);
+        ReflectionTestUtils.setField(spool, "STORAGE_S3_WRITE_BEHIND_RETRY_BACKOFF", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(spool, "STORAGE_S3_WRITE_BEHIND_MAX_RETRY_BACKOFF", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(spool, "STORAGE_S3_WRITE_BEHIND_MAX_ATTEMPTS", maxAttempts);
+        spool.init();
+        return spool;
+    }
+
+    private List<Path> spoolFiles() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.toList();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+}
@@ -0,0 +1,120 @@
+package com.shahidfoy.s3_demo.service.impl;
+
+import com.n1netails.n1netails.kuda.internal.TailConfig;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TailNotifierTest {
+
+    private static final int CAPACITY = 10;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    // the endpoint reads each alert and then doesn't answer until released
+    private final CountDownLatch endpointReleased = new CountDownLatch(1);
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private HttpServer endpoint;
+    private TailNotifier tailNotifier;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        endpoint = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        endpoint.setExecutor(Executors.newCachedThreadPool());
+        endpoint.createContext("/", exchange -> {
+            received.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            try {
+                endpointReleased.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        endpoint.start();
+        TailConfig.setApiUrl("http://127.0.0.1:" + endpoint.getAddress().getPort());
+        TailConfig.setApiPath("/ninetails/alert");
+
+        tailNotifier = new TailNotifier(meterRegistry);
+        ReflectionTestUtils.setField(tailNotifier, "N1NETAILS_KUDA_NOTIFICATIONS_QUEUE_CAPACITY", CAPACITY);
+        ReflectionTestUtils.setField(tailNotifier, "N1NETAILS_KUDA_NOTIFICATIONS_BATCH_SIZE", CAPACITY);
+        ReflectionTestUtils.setField(tailNotifier, "N1NETAILS_KUDA_NOTIFICATIONS_FLUSH_INTERVAL", Duration.ofMillis(10));
+        ReflectionTestUtils.setField(tailNotifier, "N1NETAILS_KUDA_NOTIFICATIONS_SHUTDOWN_TIMEOUT", Duration.ofSeconds(5));
+        tailNotifier.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        endpointReleased.countDown();
+        tailNotifier.stop();
+        endpoint.stop(0);
+    }
+
+    @Test
+    void stalledEndpointNeverBlocksCallersAndDropsTheOldestEvents() throws Exception {
+        notify("stuck");
+        awaitReceived(1);
+
+        // the drainer is stuck on the endpoint, callers keep going and only the newest events are kept
+        long start = System.nanoTime();
+        IntStream.range(0, 100).forEach(i -> notify(title(i)));
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(1));
+        assertThat(meterRegistry.counter("tail.notifications", "result", "dropped").count()).isEqualTo(100 - CAPACITY);
+        assertThat(meterRegistry.get("tail.notifications.queue.size").gauge().value()).isEqualTo(CAPACITY);
+
+        endpointReleased.countDown();
+        awaitReceived(1 + CAPACITY);
+        assertThat(received.subList(1, received.size()))
+                .allSatisfy(body -> assertThat(IntStream.range(100 - CAPACITY, 100)
+                        .anyMatch(i -> body.contains(title(i)))).isTrue());
+    }
+
+    @Test
+    void nullTagValuesAreLeftOut() throws Exception {
+        endpointReleased.countDown();
+        Map<String, String> tags = new HashMap<>();
+        tags.put("fileName", "report.pdf");
+        tags.put("contentType", null);
+
+        notify("upload", tags);
+
+        awaitReceived(1);
+        assertThat(received.get(0)).contains("report.pdf").doesNotContain("contentType");
+    }
+
+    // fixed width, so no title is a prefix of another
+    private static String title(int event) {
+        return String.format("event-%03d", event);
+    }
+
+    private void notify(String title) {
+        notify(title, Map.of());
+    }
+
+    private void notify(String title, Map<String, String> tags) {
+        tailNotifier.info(title, "description", "details", "type", tags);
+    }
+
+    private void awaitReceived(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (received.size() < count && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertThat(received).hasSize(count);
+    }
+}
@@ -0,0 +1,584 @@
+package com.shahidfoy.s3_demo.support;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process, in-memory s3 endpoint on the jdk http server, so tests and benchmarks exercise this service and the
+ * sdk rather than the network and a real bucket. Path style only, and only the calls the service makes: objects,
+ * copies, acls, multipart uploads and listings. Anything else is a 501.
+ */
+public final class FakeS3Server implements AutoCloseable {
+
+    private static final String XMLNS = "xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"";
+    private static final String OWNER = "<Owner><ID>benchmark</ID><DisplayName>benchmark</DisplayName></Owner>";
+    private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+
+    private final NavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
+    private final Set<Integer> failingParts = ConcurrentHashMap.newKeySet();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long requestBandwidth;
+    private final boolean keepContent;
+    private volatile Duration latency = Duration.ZERO;
+
+    private FakeS3Server(HttpServer server, ExecutorService executor, long requestBandwidth, boolean keepContent) {
+        this.server = server;
+        this.executor = executor;
+        this.requestBandwidth = requestBandwidth;
+        this.keepContent = keepContent;
+    }
+
+    /**
+     * starts the server on an ephemeral loopback port
+     */
+    public static FakeS3Server start() throws IOException {
+        return start(0);
+    }
+
+    /**
+     * starts the server on an ephemeral loopback port
+     * @param requestBandwidth bytes per second each request body is read at, like the per connection cap of a
+     *                         real endpoint, 0 for unlimited
+     */
+    public static FakeS3Server start(long requestBandwidth) throws IOException {
+        return start(requestBandwidth, true);
+    }
+
+    /**
+     * starts the server on an ephemeral loopback port
+     * @param requestBandwidth bytes per second each request body is read at, 0 for unlimited
+     * @param keepContent false to store objects and parts empty with the etag of what was sent, so upload
+     *                    benchmarks don't measure the fake holding every payload in the same heap
+     */
+    public static FakeS3Server start(long requestBandwidth, boolean keepContent) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-s3");
+            thread.setDaemon(true);
+            return thread;
+        });
+        FakeS3Server fake = new FakeS3Server(server, executor, requestBandwidth, keepContent);
+        server.createContext("/", fake::handle);
+        server.setExecutor(executor);
+        server.start();
+        return fake;
+    }
+
+    public String endpoint() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return a path style client for this endpoint, without the interceptors and guards of the application client
+     */
+    public S3Client client() {
+        return S3Client.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")))
+                .endpointOverride(URI.create(endpoint()))
+                .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
+                .region(Region.US_EAST_1)
+                .httpClientBuilder(ApacheHttpClient.builder().maxConnections(64))
+                .build();
+    }
+
+    /**
+     * @return the stored object contents, null when there is no such object
+     */
+    public byte[] object(String bucket, String key) {
+        StoredObject object = objects.get(bucket + "/" + key);
+        return object == null ? null : object.bytes;
+    }
+
+    /**
+     * @return multipart uploads initiated and neither completed nor aborted
+     */
+    public int openUploads() {
+        return uploads.size();
+    }
+
+    /**
+     * makes every upload of the given part number fail with a 500
+     */
+    public void failPart(int partNumber) {
+        failingParts.add(partNumber);
+    }
+
+    /**
+     * holds every request this long before it's handled, like the round trip to a remote endpoint
+     */
+    public void setLatency(Duration latency) {
+        this.latency = latency;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!latency.isZero()) {
+                try {
+                    Thread.sleep(latency.toMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            route(exchange);
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            int slash = path.indexOf('/', 1);
+            String bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+            String key = slash < 0 ? "" : path.substring(slash + 1);
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+            // the server keeps a connection open only once the request body is consumed, and replies without a
+            // body (HEAD, 204) don't consume it for us
+            if (!"PUT".equals(method) && !"POST".equals(method))
+                exchange.getRequestBody().close();
+
+            if (key.isEmpty()) {
+                if ("GET".equals(method) && query.containsKey("uploads"))
+                    sendXml(exchange, 200, "<ListMultipartUploadsResult " + XMLNS + "><Bucket>" + escape(bucket)
+                            + "</Bucket><IsTruncated>false</IsTruncated></ListMultipartUploadsResult>");
+                else if ("GET".equals(method))
+                    listObjects(exchange, bucket, query.getOrDefault("prefix", ""));
+                else
+                    sendError(exchange, 501, "NotImplemented", method + " on a bucket");
+                return;
+            }
+
+            String id = bucket + "/" + key;
+            switch (method) {
+                case "PUT" -> {
+                    if (query.containsKey("acl"))
+                        putAcl(exchange, id);
+                    else if (query.containsKey("partNumber"))
+                        uploadPart(exchange, query.get("uploadId"), Integer.parseInt(query.get("partNumber")));
+                    else if (exchange.getRequestHeaders().containsKey("x-amz-copy-source"))
+                        copyObject(exchange, id);
+                    else
+                        putObject(exchange, id);
+                }
+                case "POST" -> {
+                    if (query.containsKey("uploads"))
+                        initiateUpload(exchange, bucket, key);
+                    else if (query.containsKey("uploadId"))
+                        completeUpload(exchange, bucket, key, query.get("uploadId"));
+                    else
+                        sendError(exchange, 501, "NotImplemented", "POST " + path);
+                }
+                case "GET" -> {
+                    if (query.containsKey("acl"))
+                        getAcl(exchange, id);
+                    else
+                        getObject(exchange, id, true);
+                }
+                case "HEAD" -> getObject(exchange, id, false);
+                case "DELETE" -> {
+                    if (query.containsKey("uploadId"))
+                        uploads.remove(query.get("uploadId"));
+                    else
+                        objects.remove(id);
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                default -> sendError(exchange, 501, "NotImplemented", method + " " + path);
+            }
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, "InternalError", String.valueOf(e.getMessage()));
+        }
+    }
+
+    private void putObject(HttpExchange exchange, String id) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        byte[] bytes = readBody(exchange);
+        StoredObject object = new StoredObject(stored(bytes), quote(md5Hex(bytes)), headers.getFirst("Content-Type"),
+                contentEncoding(headers), "public-read".equals(headers.getFirst("x-amz-acl")), now());
+        objects.put(id, object);
+        exchange.getResponseHeaders().set("ETag", object.eTag);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void copyObject(HttpExchange exchange, String id) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        String source = URLDecoder.decode(headers.getFirst("x-amz-copy-source"), StandardCharsets.UTF_8);
+        StoredObject original = objects.get(source.startsWith("/") ? source.substring(1) : source);
+        if (original == null) {
+            sendError(exchange, 404, "NoSuchKey", source);
+            return;
+        }
+        boolean replace = "REPLACE".equals(headers.getFirst("x-amz-metadata-directive"));
+        // stored arrays are never written to, so copies share them like s3 shares the data of server-side copies
+        StoredObject copy = new StoredObject(original.bytes, original.eTag,
+                replace ? headers.getFirst("Content-Type") : original.contentType,
+                replace ? contentEncoding(headers) : original.contentEncoding,
+                "public-read".equals(headers.getFirst("x-amz-acl")), now());
+        objects.put(id, copy);
+        sendXml(exchange, 200, "<CopyObjectResult " + XMLNS + "><LastModified>" + copy.lastModified
+                + "</LastModified><ETag>" + escape(copy.eTag) + "</ETag></CopyObjectResult>");
+    }
+
+    private void getObject(HttpExchange exchange, String id, boolean withBody) throws IOException {
+        StoredObject object = objects.get(id);
+        if (object == null) {
+            if (withBody)
+                sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            else
+                exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        Headers response = exchange.getResponseHeaders();
+        response.set("ETag", object.eTag);
+        response.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(object.lastModified.atOffset(ZoneOffset.UTC)));
+        if (object.contentType != null)
+            response.set("Content-Type", object.contentType);
+        if (object.contentEncoding != null)
+            response.set("Content-Encoding", object.contentEncoding);
+        if (object.eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        if (!withBody) {
+            response.set("Content-Length", Long.toString(object.bytes.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        int from = 0;
+        int to = object.bytes.length;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=") && object.bytes.length > 0) {
+            String[] bounds = range.substring("bytes=".length()).split("-", 2);
+            if (!bounds[0].isEmpty()) {
+                from = (int) Math.min(Long.parseLong(bounds[0]), object.bytes.length - 1);
+                if (!bounds[1].isEmpty())
+                    to = (int) Math.min(Long.parseLong(bounds[1]) + 1, object.bytes.length);
+            } else {
+                from = (int) Math.max(0, object.bytes.length - Long.parseLong(bounds[1]));
+            }
+            response.set("Content-Range", "bytes " + from + "-" + (to - 1) + "/" + object.bytes.length);
+            status = 206;
+        }
+        exchange.sendResponseHeaders(status, to - from == 0 ? -1 : to - from);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(object.bytes, from, to - from);
+        }
+    }
+
+    private void getAcl(HttpExchange exchange, String id) throws IOException {
+        StoredObject object = objects.get(id);
+        if (object == null) {
+            sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        StringBuilder xml = new StringBuilder("<AccessControlPolicy ").append(XMLNS).append('>').append(OWNER)
+                .append("<AccessControlList><Grant><Grantee xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                        + " xsi:type=\"CanonicalUser\"><ID>benchmark</ID></Grantee><Permission>FULL_CONTROL</Permission></Grant>");
+        if (object.publicRead)
+            xml.append("<Grant><Grantee xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:type=\"Group\">"
+                    + "<URI>http://acs.amazonaws.com/groups/global/AllUsers</URI></Grantee><Permission>READ</Permission></Grant>");
+        sendXml(exchange, 200, xml.append("</AccessControlList></AccessControlPolicy>").toString());
+    }
+
+    private void putAcl(HttpExchange exchange, String id) throws IOException {
+        String body = new String(readBody(exchange), StandardCharsets.UTF_8);
+        boolean publicRead = "public-read".equals(exchange.getRequestHeaders().getFirst("x-amz-acl"))
+                || body.contains("groups/global/AllUsers");
+        StoredObject object = objects.computeIfPresent(id, (ignored, stored) -> new StoredObject(stored.bytes, stored.eTag,
+                stored.contentType, stored.contentEncoding, publicRead, stored.lastModified));
+        if (object == null)
+            sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+        else
+            exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void initiateUpload(HttpExchange exchange, String bucket, String key) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new MultipartUpload(headers.getFirst("Content-Type"), contentEncoding(headers),
+                "public-read".equals(headers.getFirst("x-amz-acl"))));
+        sendXml(exchange, 200, "<InitiateMultipartUploadResult " + XMLNS + "><Bucket>" + escape(bucket) + "</Bucket><Key>"
+                + escape(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(HttpExchange exchange, String uploadId, int partNumber) throws IOException {
+        MultipartUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            sendError(exchange, 404, "NoSuchUpload", uploadId);
+            return;
+        }
+        byte[] bytes = readBody(exchange);
+        if (failingParts.contains(partNumber)) {
+            sendError(exchange, 500, "InternalError", "Part " + partNumber + " failed");
+            return;
+        }
+        byte[] md5 = md5().digest(bytes);
+        upload.parts.put(partNumber, new Part(stored(bytes), md5));
+        exchange.getResponseHeaders().set("ETag", quote(HexFormat.of().formatHex(md5)));
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void completeUpload(HttpExchange exchange, String bucket, String key, String uploadId) throws IOException {
+        MultipartUpload upload = uploads.remove(uploadId);
+        if (upload == null) {
+            sendError(exchange, 404, "NoSuchUpload", uploadId);
+            return;
+        }
+        Matcher partNumbers = PART_NUMBER.matcher(new String(readBody(exchange), StandardCharsets.UTF_8));
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        MessageDigest partDigests = md5();
+        int parts = 0;
+        while (partNumbers.find()) {
+            Part part = upload.parts.get(Integer.parseInt(partNumbers.group(1)));
+            if (part == null) {
+                sendError(exchange, 400, "InvalidPart", "Part " + partNumbers.group(1) + " was not uploaded");
+                return;
+            }
+            content.write(part.bytes);
+            partDigests.update(part.md5);
+            parts++;
+        }
+        // multipart etags are the md5 of the part md5s and the part count, the sdk doesn't validate those
+        String eTag = quote(HexFormat.of().formatHex(partDigests.digest()) + "-" + parts);
+        objects.put(bucket + "/" + key, new StoredObject(content.toByteArray(), eTag, upload.contentType,
+                upload.contentEncoding, upload.publicRead, now()));
+        sendXml(exchange, 200, "<CompleteMultipartUploadResult " + XMLNS + "><Bucket>" + escape(bucket) + "</Bucket><Key>"
+                + escape(key) + "</Key><ETag>" + escape(eTag) + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private void listObjects(HttpExchange exchange, String bucket, String prefix) throws IOException {
+        StringBuilder xml = new StringBuilder("<ListBucketResult ").append(XMLNS).append("><Name>").append(escape(bucket))
+                .append("</Name><Prefix>").append(escape(prefix)).append("</Prefix>");
+        int count = 0;
+        String from = bucket + "/" + prefix;
+        for (Map.Entry<String, StoredObject> entry : objects.tailMap(from, true).entrySet()) {
+            if (!entry.getKey().startsWith(from))
+                break;
+            StoredObject object = entry.getValue();
+            xml.append("<Contents><Key>").append(escape(entry.getKey().substring(bucket.length() + 1)))
+                    .append("</Key><LastModified>").append(object.lastModified).append("</LastModified><ETag>")
+                    .append(escape(object.eTag)).append("</ETag><Size>").append(object.bytes.length)
+                    .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+            count++;
+        }
+        sendXml(exchange, 200, xml.append("<KeyCount>").append(count)
+                .append("</KeyCount><IsTruncated>false</IsTruncated></ListBucketResult>").toString());
+    }
+
+    /**
+     * reads the request body, decoding aws-chunked bodies the sdk streams when the endpoint is plain http
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        String sha256 = headers.getFirst("x-amz-content-sha256");
+        String encoding = headers.getFirst("Content-Encoding");
+        InputStream request = exchange.getRequestBody();
+        try (InputStream body = requestBandwidth > 0 ? new ThrottledInputStream(request, requestBandwidth) : request) {
+            if ((sha256 != null && sha256.startsWith("STREAMING-")) || (encoding != null && encoding.contains("aws-chunked")))
+                return decodeAwsChunked(body, headers.getFirst("x-amz-decoded-content-length"));
+            return body.readAllBytes();
+        }
+    }
+
+    private static byte[] decodeAwsChunked(InputStream body, String decodedLength) throws IOException {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(decodedLength == null ? 8192 : Integer.parseInt(decodedLength));
+        while (true) {
+            String header = readLine(body);
+            int extension = header.indexOf(';');
+            int size = Integer.parseInt((extension < 0 ? header : header.substring(0, extension)).trim(), 16);
+            if (size == 0)
+                break;
+            decoded.write(body.readNBytes(size));
+            readLine(body);
+        }
+        // checksum trailers follow the last chunk, objects are verified by their md5 etag instead
+        return decoded.toByteArray();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return the content encoding without the aws-chunked transfer coding the sdk adds
+     */
+    private static String contentEncoding(Headers headers) {
+        String encoding = headers.getFirst("Content-Encoding");
+        if (encoding == null)
+            return null;
+        String stored = encoding.replace("aws-chunked", "").replaceAll("^[ ,]+|[ ,]+$", "");
+        return stored.isEmpty() ? null : stored;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty())
+            return query;
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            query.put(name, equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        sendXml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + escape(message) + "</Message></Error>");
+    }
+
+    private byte[] stored(byte[] bytes) {
+        return keepContent ? bytes : new byte[0];
+    }
+
+    private static Instant now() {
+        return Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String quote(String eTag) {
+        return "\"" + eTag + "\"";
+    }
+
+    private static String md5Hex(byte[] bytes) {
+        return HexFormat.of().formatHex(md5().digest(bytes));
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record StoredObject(byte[] bytes, String eTag, String contentType, String contentEncoding,
+                                boolean publicRead, Instant lastModified) {
+    }
+
+    /**
+     * holds reads back so the bytes read never run ahead of the bandwidth
+     */
+    private static final class ThrottledInputStream extends FilterInputStream {
+
+        private final long bytesPerSecond;
+        private final long started = System.nanoTime();
+        private long read;
+
+        private ThrottledInputStream(InputStream in, long bytesPerSecond) {
+            super(in);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                throttle(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int n = super.read(bytes, offset, length);
+            if (n > 0)
+                throttle(n);
+            return n;
+        }
+
+        private void throttle(int n) throws IOException {
+            read += n;
+            long due = started + read * 1_000_000_000L / bytesPerSecond;
+            long wait = due - System.nanoTime();
+            if (wait <= 0)
+                return;
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private record Part(byte[] bytes, byte[] md5) {
+    }
+
+    private static final class MultipartUpload {
+
+        private final String contentType;
+        private final String contentEncoding;
+        private final boolean publicRead;
+        private final Map<Integer, Part> parts = new ConcurrentHashMap<>();
+
+        private MultipartUpload(String contentType, String contentEncoding, boolean publicRead) {
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.publicRead = publicRead;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.shahidfoy.s3_demo.support;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * Upload bodies for tests that care how the storage code treats a stream it can't rewind.
+ */
+public final class TestStreams {
+
+    private TestStreams() {
+    }
+
+    /**
+     * a stream that is read once and can't be rewound, like a multipart upload's
+     */
+    public static InputStream oneShot(byte[] payload) {
+        return new FilterInputStream(new ByteArrayInputStream(payload)) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * a one-shot stream that supports mark, like the buffered request bodies the sdk gets
+     */
+    public static InputStream buffered(byte[] payload) {
+        return new BufferedInputStream(oneShot(payload));
+    }
+}